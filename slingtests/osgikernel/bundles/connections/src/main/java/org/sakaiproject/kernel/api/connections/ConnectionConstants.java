@@ -48,4 +48,25 @@ public interface ConnectionConstants {
   public static final String PARAM_CONTACT = "contact";
   public static final String PARAM_CONTACT_TYPES = "type";
 
+  /**
+   * The topic of the event posted when the state of a connection changes.
+   */
+  public static final String CONNECTION_CHANGED_EVENT = "org/sakaiproject/kernel/connections/changed";
+  /**
+   * The user that made the change.
+   */
+  public static final String EVENT_THIS_USER = "thisUser";
+  /**
+   * The user the change was made to.
+   */
+  public static final String EVENT_OTHER_USER = "otherUser";
+  /**
+   * The name of the new {@link ConnectionState} of the connection of this user.
+   */
+  public static final String EVENT_THIS_STATE = "thisState";
+  /**
+   * The name of the new {@link ConnectionState} of the connection of the other user.
+   */
+  public static final String EVENT_OTHER_STATE = "otherState";
+
 }
@@ -45,19 +45,24 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.kernel.api.connections.ConnectionConstants;
 import org.sakaiproject.kernel.api.connections.ConnectionException;
 import org.sakaiproject.kernel.api.connections.ConnectionManager;
 import org.sakaiproject.kernel.api.connections.ConnectionOperation;
 import org.sakaiproject.kernel.api.connections.ConnectionState;
 import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.locking.LockMode;
 import org.sakaiproject.kernel.api.locking.LockTimeoutException;
 import org.sakaiproject.kernel.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 
@@ -80,6 +85,9 @@ import javax.jcr.query.QueryResult;
  * @scr.service interface="org.sakaiproject.kernel.api.connections.ConnectionManager"
  * @scr.reference name="SlingRepository"
  *                interface="org.apache.sling.jcr.api.SlingRepository"
+ * @scr.reference name="EventAdmin" interface="org.osgi.service.event.EventAdmin"
+ *                bind="bindEventAdmin" unbind="unbindEventAdmin"
+ *                cardinality="0..1" policy="dynamic"
  */
 public class ConnectionManagerImpl implements ConnectionManager {
 
@@ -91,6 +99,11 @@ public class ConnectionManagerImpl implements ConnectionManager {
   
   protected SlingRepository slingRepository;
 
+  /**
+   * Optional, connection changes are not posted while there is none.
+   */
+  private volatile EventAdmin eventAdmin;
+
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
   static {
@@ -233,6 +246,7 @@ public class ConnectionManagerImpl implements ConnectionManager {
         // save changes if any were actually made
         if (adminSession.hasPendingChanges()) {
           adminSession.save();
+          postConnectionChanged(thisUserId, otherUserId, sp);
         }
       } finally {
         // destroy the admin session
@@ -289,6 +303,43 @@ public class ConnectionManagerImpl implements ConnectionManager {
     return l;
   }
 
+  /**
+   * Tell anyone keeping connections in memory that a connection changed.
+   *
+   * @param thisUserId
+   * @param otherUserId
+   * @param sp
+   *          the states after the change.
+   */
+  private void postConnectionChanged(String thisUserId, String otherUserId, StatePair sp) {
+    EventAdmin eventAdmin = this.eventAdmin;
+    if (eventAdmin != null) {
+      Dictionary<String, Object> properties = new Hashtable<String, Object>();
+      properties.put(ConnectionConstants.EVENT_THIS_USER, thisUserId);
+      properties.put(ConnectionConstants.EVENT_OTHER_USER, otherUserId);
+      properties.put(ConnectionConstants.EVENT_THIS_STATE, sp.getThisState().name());
+      properties.put(ConnectionConstants.EVENT_OTHER_STATE, sp.getOtherState().name());
+      eventAdmin.postEvent(new Event(ConnectionConstants.CONNECTION_CHANGED_EVENT,
+          properties));
+    }
+  }
+
+  /**
+   * @param eventAdmin
+   */
+  protected void bindEventAdmin(EventAdmin eventAdmin) {
+    this.eventAdmin = eventAdmin;
+  }
+
+  /**
+   * @param eventAdmin
+   */
+  protected void unbindEventAdmin(EventAdmin eventAdmin) {
+    if (this.eventAdmin == eventAdmin) {
+      this.eventAdmin = null;
+    }
+  }
+
   private String contactsPathForConnectResource(Resource resource) {
     String requestPath = resource.getPath();
     int lastSlash = requestPath.lastIndexOf('/');
@@ -315,7 +366,7 @@ public class ConnectionManagerImpl implements ConnectionManager {
     }
     String basePath = ConnectionUtils.getConnectionPathBase(path, user1);
     try {
-      lockManager.waitForLock(basePath);
+      lockManager.waitForPathLock(basePath, LockMode.EXCLUSIVE);
     } catch (LockTimeoutException e) {
       LOGGER.error("Unable to obtain lock on base node");
       throw new RepositoryException("Unable to get connection node - lock timed out");
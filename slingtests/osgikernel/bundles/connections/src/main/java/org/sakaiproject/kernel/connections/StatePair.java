@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.kernel.connections;
 
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 
@@ -32,4 +34,14 @@ public interface StatePair {
    */
   void transition(Node thisNode, Node otherNode) throws RepositoryException;
 
+  /**
+   * @return the state of the connection of this user after the transition.
+   */
+  ConnectionState getThisState();
+
+  /**
+   * @return the state of the connection of the other user after the transition.
+   */
+  ConnectionState getOtherState();
+
 }
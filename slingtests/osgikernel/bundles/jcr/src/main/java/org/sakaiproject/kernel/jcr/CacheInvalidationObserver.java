@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.jcr;
+
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.jcr.JCRService;
+import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+/**
+ * Watches the repository for changes and removes the cache entries for the nodes that
+ * changed from caches bound to repository paths with
+ * {@link CacheManagerService#bindToPath(String, org.sakaiproject.kernel.api.memory.CacheScope, String)}.
+ * Changed paths are collected and passed to the cache manager in batches from a
+ * background thread, so that a burst of changes to one node causes one invalidation and
+ * the observation thread is not held up by the caches.
+ *
+ * @scr.component immediate="true" metatype="no"
+ * @scr.property name="service.description"
+ *               value="Invalidates caches bound to repository paths"
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="invalidation.delay" value="100" type="Long"
+ * @scr.reference name="jcrService" interface="org.sakaiproject.kernel.api.jcr.JCRService"
+ *                bind="bindJcrService" unbind="unbindJcrService"
+ * @scr.reference name="cacheManagerService"
+ *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
+ *                bind="bindCacheManagerService" unbind="unbindCacheManagerService"
+ */
+public class CacheInvalidationObserver implements EventListener {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(CacheInvalidationObserver.class);
+
+  public static final String INVALIDATION_DELAY = "invalidation.delay";
+
+  private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+      | Event.PROPERTY_ADDED | Event.PROPERTY_REMOVED | Event.PROPERTY_CHANGED;
+
+  private JCRService jcrService;
+  private volatile CacheManagerService cacheManagerService;
+  private ObservationManager observationManager;
+  private ScheduledExecutorService executor;
+  private long delay = 100L;
+  /**
+   * Guards pending and scheduled, pending is swapped for a new set on each flush so it
+   * cannot be locked itself.
+   */
+  private final Object lock = new Object();
+  private Set<String> pending = new HashSet<String>();
+  private boolean scheduled;
+
+  private Runnable flush = new Runnable() {
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * Start listening to the repository.
+   *
+   * @param componentContext
+   */
+  protected void activate(ComponentContext componentContext) {
+    delay = OsgiUtil.toLong(componentContext.getProperties().get(INVALIDATION_DELAY), 100L);
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cache Invalidation");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    observationManager = jcrService.getObservationManager();
+    if (observationManager == null) {
+      LOGGER.error("No observation manager, caches bound to paths will not be invalidated");
+      return;
+    }
+    try {
+      observationManager.addEventListener(this, EVENT_TYPES, "/", true, null, null, false);
+    } catch (RepositoryException e) {
+      LOGGER.error("Failed to register for repository events, caches bound to paths "
+          + "will not be invalidated ", e);
+    }
+  }
+
+  /**
+   * Stop listening, sending any changes that are waiting.
+   *
+   * @param componentContext
+   */
+  protected void deactivate(ComponentContext componentContext) {
+    if (observationManager != null) {
+      try {
+        observationManager.removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to remove repository event listener " + e.getMessage());
+      }
+      observationManager = null;
+    }
+    executor.shutdown();
+    flush();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    synchronized (lock) {
+      while (events.hasNext()) {
+        Event event = events.nextEvent();
+        try {
+          String path = event.getPath();
+          if ((event.getType() & (Event.NODE_ADDED | Event.NODE_REMOVED)) == 0) {
+            // property events invalidate the node that holds the property.
+            int i = path.lastIndexOf('/');
+            path = i > 0 ? path.substring(0, i) : "/";
+          }
+          pending.add(path);
+        } catch (RepositoryException e) {
+          LOGGER.warn("Failed to get path of event " + e.getMessage());
+        }
+      }
+      if (!scheduled && pending.size() > 0) {
+        scheduled = true;
+        executor.schedule(flush, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Send the paths collected since the last flush to the cache manager.
+   */
+  private void flush() {
+    Set<String> paths;
+    synchronized (lock) {
+      scheduled = false;
+      if (pending.size() == 0) {
+        return;
+      }
+      paths = pending;
+      pending = new HashSet<String>();
+    }
+    CacheManagerService cms = cacheManagerService;
+    if (cms != null) {
+      try {
+        cms.invalidatePaths(paths);
+      } catch (RuntimeException e) {
+        LOGGER.error("Failed to invalidate caches for " + paths, e);
+      }
+    }
+  }
+
+  protected void bindJcrService(JCRService jcrService) {
+    this.jcrService = jcrService;
+  }
+
+  protected void unbindJcrService(JCRService jcrService) {
+    this.jcrService = null;
+  }
+
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+}
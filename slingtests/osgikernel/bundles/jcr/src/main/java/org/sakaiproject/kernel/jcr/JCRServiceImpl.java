@@ -20,12 +20,12 @@ package org.sakaiproject.kernel.jcr;
 import org.sakaiproject.kernel.api.jcr.JCRService;
 import org.sakaiproject.kernel.api.locking.Lock;
 import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.locking.LockMode;
 import org.sakaiproject.kernel.api.locking.LockTimeoutException;
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.sakaiproject.kernel.api.session.SessionManagerService;
-import org.sakaiproject.kernel.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -316,13 +316,9 @@ public class JCRServiceImpl implements JCRService {
     while (lockable.isNew()) {
       lockable = lockable.getParent();
     }
-    String lockId = null;
-    try {
-      lockId = StringUtils.sha1Hash(lockable.getPath());
-    } catch (Exception e) {
-      throw new RepositoryException("Failed to locate SHA1 Hash algoritm ", e);
-    }
-    Lock lock = lockManager.waitForLock(lockId);
+    // lock on the path so lock statistics can be grouped by where in the tree they are,
+    // and a lock on a node excludes locks below it.
+    Lock lock = lockManager.waitForPathLock(lockable.getPath(), LockMode.EXCLUSIVE);
     return lock;
   }
 
@@ -54,4 +54,32 @@ public interface Lock extends Serializable {
    * @return the id of the lock.
    */
   long getLockId();
+
+  /**
+   * @return a token that increases each time the object is locked, stores written to
+   *         while holding the lock can refuse writes carrying an older token.
+   */
+  long getFencingToken();
+
+  /**
+   * @return the mode the lock is held in.
+   */
+  LockMode getMode();
+
+  /**
+   * Change a shared lock held by this thread to exclusive, waiting for the other shared
+   * holders to release it. Nothing happens if the lock is already exclusive.
+   *
+   * @throws LockTimeoutException
+   *           if the other holders did not release the lock in time, or another holder
+   *           is also waiting to upgrade so neither could ever succeed. The lock is still
+   *           held shared.
+   */
+  void upgrade() throws LockTimeoutException;
+
+  /**
+   * Change an exclusive lock held by this thread to shared, letting other shared
+   * holders in. Nothing happens if the lock is already shared.
+   */
+  void downgrade();
 }
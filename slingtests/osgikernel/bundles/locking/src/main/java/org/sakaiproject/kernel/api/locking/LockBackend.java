@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.locking;
+
+/**
+ * Where leases on locks are kept so that they are exclusive across the cluster. A lease
+ * lasts for a time unless renewed, so the locks of a node that dies are freed. Each
+ * grant of a lease on an id returns a fencing token larger than any given before for
+ * that id, which stores can use to reject writes from a holder whose lease has expired.
+ * Register an implementation as a service to make the lock manager use it.
+ */
+public interface LockBackend {
+
+  /**
+   * Take the lease on an id if nobody else holds it.
+   *
+   * @param id
+   *          the id of the locked object.
+   * @param owner
+   *          identifies the owner across the cluster.
+   * @param lease
+   *          the time in ms the lease lasts.
+   * @return the fencing token, greater than 0, or -1 if someone else holds the lease.
+   */
+  long acquire(String id, String owner, long lease);
+
+  /**
+   * Extend a lease.
+   *
+   * @param id
+   * @param owner
+   * @param token
+   *          the fencing token the lease was granted with.
+   * @param lease
+   *          the time in ms from now the lease lasts.
+   * @return false if the lease had expired and has been lost.
+   */
+  boolean renew(String id, String owner, long token, long lease);
+
+  /**
+   * Give up a lease, nothing happens if it is no longer held.
+   *
+   * @param id
+   * @param owner
+   * @param token
+   */
+  void release(String id, String owner, long token);
+}
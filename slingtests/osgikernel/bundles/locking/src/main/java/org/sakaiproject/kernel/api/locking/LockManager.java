@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.kernel.api.locking;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Lock manager provides a mechanism for locking uniquely identified objects across the
  * cluster.
@@ -40,13 +44,85 @@ public interface LockManager {
    * @param id
    * @return
    * @throws LockTimeoutException
-   *           indicates that a lock was not achieved within the a timeout (30s)
+   *           indicates that a lock was not achieved within the a timeout (30s), or a
+   *           {@link LockDeadlockException} if waiting would have deadlocked.
    */
   Lock waitForLock(String id) throws LockTimeoutException;
 
   /**
-   * clear the locks associated with this request.
+   * Wait for a lock in a mode. If this thread already holds the lock in another mode, the
+   * lock is converted to the weakest mode giving both, see {@link LockMode#combine}, so
+   * shared is upgraded to exclusive, and an exclusive lock is returned whatever the mode
+   * asked for.
+   *
+   * @param id
+   * @param mode
+   * @return the lock, held by this thread.
+   * @throws LockTimeoutException
+   *           indicates that a lock was not achieved within the timeout, or a
+   *           {@link LockDeadlockException} if waiting would have deadlocked.
+   */
+  Lock waitForLock(String id, LockMode mode) throws LockTimeoutException;
+
+  /**
+   * Lock a path in a mode, first locking each of its ancestors, except the root and
+   * those no deeper than a configured depth, in the intention mode of the mode, top down.
+   * Locks on paths in the same subtree do not exclude each other, but a shared or
+   * exclusive lock on the subtree excludes them, if the subtree is below that depth. The
+   * ancestors stay locked until the locks of the request are cleared.
+   *
+   * @param path
+   *          an absolute path.
+   * @param mode
+   * @return the lock on the path, held by this thread.
+   * @throws LockTimeoutException
+   *           indicates that the path and its ancestors were not locked within the
+   *           timeout, or a {@link LockDeadlockException} if waiting would have
+   *           deadlocked.
+   */
+  Lock waitForPathLock(String path, LockMode mode) throws LockTimeoutException;
+
+  /**
+   * Try to get an exclusive lock, waiting no longer than the timeout given, which may be
+   * 0 to not wait at all.
+   *
+   * @param id
+   * @param timeout
+   * @param unit
+   * @return the lock, held by this thread, or null if it could not be had in time.
+   * @throws LockDeadlockException
+   *           if waiting would have deadlocked.
+   */
+  Lock tryLock(String id, long timeout, TimeUnit unit) throws LockDeadlockException;
+
+  /**
+   * Try to get a lock in a mode, waiting no longer than the timeout given. Locks already
+   * held by this thread are upgraded as by {@link #waitForLock(String, LockMode)}.
+   *
+   * @param id
+   * @param mode
+   * @param timeout
+   * @param unit
+   * @return the lock, held by this thread, or null if it could not be had in time.
+   * @throws LockDeadlockException
+   *           if waiting would have deadlocked.
+   */
+  Lock tryLock(String id, LockMode mode, long timeout, TimeUnit unit)
+      throws LockDeadlockException;
+
+  /**
+   * clear the locks associated with this request, shared and exclusive.
    */
   void clearLocks();
 
+  /**
+   * @return the statistics for each lock id prefix seen so far.
+   */
+  Collection<LockStatistics> getStatistics();
+
+  /**
+   * @return the locks threads have waited for longest in total, hottest first.
+   */
+  List<HotLock> getHotLocks();
+
 }
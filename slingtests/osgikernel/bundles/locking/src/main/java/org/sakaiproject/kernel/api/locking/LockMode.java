@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.locking;
+
+/**
+ * The modes a lock can be held in. When locks are taken on paths, the ancestors of the
+ * path are locked in the intention mode of the mode the path is locked in, so a lock on
+ * a subtree excludes locks within it, while locks on different paths in the same subtree
+ * do not exclude each other.
+ */
+public enum LockMode {
+  /**
+   * Held on the ancestors of a path locked shared, excludes exclusive holders only.
+   */
+  INTENTION_SHARED(),
+  /**
+   * Held on the ancestors of a path locked exclusive, excludes shared and exclusive
+   * holders, but not other intentions.
+   */
+  INTENTION_EXCLUSIVE(),
+  /**
+   * Held with other shared holders, excludes exclusive holders. For keeping a structure
+   * stable while it is read.
+   */
+  SHARED(),
+  /**
+   * Held by one owner only. For changing a structure.
+   */
+  EXCLUSIVE();
+
+  /**
+   * @param other
+   * @return true if this mode can be held while another owner holds the other mode.
+   */
+  public boolean isCompatible(LockMode other) {
+    switch (this) {
+    case INTENTION_SHARED:
+      return other != EXCLUSIVE;
+    case INTENTION_EXCLUSIVE:
+      return other == INTENTION_SHARED || other == INTENTION_EXCLUSIVE;
+    case SHARED:
+      return other == INTENTION_SHARED || other == SHARED;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * @return true if this is an intention mode, only held on the ancestors of a path.
+   */
+  public boolean isIntention() {
+    return this == INTENTION_SHARED || this == INTENTION_EXCLUSIVE;
+  }
+
+  /**
+   * @return the mode to lock the ancestors of a path locked in this mode.
+   */
+  public LockMode getIntention() {
+    return this == SHARED || this == INTENTION_SHARED ? INTENTION_SHARED
+        : INTENTION_EXCLUSIVE;
+  }
+
+  /**
+   * @param other
+   * @return the weakest mode that gives both this mode and the other.
+   */
+  public LockMode combine(LockMode other) {
+    if (this == other || other == INTENTION_SHARED) {
+      return this;
+    }
+    if (this == INTENTION_SHARED) {
+      return other;
+    }
+    // the remaining pairs are exclusive with anything, or shared with intention exclusive.
+    return EXCLUSIVE;
+  }
+}
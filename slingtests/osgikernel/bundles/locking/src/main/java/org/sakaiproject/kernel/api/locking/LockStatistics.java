@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.locking;
+
+/**
+ * Counters for the locks whose ids share a prefix, the first few elements of a path. This
+ * interface is also the management interface registered with JMX.
+ */
+public interface LockStatistics {
+
+  /**
+   * The number of buckets in the time histograms.
+   */
+  int LATENCY_BUCKETS = 40;
+
+  /**
+   * @return the prefix of the lock ids counted.
+   */
+  String getPrefix();
+
+  /**
+   * @return the number of times a lock was granted.
+   */
+  long getAcquisitions();
+
+  /**
+   * @return the number of times a lock was granted after waiting for another holder.
+   */
+  long getContended();
+
+  /**
+   * @return the number of waits that gave up.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the number of threads waiting now.
+   */
+  long getWaiting();
+
+  /**
+   * @return a histogram of the time taken to get a lock, bucket i counts waits of less
+   *         than 2^(i+1) ns and at least 2^i ns, the last bucket counts everything longer.
+   */
+  long[] getWaitHistogram();
+
+  /**
+   * @return a histogram of the time locks were held, bucketed as
+   *         {@link #getWaitHistogram()}.
+   */
+  long[] getHoldHistogram();
+}
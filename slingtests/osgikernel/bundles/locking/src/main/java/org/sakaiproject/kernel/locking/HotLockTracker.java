@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import org.sakaiproject.kernel.api.locking.HotLock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the locks threads wait for, keeping only the hottest so memory is bounded. Only
+ * waits are recorded, never uncontended locks, so the monitor here is off the fast path.
+ * When the table is full the half with the least wait time is dropped, so a lock must
+ * stay hot to stay in the report.
+ */
+public class HotLockTracker implements HotLockReport {
+
+  /**
+   * Orders hottest first.
+   */
+  private static final Comparator<HotLockImpl> HOTTEST = new Comparator<HotLockImpl>() {
+    public int compare(HotLockImpl o1, HotLockImpl o2) {
+      if (o1.waitTime == o2.waitTime) {
+        return 0;
+      }
+      return o1.waitTime > o2.waitTime ? -1 : 1;
+    }
+  };
+
+  /**
+   * A lock and its waits.
+   */
+  private static class HotLockImpl implements HotLock {
+    private final String id;
+    private long waits;
+    private long waitTime;
+
+    private HotLockImpl(String id, long waits, long waitTime) {
+      this.id = id;
+      this.waits = waits;
+      this.waitTime = waitTime;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public long getWaits() {
+      return waits;
+    }
+
+    public long getWaitTime() {
+      return waitTime;
+    }
+  }
+
+  private final int size;
+  private final Map<String, HotLockImpl> locks = new HashMap<String, HotLockImpl>();
+
+  /**
+   * @param size
+   *          the number of locks reported, 4 times as many are tracked.
+   */
+  public HotLockTracker(int size) {
+    this.size = size;
+  }
+
+  /**
+   * @param id
+   *          the lock waited for.
+   * @param nanos
+   *          the time waited.
+   */
+  public synchronized void waited(String id, long nanos) {
+    HotLockImpl lock = locks.get(id);
+    if (lock == null) {
+      if (locks.size() >= size * 4) {
+        prune();
+      }
+      lock = new HotLockImpl(id, 0, 0);
+      locks.put(id, lock);
+    }
+    lock.waits++;
+    lock.waitTime += nanos;
+  }
+
+  /**
+   * Drop the colder half of the table.
+   */
+  private void prune() {
+    List<HotLockImpl> sorted = new ArrayList<HotLockImpl>(locks.values());
+    Collections.sort(sorted, HOTTEST);
+    for (Iterator<HotLockImpl> i = sorted.listIterator(sorted.size() / 2); i.hasNext();) {
+      locks.remove(i.next().id);
+    }
+  }
+
+  /**
+   * @return a copy of the hottest locks, hottest first.
+   */
+  public synchronized List<HotLock> getHottest() {
+    List<HotLockImpl> sorted = new ArrayList<HotLockImpl>(locks.values());
+    Collections.sort(sorted, HOTTEST);
+    List<HotLock> hottest = new ArrayList<HotLock>();
+    for (HotLockImpl lock : sorted) {
+      if (hottest.size() == size) {
+        break;
+      }
+      hottest.add(new HotLockImpl(lock.id, lock.waits, lock.waitTime));
+    }
+    return hottest;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.locking.HotLockReport#getHotLocks()
+   */
+  public String[] getHotLocks() {
+    List<HotLock> hottest = getHottest();
+    String[] report = new String[hottest.size()];
+    for (int i = 0; i < report.length; i++) {
+      HotLock lock = hottest.get(i);
+      report[i] = lock.getId() + " waits=" + lock.getWaits() + " waitTime="
+          + (lock.getWaitTime() / 1000000L) + "ms";
+    }
+    return report;
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.locking.LockBackend;
+import org.sakaiproject.kernel.api.persistence.DataSourceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+/**
+ * A lock backend that keeps leases in a database table shared by the nodes of the
+ * cluster. Rows are never deleted, so the token in a row keeps increasing over the life
+ * of the table. Lease expiry uses the clocks of the nodes, which must agree to well
+ * within the lease time. The backend is only offered to the lock manager when enabled,
+ * as it puts a database round trip on every lock.
+ *
+ * @scr.component immediate="true" metatype="no"
+ * @scr.property name="service.description" value="JDBC Lock Backend"
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="lock.jdbc.enabled" value="false" type="Boolean"
+ *      description="Register this backend with the lock manager, making locks exclusive across all nodes using the database"
+ * @scr.reference name="dataSourceService"
+ *                interface="org.sakaiproject.kernel.api.persistence.DataSourceService"
+ *                bind="bindDataSourceService" unbind="unbindDataSourceService"
+ */
+public class JdbcLockBackend implements LockBackend {
+
+  public static final String LOCK_JDBC_ENABLED = "lock.jdbc.enabled";
+  private static final Logger LOGGER = LoggerFactory.getLogger(JdbcLockBackend.class);
+  private static final String TABLE = "SAKAI_LOCK_LEASE";
+  /**
+   * Ids longer than this are stored as their SHA1 hash.
+   */
+  private static final int MAX_ID = 255;
+  private static final String CREATE_TABLE = "CREATE TABLE " + TABLE
+      + " (LOCK_ID VARCHAR(" + MAX_ID + ") NOT NULL PRIMARY KEY, OWNER VARCHAR(64),"
+      + " TOKEN BIGINT NOT NULL, EXPIRES BIGINT NOT NULL)";
+  private static final String TAKE = "UPDATE " + TABLE
+      + " SET OWNER = ?, TOKEN = TOKEN + 1, EXPIRES = ?"
+      + " WHERE LOCK_ID = ? AND (OWNER IS NULL OR EXPIRES < ?)";
+  private static final String INSERT = "INSERT INTO " + TABLE
+      + " (LOCK_ID, OWNER, TOKEN, EXPIRES) VALUES (?, ?, 1, ?)";
+  private static final String SELECT_TOKEN = "SELECT TOKEN FROM " + TABLE
+      + " WHERE LOCK_ID = ? AND OWNER = ?";
+  private static final String RENEW = "UPDATE " + TABLE
+      + " SET EXPIRES = ? WHERE LOCK_ID = ? AND OWNER = ? AND TOKEN = ? AND EXPIRES >= ?";
+  private static final String RELEASE = "UPDATE " + TABLE
+      + " SET OWNER = NULL, EXPIRES = 0 WHERE LOCK_ID = ? AND OWNER = ? AND TOKEN = ?";
+
+  /**
+   * Service dependency, the data source service.
+   */
+  private DataSourceService dataSourceService;
+  private ServiceRegistration registration;
+  /**
+   * When each lease this node holds expires, as last written to the table, so that a
+   * renewal that cannot reach the database knows whether the lease is still good.
+   */
+  private ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Create the table if needed and offer the backend to the lock manager, if enabled.
+   *
+   * @param componentContext
+   */
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    if (!OsgiUtil.toBoolean(properties.get(LOCK_JDBC_ENABLED), false)) {
+      return;
+    }
+    try {
+      createTable();
+    } catch (SQLException e) {
+      LOGGER.error("Unable to create the lock lease table, locks are not cluster wide "
+          + e.getMessage(), e);
+      return;
+    }
+    Hashtable<String, Object> serviceProperties = new Hashtable<String, Object>();
+    serviceProperties.put("service.description", "JDBC Lock Backend");
+    registration = componentContext.getBundleContext().registerService(
+        LockBackend.class.getName(), this, serviceProperties);
+  }
+
+  /**
+   * @param componentContext
+   */
+  protected void deactivate(ComponentContext componentContext) {
+    if (registration != null) {
+      registration.unregister();
+      registration = null;
+    }
+  }
+
+  /**
+   * Create the lease table unless it is already there.
+   *
+   * @throws SQLException
+   */
+  protected void createTable() throws SQLException {
+    Connection connection = getDataSource().getConnection();
+    try {
+      ResultSet tables = connection.getMetaData().getTables(null, null, TABLE, null);
+      try {
+        if (tables.next()) {
+          return;
+        }
+      } finally {
+        tables.close();
+      }
+      Statement statement = connection.createStatement();
+      try {
+        statement.executeUpdate(CREATE_TABLE);
+      } finally {
+        statement.close();
+      }
+      commit(connection);
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * {@inheritDoc} The lease is taken by updating a free or expired row, or by inserting
+   * the row if there is none. If another node inserts first the insert fails and the
+   * lease is held.
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockBackend#acquire(java.lang.String,
+   *      java.lang.String, long)
+   */
+  public long acquire(String id, String owner, long lease) {
+    String key = key(id);
+    long now = System.currentTimeMillis();
+    Connection connection = null;
+    try {
+      connection = getDataSource().getConnection();
+      PreparedStatement take = connection.prepareStatement(TAKE);
+      int updated;
+      try {
+        take.setString(1, owner);
+        take.setLong(2, now + lease);
+        take.setString(3, key);
+        take.setLong(4, now);
+        updated = take.executeUpdate();
+      } finally {
+        take.close();
+      }
+      if (updated == 0) {
+        PreparedStatement insert = connection.prepareStatement(INSERT);
+        try {
+          insert.setString(1, key);
+          insert.setString(2, owner);
+          insert.setLong(3, now + lease);
+          insert.executeUpdate();
+          commit(connection);
+          expiries.put(lease(key, owner, 1), now + lease);
+          return 1;
+        } catch (SQLException e) {
+          // the row exists and the lease is held.
+          rollback(connection);
+          return -1;
+        } finally {
+          insert.close();
+        }
+      }
+      PreparedStatement select = connection.prepareStatement(SELECT_TOKEN);
+      try {
+        select.setString(1, key);
+        select.setString(2, owner);
+        ResultSet rs = select.executeQuery();
+        try {
+          long token = rs.next() ? rs.getLong(1) : -1;
+          commit(connection);
+          if (token > 0) {
+            expiries.put(lease(key, owner, token), now + lease);
+          }
+          return token;
+        } finally {
+          rs.close();
+        }
+      } finally {
+        select.close();
+      }
+    } catch (SQLException e) {
+      LOGGER.warn("Failed to take lease on " + id + " " + e.getMessage());
+      rollback(connection);
+      return -1;
+    } finally {
+      close(connection);
+    }
+  }
+
+  /**
+   * {@inheritDoc} If the database cannot be reached the lease is reported as held until
+   * the time it was last taken or renewed to, after which it may have been taken by
+   * another node.
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockBackend#renew(java.lang.String,
+   *      java.lang.String, long, long)
+   */
+  public boolean renew(String id, String owner, long token, long lease) {
+    String key = key(id);
+    String held = lease(key, owner, token);
+    long now = System.currentTimeMillis();
+    Connection connection = null;
+    try {
+      connection = getDataSource().getConnection();
+      PreparedStatement renew = connection.prepareStatement(RENEW);
+      try {
+        renew.setLong(1, now + lease);
+        renew.setString(2, key);
+        renew.setString(3, owner);
+        renew.setLong(4, token);
+        renew.setLong(5, now);
+        boolean renewed = renew.executeUpdate() == 1;
+        commit(connection);
+        if (renewed) {
+          expiries.put(held, now + lease);
+        } else {
+          expiries.remove(held);
+        }
+        return renewed;
+      } finally {
+        renew.close();
+      }
+    } catch (SQLException e) {
+      rollback(connection);
+      Long expires = expiries.get(held);
+      if (expires != null && now < expires) {
+        // still valid, it will be retried at the next renewal.
+        LOGGER.warn("Failed to renew lease on " + id + " " + e.getMessage());
+        return true;
+      }
+      LOGGER.warn("Failed to renew lease on " + id + " before it expired, lost "
+          + e.getMessage());
+      expiries.remove(held);
+      return false;
+    } finally {
+      close(connection);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockBackend#release(java.lang.String,
+   *      java.lang.String, long)
+   */
+  public void release(String id, String owner, long token) {
+    String key = key(id);
+    expiries.remove(lease(key, owner, token));
+    Connection connection = null;
+    try {
+      connection = getDataSource().getConnection();
+      PreparedStatement release = connection.prepareStatement(RELEASE);
+      try {
+        release.setString(1, key);
+        release.setString(2, owner);
+        release.setLong(3, token);
+        release.executeUpdate();
+        commit(connection);
+      } finally {
+        release.close();
+      }
+    } catch (SQLException e) {
+      // the lease will expire.
+      LOGGER.warn("Failed to release lease on " + id + " " + e.getMessage());
+      rollback(connection);
+    } finally {
+      close(connection);
+    }
+  }
+
+  /**
+   * @param id
+   * @return the id as stored in the table.
+   */
+  private String key(String id) {
+    if (id.length() <= MAX_ID) {
+      return id;
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(id.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available " + e.getMessage(), e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is not available " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param key
+   * @param owner
+   * @param token
+   * @return the key of a lease in the expiries.
+   */
+  private String lease(String key, String owner, long token) {
+    return key + " " + owner + " " + token;
+  }
+
+  private DataSource getDataSource() throws SQLException {
+    DataSourceService service = dataSourceService;
+    if (service == null) {
+      throw new SQLException("No data source available");
+    }
+    return service.getDataSource();
+  }
+
+  private void commit(Connection connection) throws SQLException {
+    if (!connection.getAutoCommit()) {
+      connection.commit();
+    }
+  }
+
+  private void rollback(Connection connection) {
+    try {
+      if (connection != null && !connection.getAutoCommit()) {
+        connection.rollback();
+      }
+    } catch (SQLException e) {
+      LOGGER.debug("Rollback failed " + e.getMessage());
+    }
+  }
+
+  private void close(Connection connection) {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        LOGGER.debug("Close failed " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param dataSourceService
+   */
+  protected void bindDataSourceService(DataSourceService dataSourceService) {
+    this.dataSourceService = dataSourceService;
+  }
+
+  /**
+   * @param dataSourceService
+   */
+  protected void unbindDataSourceService(DataSourceService dataSourceService) {
+    this.dataSourceService = null;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import org.sakaiproject.kernel.api.locking.LockBackend;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A lock backend that keeps the leases in memory, for tests and single node
+ * deployments. Lock managers sharing an instance behave as the nodes of a cluster.
+ */
+public class LocalLockBackend implements LockBackend {
+
+  /**
+   * A lease on an id, kept after release so the tokens keep increasing.
+   */
+  private static class Lease {
+    private String owner;
+    private long token;
+    private long expires;
+  }
+
+  /**
+   * The leases by id, guarded by this.
+   */
+  private final Map<String, Lease> leases = new HashMap<String, Lease>();
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockBackend#acquire(java.lang.String,
+   *      java.lang.String, long)
+   */
+  public synchronized long acquire(String id, String owner, long lease) {
+    long now = System.currentTimeMillis();
+    Lease current = leases.get(id);
+    if (current == null) {
+      current = new Lease();
+      leases.put(id, current);
+    } else if (current.owner != null && current.expires > now) {
+      return -1;
+    }
+    current.owner = owner;
+    current.token++;
+    current.expires = now + lease;
+    return current.token;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockBackend#renew(java.lang.String,
+   *      java.lang.String, long, long)
+   */
+  public synchronized boolean renew(String id, String owner, long token, long lease) {
+    long now = System.currentTimeMillis();
+    Lease current = leases.get(id);
+    if (!holds(current, owner, token) || current.expires <= now) {
+      return false;
+    }
+    current.expires = now + lease;
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockBackend#release(java.lang.String,
+   *      java.lang.String, long)
+   */
+  public synchronized void release(String id, String owner, long token) {
+    Lease current = leases.get(id);
+    if (holds(current, owner, token)) {
+      current.owner = null;
+      current.expires = 0;
+    }
+  }
+
+  private boolean holds(Lease current, String owner, long token) {
+    return current != null && owner.equals(current.owner) && current.token == token;
+  }
+}
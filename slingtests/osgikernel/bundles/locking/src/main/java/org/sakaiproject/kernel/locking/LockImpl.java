@@ -18,6 +18,8 @@
 package org.sakaiproject.kernel.locking;
 
 import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockMode;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
 import org.sakaiproject.kernel.api.memory.ThreadBound;
 
 /**
@@ -54,6 +56,22 @@ public class LockImpl implements Lock, ThreadBound {
    * The ID of the lock instance.
    */
   private long lockId;
+  /**
+   * The fencing token, the lock id unless a lease was taken from a lock backend.
+   */
+  private long fencingToken;
+  /**
+   * The mode the lock is held in.
+   */
+  private LockMode mode;
+  /**
+   * The statistics for the prefix of the id, null for locks held on other nodes.
+   */
+  private transient LockStatisticsImpl statistics;
+  /**
+   * The System.nanoTime() the lock was granted at.
+   */
+  private transient long granted;
 
   /**
    * Create a new lock on the item id, with owner ownerId for the lockmanage instanceId
@@ -66,11 +84,29 @@ public class LockImpl implements Lock, ThreadBound {
    *          the instance of the lock manager creating the lock.
    */
   public LockImpl(String id, long lockId, long ownerId, long instanceId) {
+    this(id, lockId, ownerId, instanceId, LockMode.EXCLUSIVE);
+  }
+
+  /**
+   * Create a new lock on the item id in a mode.
+   *
+   * @param id
+   *          the object being locked.
+   * @param ownerId
+   *          the owner of the lock.
+   * @param instanceId
+   *          the instance of the lock manager creating the lock.
+   * @param mode
+   *          the mode the lock is held in.
+   */
+  public LockImpl(String id, long lockId, long ownerId, long instanceId, LockMode mode) {
+    this.mode = mode;
     this.locked = true;
     this.id = id;
     this.ownerId = ownerId;
     this.instanceId = instanceId;
     this.lockId = lockId;
+    this.fencingToken = lockId;
   }
 
   /**
@@ -159,4 +195,83 @@ public class LockImpl implements Lock, ThreadBound {
   public long getLockId() {
     return lockId;
   }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.locking.Lock#getFencingToken()
+   */
+  public long getFencingToken() {
+    return fencingToken;
+  }
+
+  /**
+   * @param fencingToken the token of the lease backing this lock.
+   */
+  protected void setFencingToken(long fencingToken) {
+    this.fencingToken = fencingToken;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.locking.Lock#getMode()
+   */
+  public LockMode getMode() {
+    return mode;
+  }
+
+  /**
+   * @param mode the mode the lock is now held in.
+   */
+  protected void setMode(LockMode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Record the time the lock was granted, for the hold time statistics.
+   *
+   * @param statistics the statistics for the prefix of the id.
+   */
+  protected void granted(LockStatisticsImpl statistics) {
+    this.statistics = statistics;
+    this.granted = System.nanoTime();
+  }
+
+  /**
+   * @return the statistics for the prefix of the id, or null.
+   */
+  protected LockStatisticsImpl getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Record the time the lock was held.
+   */
+  protected void released() {
+    if (statistics != null) {
+      statistics.released(System.nanoTime() - granted);
+    }
+  }
+
+  /**
+   * @return the id of the owning thread.
+   */
+  protected long getOwnerId() {
+    return ownerId;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.locking.Lock#upgrade()
+   */
+  public void upgrade() throws LockTimeoutException {
+    currentLockManger.upgrade(this);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.locking.Lock#downgrade()
+   */
+  public void downgrade() {
+    currentLockManger.downgrade(this);
+  }
 }
@@ -18,8 +18,15 @@
 package org.sakaiproject.kernel.locking;
 
 
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.locking.HotLock;
 import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockBackend;
+import org.sakaiproject.kernel.api.locking.LockDeadlockException;
 import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.locking.LockMode;
+import org.sakaiproject.kernel.api.locking.LockStatistics;
 import org.sakaiproject.kernel.api.locking.LockTimeoutException;
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
@@ -27,32 +34,107 @@ import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that keeps the locks of this JVM in a table split into stripes by lock
+ * id, each stripe with its own monitor, so that unrelated locks do not contend. A lock is
+ * held by one exclusive owner or any number of shared owners. Threads waiting for a lock
+ * are queued per lock in arrival order and parked, when the lock is released it is
+ * handed to the first waiter, and the shared waiters following it, or in unfair mode
+ * those waiters are woken to compete for it with threads that have just arrived. If a
+ * {@link LockBackend} is bound, this JVM must also hold a lease on the lock from the
+ * backend while any thread here holds it, which makes the lock exclusive across the
+ * cluster, the lease is renewed until the last holder releases the lock.
+ * <p>
+ * Paths can be locked with the intention mode taken on each ancestor, top down, so
+ * locks on different paths in a subtree go on together while a lock on the subtree
+ * excludes them. Intention modes take no lease, so they are only seen in this JVM.
+ * Ancestors no deeper than the intention depth are left out, since every path lock
+ * below them would pass through their holders; a lock on such a shallow path does not
+ * exclude locks below it.
+ * </p>
+ * <p>
+ * When a thread blocks, the owners it waits for are followed through the threads they
+ * are blocked on; if that leads back to the thread it is failed at once with a
+ * {@link LockDeadlockException} rather than left to time out.
+ * </p>
+ * <p>
+ * Locks are counted by the first few elements of their path, and the locks threads wait
+ * longest for are tracked, both are registered with JMX and reported at
+ * /system/locks.json.
+ * </p>
  *
  * @scr.component immediate="true" metatype="no"
  * @scr.property name="service.description" value="In JVM Lock Manager"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="lock.fair" value="true" type="Boolean"
+ *      description="Hand released locks to the longest waiting thread, false lets arriving threads take a released lock first, which gives more throughput but may starve waiters"
+ * @scr.property name="lock.timeout" value="30000" type="Long"
+ *      description="The time in ms waitForLock waits for a lock before giving up"
+ * @scr.property name="lock.lease" value="60000" type="Long"
+ *      description="The time in ms a lease from the lock backend lasts, leases are renewed every third of this"
+ * @scr.property name="lock.intention.depth" value="2" type="Integer"
+ *      description="The number of path elements of the ancestors that path locks take no intention lock on, a lock on a path this shallow does not exclude locks below it"
+ * @scr.property name="lock.statistics.depth" value="2" type="Integer"
+ *      description="The number of path elements of a lock id that statistics are kept for"
+ * @scr.property name="lock.statistics.hot" value="20" type="Integer"
+ *      description="The number of hottest locks reported"
  * @scr.service interface="org.sakaiproject.kernel.api.locking.LockManager"
  * @scr.reference name="cacheManagerService"
  *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
  *                bind="bindCacheManagerService" unbind="unbindCacheManagerService"
+ * @scr.reference name="lockBackend"
+ *                interface="org.sakaiproject.kernel.api.locking.LockBackend"
+ *                cardinality="0..1" policy="dynamic"
+ *                bind="bindLockBackend" unbind="unbindLockBackend"
  */
 public class LockManagerImpl implements LockManager {
 
-  /**
-   * The name of the cluster replicated cache. This cache must be configured with a
-   * suitable expiry to allow removal o stale locks and configured with a cluster wide
-   * replication.
-   */
-  private static final String LOCKMAP = "lockmanager.lockmap";
   /**
    *
    */
   private static final String REQUEST_LOCKS = "lockmanager.requestmap";
+  public static final String LOCK_FAIR = "lock.fair";
+  public static final String LOCK_TIMEOUT = "lock.timeout";
+  public static final String LOCK_LEASE = "lock.lease";
+  public static final String LOCK_INTENTION_DEPTH = "lock.intention.depth";
+  public static final String LOCK_STATISTICS_DEPTH = "lock.statistics.depth";
+  public static final String LOCK_STATISTICS_HOT = "lock.statistics.hot";
+  /**
+   * The JMX domain for lock statistics.
+   */
+  private static final String STATISTICS_DOMAIN = "org.sakaiproject.kernel.locking";
+  /**
+   * The prefix for lock ids that are not paths.
+   */
+  private static final String OTHER_PREFIX = "(other)";
   /**
    * The Logger
    */
@@ -66,13 +148,17 @@ public class LockManagerImpl implements LockManager {
    */
   private CacheManagerService cacheManagerService;
   /**
-   * container for Locks.
+   * The lock table, a power of two number of stripes.
    */
-  private Cache<LockImpl> lockMap;
+  private final Stripe[] stripes;
   /**
    * The id of this instance of this class.
    */
   private long instanceId;
+  /**
+   * The owner of the leases this instance takes from the lock backend.
+   */
+  private final String leaseOwner;
   /**
    *
    */
@@ -91,7 +177,223 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  /**
+   * If true released locks are handed to the first waiter.
+   */
+  private volatile boolean fair = true;
+  /**
+   * The time in ms waitForLock waits.
+   */
+  private volatile long timeout = 30000L;
+  /**
+   * Optional service dependency, the backend giving leases across the cluster.
+   */
+  private volatile LockBackend lockBackend;
+  /**
+   * The time in ms leases last.
+   */
+  private volatile long lease = 60000L;
+  /**
+   * Locks held in this JVM with a lease, by id.
+   */
+  private final ConcurrentMap<String, LockEntry> leased = new ConcurrentHashMap<String, LockEntry>();
+  /**
+   * Renews the leases while a backend is bound.
+   */
+  private ScheduledExecutorService renewer;
+  /**
+   * The number of path elements of the ancestors that take no intention lock.
+   */
+  private volatile int intentionDepth = 2;
+  /**
+   * Statistics by lock id prefix.
+   */
+  private final ConcurrentMap<String, LockStatisticsImpl> statistics = new ConcurrentHashMap<String, LockStatisticsImpl>();
+  /**
+   * The number of path elements in a statistics prefix.
+   */
+  private volatile int statisticsDepth = 2;
+  /**
+   * The locks waited for longest.
+   */
+  private volatile HotLockTracker hotLocks = new HotLockTracker(20);
+  /**
+   * True once activated, when statistics are registered with JMX.
+   */
+  private volatile boolean registered;
+  /**
+   * The wait-for graph, the waiter of each owner parked for a lock. With the holders in
+   * the lock table, this gives the owners each blocked owner waits for.
+   */
+  private final ConcurrentMap<Long, Waiter> blocked = new ConcurrentHashMap<Long, Waiter>();
+
+  /**
+   * A thread parked waiting for a lock.
+   */
+  private static class Waiter {
+    private final String id;
+    private final Thread thread;
+    private final long ownerId;
+    private final LockMode mode;
+    /**
+     * The shared lock this waiter holds and wants to make exclusive, if upgrading.
+     */
+    private final LockImpl upgrading;
+    /**
+     * The lock handed to this waiter when the previous owner released it.
+     */
+    private volatile LockImpl granted;
+    /**
+     * True if the waiter had to join the queue.
+     */
+    private boolean queued;
+
+    private Waiter(String id, Thread thread, long ownerId, LockMode mode,
+        LockImpl upgrading) {
+      this.id = id;
+      this.thread = thread;
+      this.ownerId = ownerId;
+      this.mode = mode;
+      this.upgrading = upgrading;
+    }
+  }
+
+  /**
+   * The holders and waiters of one lock id, guarded by its stripe. The entry stays in the
+   * stripe while it has holders or waiters.
+   */
+  private static class LockEntry {
+    private final LockStatisticsImpl statistics;
+    private LockImpl exclusive;
+    /**
+     * The holders in any mode but exclusive by owner, in the order they were granted. Many
+     * owners may hold an intention on a shallow ancestor at once, so holders are not
+     * looked up by scanning.
+     */
+    private final Map<Long, LockImpl> shared = new LinkedHashMap<Long, LockImpl>(4);
+    /**
+     * The number of shared holders in each mode, by ordinal, so that a mode can be checked
+     * against the holders without going through them.
+     */
+    private final int[] held = new int[LockMode.values().length];
+    /**
+     * Threads waiting for the lock, in arrival order, except that an upgrade goes first.
+     */
+    private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+    /**
+     * Guards the lease, which may be slow to take or give up so this is not done holding
+     * the stripe. Taken before the stripe when both are needed.
+     */
+    private final Object leaseMonitor = new Object();
+    private volatile boolean leased;
+    private long leaseToken;
+
+    private LockEntry(LockStatisticsImpl statistics) {
+      this.statistics = statistics;
+    }
+
+    private boolean isFree() {
+      return exclusive == null && shared.isEmpty();
+    }
+
+    /**
+     * @param mode
+     * @param upgrading
+     * @return true if the lock could be granted in the mode now.
+     */
+    private boolean isCompatible(LockMode mode, LockImpl upgrading) {
+      if (exclusive != null) {
+        return false;
+      }
+      for (LockMode other : LockMode.values()) {
+        int n = held[other.ordinal()];
+        if (upgrading != null && upgrading.getMode() == other) {
+          n--;
+        }
+        if (n > 0 && !other.isCompatible(mode)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return true if a holder needs the lease, intention holders do not.
+     */
+    private boolean needsLease() {
+      return exclusive != null || held[LockMode.SHARED.ordinal()] > 0;
+    }
+
+    /**
+     * @param ownerId
+     * @return the lock held by the owner, or null.
+     */
+    private LockImpl getHolder(long ownerId) {
+      if (exclusive != null) {
+        return exclusive.getOwnerId() == ownerId ? exclusive : null;
+      }
+      return shared.get(ownerId);
+    }
+
+    /**
+     * @param lock
+     *          a lock held in any mode but exclusive.
+     */
+    private void addShared(LockImpl lock) {
+      shared.put(lock.getOwnerId(), lock);
+      held[lock.getMode().ordinal()]++;
+    }
+
+    /**
+     * @param lock
+     */
+    private void removeShared(LockImpl lock) {
+      if (shared.get(lock.getOwnerId()) == lock) {
+        shared.remove(lock.getOwnerId());
+        held[lock.getMode().ordinal()]--;
+      }
+    }
+
+    /**
+     * Change the mode a holder holds the lock in.
+     *
+     * @param lock
+     * @param mode
+     */
+    private void setMode(LockImpl lock, LockMode mode) {
+      if (exclusive == lock) {
+        exclusive = null;
+      } else {
+        removeShared(lock);
+      }
+      lock.setMode(mode);
+      if (mode == LockMode.EXCLUSIVE) {
+        exclusive = lock;
+      } else {
+        addShared(lock);
+      }
+    }
+  }
+
+  /**
+   * The locks for the ids that hash to one stripe of the lock table, guarded by the
+   * stripe.
+   */
+  private static class Stripe {
+    private final Map<String, LockEntry> entries = new HashMap<String, LockEntry>();
+    /**
+     * Lock ids are the stripe index in the low bits and this sequence above, so they are
+     * unique without a shared counter, and increase for any one id so they can be used as
+     * fencing tokens when there is no lock backend.
+     */
+    private long sequence;
+    private final int index;
+
+    private Stripe(int index, long sequence) {
+      this.index = index;
+      this.sequence = sequence;
+    }
+  }
 
   /**
    * @throws NoSuchAlgorithmException
@@ -101,6 +403,27 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    leaseOwner = String.valueOf(instanceId);
+    int n = 16;
+    while (n < Runtime.getRuntime().availableProcessors() * 4) {
+      n <<= 1;
+    }
+    stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new Stripe(i, random.nextLong() >>> 24);
+    }
+  }
+
+  /**
+   * @param id
+   * @return the stripe of the lock table holding the lock.
+   */
+  private Stripe stripe(String id) {
+    int h = id.hashCode();
+    // spread the high bits down, as HashMap does, since only the low bits are used.
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (stripes.length - 1)];
   }
 
   public Lock getLock(String id) {
@@ -109,27 +432,119 @@ public class LockManagerImpl implements LockManager {
 
   /**
    * @param id
-   * @return
+   * @return the lock held by this thread, or another holder, or if create and the lock
+   *         is free a new exclusive lock.
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
+    Stripe stripe = stripe(id);
+    long ownerId = threadId.get();
+    LockImpl lock = null;
+    boolean created = false;
+    synchronized (stripe) {
+      LockEntry entry = stripe.entries.get(id);
+      if (entry != null) {
+        lock = entry.getHolder(ownerId);
+        if (lock == null) {
+          lock = entry.exclusive != null || entry.shared.isEmpty() ? entry.exclusive
+              : entry.shared.values().iterator().next();
         }
       }
+      if (create && lock == null) {
+        if (entry == null) {
+          entry = new LockEntry(statistics(id));
+          stripe.entries.put(id, entry);
+        }
+        lock = grant(stripe, entry, id, ownerId, LockMode.EXCLUSIVE);
+        entry.statistics.acquired(0, false);
+        created = true;
+      }
+    }
+    if (created) {
+      lock.bind(this);
+      if (!lease(lock, System.nanoTime())) {
+        // held on another node.
+        unlock(lock);
+        lock = new LockImpl(id, 0, 0, 0);
+      } else {
+        getRequestLocks().put(id, lock);
+      }
+    }
+    if (lock != null) {
+      lock.bind(this);
     }
-    lock.bind(this);
     return lock;
   }
 
+  /**
+   * Create a lock and add it to the holders, must be called holding the stripe.
+   *
+   * @return the new lock.
+   */
+  private LockImpl grant(Stripe stripe, LockEntry entry, String id, long ownerId,
+      LockMode mode) {
+    long lockId = stripe.sequence++ * stripes.length + stripe.index;
+    LockImpl lock = new LockImpl(id, lockId, ownerId, instanceId, mode);
+    lock.granted(entry.statistics);
+    if (mode == LockMode.EXCLUSIVE) {
+      entry.exclusive = lock;
+    } else {
+      entry.addShared(lock);
+    }
+    return lock;
+  }
+
+  /**
+   * Grant the lock a waiter is waiting for, must be called holding the stripe.
+   *
+   * @return the new lock, or the upgraded lock.
+   */
+  private LockImpl grant(Stripe stripe, LockEntry entry, String id, Waiter waiter) {
+    if (waiter.upgrading != null) {
+      entry.setMode(waiter.upgrading, waiter.mode);
+      return waiter.upgrading;
+    }
+    return grant(stripe, entry, id, waiter.ownerId, waiter.mode);
+  }
+
+  /**
+   * After the holders of a lock change, hand it to the waiters at the front of the
+   * queue that can now have it, or in unfair mode wake them to try for it, and drop the
+   * entry if nobody holds or waits for the lock. Must be called holding the stripe.
+   *
+   * @return the waiters to unpark, or null.
+   */
+  private List<Waiter> handOff(Stripe stripe, LockEntry entry, String id) {
+    List<Waiter> woken = null;
+    for (Iterator<Waiter> i = entry.waiters.iterator(); i.hasNext();) {
+      Waiter waiter = i.next();
+      if (!entry.isCompatible(waiter.mode, waiter.upgrading)) {
+        break;
+      }
+      if (woken == null) {
+        woken = new ArrayList<Waiter>(2);
+      }
+      woken.add(waiter);
+      if (fair) {
+        i.remove();
+        waiter.granted = grant(stripe, entry, id, waiter);
+      } else if (waiter.mode == LockMode.EXCLUSIVE) {
+        break;
+      }
+    }
+    if (entry.isFree() && entry.waiters.isEmpty()) {
+      stripe.entries.remove(id);
+    }
+    return woken;
+  }
+
+  private void unpark(List<Waiter> woken) {
+    if (woken != null) {
+      for (Waiter waiter : woken) {
+        LockSupport.unpark(waiter.thread);
+      }
+    }
+  }
+
   /**
    * @return
    */
@@ -147,10 +562,144 @@ public class LockManagerImpl implements LockManager {
       if (debug) {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
-      lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      String id = lock.getLocked();
+      Stripe stripe = stripe(id);
+      LockEntry entry;
+      synchronized (stripe) {
+        entry = stripe.entries.get(id);
       }
+      if (entry == null) {
+        lock.setLocked(false);
+        return;
+      }
+      List<Waiter> woken;
+      if (lockBackend == null && !entry.leased) {
+        synchronized (stripe) {
+          removeHolder(entry, lock);
+          woken = handOff(stripe, entry, id);
+        }
+      } else {
+        synchronized (entry.leaseMonitor) {
+          boolean free;
+          synchronized (stripe) {
+            removeHolder(entry, lock);
+            free = !entry.needsLease();
+          }
+          if (free) {
+            // before the hand off, so the next holder takes a new lease.
+            releaseLease(id, entry);
+          }
+          synchronized (stripe) {
+            woken = handOff(stripe, entry, id);
+          }
+        }
+      }
+      unpark(woken);
+    }
+  }
+
+  /**
+   * Must be called holding the stripe.
+   */
+  private void removeHolder(LockEntry entry, LockImpl lock) {
+    lock.setLocked(false);
+    lock.released();
+    if (entry.exclusive == lock) {
+      entry.exclusive = null;
+    } else {
+      entry.removeShared(lock);
+    }
+  }
+
+  /**
+   * Upgrade a shared lock held by the current thread to exclusive.
+   *
+   * @param lock
+   * @throws LockTimeoutException
+   */
+  protected void upgrade(LockImpl lock) throws LockTimeoutException {
+    try {
+      convert(lock, LockMode.EXCLUSIVE, TimeUnit.MILLISECONDS.toNanos(timeout));
+    } catch (LockDeadlockException e) {
+      throw e;
+    } catch (LockTimeoutException e) {
+      LOGGER.warn(Thread.currentThread() + " " + e.getMessage());
+      throw e;
+    }
+  }
+
+  /**
+   * Convert a lock held by the current thread to the weakest mode that gives both the
+   * mode it is held in and the mode asked for.
+   *
+   * @param lock
+   * @param mode
+   * @param timeoutNanos
+   *          the time to wait for the other holders.
+   * @throws LockTimeoutException
+   */
+  private void convert(LockImpl lock, LockMode mode, long timeoutNanos)
+      throws LockTimeoutException {
+    if (!lock.isOwner() || !lock.isLocked()) {
+      return;
+    }
+    LockMode from = lock.getMode();
+    LockMode to = from.combine(mode);
+    if (to == from) {
+      return;
+    }
+    String id = lock.getLocked();
+    long start = System.nanoTime();
+    await(id, new Waiter(id, Thread.currentThread(), lock.getOwnerId(), to, lock), start,
+        timeoutNanos);
+    if (from.isIntention() && !to.isIntention() && !lease(lock, start + timeoutNanos)) {
+      revert(lock, from);
+      throw new LockTimeoutException("gave up waiting for the lease on " + id + " after "
+          + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms, held on another node");
+    }
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " converted " + id + " to " + to);
+    }
+  }
+
+  /**
+   * Put a converted lock back in the mode it was in.
+   *
+   * @param lock
+   * @param from
+   */
+  private void revert(LockImpl lock, LockMode from) {
+    String id = lock.getLocked();
+    Stripe stripe = stripe(id);
+    List<Waiter> woken;
+    synchronized (stripe) {
+      LockEntry entry = stripe.entries.get(id);
+      entry.setMode(lock, from);
+      woken = handOff(stripe, entry, id);
+    }
+    unpark(woken);
+  }
+
+  /**
+   * Downgrade an exclusive lock held by the current thread to shared.
+   *
+   * @param lock
+   */
+  protected void downgrade(LockImpl lock) {
+    if (!lock.isOwner() || !lock.isLocked() || lock.getMode() != LockMode.EXCLUSIVE) {
+      return;
+    }
+    String id = lock.getLocked();
+    Stripe stripe = stripe(id);
+    List<Waiter> woken;
+    synchronized (stripe) {
+      LockEntry entry = stripe.entries.get(id);
+      entry.setMode(lock, LockMode.SHARED);
+      woken = handOff(stripe, entry, id);
+    }
+    unpark(woken);
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " downgraded " + id);
     }
   }
 
@@ -174,36 +723,534 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.kernel.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
+    return waitForLock(id, LockMode.EXCLUSIVE);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockManager#waitForLock(java.lang.String,
+   *      org.sakaiproject.kernel.api.locking.LockMode)
+   */
+  public Lock waitForLock(String id, LockMode mode) throws LockTimeoutException {
+    try {
+      return lock(id, mode, TimeUnit.MILLISECONDS.toNanos(timeout));
+    } catch (LockDeadlockException e) {
+      throw e;
+    } catch (LockTimeoutException e) {
+      LOGGER.warn(Thread.currentThread() + " " + e.getMessage());
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockManager#tryLock(java.lang.String, long,
+   *      java.util.concurrent.TimeUnit)
+   */
+  public Lock tryLock(String id, long timeout, TimeUnit unit) throws LockDeadlockException {
+    return tryLock(id, LockMode.EXCLUSIVE, timeout, unit);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockManager#tryLock(java.lang.String,
+   *      org.sakaiproject.kernel.api.locking.LockMode, long,
+   *      java.util.concurrent.TimeUnit)
+   */
+  public Lock tryLock(String id, LockMode mode, long timeout, TimeUnit unit)
+      throws LockDeadlockException {
+    try {
+      return lock(id, mode, unit.toNanos(timeout));
+    } catch (LockDeadlockException e) {
+      throw e;
+    } catch (LockTimeoutException e) {
+      if (debug) {
+        LOGGER.debug(Thread.currentThread() + " " + e.getMessage());
+      }
+      return null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockManager#waitForPathLock(java.lang.String,
+   *      org.sakaiproject.kernel.api.locking.LockMode)
+   */
+  public Lock waitForPathLock(String path, LockMode mode) throws LockTimeoutException {
+    if (path == null || !path.startsWith("/")) {
+      throw new IllegalArgumentException("path must be an absolute path.");
+    }
+    if (path.length() > 1 && path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    // the intention locks taken by this call, released if the path cannot be locked.
+    List<String> taken = new ArrayList<String>();
+    try {
+      // top down, so that threads locking paths in the same subtree cannot deadlock.
+      LockMode intention = mode.getIntention();
+      int depth = 0;
+      for (int end = path.indexOf('/', 1); end > 0; end = path.indexOf('/', end + 1)) {
+        if (++depth <= intentionDepth) {
+          continue;
+        }
+        String ancestor = path.substring(0, end);
+        boolean held = isHeld(ancestor);
+        lock(ancestor, intention, Math.max(0, deadline - System.nanoTime()));
+        if (!held) {
+          taken.add(ancestor);
+        }
+      }
+      return lock(path, mode, Math.max(0, deadline - System.nanoTime()));
+    } catch (LockDeadlockException e) {
+      release(taken);
+      throw e;
+    } catch (LockTimeoutException e) {
+      release(taken);
+      LOGGER.warn(Thread.currentThread() + " " + e.getMessage());
+      throw e;
+    }
+  }
+
+  /**
+   * @param id
+   * @return true if the current thread holds the lock.
+   */
+  private boolean isHeld(String id) {
+    long ownerId = threadId.get();
+    Stripe stripe = stripe(id);
+    synchronized (stripe) {
+      LockEntry entry = stripe.entries.get(id);
+      return entry != null && entry.getHolder(ownerId) != null;
+    }
+  }
+
+  /**
+   * Release locks held by the current thread, bottom up.
+   *
+   * @param ids
+   *          the ids of the locks, top down.
+   */
+  private void release(List<String> ids) {
+    Cache<LockImpl> requestLocks = getRequestLocks();
+    for (int i = ids.size() - 1; i >= 0; i--) {
+      // removing the lock from the request unbinds it, which unlocks it.
+      requestLocks.remove(ids.get(i));
+    }
+  }
+
+  /**
+   * Get a lock, waiting in this JVM and then for the lease.
+   *
+   * @param id
+   * @param mode
+   * @param timeoutNanos
+   *          the time to wait.
+   * @return the lock.
+   * @throws LockTimeoutException
+   */
+  private Lock lock(String id, LockMode mode, long timeoutNanos)
+      throws LockTimeoutException {
     if (debug) {
-      LOGGER.debug(Thread.currentThread() + " locking " + id);
+      LOGGER.debug(Thread.currentThread() + " locking " + id + " " + mode);
+    }
+    long ownerId = threadId.get();
+    Stripe stripe = stripe(id);
+    LockImpl lock;
+    synchronized (stripe) {
+      LockEntry entry = stripe.entries.get(id);
+      lock = entry == null ? null : entry.getHolder(ownerId);
+    }
+    if (lock != null) {
+      lock.bind(this);
+      convert(lock, mode, timeoutNanos);
+      return lock;
+    }
+    long start = System.nanoTime();
+    Waiter waiter = new Waiter(id, Thread.currentThread(), ownerId, mode, null);
+    lock = await(id, waiter, start, timeoutNanos);
+    lock.bind(this);
+    if (!lease(lock, start + timeoutNanos)) {
+      unlock(lock);
+      statistics(id).timedOut();
+      hotLocks.waited(id, System.nanoTime() - start);
+      throw new LockTimeoutException("gave up waiting for the lease on " + id + " after "
+          + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms, held on another node");
+    }
+    lock.getStatistics().acquired(System.nanoTime() - start, waiter.queued);
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + id);
+    }
+    getRequestLocks().put(id, lock);
+    return lock;
+  }
+
+  /**
+   * Get the lock in this JVM, parking in the queue until it is granted.
+   *
+   * @param id
+   * @param waiter
+   * @param start
+   *          the System.nanoTime() the wait started at.
+   * @param timeoutNanos
+   *          the time to wait.
+   * @return the lock.
+   * @throws LockTimeoutException
+   *           if the timeout passed.
+   * @throws LockDeadlockException
+   *           if waiting closed a cycle in the wait-for graph.
+   */
+  private LockImpl await(String id, Waiter waiter, long start, long timeoutNanos)
+      throws LockTimeoutException {
+    long deadline = start + timeoutNanos;
+    LockImpl lock = enqueue(id, waiter);
+    if (lock != null) {
+      return lock;
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    LockStatisticsImpl waiting = statistics(id);
+    waiting.waiting(1);
+    blocked.put(waiter.ownerId, waiter);
+    boolean interrupted = false;
+    try {
+      List<Waiter> cycle = findCycle(waiter);
+      if (cycle != null) {
+        lock = dequeue(id, waiter);
+        if (lock == null) {
+          throw deadlock(cycle);
         }
-        return lock;
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+      while (lock == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          lock = dequeue(id, waiter);
+          if (lock == null) {
+            waiting.timedOut();
+            throw new LockTimeoutException("gave up waiting for " + id + " after "
+                + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms, failed to lock node "
+                + id);
+          }
+          break;
+        }
+        LockSupport.parkNanos(remaining);
+        if (Thread.interrupted()) {
+          interrupted = true;
+        }
+        lock = waiter.granted;
+        if (lock == null) {
+          lock = retry(id, waiter);
+        }
       }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+    } finally {
+      blocked.remove(waiter.ownerId);
+      waiting.waiting(-1);
+      hotLocks.waited(id, System.nanoTime() - start);
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Look for a path in the wait-for graph from a waiter that has just blocked back to its
+   * owner. Only the thread that closes a cycle can find it, and it is the one failed, so
+   * the others go on. The graph is read one stripe at a time, so a cycle found is only
+   * reported if a second look finds it again; a real deadlock cannot clear itself.
+   *
+   * @param waiter
+   * @return the waiters in the cycle, starting with the one given, or null if none.
+   */
+  private List<Waiter> findCycle(Waiter waiter) {
+    LinkedList<Waiter> cycle = new LinkedList<Waiter>();
+    if (!findCycle(waiter, waiter.ownerId, new HashSet<Long>(), cycle)) {
+      return null;
+    }
+    LinkedList<Waiter> again = new LinkedList<Waiter>();
+    if (!findCycle(waiter, waiter.ownerId, new HashSet<Long>(), again)) {
+      return null;
+    }
+    return again;
+  }
+
+  /**
+   * Depth first search of the owners blocking a waiter.
+   *
+   * @param waiter
+   * @param target
+   *          the owner that closes the cycle.
+   * @param visited
+   *          owners already searched.
+   * @param path
+   *          the waiters on the path so far, left holding the cycle if found.
+   * @return true if the target was reached.
+   */
+  private boolean findCycle(Waiter waiter, long target, Set<Long> visited,
+      LinkedList<Waiter> path) {
+    path.addLast(waiter);
+    for (long owner : getBlockers(waiter)) {
+      if (owner == target) {
+        return true;
+      }
+      if (visited.add(owner)) {
+        Waiter next = blocked.get(owner);
+        if (next != null && findCycle(next, target, visited, path)) {
+          return true;
+        }
+      }
+    }
+    path.removeLast();
+    return false;
+  }
+
+  /**
+   * @param waiter
+   * @return the owners a waiter is waiting for: the holders it is incompatible with and,
+   *         when fair, the waiters queued ahead of it.
+   */
+  private List<Long> getBlockers(Waiter waiter) {
+    List<Long> blockers = new ArrayList<Long>();
+    Stripe stripe = stripe(waiter.id);
+    synchronized (stripe) {
+      LockEntry entry = stripe.entries.get(waiter.id);
+      if (entry == null || waiter.granted != null) {
+        return blockers;
+      }
+      if (entry.exclusive != null && entry.exclusive.getOwnerId() != waiter.ownerId) {
+        blockers.add(entry.exclusive.getOwnerId());
+      }
+      for (LockImpl holder : entry.shared.values()) {
+        if (holder.getOwnerId() != waiter.ownerId
+            && !holder.getMode().isCompatible(waiter.mode)) {
+          blockers.add(holder.getOwnerId());
+        }
+      }
+      if (fair) {
+        for (Waiter other : entry.waiters) {
+          if (other == waiter) {
+            break;
+          }
+          blockers.add(other.ownerId);
+        }
+      }
+    }
+    return blockers;
+  }
+
+  /**
+   * Report a deadlock with the stack of every thread in it.
+   *
+   * @param cycle
+   * @return the exception to fail the current thread with.
+   */
+  private LockDeadlockException deadlock(List<Waiter> cycle) {
+    StringBuilder summary = new StringBuilder("Deadlock, ");
+    StringBuilder stacks = new StringBuilder();
+    for (Waiter waiter : cycle) {
+      summary.append(waiter.thread.getName()).append(" waiting for ").append(waiter.id)
+          .append(", ");
+      stacks.append('\n').append(waiter.thread).append(" waiting for ").append(waiter.id);
+      for (StackTraceElement element : waiter.thread.getStackTrace()) {
+        stacks.append("\n\tat ").append(element);
+      }
+    }
+    summary.append("failed ").append(Thread.currentThread().getName());
+    LOGGER.warn(summary.toString() + stacks);
+    return new LockDeadlockException(summary.toString());
+  }
+
+  /**
+   * Take the lock if it can be had and nobody is queued ahead, otherwise join the queue.
+   *
+   * @param id
+   * @param waiter
+   * @return the lock if it was taken, null if the waiter was queued.
+   * @throws LockTimeoutException
+   *           if upgrading and another holder is already waiting to upgrade.
+   */
+  private LockImpl enqueue(String id, Waiter waiter) throws LockTimeoutException {
+    Stripe stripe = stripe(id);
+    synchronized (stripe) {
+      LockEntry entry = stripe.entries.get(id);
+      if (entry == null) {
+        entry = new LockEntry(statistics(id));
+        stripe.entries.put(id, entry);
+      }
+      if (entry.isCompatible(waiter.mode, waiter.upgrading)
+          && (waiter.upgrading != null || !fair || entry.waiters.isEmpty())) {
+        return grant(stripe, entry, id, waiter);
+      }
+      if (waiter.upgrading != null) {
+        for (Waiter other : entry.waiters) {
+          // each waits for the other to give up the mode it holds.
+          if (other.upgrading != null
+              && !other.mode.isCompatible(waiter.upgrading.getMode())
+              && !waiter.mode.isCompatible(other.upgrading.getMode())) {
+            throw new LockTimeoutException("Unable to upgrade lock on " + id
+                + ", another holder is waiting to upgrade");
+          }
+        }
+        entry.waiters.addFirst(waiter);
+      } else {
+        entry.waiters.add(waiter);
+      }
+      waiter.queued = true;
+      return null;
+    }
+  }
+
+  /**
+   * Take the lock for a woken waiter if it can now be had. This is how waiters get the
+   * lock in unfair mode, in fair mode only the first waiter may take it.
+   *
+   * @param id
+   * @param waiter
+   * @return the lock, or null if the waiter must wait on.
+   */
+  private LockImpl retry(String id, Waiter waiter) {
+    Stripe stripe = stripe(id);
+    synchronized (stripe) {
+      if (waiter.granted != null) {
+        return waiter.granted;
+      }
+      LockEntry entry = stripe.entries.get(id);
+      if (entry == null || (fair && entry.waiters.getFirst() != waiter)
+          || !entry.isCompatible(waiter.mode, waiter.upgrading)) {
+        return null;
+      }
+      entry.waiters.remove(waiter);
+      return grant(stripe, entry, id, waiter);
+    }
+  }
+
+  /**
+   * Leave the queue after a timeout.
+   *
+   * @param id
+   * @param waiter
+   * @return the lock if it was handed over before the waiter left, otherwise null.
+   */
+  private LockImpl dequeue(String id, Waiter waiter) {
+    Stripe stripe = stripe(id);
+    List<Waiter> woken = null;
+    synchronized (stripe) {
+      if (waiter.granted != null) {
+        return waiter.granted;
+      }
+      LockEntry entry = stripe.entries.get(id);
+      if (entry != null) {
+        entry.waiters.remove(waiter);
+        // waiters behind this one may be able to go now, eg behind an upgrade.
+        woken = handOff(stripe, entry, id);
+      }
+    }
+    unpark(woken);
+    return null;
+  }
+
+  /**
+   * Make sure this JVM holds the lease on a lock from the lock backend, taking it if
+   * this is the first holder. Taking it is retried until the deadline as other nodes
+   * cannot tell this one when they release it.
+   *
+   * @param lock
+   * @param deadline
+   *          the System.nanoTime() to give up at.
+   * @return true if there is no backend or the lease is held.
+   */
+  private boolean lease(LockImpl lock, long deadline) {
+    LockBackend backend = lockBackend;
+    if (backend == null || lock.getMode().isIntention()) {
+      return true;
+    }
+    String id = lock.getLocked();
+    Stripe stripe = stripe(id);
+    LockEntry entry;
+    synchronized (stripe) {
+      entry = stripe.entries.get(id);
+    }
+    synchronized (entry.leaseMonitor) {
+      if (!entry.leased) {
+        long token = takeLease(backend, id, deadline);
+        if (token <= 0) {
+          return false;
+        }
+        entry.leaseToken = token;
+        entry.leased = true;
+        leased.put(id, entry);
+      }
+      lock.setFencingToken(entry.leaseToken);
+      return true;
+    }
+  }
+
+  /**
+   * @return the fencing token, or -1 if the lease was not taken by the deadline.
+   */
+  private long takeLease(LockBackend backend, String id, long deadline) {
+    long sleepTime = 5;
+    boolean interrupted = false;
+    try {
+      while (true) {
+        long token = backend.acquire(id, leaseOwner, lease);
+        if (token > 0) {
+          return token;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+          return -1;
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        try {
+          Thread.sleep(Math.min(sleepTime, remaining));
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+        sleepTime = Math.min(sleepTime * 2, 200);
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Give up the lease on a lock nobody in this JVM holds, must be called holding the
+   * lease monitor of the entry.
+   */
+  private void releaseLease(String id, LockEntry entry) {
+    if (entry.leased) {
+      entry.leased = false;
+      leased.remove(id, entry);
+      LockBackend backend = lockBackend;
+      if (backend != null) {
+        backend.release(id, leaseOwner, entry.leaseToken);
+      }
+    }
+  }
+
+  /**
+   * Renew all the leases held by this JVM, forgetting any that were lost.
+   */
+  protected void renewLeases() {
+    LockBackend backend = lockBackend;
+    if (backend == null) {
+      return;
+    }
+    for (Map.Entry<String, LockEntry> e : leased.entrySet()) {
+      LockEntry entry = e.getValue();
+      synchronized (entry.leaseMonitor) {
+        if (entry.leased && !backend.renew(e.getKey(), leaseOwner, entry.leaseToken, lease)) {
+          entry.leased = false;
+          leased.remove(e.getKey(), entry);
+          LOGGER.warn("Lease on " + e.getKey() + " has been lost, fencing token "
+              + entry.leaseToken + " is no longer current");
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
       }
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
   }
 
   /**
@@ -218,19 +1265,246 @@ public class LockManagerImpl implements LockManager {
   }
 
  
+  /**
+   * @param id
+   * @return the number of threads waiting for the lock.
+   */
+  protected int getWaiting(String id) {
+    Stripe stripe = stripe(id);
+    synchronized (stripe) {
+      LockEntry entry = stripe.entries.get(id);
+      return entry == null ? 0 : entry.waiters.size();
+    }
+  }
+
+  /**
+   * @param id
+   * @return the statistics for the prefix of the id, created and registered with JMX
+   *         the first time the prefix is seen.
+   */
+  private LockStatisticsImpl statistics(String id) {
+    String prefix = prefix(id);
+    LockStatisticsImpl lockStatistics = statistics.get(prefix);
+    if (lockStatistics == null) {
+      lockStatistics = new LockStatisticsImpl(prefix);
+      LockStatisticsImpl existing = statistics.putIfAbsent(prefix, lockStatistics);
+      if (existing != null) {
+        return existing;
+      }
+      if (registered) {
+        register(lockStatistics);
+      }
+    }
+    return lockStatistics;
+  }
+
+  /**
+   * @param id
+   * @return the first elements of the id if it is a path, up to the statistics depth.
+   */
+  protected String prefix(String id) {
+    if (!id.startsWith("/")) {
+      return OTHER_PREFIX;
+    }
+    int end = 0;
+    for (int i = 0; i < statisticsDepth; i++) {
+      end = id.indexOf('/', end + 1);
+      if (end < 0) {
+        return id;
+      }
+    }
+    return id.substring(0, end);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockManager#getStatistics()
+   */
+  public Collection<LockStatistics> getStatistics() {
+    return Collections.unmodifiableCollection(new ArrayList<LockStatistics>(statistics
+        .values()));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockManager#getHotLocks()
+   */
+  public List<HotLock> getHotLocks() {
+    return hotLocks.getHottest();
+  }
+
+  /**
+   * @param lockStatistics
+   */
+  private void register(LockStatisticsImpl lockStatistics) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new StandardMBean(lockStatistics, LockStatistics.class),
+          getStatisticsName(lockStatistics.getPrefix()));
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register lock statistics " + e.getMessage());
+    }
+  }
+
+  /**
+   * @param prefix
+   * @return the JMX name of the statistics for a prefix.
+   * @throws MalformedObjectNameException
+   */
+  private ObjectName getStatisticsName(String prefix) throws MalformedObjectNameException {
+    return new ObjectName(STATISTICS_DOMAIN + ":type=LockStatistics,prefix="
+        + ObjectName.quote(prefix));
+  }
+
+  /**
+   * @return the JMX name of the hot lock report.
+   * @throws MalformedObjectNameException
+   */
+  private ObjectName getHotLocksName() throws MalformedObjectNameException {
+    return new ObjectName(STATISTICS_DOMAIN + ":type=HotLocks");
+  }
+
+  /**
+   * Read the fairness and timeout from the component properties, and register the
+   * statistics with JMX.
+   *
+   * @param componentContext
+   */
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    setFair(OsgiUtil.toBoolean(properties.get(LOCK_FAIR), true));
+    setTimeout(OsgiUtil.toLong(properties.get(LOCK_TIMEOUT), 30000L));
+    setLease(OsgiUtil.toLong(properties.get(LOCK_LEASE), 60000L));
+    setIntentionDepth(OsgiUtil.toInteger(properties.get(LOCK_INTENTION_DEPTH), 2));
+    statisticsDepth = OsgiUtil.toInteger(properties.get(LOCK_STATISTICS_DEPTH), 2);
+    hotLocks = new HotLockTracker(OsgiUtil.toInteger(properties.get(LOCK_STATISTICS_HOT),
+        20));
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new StandardMBean(hotLocks, HotLockReport.class), getHotLocksName());
+    } catch (Exception e) {
+      LOGGER.debug("Unable to register hot lock report " + e.getMessage());
+    }
+    registered = true;
+    for (LockStatisticsImpl lockStatistics : statistics.values()) {
+      register(lockStatistics);
+    }
+  }
+
+  /**
+   * Unregister the statistics from JMX.
+   *
+   * @param componentContext
+   */
+  protected void deactivate(ComponentContext componentContext) {
+    registered = false;
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (mBeanServer.isRegistered(getHotLocksName())) {
+        mBeanServer.unregisterMBean(getHotLocksName());
+      }
+    } catch (Exception e) {
+      LOGGER.debug("Unable to unregister hot lock report " + e.getMessage());
+    }
+    for (LockStatisticsImpl lockStatistics : statistics.values()) {
+      try {
+        ObjectName objectName = getStatisticsName(lockStatistics.getPrefix());
+        if (mBeanServer.isRegistered(objectName)) {
+          mBeanServer.unregisterMBean(objectName);
+        }
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister lock statistics " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param lease
+   *          the time in ms leases from the lock backend last.
+   */
+  public void setLease(long lease) {
+    this.lease = lease;
+  }
+
+  /**
+   * @param fair
+   *          true to hand released locks to the longest waiting thread.
+   */
+  public void setFair(boolean fair) {
+    this.fair = fair;
+  }
+
+  /**
+   * @param timeout
+   *          the time in ms waitForLock waits before giving up.
+   */
+  public void setTimeout(long timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * @param intentionDepth
+   *          the number of path elements of the ancestors that path locks take no
+   *          intention lock on.
+   */
+  public void setIntentionDepth(int intentionDepth) {
+    this.intentionDepth = intentionDepth;
+  }
+
   /**
    * @param cacheManagerService
    */
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    lockMap = cacheManagerService.getCache(LOCKMAP, CacheScope.CLUSTERREPLICATED);
   }
   /**
    * @param cacheManagerService
    */
   protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = null;
-    lockMap = null;
+  }
+
+  /**
+   * @param lockBackend
+   */
+  protected synchronized void bindLockBackend(LockBackend lockBackend) {
+    this.lockBackend = lockBackend;
+    if (renewer == null) {
+      renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Lock Lease Renewal");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      long period = Math.max(lease / 3, 1L);
+      renewer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            renewLeases();
+          } catch (RuntimeException e) {
+            LOGGER.warn("Failed to renew lock leases " + e.getMessage(), e);
+          }
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @param lockBackend
+   */
+  protected synchronized void unbindLockBackend(LockBackend lockBackend) {
+    if (this.lockBackend == lockBackend) {
+      this.lockBackend = null;
+      // the leases will expire in the backend.
+      leased.clear();
+      if (renewer != null) {
+        renewer.shutdown();
+        renewer = null;
+      }
+    }
   }
  
  
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import org.sakaiproject.kernel.api.locking.LockStatistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters for one lock id prefix, updated by the lock manager. Counters and
+ * histograms are striped by thread, each stripe on its own cache lines, so threads
+ * taking unrelated locks with the same prefix do not contend on the counters.
+ */
+public class LockStatisticsImpl implements LockStatistics {
+
+  /**
+   * Must be a power of 2.
+   */
+  private static final int STRIPES = 16;
+  private static final int MASK = STRIPES - 1;
+  private static final int BUCKETS = LockStatistics.LATENCY_BUCKETS;
+  /**
+   * The counters in each stripe, padded to 8 longs, a 64 byte cache line.
+   */
+  private static final int ACQUISITIONS = 0;
+  private static final int CONTENDED = 1;
+  private static final int TIMEOUTS = 2;
+  private static final int WAITING = 3;
+  private static final int COUNTERS = 8;
+
+  private final String prefix;
+  private final AtomicLongArray counters = new AtomicLongArray(STRIPES * COUNTERS);
+  private final AtomicLongArray waitTimes = new AtomicLongArray(STRIPES * BUCKETS);
+  private final AtomicLongArray holdTimes = new AtomicLongArray(STRIPES * BUCKETS);
+
+  /**
+   * @param prefix
+   *          the prefix of the lock ids counted.
+   */
+  public LockStatisticsImpl(String prefix) {
+    this.prefix = prefix;
+  }
+
+  /**
+   * Record a lock being granted.
+   *
+   * @param nanos
+   *          the time taken to get the lock.
+   * @param contended
+   *          true if the thread had to wait for another holder.
+   */
+  public void acquired(long nanos, boolean contended) {
+    int stripe = stripe();
+    counters.incrementAndGet(stripe * COUNTERS + ACQUISITIONS);
+    if (contended) {
+      counters.incrementAndGet(stripe * COUNTERS + CONTENDED);
+    }
+    waitTimes.incrementAndGet(stripe * BUCKETS + bucket(nanos));
+  }
+
+  /**
+   * Record a lock being released.
+   *
+   * @param nanos
+   *          the time the lock was held.
+   */
+  public void released(long nanos) {
+    holdTimes.incrementAndGet(stripe() * BUCKETS + bucket(nanos));
+  }
+
+  /**
+   * Record a wait that gave up.
+   */
+  public void timedOut() {
+    counters.incrementAndGet(stripe() * COUNTERS + TIMEOUTS);
+  }
+
+  /**
+   * @param delta
+   *          the change in the number of waiting threads.
+   */
+  public void waiting(int delta) {
+    counters.addAndGet(stripe() * COUNTERS + WAITING, delta);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockStatistics#getPrefix()
+   */
+  public String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockStatistics#getAcquisitions()
+   */
+  public long getAcquisitions() {
+    return sum(ACQUISITIONS);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockStatistics#getContended()
+   */
+  public long getContended() {
+    return sum(CONTENDED);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockStatistics#getTimeouts()
+   */
+  public long getTimeouts() {
+    return sum(TIMEOUTS);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockStatistics#getWaiting()
+   */
+  public long getWaiting() {
+    return sum(WAITING);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockStatistics#getWaitHistogram()
+   */
+  public long[] getWaitHistogram() {
+    return histogram(waitTimes);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockStatistics#getHoldHistogram()
+   */
+  public long[] getHoldHistogram() {
+    return histogram(holdTimes);
+  }
+
+  private long sum(int counter) {
+    long sum = 0;
+    for (int s = 0; s < STRIPES; s++) {
+      sum += counters.get(s * COUNTERS + counter);
+    }
+    return sum;
+  }
+
+  private long[] histogram(AtomicLongArray buckets) {
+    long[] counts = new long[BUCKETS];
+    for (int s = 0; s < STRIPES; s++) {
+      for (int b = 0; b < BUCKETS; b++) {
+        counts[b] += buckets.get(s * BUCKETS + b);
+      }
+    }
+    return counts;
+  }
+
+  private int bucket(long nanos) {
+    if (nanos > 1) {
+      return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+    }
+    return 0;
+  }
+
+  private int stripe() {
+    return (int) Thread.currentThread().getId() & MASK;
+  }
+}
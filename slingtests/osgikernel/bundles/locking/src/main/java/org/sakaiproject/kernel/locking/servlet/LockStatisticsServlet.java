@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking.servlet;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.kernel.api.locking.HotLock;
+import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.locking.LockStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports lock contention by lock id prefix, and the locks waited for longest, as JSON,
+ * at /system/locks.json. Histograms are arrays where element i counts locks that waited
+ * or were held between 2^i and 2^(i+1) ns. Lock ids name repository paths, which include
+ * user ids, so only the admin user may read them.
+ *
+ * @scr.component metatype="no" immediate="true"
+ * @scr.service interface="javax.servlet.Servlet"
+ * @scr.property name="service.description" value="Reports lock statistics as JSON"
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="sling.servlet.paths" value="/system/locks"
+ * @scr.property name="sling.servlet.methods" value="GET"
+ * @scr.reference name="LockManager"
+ *                interface="org.sakaiproject.kernel.api.locking.LockManager"
+ */
+public class LockStatisticsServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 2871164367427893125L;
+  private static final String ADMIN_USER = "admin";
+  private static final Logger LOGGER = LoggerFactory.getLogger(LockStatisticsServlet.class);
+
+  private LockManager lockManager;
+
+  protected void bindLockManager(LockManager lockManager) {
+    this.lockManager = lockManager;
+  }
+
+  protected void unbindLockManager(LockManager lockManager) {
+    this.lockManager = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!ADMIN_USER.equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Only the admin user may read lock statistics");
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONWriter write = new JSONWriter(response.getWriter());
+      write.object();
+      write.key("locks");
+      write.array();
+      for (LockStatistics statistics : lockManager.getStatistics()) {
+        write.object();
+        write.key("prefix").value(statistics.getPrefix());
+        write.key("acquisitions").value(statistics.getAcquisitions());
+        write.key("contended").value(statistics.getContended());
+        write.key("timeouts").value(statistics.getTimeouts());
+        write.key("waiting").value(statistics.getWaiting());
+        write.key("waitTime");
+        writeHistogram(write, statistics.getWaitHistogram());
+        write.key("holdTime");
+        writeHistogram(write, statistics.getHoldHistogram());
+        write.endObject();
+      }
+      write.endArray();
+      write.key("hotLocks");
+      write.array();
+      for (HotLock hotLock : lockManager.getHotLocks()) {
+        write.object();
+        write.key("id").value(hotLock.getId());
+        write.key("waits").value(hotLock.getWaits());
+        write.key("waitTime").value(hotLock.getWaitTime());
+        write.endObject();
+      }
+      write.endArray();
+      write.endObject();
+    } catch (JSONException e) {
+      LOGGER.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
+  /**
+   * Write a histogram, leaving off the empty buckets at the slow end.
+   *
+   * @param write
+   * @param histogram
+   * @throws JSONException
+   */
+  private void writeHistogram(JSONWriter write, long[] histogram) throws JSONException {
+    int last = histogram.length - 1;
+    while (last >= 0 && histogram[last] == 0) {
+      last--;
+    }
+    write.array();
+    for (int i = 0; i <= last; i++) {
+      write.value(histogram[i]);
+    }
+    write.endArray();
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures lock throughput and the latency of waitForLock with 8 to 256 threads
+ * contending for a few hot locks, as they do for mailbox and connection nodes. Compares
+ * the old sleep polling schedule with the fair and unfair wait queues. Then measures how
+ * throughput scales with threads that each lock their own ids, which only meet in the
+ * lock table. Not a unit test,
+ * run it by hand with
+ * <code>java -cp target/classes:target/test-classes org.sakaiproject.kernel.locking.LockContentionBenchmark</code>
+ */
+public class LockContentionBenchmark {
+
+  private static final String[] IDS = new String[] { "/_user/message/aa/bb/cc",
+      "/_user/message/aa/bb/dd", "/_user/contacts/ee/ff", "/sites/gg" };
+  private static final int[] THREADS = new int[] { 8, 16, 32, 64, 128, 256 };
+  private static final long RUN = 2000L;
+  private static final int SAMPLES = 100000;
+  private static final int HOLD = 2000;
+
+  private static volatile int sink;
+
+  public static void main(String[] args) throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    try {
+      LockManagerImpl lockManager = new LockManagerImpl();
+      lockManager.bindCacheManagerService(cacheManagerService);
+      System.out.println("threads\tmode\tlocks/s\tmean us\tp50 us\tp99 us\tmax us");
+      for (int threads : THREADS) {
+        run(lockManager, threads, "poll");
+        lockManager.setFair(true);
+        run(lockManager, threads, "fair");
+        lockManager.setFair(false);
+        run(lockManager, threads, "unfair");
+      }
+      lockManager.setFair(true);
+      int cores = Runtime.getRuntime().availableProcessors();
+      for (int threads = 1; threads <= cores * 2; threads <<= 1) {
+        run(lockManager, threads, "uncontended");
+      }
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
+
+  private static void run(final LockManagerImpl lockManager, int threads, final String mode)
+      throws InterruptedException {
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final CountDownLatch ready = new CountDownLatch(threads);
+    final CountDownLatch go = new CountDownLatch(1);
+    final long[][] latencies = new long[threads][];
+    final int[] counts = new int[threads];
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final int n = i;
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          long[] samples = new long[SAMPLES];
+          int count = 0;
+          String[] ids = IDS;
+          if ("uncontended".equals(mode)) {
+            ids = new String[IDS.length];
+            for (int j = 0; j < ids.length; j++) {
+              ids[j] = IDS[j] + "/" + n;
+            }
+          }
+          ready.countDown();
+          try {
+            go.await();
+            while (running.get()) {
+              String id = ids[count % ids.length];
+              long start = System.nanoTime();
+              if ("poll".equals(mode)) {
+                poll(lockManager, id);
+              } else {
+                lockManager.waitForLock(id);
+              }
+              long waited = System.nanoTime() - start;
+              hold();
+              lockManager.clearLocks();
+              samples[count % SAMPLES] = waited;
+              count++;
+            }
+          } catch (LockTimeoutException e) {
+            System.out.println(e.getMessage());
+          } catch (InterruptedException e) {
+            return;
+          } finally {
+            lockManager.clearLocks();
+            latencies[n] = samples;
+            counts[n] = count;
+          }
+        }
+      };
+      workers[i].start();
+    }
+    ready.await();
+    go.countDown();
+    Thread.sleep(RUN);
+    running.set(false);
+    for (Thread t : workers) {
+      t.join();
+    }
+    int total = 0;
+    int kept = 0;
+    for (int i = 0; i < threads; i++) {
+      total += counts[i];
+      kept += Math.min(counts[i], SAMPLES);
+    }
+    long[] all = new long[kept];
+    int k = 0;
+    long sum = 0;
+    for (int i = 0; i < threads; i++) {
+      for (int j = 0; j < Math.min(counts[i], SAMPLES); j++) {
+        all[k++] = latencies[i][j];
+        sum += latencies[i][j];
+      }
+    }
+    Arrays.sort(all);
+    if (kept == 0) {
+      System.out.println(threads + "\t" + mode + "\t0");
+      return;
+    }
+    System.out.println(threads + "\t" + mode + "\t" + (total * 1000L / RUN) + "\t"
+        + (sum / kept / 1000) + "\t" + (all[kept / 2] / 1000) + "\t"
+        + (all[(int) (kept * 0.99)] / 1000) + "\t" + (all[kept - 1] / 1000));
+  }
+
+  /**
+   * The schedule waitForLock used to follow, sleeping from 100ms growing to 500ms.
+   */
+  private static void poll(LockManagerImpl lockManager, String id)
+      throws LockTimeoutException, InterruptedException {
+    long sleepTime = 100;
+    int tries = 0;
+    while (tries++ < 300) {
+      Lock lock = lockManager.getLock(id);
+      if (lock != null && lock.isOwner()) {
+        return;
+      }
+      if (sleepTime < 500) {
+        sleepTime = sleepTime + 10;
+      }
+      Thread.sleep(sleepTime);
+    }
+    throw new LockTimeoutException("Failed to lock node " + id);
+  }
+
+  /**
+   * Simulate a little work while holding the lock.
+   */
+  private static void hold() {
+    int x = 0;
+    for (int i = 0; i < HOLD; i++) {
+      x += i * 31;
+    }
+    sink = x;
+  }
+}
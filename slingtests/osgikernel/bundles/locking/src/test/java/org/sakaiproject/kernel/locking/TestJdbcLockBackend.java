@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.persistence.DataSourceService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * Runs the JDBC lock backend against an embedded Derby database, with a data source that
+ * can be made to fail as if the database were unreachable.
+ */
+public class TestJdbcLockBackend {
+
+  private JdbcLockBackend backend;
+  private volatile boolean failing;
+  private String id;
+
+  @Before
+  public void setUp() throws SQLException {
+    final EmbeddedDataSource derby = new EmbeddedDataSource();
+    derby.setDatabaseName("target/TestJdbcLockBackend");
+    derby.setCreateDatabase("create");
+    final DataSource dataSource = (DataSource) Proxy.newProxyInstance(getClass()
+        .getClassLoader(), new Class<?>[] { DataSource.class }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (failing && method.getName().equals("getConnection")) {
+          throw new SQLException("Database unreachable");
+        }
+        try {
+          return method.invoke(derby, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    });
+    backend = new JdbcLockBackend();
+    backend.bindDataSourceService(new DataSourceService() {
+      public DataSource getDataSource() {
+        return dataSource;
+      }
+
+      public String getType() {
+        return DataSourceService.NON_JTA_DATASOURCE;
+      }
+    });
+    backend.createTable();
+    // the database outlives the test, so every run uses new ids.
+    id = "/test/" + System.currentTimeMillis();
+  }
+
+  @Test
+  public void testLeaseIsExclusive() {
+    long token = backend.acquire(id, "node1", 10000);
+    assertTrue(token > 0);
+    assertEquals(-1, backend.acquire(id, "node2", 10000));
+    assertTrue(backend.renew(id, "node1", token, 10000));
+    backend.release(id, "node1", token);
+    long next = backend.acquire(id, "node2", 10000);
+    assertTrue(next > token);
+    assertFalse(backend.renew(id, "node1", token, 10000));
+  }
+
+  @Test
+  public void testExpiredLeaseIsTaken() throws InterruptedException {
+    long token = backend.acquire(id, "node1", 100);
+    Thread.sleep(200);
+    long next = backend.acquire(id, "node2", 10000);
+    assertTrue(next > token);
+    assertFalse(backend.renew(id, "node1", token, 10000));
+  }
+
+  @Test
+  public void testRenewWhileUnreachable() throws InterruptedException {
+    long token = backend.acquire(id, "node1", 300);
+    failing = true;
+    // the lease has not expired, so it is still held.
+    assertTrue(backend.renew(id, "node1", token, 300));
+    Thread.sleep(400);
+    // it has now, and another node may have it.
+    assertFalse(backend.renew(id, "node1", token, 300));
+    failing = false;
+    assertTrue(backend.acquire(id, "node2", 10000) > token);
+  }
+
+  @Test
+  public void testUnknownLeaseUnreachable() {
+    failing = true;
+    assertFalse(backend.renew(id, "node1", 1, 10000));
+  }
+}
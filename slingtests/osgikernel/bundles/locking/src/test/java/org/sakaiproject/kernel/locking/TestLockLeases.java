@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockMode;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two lock managers sharing a local backend, standing in for two nodes of a cluster.
+ */
+public class TestLockLeases {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private LocalLockBackend backend;
+  private LockManagerImpl node1;
+  private LockManagerImpl node2;
+
+  @Before
+  public void setUp() throws IOException, NoSuchAlgorithmException {
+    cacheManagerService = new CacheManagerServiceImpl();
+    backend = new LocalLockBackend();
+    node1 = newNode();
+    node2 = newNode();
+  }
+
+  private LockManagerImpl newNode() throws NoSuchAlgorithmException {
+    LockManagerImpl node = new LockManagerImpl();
+    node.bindCacheManagerService(cacheManagerService);
+    node.bindLockBackend(backend);
+    node.setTimeout(200);
+    return node;
+  }
+
+  @After
+  public void tearDown() {
+    node1.clearLocks();
+    node2.clearLocks();
+    node1.unbindLockBackend(backend);
+    node2.unbindLockBackend(backend);
+    cacheManagerService.stop();
+  }
+
+  /**
+   * Run on another thread, since lock owners are threads.
+   */
+  private long lockOnThread(final LockManagerImpl node, final String id)
+      throws InterruptedException {
+    return lockOnThread(node, id, null);
+  }
+
+  /**
+   * Lock a path on another thread, or an id if no mode is given.
+   */
+  private long lockOnThread(final LockManagerImpl node, final String id,
+      final LockMode mode) throws InterruptedException {
+    final AtomicLong token = new AtomicLong();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Lock lock = mode == null ? node.waitForLock(id) : node.waitForPathLock(id, mode);
+          token.set(lock.getFencingToken());
+        } catch (LockTimeoutException e) {
+          token.set(-1);
+        } finally {
+          node.clearLocks();
+        }
+      }
+    };
+    t.start();
+    t.join();
+    return token.get();
+  }
+
+  @Test
+  public void testExclusiveAcrossNodes() throws Exception {
+    Lock lock = node1.waitForLock("/_user/message/aa/bb");
+    assertTrue(lock.isOwner());
+    long first = lock.getFencingToken();
+    assertFalse(node2.getLock("/_user/message/aa/bb").isOwner());
+    assertFalse(node2.getLock("/_user/message/aa/bb").isLocal());
+    try {
+      node2.waitForLock("/_user/message/aa/bb");
+      fail("Locked on the other node");
+    } catch (LockTimeoutException e) {
+      // expected
+    }
+    node1.clearLocks();
+    Lock second = node2.waitForLock("/_user/message/aa/bb");
+    assertTrue(second.isOwner());
+    assertTrue(second.getFencingToken() > first);
+    node2.clearLocks();
+    // waiting on the same node still works with the lease.
+    assertTrue(lockOnThread(node1, "/_user/message/aa/bb") > second.getFencingToken());
+  }
+
+  @Test
+  public void testLeaseExpires() throws Exception {
+    long token = backend.acquire("/sites/a", "dead", 50);
+    assertTrue(token > 0);
+    assertEquals(-1, backend.acquire("/sites/a", "other", 50));
+    Thread.sleep(100);
+    assertFalse(backend.renew("/sites/a", "dead", token, 50));
+    long next = backend.acquire("/sites/a", "other", 50);
+    assertTrue(next > token);
+    // a stale holder can no longer release the new lease.
+    backend.release("/sites/a", "dead", token);
+    assertEquals(-1, backend.acquire("/sites/a", "third", 50));
+    // a node that dies holding a lock only blocks the others for the lease.
+    node1.setLease(100);
+    node1.unbindLockBackend(backend);
+    node1.bindLockBackend(backend);
+    node1.waitForLock("/sites/b");
+    node1.unbindLockBackend(backend);
+    node2.setTimeout(1000);
+    assertTrue(lockOnThread(node2, "/sites/b") > 0);
+  }
+
+  @Test
+  public void testRenewal() throws Exception {
+    node1.setLease(150);
+    node1.unbindLockBackend(backend);
+    node1.bindLockBackend(backend);
+    node1.waitForLock("/sites/c");
+    Thread.sleep(400);
+    // renewed every 50ms so still held.
+    assertEquals(-1, lockOnThread(node2, "/sites/c"));
+  }
+
+  @Test
+  public void testSharedHoldersShareTheLease() throws Exception {
+    Lock lock = node1.waitForLock("/_user/contacts/aa", LockMode.SHARED);
+    final long[] token = new long[1];
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          token[0] = node1.waitForLock("/_user/contacts/aa", LockMode.SHARED)
+              .getFencingToken();
+        } catch (LockTimeoutException e) {
+          token[0] = -1;
+        } finally {
+          node1.clearLocks();
+        }
+      }
+    };
+    reader.start();
+    reader.join();
+    assertEquals(lock.getFencingToken(), token[0]);
+    assertEquals(-1, lockOnThread(node2, "/_user/contacts/aa"));
+    node1.clearLocks();
+    assertTrue(lockOnThread(node2, "/_user/contacts/aa") > lock.getFencingToken());
+  }
+
+  @Test
+  public void testIntentionsTakeNoLease() throws Exception {
+    Lock lock = node1.waitForPathLock("/_user/message/aa/bb/cc", LockMode.EXCLUSIVE);
+    assertTrue(lock.isOwner());
+    // only the path is leased, so the other node can lock a sibling.
+    assertTrue(lockOnThread(node2, "/_user/message/aa/bb/dd", LockMode.EXCLUSIVE) > 0);
+    // converting the intention on an ancestor takes the lease.
+    Lock ancestor = node1.waitForPathLock("/_user/message/aa", LockMode.EXCLUSIVE);
+    assertEquals(LockMode.EXCLUSIVE, ancestor.getMode());
+    assertTrue(lockOnThread(node2, "/_user/message/aa") < 0);
+    node1.clearLocks();
+    assertTrue(lockOnThread(node2, "/_user/message/aa") > 0);
+  }
+}
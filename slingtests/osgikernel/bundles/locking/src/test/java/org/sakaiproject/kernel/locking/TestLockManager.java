@@ -0,0 +1,382 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockDeadlockException;
+import org.sakaiproject.kernel.api.locking.LockMode;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class TestLockManager {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private LockManagerImpl lockManager;
+
+  @Before
+  public void setUp() throws IOException, NoSuchAlgorithmException {
+    cacheManagerService = new CacheManagerServiceImpl();
+    lockManager = new LockManagerImpl();
+    lockManager.bindCacheManagerService(cacheManagerService);
+  }
+
+  @After
+  public void tearDown() {
+    lockManager.clearLocks();
+    lockManager.unbindCacheManagerService(cacheManagerService);
+    cacheManagerService.stop();
+  }
+
+  /**
+   * Waits for the lock, records its number in the order it got the lock and releases it.
+   */
+  private Thread waiter(final String id, final int n, final List<Integer> order) {
+    return waiter(id, LockMode.EXCLUSIVE, n, order, null);
+  }
+
+  /**
+   * Waits for the lock in a mode, records its number in the order it got the lock, then
+   * holds it until released.
+   */
+  private Thread waiter(final String id, final LockMode mode, final int n,
+      final List<Integer> order, final CountDownLatch release) {
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Lock lock = lockManager.waitForLock(id, mode);
+          assertTrue(lock.isOwner());
+          synchronized (order) {
+            order.add(n);
+          }
+          if (release != null) {
+            release.await(5, TimeUnit.SECONDS);
+          }
+        } catch (InterruptedException e) {
+          // released
+        } catch (LockTimeoutException e) {
+          synchronized (order) {
+            order.add(-n);
+          }
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    t.start();
+    return t;
+  }
+
+  private void awaitWaiting(String id, int n) throws InterruptedException {
+    long start = System.currentTimeMillis();
+    while (lockManager.getWaiting(id) < n) {
+      assertTrue("Waiters did not queue", System.currentTimeMillis() - start < 5000);
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void testHandOffInArrivalOrder() throws Exception {
+    Lock lock = lockManager.waitForLock("mailbox");
+    assertTrue(lock.isOwner());
+    List<Integer> order = new ArrayList<Integer>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 1; i <= 4; i++) {
+      threads.add(waiter("mailbox", i, order));
+      awaitWaiting("mailbox", i);
+    }
+    long start = System.currentTimeMillis();
+    lockManager.clearLocks();
+    for (Thread t : threads) {
+      t.join();
+    }
+    // the whole chain of hand offs takes far less than a single old polling interval.
+    assertTrue(System.currentTimeMillis() - start < 100);
+    assertEquals(4, order.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i + 1, order.get(i).intValue());
+    }
+    assertEquals(0, lockManager.getWaiting("mailbox"));
+  }
+
+  @Test
+  public void testUnfairContention() throws Exception {
+    lockManager.setFair(false);
+    final AtomicInteger held = new AtomicInteger();
+    final AtomicInteger overlaps = new AtomicInteger();
+    final AtomicInteger acquired = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 200; j++) {
+            try {
+              lockManager.waitForLock("connection");
+              if (held.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+              }
+              acquired.incrementAndGet();
+              held.decrementAndGet();
+            } catch (LockTimeoutException e) {
+              // counted as missing below
+            } finally {
+              lockManager.clearLocks();
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(0, overlaps.get());
+    assertEquals(8 * 200, acquired.get());
+    assertEquals(0, lockManager.getWaiting("connection"));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    lockManager.setTimeout(100);
+    lockManager.waitForLock("site");
+    List<Integer> order = new ArrayList<Integer>();
+    Thread t = waiter("site", 1, order);
+    t.join(2000);
+    assertEquals(1, order.size());
+    assertEquals(-1, order.get(0).intValue());
+    assertEquals(0, lockManager.getWaiting("site"));
+    // a later waiter still gets the lock when it is released.
+    t = waiter("site", 2, order);
+    awaitWaiting("site", 1);
+    lockManager.clearLocks();
+    t.join(2000);
+    assertEquals(2, order.get(1).intValue());
+  }
+
+  @Test
+  public void testOwnerDoesNotWait() throws Exception {
+    lockManager.setTimeout(100);
+    Lock lock = lockManager.waitForLock("node");
+    try {
+      assertEquals(lock.getLockId(), lockManager.waitForLock("node").getLockId());
+    } catch (LockTimeoutException e) {
+      fail("The owner should not wait for its own lock");
+    }
+  }
+
+  @Test
+  public void testSharedHolders() throws Exception {
+    Lock lock = lockManager.waitForLock("connections", LockMode.SHARED);
+    assertEquals(LockMode.SHARED, lock.getMode());
+    List<Integer> order = new ArrayList<Integer>();
+    CountDownLatch release = new CountDownLatch(1);
+    Thread reader = waiter("connections", LockMode.SHARED, 1, order, release);
+    long start = System.currentTimeMillis();
+    while (order.size() < 1) {
+      assertTrue("Shared lock not granted", System.currentTimeMillis() - start < 2000);
+      Thread.sleep(5);
+    }
+    // a writer waits for both readers, and readers arriving after it wait behind it.
+    Thread writer = waiter("connections", LockMode.EXCLUSIVE, 2, order, null);
+    awaitWaiting("connections", 1);
+    Thread late = waiter("connections", LockMode.SHARED, 3, order, null);
+    awaitWaiting("connections", 2);
+    lockManager.clearLocks();
+    Thread.sleep(50);
+    assertEquals(1, order.size());
+    release.countDown();
+    writer.join();
+    late.join();
+    reader.join();
+    assertEquals(3, order.size());
+    assertEquals(2, order.get(1).intValue());
+    assertEquals(3, order.get(2).intValue());
+    assertEquals(0, lockManager.getWaiting("connections"));
+  }
+
+  @Test
+  public void testUpgradeAndDowngrade() throws Exception {
+    Lock lock = lockManager.waitForLock("message", LockMode.SHARED);
+    List<Integer> order = new ArrayList<Integer>();
+    CountDownLatch release = new CountDownLatch(1);
+    Thread reader = waiter("message", LockMode.SHARED, 1, order, release);
+    long start = System.currentTimeMillis();
+    while (order.size() < 1) {
+      assertTrue("Shared lock not granted", System.currentTimeMillis() - start < 2000);
+      Thread.sleep(5);
+    }
+    release.countDown();
+    // waits for the other reader to go.
+    lock.upgrade();
+    reader.join();
+    assertEquals(LockMode.EXCLUSIVE, lock.getMode());
+    assertTrue(lock.isOwner());
+    // asking again in either mode returns the lock already held.
+    assertEquals(lock.getLockId(), lockManager.waitForLock("message", LockMode.SHARED)
+        .getLockId());
+
+    Thread second = waiter("message", LockMode.SHARED, 2, order, null);
+    awaitWaiting("message", 1);
+    lock.downgrade();
+    assertEquals(LockMode.SHARED, lock.getMode());
+    second.join(2000);
+    assertEquals(2, order.get(1).intValue());
+
+    // asking for exclusive while holding shared upgrades.
+    assertEquals(lock.getLockId(), lockManager.waitForLock("message").getLockId());
+    assertEquals(LockMode.EXCLUSIVE, lock.getMode());
+    lockManager.clearLocks();
+    assertFalse(lock.isLocked());
+  }
+
+  @Test
+  public void testConflictingUpgrades() throws Exception {
+    lockManager.setTimeout(2000);
+    Lock lock = lockManager.waitForLock("site", LockMode.SHARED);
+    final List<Integer> order = new ArrayList<Integer>();
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("site", LockMode.SHARED).upgrade();
+          synchronized (order) {
+            order.add(1);
+          }
+        } catch (LockTimeoutException e) {
+          synchronized (order) {
+            order.add(-1);
+          }
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    other.start();
+    awaitWaiting("site", 1);
+    try {
+      lock.upgrade();
+      fail("Both holders waiting to upgrade can never succeed");
+    } catch (LockTimeoutException e) {
+      // expected, still held shared
+      assertEquals(LockMode.SHARED, lock.getMode());
+    }
+    lockManager.clearLocks();
+    other.join(2000);
+    assertEquals(1, order.get(0).intValue());
+  }
+
+  @Test
+  public void testTryLock() throws Exception {
+    final CountDownLatch held = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread holder = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("node");
+          held.countDown();
+          release.await(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+          // fails the asserts below
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    holder.start();
+    assertTrue(held.await(5, TimeUnit.SECONDS));
+    assertNull(lockManager.tryLock("node", 0, TimeUnit.MILLISECONDS));
+    long start = System.currentTimeMillis();
+    assertNull(lockManager.tryLock("node", 50, TimeUnit.MILLISECONDS));
+    assertTrue(System.currentTimeMillis() - start >= 40);
+    assertEquals(0, lockManager.getWaiting("node"));
+    release.countDown();
+    Lock lock = lockManager.tryLock("node", 5, TimeUnit.SECONDS);
+    assertNotNull(lock);
+    assertTrue(lock.isOwner());
+    assertTrue(lockManager.tryLock("other", 0, TimeUnit.MILLISECONDS).isOwner());
+    holder.join();
+  }
+
+  @Test
+  public void testDeadlockBroken() throws Exception {
+    final CountDownLatch locked = new CountDownLatch(2);
+    final List<Integer> order = new ArrayList<Integer>();
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < 2; i++) {
+      final String first = i == 0 ? "a" : "b";
+      final String second = i == 0 ? "b" : "a";
+      final int n = i + 1;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            lockManager.waitForLock(first);
+            locked.countDown();
+            locked.await(5, TimeUnit.SECONDS);
+            lockManager.waitForLock(second);
+            synchronized (order) {
+              order.add(n);
+            }
+          } catch (LockDeadlockException e) {
+            synchronized (order) {
+              order.add(-n);
+            }
+          } catch (Exception e) {
+            // timed out, fails the asserts below
+          } finally {
+            lockManager.clearLocks();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    long start = System.currentTimeMillis();
+    for (Thread t : threads) {
+      t.join(5000);
+    }
+    assertTrue("Deadlock was not broken", System.currentTimeMillis() - start < 5000);
+    assertEquals(2, order.size());
+    // one was failed, the other went on.
+    assertTrue(order.get(0) < 0);
+    assertTrue(order.get(1) > 0);
+    assertEquals(3, order.get(1) - order.get(0));
+  }
+}
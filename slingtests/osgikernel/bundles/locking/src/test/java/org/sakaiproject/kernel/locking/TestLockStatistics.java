@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.locking.HotLock;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockStatistics;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ *
+ */
+public class TestLockStatistics {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private LockManagerImpl lockManager;
+
+  @Before
+  public void setUp() throws IOException, NoSuchAlgorithmException {
+    cacheManagerService = new CacheManagerServiceImpl();
+    lockManager = new LockManagerImpl();
+    lockManager.bindCacheManagerService(cacheManagerService);
+  }
+
+  @After
+  public void tearDown() {
+    lockManager.clearLocks();
+    lockManager.unbindCacheManagerService(cacheManagerService);
+    cacheManagerService.stop();
+  }
+
+  private LockStatistics getStatistics(String prefix) {
+    for (LockStatistics statistics : lockManager.getStatistics()) {
+      if (prefix.equals(statistics.getPrefix())) {
+        return statistics;
+      }
+    }
+    return null;
+  }
+
+  private static long sum(long[] histogram) {
+    long total = 0;
+    for (long count : histogram) {
+      total += count;
+    }
+    return total;
+  }
+
+  @Test
+  public void testPrefix() {
+    assertEquals("/_user/message", lockManager.prefix("/_user/message/ab/cd/1234"));
+    assertEquals("/_user/message", lockManager.prefix("/_user/message"));
+    assertEquals("/sites", lockManager.prefix("/sites"));
+    assertEquals("(other)", lockManager.prefix("a0b1c2d3"));
+  }
+
+  @Test
+  public void testUncontended() throws Exception {
+    lockManager.waitForLock("/_user/message/ab/1");
+    lockManager.clearLocks();
+    lockManager.waitForLock("/_user/message/cd/2");
+    lockManager.clearLocks();
+    lockManager.waitForLock("/sites/physics");
+    lockManager.clearLocks();
+    LockStatistics messages = getStatistics("/_user/message");
+    assertNotNull(messages);
+    assertEquals(2, messages.getAcquisitions());
+    assertEquals(0, messages.getContended());
+    assertEquals(2, sum(messages.getWaitHistogram()));
+    assertEquals(2, sum(messages.getHoldHistogram()));
+    assertEquals(1, getStatistics("/sites/physics").getAcquisitions());
+    assertTrue(lockManager.getHotLocks().isEmpty());
+  }
+
+  @Test
+  public void testContendedAndTimeouts() throws Exception {
+    lockManager.setTimeout(100);
+    final String id = "/_user/message/ab/1";
+    Lock lock = lockManager.waitForLock(id);
+    final LockStatistics statistics = getStatistics("/_user/message");
+    final Throwable[] failure = new Throwable[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock(id);
+          failure[0] = new AssertionError("Expected a timeout");
+        } catch (LockTimeoutException e) {
+          // expected
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    t.start();
+    long start = System.currentTimeMillis();
+    while (statistics.getWaiting() < 1) {
+      assertTrue("Waiter did not queue", System.currentTimeMillis() - start < 5000);
+      Thread.sleep(5);
+    }
+    t.join();
+    if (failure[0] != null) {
+      fail(failure[0].getMessage());
+    }
+    assertEquals(0, statistics.getWaiting());
+    assertEquals(1, statistics.getTimeouts());
+
+    lockManager.setTimeout(5000);
+    t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock(id);
+        } catch (LockTimeoutException e) {
+          failure[0] = e;
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    t.start();
+    start = System.currentTimeMillis();
+    while (statistics.getWaiting() < 1) {
+      assertTrue("Waiter did not queue", System.currentTimeMillis() - start < 5000);
+      Thread.sleep(5);
+    }
+    Thread.sleep(20);
+    lock.unlock();
+    t.join();
+    if (failure[0] != null) {
+      fail(failure[0].getMessage());
+    }
+    assertEquals(2, statistics.getAcquisitions());
+    assertEquals(1, statistics.getContended());
+    assertEquals(0, statistics.getWaiting());
+
+    List<HotLock> hotLocks = lockManager.getHotLocks();
+    assertEquals(1, hotLocks.size());
+    assertEquals(id, hotLocks.get(0).getId());
+    assertEquals(2, hotLocks.get(0).getWaits());
+    assertTrue(hotLocks.get(0).getWaitTime() >= 100000000L);
+  }
+
+  @Test
+  public void testHotLockTracker() {
+    HotLockTracker tracker = new HotLockTracker(2);
+    for (int i = 0; i < 20; i++) {
+      tracker.waited("/cold/" + i, 1);
+    }
+    tracker.waited("/hot/a", 1000);
+    tracker.waited("/hot/b", 500);
+    tracker.waited("/hot/a", 1000);
+    List<HotLock> hottest = tracker.getHottest();
+    assertEquals(2, hottest.size());
+    assertEquals("/hot/a", hottest.get(0).getId());
+    assertEquals(2, hottest.get(0).getWaits());
+    assertEquals(2000, hottest.get(0).getWaitTime());
+    assertEquals("/hot/b", hottest.get(1).getId());
+    assertEquals(2, tracker.getHotLocks().length);
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockMode;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class TestPathLocks {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private LockManagerImpl lockManager;
+  private CountDownLatch release;
+  private Thread holder;
+
+  @Before
+  public void setUp() throws IOException, NoSuchAlgorithmException {
+    cacheManagerService = new CacheManagerServiceImpl();
+    lockManager = new LockManagerImpl();
+    lockManager.bindCacheManagerService(cacheManagerService);
+    lockManager.setTimeout(100);
+    lockManager.setIntentionDepth(0);
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    release.countDown();
+    if (holder != null) {
+      holder.join();
+    }
+    lockManager.clearLocks();
+    lockManager.unbindCacheManagerService(cacheManagerService);
+    cacheManagerService.stop();
+  }
+
+  /**
+   * Lock a path in another thread and hold it until the test ends.
+   */
+  private void hold(final String path, final LockMode mode) throws InterruptedException {
+    final CountDownLatch held = new CountDownLatch(1);
+    holder = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForPathLock(path, mode);
+          held.countDown();
+          release.await(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+          // fails the await below
+        } finally {
+          lockManager.clearLocks();
+        }
+      }
+    };
+    holder.start();
+    assertTrue(held.await(5, TimeUnit.SECONDS));
+  }
+
+  private boolean canLock(String path, LockMode mode) {
+    try {
+      assertTrue(lockManager.waitForPathLock(path, mode).isOwner());
+      return true;
+    } catch (LockTimeoutException e) {
+      return false;
+    } finally {
+      lockManager.clearLocks();
+    }
+  }
+
+  @Test
+  public void testCompatibility() {
+    LockMode[] modes = LockMode.values();
+    boolean[][] compatible = { { true, true, true, false }, { true, true, false, false },
+        { true, false, true, false }, { false, false, false, false } };
+    for (int i = 0; i < modes.length; i++) {
+      for (int j = 0; j < modes.length; j++) {
+        assertEquals(modes[i] + " " + modes[j], compatible[i][j], modes[i]
+            .isCompatible(modes[j]));
+      }
+    }
+    assertEquals(LockMode.INTENTION_EXCLUSIVE, LockMode.INTENTION_SHARED
+        .combine(LockMode.INTENTION_EXCLUSIVE));
+    assertEquals(LockMode.SHARED, LockMode.INTENTION_SHARED.combine(LockMode.SHARED));
+    assertEquals(LockMode.EXCLUSIVE, LockMode.INTENTION_EXCLUSIVE.combine(LockMode.SHARED));
+    assertEquals(LockMode.EXCLUSIVE, LockMode.EXCLUSIVE.combine(LockMode.INTENTION_SHARED));
+    assertEquals(LockMode.INTENTION_SHARED, LockMode.SHARED.getIntention());
+    assertEquals(LockMode.INTENTION_EXCLUSIVE, LockMode.EXCLUSIVE.getIntention());
+  }
+
+  @Test
+  public void testSiblingsConcurrent() throws Exception {
+    hold("/_user/message/aa/bb/cc/xyz", LockMode.EXCLUSIVE);
+    assertTrue(canLock("/_user/message/aa/bb/dd/uvw", LockMode.EXCLUSIVE));
+    assertTrue(canLock("/_user/message/aa/bb/cc/uvw", LockMode.EXCLUSIVE));
+    assertFalse(canLock("/_user/message/aa/bb/cc/xyz", LockMode.SHARED));
+  }
+
+  @Test
+  public void testSubtreeExcludesDescendants() throws Exception {
+    hold("/_user/message/aa", LockMode.EXCLUSIVE);
+    assertFalse(canLock("/_user/message/aa/bb/cc/xyz", LockMode.EXCLUSIVE));
+    assertFalse(canLock("/_user/message/aa/bb/dd/uvw", LockMode.SHARED));
+    assertTrue(canLock("/_user/message/ab/bb/dd/uvw", LockMode.EXCLUSIVE));
+  }
+
+  @Test
+  public void testDescendantsExcludeSubtree() throws Exception {
+    hold("/_user/message/aa/bb/cc/xyz", LockMode.EXCLUSIVE);
+    assertFalse(canLock("/_user/message/aa", LockMode.EXCLUSIVE));
+    assertFalse(canLock("/_user/message/aa/", LockMode.SHARED));
+  }
+
+  @Test
+  public void testSharedSubtree() throws Exception {
+    hold("/site/physics", LockMode.SHARED);
+    assertTrue(canLock("/site/physics", LockMode.SHARED));
+    assertTrue(canLock("/site/physics/pages/1", LockMode.SHARED));
+    assertFalse(canLock("/site/physics/pages/1", LockMode.EXCLUSIVE));
+    assertTrue(canLock("/site/chemistry/pages/1", LockMode.EXCLUSIVE));
+  }
+
+  @Test
+  public void testIntentionConverted() throws Exception {
+    Lock read = lockManager.waitForPathLock("/site/physics/pages/1", LockMode.SHARED);
+    Lock write = lockManager.waitForPathLock("/site/physics/pages/2", LockMode.EXCLUSIVE);
+    assertEquals(LockMode.SHARED, read.getMode());
+    assertEquals(LockMode.EXCLUSIVE, write.getMode());
+    Lock pages = lockManager.getLock("/site/physics/pages", false);
+    assertEquals(LockMode.INTENTION_EXCLUSIVE, pages.getMode());
+    assertTrue(pages.isOwner());
+    // the subtree lock converts the intention held on it.
+    Lock subtree = lockManager.waitForPathLock("/site/physics", LockMode.SHARED);
+    assertEquals(LockMode.EXCLUSIVE, subtree.getMode());
+  }
+
+  @Test
+  public void testIntentionsReleasedOnTimeout() throws Exception {
+    hold("/site/physics/pages", LockMode.EXCLUSIVE);
+    try {
+      lockManager.waitForPathLock("/site/physics/pages/1", LockMode.EXCLUSIVE);
+      fail("The subtree is held");
+    } catch (LockTimeoutException e) {
+      // expected
+    }
+    // without clearLocks, this thread holds nothing on the way down.
+    for (String path : new String[] { "/site", "/site/physics" }) {
+      Lock lock = lockManager.getLock(path, false);
+      assertTrue(path, lock == null || !lock.isOwner());
+    }
+  }
+
+  @Test
+  public void testShallowAncestorsNotLocked() throws Exception {
+    lockManager.setIntentionDepth(2);
+    hold("/_user/message", LockMode.EXCLUSIVE);
+    // only the ancestors below the intention depth are locked on the way down.
+    assertTrue(canLock("/_user/message/aa/bb", LockMode.EXCLUSIVE));
+    lockManager.waitForPathLock("/_user/message/aa/bb", LockMode.EXCLUSIVE);
+    assertNull(lockManager.getLock("/_user", false));
+    Lock aa = lockManager.getLock("/_user/message/aa", false);
+    assertEquals(LockMode.INTENTION_EXCLUSIVE, aa.getMode());
+    assertTrue(aa.isOwner());
+  }
+
+  @Test
+  public void testRelativePath() throws Exception {
+    try {
+      lockManager.waitForPathLock("site/physics", LockMode.SHARED);
+      fail("Only absolute paths can be locked");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Loads a number of values into a cache in one go.
+ */
+public interface BulkLoader<V> {
+
+  /**
+   * @param keys
+   *          the keys that were not in the cache.
+   * @return a map of key to value, keys with no value may be left out.
+   * @throws Exception
+   *           if the values could not be loaded.
+   */
+  Map<String, V> loadAll(Collection<String> keys) throws Exception;
+}
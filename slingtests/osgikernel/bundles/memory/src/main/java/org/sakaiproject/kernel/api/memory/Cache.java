@@ -18,6 +18,9 @@
 
 package org.sakaiproject.kernel.api.memory;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * A Cache managed by the cache manager.
  */
@@ -55,6 +58,39 @@ public interface Cache<V> {
    */
   V get(String key);
 
+  /**
+   * Get the non expired entry, loading it with the loader if it is not there. If several
+   * threads miss on the same key at the same time only one of them calls the loader, the
+   * others wait for its result. A null result from the loader is returned but not
+   * cached.
+   *
+   * @param key
+   *          The cache key.
+   * @param loader
+   *          Loads the value on a miss.
+   * @return The payload.
+   * @throws CacheLoaderException
+   *           if the loader threw a checked exception, runtime exceptions from the loader
+   *           are thrown as they are.
+   */
+  V get(String key, Loader<V> loader);
+
+  /**
+   * Get the non expired entries for a number of keys, loading all the missing ones with
+   * one call to the loader. Keys that are already being loaded by another thread are
+   * waited for, and not passed to the loader.
+   *
+   * @param keys
+   *          The cache keys.
+   * @param loader
+   *          Loads the missing values, or null to only get the entries already cached.
+   * @return A map of key to payload, keys that were not found and could not be loaded are
+   *         not in the map.
+   * @throws CacheLoaderException
+   *           if the loader threw a checked exception.
+   */
+  Map<String, V> getAll(Collection<String> keys, BulkLoader<V> loader);
+
   /**
    * Clear all entries.
    */
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.kernel.api.memory;
 
+import java.util.Collection;
 
 /**
  * The Cache manager provides access to all caches in the system. Caches are
@@ -43,4 +44,62 @@ public interface CacheManagerService {
    * @param scope
    */
   void unbind(CacheScope scope);
+
+  /**
+   * @return the statistics of every cache that has been used, one per name and scope.
+   */
+  Collection<CacheStatistics> getStatistics();
+
+  /**
+   * @return how the caches warmed up after start.
+   */
+  WarmupStatistics getWarmupStatistics();
+
+  /**
+   * Bind a cache to a subtree of the content repository. The keys of the cache are taken
+   * to be the paths of the nodes its entries were derived from, and when a node in the
+   * subtree changes the entries for it, and for everything under it, are removed.
+   *
+   * @param name
+   *          the name of the cache.
+   * @param scope
+   *          the scope of the cache, INSTANCE, CLUSTERINVALIDATED or CLUSTERREPLICATED.
+   * @param path
+   *          the root of the subtree.
+   */
+  void bindToPath(String name, CacheScope scope, String path);
+
+  /**
+   * Bind a cache to a subtree of the content repository as a whole. Each entry of the
+   * cache is taken to be derived from anything in the subtree, as a query over it is, and
+   * its key to be under the root of the subtree, so when any node in the subtree changes
+   * every entry keyed under the root is removed.
+   *
+   * @param name
+   *          the name of the cache.
+   * @param scope
+   *          the scope of the cache, INSTANCE, CLUSTERINVALIDATED or CLUSTERREPLICATED.
+   * @param path
+   *          the root of the subtree.
+   */
+  void bindSubtree(String name, CacheScope scope, String path);
+
+  /**
+   * Undo {@link #bindToPath(String, CacheScope, String)} or
+   * {@link #bindSubtree(String, CacheScope, String)}.
+   *
+   * @param name
+   * @param scope
+   * @param path
+   */
+  void unbindFromPath(String name, CacheScope scope, String path);
+
+  /**
+   * Remove the entries for each path, and for everything under it, from the caches bound
+   * to a subtree that overlaps the path.
+   *
+   * @param paths
+   *          the paths of the nodes that changed.
+   */
+  void invalidatePaths(Collection<String> paths);
 }
@@ -40,7 +40,10 @@ public enum CacheScope {
    */
   CLUSTERINVALIDATED(),
   /**
-   * Replicate the cache over the whole cluster.
+   * Replicate the cache over the whole cluster. Replication is best effort, changes lost
+   * on the network are not sent again and a node that joins starts empty, so nodes may
+   * disagree until entries expire. Entries expire after 600s and each node keeps at most
+   * 10000, values too large for one datagram are refused.
    */
   CLUSTERREPLICATED();
 
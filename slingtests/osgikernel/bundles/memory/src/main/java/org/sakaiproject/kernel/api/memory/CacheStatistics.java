@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+/**
+ * Counters for one cache. For REQUEST and THREAD scoped caches the counters cover every
+ * instance of the cache with the same name, across all threads. This interface is also
+ * the management interface registered with JMX.
+ */
+public interface CacheStatistics {
+
+  /**
+   * The number of buckets in the latency histograms.
+   */
+  int LATENCY_BUCKETS = 40;
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the scope of the cache.
+   */
+  String getScope();
+
+  /**
+   * @return the number of gets that found a value.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that did not find a value.
+   */
+  long getMisses();
+
+  /**
+   * @return hits / (hits + misses), or 0 if there have been no gets.
+   */
+  double getHitRatio();
+
+  /**
+   * @return the number of puts.
+   */
+  long getPuts();
+
+  /**
+   * @return the number of removes, not counting evictions.
+   */
+  long getRemoves();
+
+  /**
+   * @return the number of entries evicted or expired by the cache itself.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of entries in the cache, summed over all instances for REQUEST and
+   *         THREAD scoped caches.
+   */
+  long getSize();
+
+  /**
+   * @return a histogram of get latencies, bucket i counts gets that took less than
+   *         2^(i+1) ns and at least 2^i ns, the last bucket counts everything slower.
+   */
+  long[] getGetLatencyHistogram();
+
+  /**
+   * @return a histogram of put latencies, bucketed as {@link #getGetLatencyHistogram()}.
+   */
+  long[] getPutLatencyHistogram();
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+/**
+ * How the caches warmed up after the cache manager started, from the reload of the
+ * snapshot written at the last shutdown and from the hit rate over a window after start.
+ * This interface is also the management interface registered with JMX.
+ */
+public interface WarmupStatistics {
+
+  /**
+   * @return true once the snapshot has been reloaded, or if there was none.
+   */
+  boolean isSnapshotLoaded();
+
+  /**
+   * @return the ms taken to reload the snapshot, or the time so far if it is still loading.
+   */
+  long getSnapshotLoadTime();
+
+  /**
+   * @return the number of entries reloaded from the snapshot.
+   */
+  long getEntriesLoaded();
+
+  /**
+   * @return the number of entries in the snapshot that had expired, or could not be read.
+   */
+  long getEntriesSkipped();
+
+  /**
+   * @return the length of the window after start that hits are counted over, in ms.
+   */
+  long getWindow();
+
+  /**
+   * @return the number of cache hits in the window, across all caches.
+   */
+  long getWindowHits();
+
+  /**
+   * @return the number of cache misses in the window, across all caches.
+   */
+  long getWindowMisses();
+
+  /**
+   * @return hits / (hits + misses) in the window, or 0 if there have been no gets.
+   */
+  double getWindowHitRatio();
+}
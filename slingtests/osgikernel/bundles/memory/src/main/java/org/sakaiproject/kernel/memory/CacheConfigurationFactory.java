@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedServiceFactory;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Receives the factory configurations that set the size, time to live and eviction
+ * policy of named caches, one configuration per cache, and applies them to the cache
+ * manager as they change.
+ */
+public class CacheConfigurationFactory implements ManagedServiceFactory {
+
+  /**
+   * The factory pid of cache configurations.
+   */
+  public static final String FACTORY_PID = "org.sakaiproject.kernel.memory.CacheConfiguration";
+
+  private final CacheManagerServiceImpl cacheManagerService;
+  private final Map<String, String> names = new HashMap<String, String>();
+
+  /**
+   * @param cacheManagerService
+   */
+  public CacheConfigurationFactory(CacheManagerServiceImpl cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.cm.ManagedServiceFactory#getName()
+   */
+  public String getName() {
+    return "Sakai Cache Configuration";
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.cm.ManagedServiceFactory#updated(java.lang.String,
+   *      java.util.Dictionary)
+   */
+  @SuppressWarnings("unchecked")
+  public void updated(String pid, Dictionary properties) throws ConfigurationException {
+    CacheSettings settings = CacheSettings.fromProperties(properties);
+    String previous;
+    synchronized (names) {
+      previous = names.put(pid, settings.getName());
+    }
+    if (previous != null && !previous.equals(settings.getName())) {
+      cacheManagerService.setCacheSettings(previous, null);
+    }
+    cacheManagerService.setCacheSettings(settings.getName(), settings);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.cm.ManagedServiceFactory#deleted(java.lang.String)
+   */
+  public void deleted(String pid) {
+    String name;
+    synchronized (names) {
+      name = names.remove(pid);
+    }
+    if (name != null) {
+      cacheManagerService.setCacheSettings(name, null);
+    }
+  }
+}
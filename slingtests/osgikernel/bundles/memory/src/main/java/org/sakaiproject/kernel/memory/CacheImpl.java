@@ -17,26 +17,194 @@
  */
 package org.sakaiproject.kernel.memory;
 
+import net.sf.ehcache.CacheConfiguration;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
 
+import org.sakaiproject.kernel.api.memory.BulkLoader;
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.Loader;
+import org.sakaiproject.kernel.memory.offheap.OffHeapStore;
+import org.sakaiproject.kernel.memory.snapshot.SnapshotWriter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *
  */
 public class CacheImpl<V> implements Cache<V> {
 
+  /**
+   * Keeps a {@link PathIndex} of the keys in an ehcache cache in step with the cache, one
+   * per ehcache cache however many CacheImpls share it. When the cache has an off heap
+   * store, entries evicted from the heap are demoted to the store and keep their place in
+   * the index until they leave the store.
+   */
+  private static final class PathIndexListener implements CacheEventListener,
+      OffHeapStore.EvictionListener {
+
+    private final PathIndex index = new PathIndex();
+    private final CacheStatisticsImpl statistics;
+    private volatile OffHeapStore store;
+
+    PathIndexListener(CacheStatisticsImpl statistics) {
+      this.statistics = statistics;
+    }
+
+    public void notifyElementPut(Ehcache cache, Element element) {
+      // a promoted entry is already in the index.
+      if (index.add((String) element.getObjectKey())) {
+        statistics.resize(1);
+      }
+    }
+
+    public void notifyElementUpdated(Ehcache cache, Element element) {
+    }
+
+    public void notifyElementRemoved(Ehcache cache, Element element) {
+      // ehcache notifies removal of keys it does not hold, those are not counted.
+      if (index.remove((String) element.getObjectKey())) {
+        statistics.resize(-1);
+        statistics.remove();
+      }
+    }
+
+    public void notifyElementExpired(Ehcache cache, Element element) {
+      if (index.remove((String) element.getObjectKey())) {
+        statistics.resize(-1);
+        statistics.evicted();
+      }
+    }
+
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+      OffHeapStore s = store;
+      Object value = element.getObjectValue();
+      if (s != null && value instanceof Serializable) {
+        if (s.put((String) element.getObjectKey(), value, getExpires(cache, element))) {
+          return;
+        }
+      }
+      evicted((String) element.getObjectKey());
+    }
+
+    public void notifyRemoveAll(Ehcache cache) {
+      OffHeapStore s = store;
+      if (s != null) {
+        s.clear();
+      }
+      index.clear();
+      statistics.cleared();
+    }
+
+    public void dispose() {
+      index.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.sakaiproject.kernel.memory.offheap.OffHeapStore.EvictionListener#evicted(java.lang.String)
+     */
+    public void evicted(String key) {
+      if (index.remove(key)) {
+        statistics.resize(-1);
+        statistics.evicted();
+      }
+    }
+
+    /**
+     * Remove a key from the off heap store, if it is there.
+     *
+     * @param key
+     */
+    void removeOffHeap(String key) {
+      OffHeapStore s = store;
+      if (s != null && s.remove(key) && index.remove(key)) {
+        statistics.resize(-1);
+        statistics.remove();
+      }
+    }
+
+    /**
+     * @param key
+     * @return the entry from the off heap store, removed from the store, or null if there
+     *         is none.
+     */
+    OffHeapStore.Entry takeOffHeap(String key) {
+      OffHeapStore s = store;
+      return s == null ? null : s.take(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#clone()
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException("The path index belongs to one cache");
+    }
+  }
+
+  /**
+   * Added to the name of a reconfigured ehcache while the one it replaces has the name.
+   */
+  private static final String RECONFIGURED_SUFFIX = "#reconfigured";
+
   private String cacheName;
-  private net.sf.ehcache.Cache cache;
+  private volatile net.sf.ehcache.Cache cache;
+  /**
+   * Changes hold the read lock, a reconfiguration holds the write lock while it moves the
+   * entries, so that no change is made to an entry that has already been moved.
+   */
+  private final ReadWriteLock moving = new ReentrantReadWriteLock();
+  private PathIndexListener listener;
+  private PathIndex index;
+  private CacheStatisticsImpl statistics;
+  private LoadingSupport<V> loading = new LoadingSupport<V>() {
+    @SuppressWarnings("unchecked")
+    @Override
+    protected V peek(String key) {
+      Element e = cache.getQuiet(key);
+      return e == null ? null : (V) e.getObjectValue();
+    }
+
+    @Override
+    protected void store(String key, V value) {
+      put(key, value);
+    }
+  };
+  private double refreshAhead;
+  private Executor refreshExecutor;
 
   /**
    * @param cacheManager
    * @param name
    */
   public CacheImpl(CacheManager cacheManager, String name) {
+    this(cacheManager, name, null);
+  }
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param statistics
+   *          the statistics to update, used if this is the first CacheImpl for the name,
+   *          null to create new ones.
+   */
+  public CacheImpl(CacheManager cacheManager, String name, CacheStatisticsImpl statistics) {
     if (name == null) {
       cacheName = "default";
     } else {
@@ -52,16 +220,221 @@ public class CacheImpl<V> implements Cache<V> {
               + cacheName);
         }
       }
+      if (statistics == null) {
+        statistics = new CacheStatisticsImpl(cacheName, "INSTANCE");
+      }
+      this.listener = getListener(cache, statistics);
+      this.index = listener.index;
+      this.statistics = listener.statistics;
+    }
+  }
+
+  /**
+   * @param cache
+   * @param e
+   * @return when the element expires, in ms since the epoch, 0 if it never does.
+   */
+  private static long getExpires(Ehcache cache, Element e) {
+    long expires = e.getExpirationTime();
+    CacheConfiguration config = cache.getCacheConfiguration();
+    long ttl = config.getTimeToLiveSeconds() * 1000L;
+    if (!config.isEternal() && ttl > 0) {
+      expires = Math.min(expires, e.getCreationTime() + ttl);
+    }
+    return expires == Long.MAX_VALUE ? 0 : expires;
+  }
+
+  /**
+   * Find the listener that keeps the path index and statistics for an ehcache cache,
+   * registering one if this is the first CacheImpl for the cache.
+   *
+   * @param cache
+   * @param statistics
+   * @return
+   */
+  private static PathIndexListener getListener(net.sf.ehcache.Cache cache,
+      CacheStatisticsImpl statistics) {
+    for (Object listener : cache.getCacheEventNotificationService()
+        .getCacheEventListeners()) {
+      if (listener instanceof PathIndexListener) {
+        return (PathIndexListener) listener;
+      }
+    }
+    PathIndexListener listener = new PathIndexListener(statistics);
+    cache.getCacheEventNotificationService().registerListener(listener);
+    for (Object key : cache.getKeys()) {
+      listener.index.add((String) key);
+    }
+    statistics.resize(listener.index.size());
+    return listener;
+  }
+
+  /**
+   * Keep entries evicted from the heap in an off heap store, promoting them back into the
+   * heap when they are next read. The store is shared by all the CacheImpls of the cache,
+   * so only the first call creates one.
+   *
+   * @param budget
+   *          the most bytes of off heap memory to use.
+   * @param file
+   *          a file to map the memory from, null to use direct buffers.
+   * @param serializer
+   *          converts values to and from bytes, values it cannot serialize are dropped
+   *          when they are evicted from the heap.
+   * @return the store.
+   * @throws IOException
+   *           if the file cannot be mapped.
+   */
+  public OffHeapStore setOffHeap(long budget, File file, Serializer serializer)
+      throws IOException {
+    synchronized (listener) {
+      if (listener.store == null) {
+        listener.store = new OffHeapStore(budget, file, serializer, listener);
+      }
+      return listener.store;
+    }
+  }
+
+  /**
+   * Replace the ehcache behind this cache with one that has new settings, moving the
+   * entries across. Entries over the new size limit are evicted as they are moved. The
+   * replacement is registered and in use before the old ehcache is disposed, so it takes
+   * the other of two names, and threads still using the old ehcache do not find it
+   * disposed. Changes made through other threads wait while the entries are moved, reads
+   * go on using the old ehcache.
+   *
+   * @param cacheManager
+   *          the manager that holds the ehcache.
+   * @param settings
+   *          the new settings, or null to go back to the default settings.
+   */
+  public void reconfigure(CacheManager cacheManager, CacheSettings settings) {
+    synchronized (cacheManager) {
+      moving.writeLock().lock();
+      try {
+        replace(cacheManager, settings);
+      } finally {
+        moving.writeLock().unlock();
+      }
     }
   }
 
+  /**
+   * Move the entries to a new ehcache, while holding the write lock.
+   *
+   * @param cacheManager
+   * @param settings
+   */
+  private void replace(CacheManager cacheManager, CacheSettings settings) {
+    net.sf.ehcache.Cache old = cache;
+    String name = cacheName.equals(old.getName()) ? cacheName + RECONFIGURED_SUFFIX
+        : cacheName;
+    if (settings == null) {
+      cacheManager.addCache(name);
+    } else {
+      cacheManager.addCache(settings.newCache(name));
+    }
+    net.sf.ehcache.Cache replacement = cacheManager.getCache(name);
+    // the listener hears from both while the entries are moved, so evictions keep the
+    // index in step.
+    replacement.getCacheEventNotificationService().registerListener(listener);
+    for (Object key : old.getKeys()) {
+      Element e = old.getQuiet(key);
+      if (e != null) {
+        replacement.putQuiet(e);
+      }
+    }
+    cache = replacement;
+    // keep the listener, and with it the path index, out of the old cache's disposal.
+    old.getCacheEventNotificationService().unregisterListener(listener);
+    cacheManager.removeCache(old.getName());
+  }
+
+  /**
+   * Write the entries held in the heap to a snapshot.
+   *
+   * @param writer
+   * @param serializer
+   * @return the number of entries written, entries that cannot be serialized are left
+   *         out.
+   * @throws IOException
+   *           if the snapshot cannot be written.
+   */
+  public long writeSnapshot(SnapshotWriter writer, Serializer serializer)
+      throws IOException {
+    long written = 0;
+    net.sf.ehcache.Cache c = cache;
+    for (Object key : c.getKeys()) {
+      Element e = c.getQuiet(key);
+      if (e != null && e.getObjectValue() != null) {
+        byte[] value;
+        try {
+          value = serializer.serialize(e.getObjectValue());
+        } catch (IOException ex) {
+          continue;
+        }
+        writer.write((String) key, value, getExpires(c, e));
+        written++;
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Put an entry reloaded from a snapshot, unless the cache already has a newer value for
+   * the key or the entry has expired.
+   *
+   * @param key
+   * @param value
+   * @param expires
+   *          when the entry expires, in ms since the epoch, 0 for never.
+   * @return true if the entry was put.
+   */
+  public boolean restore(String key, V value, long expires) {
+    long ttl = expires - System.currentTimeMillis();
+    moving.readLock().lock();
+    try {
+      if ((expires > 0 && ttl <= 0) || cache.isKeyInCache(key)) {
+        return false;
+      }
+      Element e = new Element(key, value);
+      if (expires > 0) {
+        e.setTimeToLive((int) Math.max(1, (ttl + 999) / 1000));
+      }
+      cache.put(e);
+      return true;
+    } finally {
+      moving.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the off heap store of the cache, or null if it does not have one.
+   */
+  public OffHeapStore getOffHeap() {
+    return listener.store;
+  }
+
+  /**
+   * @return the statistics for this cache.
+   */
+  public CacheStatisticsImpl getStatistics() {
+    return statistics;
+  }
+
   /**
    * {@inheritDoc}
    *
    * @see org.sakaiproject.kernel.api.memory.Cache#clear()
    */
   public void clear() {
-    cache.removeAll();
+    loading.invalidateAll();
+    moving.readLock().lock();
+    try {
+      cache.removeAll();
+    } finally {
+      moving.readLock().unlock();
+    }
   }
 
   /**
@@ -70,7 +443,11 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
    */
   public boolean containsKey(String key) {
-    return cache.isKeyInCache(key);
+    if (cache.isKeyInCache(key)) {
+      return true;
+    }
+    OffHeapStore store = listener.store;
+    return store != null && store.containsKey(key);
   }
 
   /**
@@ -80,13 +457,117 @@ public class CacheImpl<V> implements Cache<V> {
    */
   @SuppressWarnings("unchecked")
   public V get(String key) {
-    Element e = cache.get(key);
+    long start = System.nanoTime();
+    Element e = getElement(key);
+    statistics.get(e != null, System.nanoTime() - start);
     if ( e == null ) {
       return null;
     }
     return (V) e.getObjectValue();
   }
 
+  /**
+   * Get an element from the heap, or promote it from the off heap store if it was
+   * demoted, keeping what is left of its time to live.
+   *
+   * @param key
+   * @return the element or null if there is none.
+   */
+  private Element getElement(String key) {
+    Element e = cache.get(key);
+    if (e == null && listener.store != null) {
+      moving.readLock().lock();
+      try {
+        OffHeapStore.Entry demoted = listener.takeOffHeap(key);
+        if (demoted != null) {
+          e = new Element(key, demoted.getValue());
+          if (demoted.getExpires() > 0) {
+            long ttl = demoted.getExpires() - System.currentTimeMillis();
+            e.setTimeToLive((int) Math.max(1, (ttl + 999) / 1000));
+          }
+          cache.put(e);
+        }
+      } finally {
+        moving.readLock().unlock();
+      }
+    }
+    return e;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.Loader)
+   */
+  @SuppressWarnings("unchecked")
+  public V get(String key, Loader<V> loader) {
+    long start = System.nanoTime();
+    Element e = getElement(key);
+    statistics.get(e != null, System.nanoTime() - start);
+    if (e == null) {
+      return loading.load(key, loader);
+    }
+    if (refreshAhead > 0 && isNearExpiry(e)) {
+      loading.refresh(key, loader, refreshExecutor);
+    }
+    return (V) e.getObjectValue();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#getAll(java.util.Collection,
+   *      org.sakaiproject.kernel.api.memory.BulkLoader)
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, V> getAll(Collection<String> keys, BulkLoader<V> loader) {
+    Map<String, V> result = new HashMap<String, V>();
+    List<String> missing = new ArrayList<String>();
+    for (String key : keys) {
+      long start = System.nanoTime();
+      Element e = getElement(key);
+      statistics.get(e != null, System.nanoTime() - start);
+      if (e == null) {
+        missing.add(key);
+      } else {
+        result.put(key, (V) e.getObjectValue());
+      }
+    }
+    if (missing.size() > 0 && loader != null) {
+      result.putAll(loading.loadAll(missing, loader));
+    }
+    return result;
+  }
+
+  /**
+   * Reload entries in the background when they are read through
+   * {@link #get(String, Loader)} close to the end of their time to live.
+   *
+   * @param refreshAhead
+   *          the fraction of the time to live after which an entry is refreshed, eg 0.8,
+   *          0 to disable.
+   * @param refreshExecutor
+   *          runs the refreshes.
+   */
+  public void setRefreshAhead(double refreshAhead, Executor refreshExecutor) {
+    this.refreshExecutor = refreshExecutor;
+    this.refreshAhead = refreshExecutor == null ? 0 : refreshAhead;
+  }
+
+  /**
+   * @param e
+   * @return true if the element has passed the refresh ahead point of its time to live.
+   */
+  private boolean isNearExpiry(Element e) {
+    CacheConfiguration config = cache.getCacheConfiguration();
+    long ttl = config.getTimeToLiveSeconds() * 1000L;
+    if (config.isEternal() || ttl <= 0) {
+      return false;
+    }
+    return System.currentTimeMillis() - e.getCreationTime() > ttl * refreshAhead;
+  }
+
   /**
    * {@inherit-doc}
    *
@@ -95,11 +576,24 @@ public class CacheImpl<V> implements Cache<V> {
    */
   @SuppressWarnings("unchecked")
   public V put(String key, V payload) {
+    long start = System.nanoTime();
     V previous = null;
-    if ( cache.isKeyInCache(key) ) {
-      previous = (V) cache.get(key).getObjectValue();
+    moving.readLock().lock();
+    try {
+      Element e = cache.getQuiet(key);
+      if ( e != null ) {
+        previous = (V) e.getObjectValue();
+      } else {
+        OffHeapStore.Entry demoted = listener.takeOffHeap(key);
+        if (demoted != null) {
+          previous = (V) demoted.getValue();
+        }
+      }
+      cache.put(new Element(key, payload));
+    } finally {
+      moving.readLock().unlock();
     }
-    cache.put(new Element(key, payload));
+    statistics.put(System.nanoTime() - start);
     return previous;
   }
 
@@ -109,7 +603,14 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    cache.remove(key);
+    loading.invalidate(key);
+    moving.readLock().lock();
+    try {
+      cache.remove(key);
+      listener.removeOffHeap(key);
+    } finally {
+      moving.readLock().unlock();
+    }
   }
 
   /**
@@ -117,15 +618,19 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
-    cache.remove(key);
-    if ( !key.endsWith("/") ) {
-      key = key + "/";
-    }
-    List<?> keys = cache.getKeys();
-    for ( Object k : keys) {
-      if ( ((String) k).startsWith(key) ) {
+    loading.invalidateChildren(key);
+    moving.readLock().lock();
+    try {
+      remove(key);
+      for (String k : index.removeChildren(key)) {
+        // the key has already left the index, so the listener will not count it.
         cache.remove(k);
+        listener.removeOffHeap(k);
+        statistics.resize(-1);
+        statistics.remove();
       }
+    } finally {
+      moving.readLock().unlock();
     }
   }
 
@@ -22,18 +22,59 @@ import net.sf.ehcache.management.ManagementService;
 
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ManagedServiceFactory;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+import org.sakaiproject.kernel.memory.cluster.ClusterMessageListener;
+import org.sakaiproject.kernel.memory.cluster.ClusterTransport;
+import org.sakaiproject.kernel.memory.cluster.InvalidationMessage;
+import org.sakaiproject.kernel.memory.cluster.LoopbackClusterTransport;
+import org.sakaiproject.kernel.memory.cluster.MulticastClusterTransport;
+import org.sakaiproject.kernel.memory.cluster.ReplicationMessage;
+import org.sakaiproject.kernel.memory.cluster.ReplicationMessage.Delta;
+import org.sakaiproject.kernel.api.memory.WarmupStatistics;
+import org.sakaiproject.kernel.memory.offheap.OffHeapStore;
+import org.sakaiproject.kernel.memory.snapshot.SnapshotReader;
+import org.sakaiproject.kernel.memory.snapshot.SnapshotWriter;
 import org.sakaiproject.kernel.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
@@ -45,18 +86,174 @@ import javax.management.MBeanServer;
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="service.description"
  *      value="Cache Manager Service Implementation"
+ * @scr.property name="cluster.transport" value="loopback"
+ *      description="The transport for cluster messages, loopback (this JVM only) or multicast"
+ * @scr.property name="cluster.multicast.address" value="230.0.0.1"
+ * @scr.property name="cluster.multicast.port" value="4446" type="Integer"
+ * @scr.property name="cluster.multicast.ttl" value="1" type="Integer"
+ * @scr.property name="cluster.secret" value=""
+ *      description="The secret shared by the nodes of the cluster that multicast frames are signed with, required for multicast"
+ * @scr.property name="cluster.replication.window" value="100" type="Long"
+ *      description="The time in ms over which changes to replicated caches are batched"
+ * @scr.property name="cache.refresh.ahead" value="0" type="Double"
+ *      description="The fraction of the time to live after which entries read with a loader are reloaded in the background, 0 to disable"
+ * @scr.property name="offheap.budget" value="0" type="Long"
+ *      description="The bytes of memory outside the heap each instance cache may use for entries evicted from the heap, 0 to disable"
+ * @scr.property name="offheap.mode" value="direct"
+ *      description="Where off heap memory comes from, direct buffers or mapped from a temporary file"
+ * @scr.property name="snapshot.directory" value=""
+ *      description="The directory caches are written to at shutdown and reloaded from at start, empty to disable"
+ * @scr.property name="snapshot.caches" values.0=""
+ *      description="The names of the instance caches to write to the snapshot, * for all. Caches bound to repository paths are left out, and only values of classes the memory bundle can load, such as strings and collections, are reloaded"
  */
 public class CacheManagerServiceImpl implements CacheManagerService {
 
   private static final String CONFIG_PATH = "res://org/sakaiproject/kernel/memory/ehcacheConfig.xml";
+  public static final String CLUSTER_TRANSPORT = "cluster.transport";
+  public static final String CLUSTER_MULTICAST_ADDRESS = "cluster.multicast.address";
+  public static final String CLUSTER_MULTICAST_PORT = "cluster.multicast.port";
+  public static final String CLUSTER_MULTICAST_TTL = "cluster.multicast.ttl";
+  public static final String CLUSTER_SECRET = "cluster.secret";
+  public static final String CLUSTER_REPLICATION_WINDOW = "cluster.replication.window";
+  public static final String CACHE_REFRESH_AHEAD = "cache.refresh.ahead";
+  public static final String OFFHEAP_BUDGET = "offheap.budget";
+  public static final String OFFHEAP_MODE = "offheap.mode";
+  public static final String SNAPSHOT_DIRECTORY = "snapshot.directory";
+  public static final String SNAPSHOT_CACHES = "snapshot.caches";
+  /**
+   * The size of snapshot segments.
+   */
+  private static final int SNAPSHOT_SEGMENT_SIZE = 8 * 1024 * 1024;
+  /**
+   * The window after start over which the warm up hit rate is measured, in ms.
+   */
+  private static final long WARMUP_WINDOW = 5L * 60L * 1000L;
+  /**
+   * The most background refreshes that run at once, more are skipped.
+   */
+  private static final int MAX_REFRESH_THREADS = 4;
+  /**
+   * The default replication window in ms.
+   */
+  public static final long DEFAULT_REPLICATION_WINDOW = 100L;
+  /**
+   * How long removed keys in replicated caches are remembered, in ms.
+   */
+  private static final long TOMBSTONE_TTL = 60000L;
+  /**
+   * Replication frames are split to fit in a datagram.
+   */
+  private static final int MAX_REPLICATION_FRAME = 60000;
+  /**
+   * The JMX domain for cache statistics.
+   */
+  private static final String STATISTICS_DOMAIN = "org.sakaiproject.kernel.memory";
+  /**
+   * Prefixed to the names of the ehcaches behind cluster invalidated caches.
+   */
+  private static final String CLUSTER_INVALIDATED_PREFIX = "clusterinvalidated.";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
-  private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
+  private Map<String, ClusterInvalidatedCacheImpl<?>> invalidatedCaches = new HashMap<String, ClusterInvalidatedCacheImpl<?>>();
+  private Map<String, ReplicatedCacheImpl<?>> replicatedCaches = new HashMap<String, ReplicatedCacheImpl<?>>();
+  private ScheduledExecutorService replicationExecutor;
+  private ThreadPoolExecutor refreshExecutor;
+  private volatile double refreshAhead;
+  /**
+   * The caches that follow changes to the settings, with the name their settings are
+   * configured under.
+   */
+  private Map<CacheImpl<?>, String> configurableCaches = new HashMap<CacheImpl<?>, String>();
+  private Map<String, CacheSettings> cacheSettings = new ConcurrentHashMap<String, CacheSettings>();
+  private CacheConfigurationFactory configurationFactory = new CacheConfigurationFactory(this);
+  private ServiceRegistration configurationRegistration;
+  private volatile long offHeapBudget;
+  private volatile boolean offHeapMapped;
+  private List<OffHeapStore> offHeapStores = new ArrayList<OffHeapStore>();
+  private ConcurrentHashMap<String, CacheStatisticsImpl> statistics = new ConcurrentHashMap<String, CacheStatisticsImpl>();
+  private ScheduledFuture<?> replicationTask;
+  private volatile File snapshotDirectory;
+  private volatile Set<String> snapshotCaches = new HashSet<String>();
+  private boolean snapshotWritten;
+  private WarmupStatisticsImpl warmup = new WarmupStatisticsImpl(statistics.values(),
+      WARMUP_WINDOW);
+  private boolean warmupRegistered;
+  private ScheduledFuture<?> warmupTask;
+  private boolean stopped;
+  private List<PathBinding> pathBindings = new CopyOnWriteArrayList<PathBinding>();
+  private CacheSlots requestCacheSlots = new CacheSlots();
+  private ThreadLocal<RequestCacheContext> requestContextHolder = new ThreadLocal<RequestCacheContext>() {
+    @Override
+    protected RequestCacheContext initialValue() {
+      return new RequestCacheContext();
+    }
+  };
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private ClusterTransport clusterTransport;
+  private ClusterMessageListener clusterListener = new ClusterMessageListener() {
+    public void onMessage(long senderId, byte[] frame) {
+      receive(frame);
+    }
+  };
 
   public CacheManagerServiceImpl() throws IOException {
+    this(new LoopbackClusterTransport());
+  }
+
+  /**
+   * @param clusterTransport
+   *          the transport used to talk to the other nodes in the cluster.
+   * @throws IOException
+   */
+  public CacheManagerServiceImpl(ClusterTransport clusterTransport) throws IOException {
+    this(clusterTransport, DEFAULT_REPLICATION_WINDOW);
+  }
+
+  /**
+   * @param clusterTransport
+   *          the transport used to talk to the other nodes in the cluster.
+   * @param replicationWindow
+   *          the time in ms over which changes to replicated caches are batched.
+   * @throws IOException
+   */
+  public CacheManagerServiceImpl(ClusterTransport clusterTransport, long replicationWindow)
+      throws IOException {
     create();
+    this.clusterTransport = clusterTransport;
+    clusterTransport.start(clusterListener);
+    replicationExecutor = Executors
+        .newSingleThreadScheduledExecutor(daemonThreadFactory("Cache Replication"));
+    refreshExecutor = new ThreadPoolExecutor(0, MAX_REFRESH_THREADS, 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), daemonThreadFactory("Cache Refresh"));
+    scheduleReplication(replicationWindow);
+    warmupTask = replicationExecutor.schedule(new Runnable() {
+      public void run() {
+        warmup.closeWindow();
+      }
+    }, WARMUP_WINDOW, TimeUnit.MILLISECONDS);
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new StandardMBean(warmup, WarmupStatistics.class), getWarmupName());
+      warmupRegistered = true;
+    } catch (JMException e) {
+      logger.warn("Unable to register warm up statistics with JMX " + e.getMessage());
+    }
+  }
+
+  /**
+   * @param name
+   * @return a factory for daemon threads, so that cache housekeeping does not hold up
+   *         shutdown.
+   */
+  private static ThreadFactory daemonThreadFactory(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    };
   }
 
   private void create() throws IOException {
@@ -66,38 +263,583 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     cacheManager = new CacheManager(in);
     in.close();
 
-    /*
-     * Add in a shutdown hook, for safety
-     */
-    Runtime.getRuntime().addShutdownHook(new Thread() {
-      /*
-       * (non-Javadoc)
-       *
-       * @see java.lang.Thread#run()
-       */
-      @Override
+    // register the cache manager with JMX
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    ManagementService.registerMBeans(cacheManager, mBeanServer, true, true,
+        true, true);
+
+  }
+
+  /**
+   * Configure the cluster transport from the component properties.
+   *
+   * @param componentContext
+   */
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    String transport = OsgiUtil.toString(properties.get(CLUSTER_TRANSPORT), "loopback");
+    if ("multicast".equals(transport)) {
+      String address = OsgiUtil.toString(properties.get(CLUSTER_MULTICAST_ADDRESS),
+          "230.0.0.1");
+      int port = OsgiUtil.toInteger(properties.get(CLUSTER_MULTICAST_PORT), 4446);
+      int ttl = OsgiUtil.toInteger(properties.get(CLUSTER_MULTICAST_TTL), 1);
+      String secret = OsgiUtil.toString(properties.get(CLUSTER_SECRET), "");
+      try {
+        if (secret.length() == 0) {
+          logger.error("No " + CLUSTER_SECRET + " set, multicast frames cannot be "
+              + "authenticated, cluster invalidation is disabled ");
+        } else {
+          setClusterTransport(new MulticastClusterTransport(address, port, ttl, secret
+              .getBytes("UTF-8")));
+        }
+      } catch (IOException e) {
+        logger.error("Unable to create multicast transport to " + address + ":" + port
+            + ", cluster invalidation is disabled ", e);
+      }
+    }
+    long window = OsgiUtil.toLong(properties.get(CLUSTER_REPLICATION_WINDOW),
+        DEFAULT_REPLICATION_WINDOW);
+    scheduleReplication(window);
+    refreshAhead = OsgiUtil.toDouble(properties.get(CACHE_REFRESH_AHEAD), 0.0);
+    synchronized (configurableCaches) {
+      for (CacheImpl<?> cache : configurableCaches.keySet()) {
+        cache.setRefreshAhead(refreshAhead, refreshExecutor);
+      }
+    }
+    offHeapMapped = "mapped".equals(OsgiUtil.toString(properties.get(OFFHEAP_MODE),
+        "direct"));
+    offHeapBudget = OsgiUtil.toLong(properties.get(OFFHEAP_BUDGET), 0L);
+    synchronized (caches) {
+      for (Map.Entry<String, Cache<?>> e : caches.entrySet()) {
+        offHeap((CacheImpl<?>) e.getValue(), e.getKey());
+      }
+    }
+    String directory = OsgiUtil.toString(properties.get(SNAPSHOT_DIRECTORY), "");
+    String[] snapshot = OsgiUtil.toStringArray(properties.get(SNAPSHOT_CACHES));
+    if (directory.trim().length() > 0) {
+      setSnapshot(new File(directory.trim()), snapshot == null ? new String[0] : snapshot);
+      Thread loader = new Thread("Cache Warmup") {
+        @Override
+        public void run() {
+          loadSnapshot();
+        }
+      };
+      loader.setDaemon(true);
+      loader.start();
+    }
+    Hashtable<String, Object> factoryProperties = new Hashtable<String, Object>();
+    factoryProperties.put(Constants.SERVICE_PID, CacheConfigurationFactory.FACTORY_PID);
+    configurationRegistration = componentContext.getBundleContext().registerService(
+        ManagedServiceFactory.class.getName(), configurationFactory, factoryProperties);
+  }
+
+  /**
+   * Set where the snapshot of the caches is written at shutdown and reloaded from.
+   *
+   * @param directory
+   *          the snapshot directory.
+   * @param cacheNames
+   *          the names of the instance caches to snapshot, * for all of them.
+   */
+  public void setSnapshot(File directory, String[] cacheNames) {
+    Set<String> names = new HashSet<String>();
+    for (String name : cacheNames) {
+      if (name != null && name.trim().length() > 0) {
+        names.add(name.trim());
+      }
+    }
+    snapshotCaches = names;
+    snapshotDirectory = directory;
+  }
+
+  /**
+   * @param name
+   * @return true if the instance cache should be written to the snapshot.
+   */
+  private boolean isSnapshotCache(String name) {
+    Set<String> names = snapshotCaches;
+    return names.contains("*") || names.contains(name);
+  }
+
+  /**
+   * @param name
+   * @return true if the instance cache of the name is bound to repository paths.
+   */
+  private boolean isPathBound(String name) {
+    for (PathBinding binding : pathBindings) {
+      if (binding.getScope() == CacheScope.INSTANCE && name.equals(binding.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reload the instance caches from the snapshot, keeping entries that have not expired
+   * and are not already in the cache. Each cache's snapshot is deleted once it has been
+   * read, so that it is only ever loaded once.
+   * <p>
+   * Caches bound to repository paths are not reloaded, the repository may have changed
+   * while this node was down. Values are read with the class loaders of this bundle, so
+   * values of classes from other bundles are skipped.
+   * </p>
+   */
+  @SuppressWarnings("unchecked")
+  public void loadSnapshot() {
+    File directory = snapshotDirectory;
+    warmup.loadStarted();
+    try {
+      File[] cacheDirectories = directory == null ? null : directory.listFiles();
+      if (cacheDirectories == null) {
+        return;
+      }
+      final Serializer serializer = new JavaSerializer();
+      for (File cacheDirectory : cacheDirectories) {
+        String name = decodeName(cacheDirectory.getName());
+        if (!cacheDirectory.isDirectory() || name == null || !isSnapshotCache(name)) {
+          continue;
+        }
+        if (isPathBound(name)) {
+          SnapshotReader.delete(cacheDirectory);
+          logger.info("Not reloading cache " + name + ", it is bound to repository paths");
+          continue;
+        }
+        long start = System.currentTimeMillis();
+        final CacheImpl<Object> cache = (CacheImpl<Object>) getInstanceCache(name);
+        long records = SnapshotReader.read(cacheDirectory, new SnapshotReader.Handler() {
+          public void record(String key, byte[] value, long expires) {
+            try {
+              if (cache.restore(key, serializer.deserialize(value), expires)) {
+                warmup.loaded();
+                return;
+              }
+            } catch (IOException e) {
+              logger.debug("Unable to read snapshot entry " + key + " " + e.getMessage());
+            } catch (ClassNotFoundException e) {
+              logger.debug("Unable to read snapshot entry " + key + " " + e.getMessage());
+            }
+            warmup.skipped();
+          }
+        });
+        SnapshotReader.delete(cacheDirectory);
+        logger.info("Reloaded cache " + name + " from " + records + " snapshot entries in "
+            + (System.currentTimeMillis() - start) + "ms");
+      }
+    } finally {
+      warmup.loadFinished();
+    }
+  }
+
+  /**
+   * Write the selected instance caches to the snapshot directory, leaving out those bound
+   * to repository paths, which cannot tell what changed while this node was down.
+   */
+  private void writeSnapshot() {
+    File directory = snapshotDirectory;
+    synchronized (this) {
+      if (directory == null || snapshotWritten) {
+        return;
+      }
+      snapshotWritten = true;
+    }
+    Map<String, Cache<?>> toWrite = new HashMap<String, Cache<?>>();
+    synchronized (caches) {
+      for (Map.Entry<String, Cache<?>> e : caches.entrySet()) {
+        if (isSnapshotCache(e.getKey()) && !isPathBound(e.getKey())) {
+          toWrite.put(e.getKey(), e.getValue());
+        }
+      }
+    }
+    Serializer serializer = new JavaSerializer();
+    for (Map.Entry<String, Cache<?>> e : toWrite.entrySet()) {
+      File cacheDirectory = new File(directory, encodeName(e.getKey()));
+      SnapshotWriter writer = null;
+      try {
+        long start = System.currentTimeMillis();
+        writer = new SnapshotWriter(cacheDirectory, SNAPSHOT_SEGMENT_SIZE);
+        long written = ((CacheImpl<?>) e.getValue()).writeSnapshot(writer, serializer);
+        writer.close();
+        writer = null;
+        logger.info("Wrote " + written + " entries of cache " + e.getKey()
+            + " to snapshot in " + (System.currentTimeMillis() - start) + "ms");
+      } catch (IOException ex) {
+        logger.error("Unable to write snapshot of cache " + e.getKey(), ex);
+        if (writer != null) {
+          try {
+            writer.close();
+          } catch (IOException ex2) {
+            // already failed.
+          }
+        }
+        SnapshotReader.delete(cacheDirectory);
+      }
+    }
+  }
+
+  /**
+   * @param name
+   * @return the name encoded for use as a file name.
+   */
+  private static String encodeName(String name) {
+    try {
+      return URLEncoder.encode(name, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param fileName
+   * @return the decoded name, or null if the file name is not an encoded name.
+   */
+  private static String decodeName(String fileName) {
+    try {
+      return URLDecoder.decode(fileName, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#getWarmupStatistics()
+   */
+  public WarmupStatistics getWarmupStatistics() {
+    return warmup;
+  }
+
+  /**
+   * @return the JMX name of the warm up statistics.
+   * @throws MalformedObjectNameException
+   */
+  private ObjectName getWarmupName() throws MalformedObjectNameException {
+    return new ObjectName(STATISTICS_DOMAIN + ":type=WarmupStatistics");
+  }
+
+  /**
+   * Stop listening for cache configurations, and shut down the caches, the cluster
+   * transport and the housekeeping threads, writing the snapshot.
+   *
+   * @param componentContext
+   */
+  protected void deactivate(ComponentContext componentContext) {
+    if (configurationRegistration != null) {
+      configurationRegistration.unregister();
+      configurationRegistration = null;
+    }
+    stop();
+  }
+
+  /**
+   * Set the size, time to live and eviction policy of the instance and cluster
+   * invalidated caches of a name, now and when they are next created. The size and time
+   * to live also apply to the replicated cache of the name.
+   *
+   * @param name
+   *          the name of the cache.
+   * @param settings
+   *          the settings, or null to go back to the defaults.
+   */
+  public void setCacheSettings(String name, CacheSettings settings) {
+    if (settings == null) {
+      cacheSettings.remove(name);
+    } else {
+      cacheSettings.put(name, settings);
+    }
+    List<CacheImpl<?>> toConfigure = new ArrayList<CacheImpl<?>>();
+    synchronized (configurableCaches) {
+      for (Map.Entry<CacheImpl<?>, String> e : configurableCaches.entrySet()) {
+        if (name.equals(e.getValue())) {
+          toConfigure.add(e.getKey());
+        }
+      }
+    }
+    synchronized (replicatedCaches) {
+      ReplicatedCacheImpl<?> replicated = replicatedCaches.get(name);
+      if (replicated != null) {
+        setLimits(replicated, settings);
+      }
+    }
+    for (CacheImpl<?> cache : toConfigure) {
+      cache.reconfigure(cacheManager, settings);
+      OffHeapStore store = cache.getOffHeap();
+      if (store != null) {
+        store.setBudget(getOffHeapBudget(name));
+      }
+    }
+    synchronized (caches) {
+      CacheImpl<?> instanceCache = (CacheImpl<?>) caches.get(name);
+      if (instanceCache != null) {
+        offHeap(instanceCache, name);
+      }
+    }
+  }
+
+  /**
+   * @param name
+   * @return the off heap budget for the cache.
+   */
+  private long getOffHeapBudget(String name) {
+    CacheSettings settings = cacheSettings.get(name);
+    if (settings != null && settings.getMaxBytes() > 0) {
+      return settings.getMaxBytes();
+    }
+    return offHeapBudget;
+  }
+
+  /**
+   * Give an instance cache an off heap store, if there is a budget for one and it does
+   * not already have one. Once created a store keeps its budget until shutdown.
+   *
+   * @param cache
+   * @param name
+   * @return the cache.
+   */
+  private <V> CacheImpl<V> offHeap(CacheImpl<V> cache, String name) {
+    long budget = getOffHeapBudget(name);
+    if (budget > 0 && cache.getOffHeap() == null) {
+      try {
+        File file = null;
+        if (offHeapMapped) {
+          file = File.createTempFile("cache-" + name + "-", ".slab");
+          file.deleteOnExit();
+        }
+        OffHeapStore store = cache.setOffHeap(budget, file, new JavaSerializer());
+        synchronized (offHeapStores) {
+          // caches that share an ehcache share its store.
+          if (!offHeapStores.contains(store)) {
+            offHeapStores.add(store);
+          }
+        }
+      } catch (IOException e) {
+        logger.error("Unable to create off heap store for cache " + name
+            + ", evicted entries will be dropped ", e);
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Apply the refresh ahead settings, and any settings configured for the name, to a new
+   * cache.
+   *
+   * @param cache
+   * @param name
+   *          the name the settings of the cache are configured under, null if the cache
+   *          should not be updated when the settings change.
+   * @return the cache.
+   */
+  private <V> CacheImpl<V> configure(CacheImpl<V> cache, String name) {
+    cache.setRefreshAhead(refreshAhead, refreshExecutor);
+    if (name != null) {
+      synchronized (configurableCaches) {
+        configurableCaches.put(cache, name);
+      }
+      CacheSettings settings = cacheSettings.get(name);
+      if (settings != null) {
+        cache.reconfigure(cacheManager, settings);
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * (Re)schedule the task that sends changes to replicated caches.
+   *
+   * @param window
+   *          the time in ms between batches.
+   */
+  private synchronized void scheduleReplication(long window) {
+    if (replicationTask != null) {
+      replicationTask.cancel(false);
+    }
+    if (window <= 0) {
+      window = DEFAULT_REPLICATION_WINDOW;
+    }
+    replicationTask = replicationExecutor.scheduleWithFixedDelay(new Runnable() {
       public void run() {
         try {
-          CacheManagerServiceImpl.this.stop();
-        } catch (Throwable t) {
+          replicate();
+        } catch (RuntimeException e) {
+          logger.error("Failed to replicate cache changes ", e);
+        }
+      }
+    }, window, window, TimeUnit.MILLISECONDS);
+  }
 
-          // I really do want to swallow this, and make the shutdown clean for
-          // others
+  /**
+   * Send the changes made to each replicated cache since the last call.
+   */
+  protected void replicate() {
+    List<ReplicatedCacheImpl<?>> toSend;
+    synchronized (replicatedCaches) {
+      toSend = new ArrayList<ReplicatedCacheImpl<?>>(replicatedCaches.values());
+    }
+    ClusterTransport transport = clusterTransport;
+    for (ReplicatedCacheImpl<?> cache : toSend) {
+      List<Delta> deltas = cache.drain();
+      if (deltas.size() > 0) {
+        for (byte[] frame : ReplicationMessage.encode(cache.getCacheName(), deltas,
+            MAX_REPLICATION_FRAME)) {
+          transport.send(frame);
         }
       }
-    });
+    }
+  }
 
-    // register the cache manager with JMX
-    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
-    ManagementService.registerMBeans(cacheManager, mBeanServer, true, true,
-        true, true);
+  /**
+   * Replace the cluster transport.
+   *
+   * @param transport
+   */
+  private synchronized void setClusterTransport(ClusterTransport transport) {
+    clusterTransport.stop();
+    clusterTransport = transport;
+    clusterTransport.start(clusterListener);
+    synchronized (invalidatedCaches) {
+      for (ClusterInvalidatedCacheImpl<?> cache : invalidatedCaches.values()) {
+        cache.setTransport(transport);
+      }
+    }
+  }
 
+  /**
+   * Dispatch a frame from another node.
+   *
+   * @param frame
+   */
+  private void receive(byte[] frame) {
+    if (frame.length == 0) {
+      return;
+    }
+    try {
+      switch (frame[0]) {
+      case InvalidationMessage.FRAME_TYPE:
+        InvalidationMessage message = InvalidationMessage.decode(frame);
+        ClusterInvalidatedCacheImpl<?> cache = null;
+        synchronized (invalidatedCaches) {
+          cache = invalidatedCaches.get(message.getCacheName());
+        }
+        if (cache != null) {
+          cache.invalidate(message);
+        }
+        break;
+      case ReplicationMessage.FRAME_TYPE:
+        ReplicationMessage replication = ReplicationMessage.decode(frame);
+        ReplicatedCacheImpl<?> replicated = null;
+        synchronized (replicatedCaches) {
+          replicated = replicatedCaches.get(replication.getCacheName());
+        }
+        if (replicated != null) {
+          replicated.apply(replication);
+        }
+        break;
+      default:
+        logger.debug("Ignoring cluster frame of type {} ", frame[0]);
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to decode cluster frame " + e.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#getStatistics()
+   */
+  public Collection<CacheStatistics> getStatistics() {
+    return new ArrayList<CacheStatistics>(statistics.values());
   }
 
   /**
-   * perform a shutdown
+   * Get the statistics for a cache, creating them and registering them with JMX the first
+   * time a cache with the scope and name is used.
+   *
+   * @param scope
+   * @param name
+   * @return
+   */
+  private CacheStatisticsImpl getStatistics(CacheScope scope, String name) {
+    if (name == null) {
+      name = "default";
+    }
+    String key = scope.name() + ":" + name;
+    CacheStatisticsImpl cacheStatistics = statistics.get(key);
+    if (cacheStatistics == null) {
+      cacheStatistics = new CacheStatisticsImpl(name, scope.name());
+      CacheStatisticsImpl existing = statistics.putIfAbsent(key, cacheStatistics);
+      if (existing != null) {
+        return existing;
+      }
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(cacheStatistics, CacheStatistics.class),
+            getStatisticsName(scope.name(), name));
+      } catch (JMException e) {
+        logger.warn("Unable to register statistics for cache " + key + " with JMX "
+            + e.getMessage());
+      }
+    }
+    return cacheStatistics;
+  }
+
+  /**
+   * @param scope
+   * @param name
+   * @return the JMX name for the statistics of a cache.
+   * @throws MalformedObjectNameException
+   */
+  private ObjectName getStatisticsName(String scope, String name)
+      throws MalformedObjectNameException {
+    return new ObjectName(STATISTICS_DOMAIN + ":type=CacheStatistics,scope=" + scope
+        + ",name=" + ObjectName.quote(name));
+  }
+
+  /**
+   * perform a shutdown, only the first call does anything.
    */
   public void stop() {
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+    }
+    warmupTask.cancel(false);
+    replicationExecutor.shutdown();
+    refreshExecutor.shutdown();
+    replicate();
+    clusterTransport.stop();
+    writeSnapshot();
+    synchronized (offHeapStores) {
+      for (OffHeapStore store : offHeapStores) {
+        store.dispose();
+      }
+      offHeapStores.clear();
+    }
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    if (warmupRegistered) {
+      warmupRegistered = false;
+      try {
+        mBeanServer.unregisterMBean(getWarmupName());
+      } catch (JMException e) {
+        logger.debug("Unable to unregister warm up statistics " + e.getMessage());
+      }
+    }
+    for (CacheStatisticsImpl cacheStatistics : statistics.values()) {
+      try {
+        ObjectName objectName = getStatisticsName(cacheStatistics.getScope(),
+            cacheStatistics.getName());
+        if (mBeanServer.isRegistered(objectName)) {
+          mBeanServer.unregisterMBean(objectName);
+        }
+      } catch (JMException e) {
+        logger.debug("Unable to unregister cache statistics " + e.getMessage());
+      }
+    }
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -112,9 +854,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterInvalidatedCache(name);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterReplicatedCache(name);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -135,25 +877,32 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
     Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
     if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>();
+      threadCache = new MapCacheImpl<V>(getStatistics(CacheScope.THREAD, name));
       threadCacheMap.put(name, threadCache);
     }
     return threadCache;
   }
 
   /**
-   * Generate a cache bound to the request
+   * Generate a cache bound to the request. Request caches are kept with the thread and
+   * emptied when the request is unbound, so after the first few requests on a thread
+   * this allocates nothing.
    *
    * @param name
    * @return
    */
   @SuppressWarnings("unchecked")
   private <V> Cache<V> getRequestCache(String name) {
-    Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
-    Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
+    if (name == null) {
+      name = "default";
+    }
+    int slot = requestCacheSlots.slot(name);
+    RequestCacheContext context = requestContextHolder.get();
+    Cache<V> requestCache = (Cache<V>) context.get(slot);
     if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>();
-      requestCacheMap.put(name, requestCache);
+      MapCacheImpl<V> created = new MapCacheImpl<V>(getStatistics(CacheScope.REQUEST, name));
+      context.set(slot, created);
+      requestCache = created;
     }
     return requestCache;
   }
@@ -165,17 +914,178 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @SuppressWarnings("unchecked")
   private <V> Cache<V> getInstanceCache(String name) {
     if (name == null) {
-      return new CacheImpl<V>(cacheManager, null);
+      // unnamed caches are created on every call, so they are kept on the heap only.
+      return configure(new CacheImpl<V>(cacheManager, null, getStatistics(
+          CacheScope.INSTANCE, null)), null);
     } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
+      synchronized (caches) {
+        Cache<V> c = (Cache<V>) caches.get(name);
+        if (c == null) {
+          c = offHeap(configure(new CacheImpl<V>(cacheManager, name, getStatistics(
+              CacheScope.INSTANCE, name)), name), name);
+          caches.put(name, c);
+        }
+        return c;
+      }
+    }
+  }
+
+  /**
+   * Generate a cache local to this instance that sends invalidations to the rest of the
+   * cluster.
+   *
+   * @param name
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterInvalidatedCache(String name) {
+    if (name == null) {
+      name = "default";
+    }
+    synchronized (invalidatedCaches) {
+      ClusterInvalidatedCacheImpl<V> c = (ClusterInvalidatedCacheImpl<V>) invalidatedCaches
+          .get(name);
+      if (c == null) {
+        // a separate ehcache from the INSTANCE cache of the same name.
+        c = new ClusterInvalidatedCacheImpl<V>(name, configure(new CacheImpl<V>(
+            cacheManager, CLUSTER_INVALIDATED_PREFIX + name, getStatistics(
+                CacheScope.CLUSTERINVALIDATED, name)), name),
+            clusterTransport);
+        invalidatedCaches.put(name, c);
+      }
+      return c;
+    }
+  }
+
+  /**
+   * Generate a cache that is copied to every node in the cluster.
+   *
+   * @param name
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterReplicatedCache(String name) {
+    if (name == null) {
+      name = "default";
+    }
+    synchronized (replicatedCaches) {
+      ReplicatedCacheImpl<V> c = (ReplicatedCacheImpl<V>) replicatedCaches.get(name);
       if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name);
-        caches.put(name, c);
+        c = new ReplicatedCacheImpl<V>(name, clusterTransport.getNodeId(), TOMBSTONE_TTL,
+            getStatistics(CacheScope.CLUSTERREPLICATED, name),
+            ReplicatedCacheImpl.DEFAULT_MAX_ENTRIES, ReplicatedCacheImpl.DEFAULT_TIME_TO_LIVE,
+            MAX_REPLICATION_FRAME);
+        setLimits(c, cacheSettings.get(name));
+        replicatedCaches.put(name, c);
       }
       return c;
     }
   }
 
+  /**
+   * Apply the size and time to live of settings to a replicated cache, where 0 means no
+   * limit, or go back to the defaults.
+   *
+   * @param cache
+   * @param settings
+   *          the settings, or null for the defaults.
+   */
+  private void setLimits(ReplicatedCacheImpl<?> cache, CacheSettings settings) {
+    if (settings == null) {
+      cache.setLimits(ReplicatedCacheImpl.DEFAULT_MAX_ENTRIES,
+          ReplicatedCacheImpl.DEFAULT_TIME_TO_LIVE);
+    } else {
+      cache.setLimits(settings.getMaxEntries() == 0 ? Integer.MAX_VALUE : settings
+          .getMaxEntries(), settings.getTimeToLive() == 0 ? Long.MAX_VALUE : settings
+          .getTimeToLive() * 1000L);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#bindToPath(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheScope, java.lang.String)
+   */
+  public void bindToPath(String name, CacheScope scope, String path) {
+    addPathBinding(newPathBinding(name, scope, path, false));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#bindSubtree(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheScope, java.lang.String)
+   */
+  public void bindSubtree(String name, CacheScope scope, String path) {
+    addPathBinding(newPathBinding(name, scope, path, true));
+  }
+
+  /**
+   * @param binding
+   *          the binding to add if it is not there already.
+   */
+  private void addPathBinding(PathBinding binding) {
+    synchronized (pathBindings) {
+      if (!pathBindings.contains(binding)) {
+        pathBindings.add(binding);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#unbindFromPath(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheScope, java.lang.String)
+   */
+  public void unbindFromPath(String name, CacheScope scope, String path) {
+    pathBindings.remove(newPathBinding(name, scope, path, false));
+    pathBindings.remove(newPathBinding(name, scope, path, true));
+  }
+
+  /**
+   * @param name
+   * @param scope
+   * @param path
+   * @param whole
+   * @return a binding with the path normalized.
+   */
+  private PathBinding newPathBinding(String name, CacheScope scope, String path,
+      boolean whole) {
+    if (scope == CacheScope.REQUEST || scope == CacheScope.THREAD) {
+      throw new IllegalArgumentException("Only shared caches can be bound to a path, not "
+          + scope);
+    }
+    if (path == null || !path.startsWith("/")) {
+      throw new IllegalArgumentException("Not an absolute path " + path);
+    }
+    if (path.length() > 1 && path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    return new PathBinding(name == null ? "default" : name, scope, path, whole);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#invalidatePaths(java.util.Collection)
+   */
+  public void invalidatePaths(Collection<String> paths) {
+    for (PathBinding binding : pathBindings) {
+      Cache<?> cache = null;
+      for (String path : paths) {
+        String key = binding.invalidationKey(path);
+        if (key != null) {
+          if (cache == null) {
+            cache = getCache(binding.getName(), binding.getScope());
+          }
+          cache.removeChildren(key);
+        }
+      }
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -204,14 +1114,10 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   }
 
   /**
-   *
+   * Empty the request caches of this thread, keeping them for the next request.
    */
   private void unbindRequest() {
-    Map<String, Cache<?>> requestCache = requestCacheMapHolder.get();
-    for (Cache<?> cache : requestCache.values()) {
-      cache.clear();
-    }
-    requestCacheMapHolder.remove();
+    requestContextHolder.get().reset();
   }
 
 }
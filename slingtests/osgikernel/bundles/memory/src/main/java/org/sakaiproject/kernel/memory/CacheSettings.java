@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.cm.ConfigurationException;
+
+import java.util.Dictionary;
+
+/**
+ * The size, time to live and eviction settings of one named cache, read from a factory
+ * configuration.
+ */
+public class CacheSettings {
+
+  public static final String NAME = "cache.name";
+  public static final String MAX_ENTRIES = "cache.maxEntries";
+  public static final String MAX_BYTES = "cache.maxBytes";
+  public static final String TIME_TO_LIVE = "cache.timeToLive";
+  public static final String TIME_TO_IDLE = "cache.timeToIdle";
+  public static final String EVICTION_POLICY = "cache.evictionPolicy";
+
+  private final String name;
+  private final int maxEntries;
+  private final long maxBytes;
+  private final long timeToLive;
+  private final long timeToIdle;
+  private final MemoryStoreEvictionPolicy evictionPolicy;
+
+  /**
+   * @param name
+   *          the name of the cache.
+   * @param maxEntries
+   *          the most entries held in the heap, 0 for no limit.
+   * @param maxBytes
+   *          the off heap budget for entries evicted from the heap, 0 for the default.
+   * @param timeToLive
+   *          seconds after creation that an entry expires, 0 for never.
+   * @param timeToIdle
+   *          seconds after last access that an entry expires, 0 for never.
+   * @param evictionPolicy
+   */
+  public CacheSettings(String name, int maxEntries, long maxBytes, long timeToLive,
+      long timeToIdle, MemoryStoreEvictionPolicy evictionPolicy) {
+    this.name = name;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.timeToLive = timeToLive;
+    this.timeToIdle = timeToIdle;
+    this.evictionPolicy = evictionPolicy;
+  }
+
+  /**
+   * @param properties
+   *          the configuration properties.
+   * @return the settings.
+   * @throws ConfigurationException
+   *           if there is no cache name or a setting is invalid.
+   */
+  public static CacheSettings fromProperties(Dictionary<?, ?> properties)
+      throws ConfigurationException {
+    String name = OsgiUtil.toString(properties.get(NAME), null);
+    if (name == null || name.trim().length() == 0) {
+      throw new ConfigurationException(NAME, "A cache name is required");
+    }
+    int maxEntries = OsgiUtil.toInteger(properties.get(MAX_ENTRIES), 10000);
+    long maxBytes = OsgiUtil.toLong(properties.get(MAX_BYTES), 0L);
+    long timeToLive = OsgiUtil.toLong(properties.get(TIME_TO_LIVE), 600L);
+    long timeToIdle = OsgiUtil.toLong(properties.get(TIME_TO_IDLE), 600L);
+    if (maxEntries < 0) {
+      throw new ConfigurationException(MAX_ENTRIES, "Must not be negative");
+    }
+    if (maxBytes < 0) {
+      throw new ConfigurationException(MAX_BYTES, "Must not be negative");
+    }
+    if (timeToLive < 0 || timeToIdle < 0) {
+      throw new ConfigurationException(TIME_TO_LIVE, "Times must not be negative");
+    }
+    return new CacheSettings(name.trim(), maxEntries, maxBytes, timeToLive, timeToIdle,
+        toEvictionPolicy(OsgiUtil.toString(properties.get(EVICTION_POLICY), "LRU")));
+  }
+
+  /**
+   * @param policy
+   *          LRU, LFU, FIFO or W-TinyLFU.
+   * @return the ehcache policy.
+   * @throws ConfigurationException
+   *           if the policy is not known.
+   */
+  private static MemoryStoreEvictionPolicy toEvictionPolicy(String policy)
+      throws ConfigurationException {
+    String p = policy.trim().toUpperCase();
+    if ("LRU".equals(p)) {
+      return MemoryStoreEvictionPolicy.LRU;
+    } else if ("FIFO".equals(p)) {
+      return MemoryStoreEvictionPolicy.FIFO;
+    } else if ("LFU".equals(p) || "W-TINYLFU".equals(p) || "TINYLFU".equals(p)) {
+      // the memory store has no admission filter, frequency based eviction is the
+      // nearest it has.
+      return MemoryStoreEvictionPolicy.LFU;
+    }
+    throw new ConfigurationException(EVICTION_POLICY, "Unknown eviction policy " + policy);
+  }
+
+  /**
+   * @param ehcacheName
+   *          the name of the ehcache, which may differ from the name of the cache.
+   * @return a new ehcache with these settings.
+   */
+  public net.sf.ehcache.Cache newCache(String ehcacheName) {
+    boolean eternal = timeToLive == 0 && timeToIdle == 0;
+    return new net.sf.ehcache.Cache(ehcacheName, maxEntries, evictionPolicy, false, null,
+        eternal, timeToLive, timeToIdle, false, 120, null);
+  }
+
+  /**
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the maxEntries
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @return the maxBytes
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return the timeToLive
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * @return the timeToIdle
+   */
+  public long getTimeToIdle() {
+    return timeToIdle;
+  }
+
+  /**
+   * @return the evictionPolicy
+   */
+  public MemoryStoreEvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives each cache name a small integer slot, the same for every thread, so that per
+ * thread caches can be held in arrays rather than maps. Names are never released, there
+ * are only as many as there are cache names in the code.
+ */
+public class CacheSlots {
+
+  private final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param name
+   *          the cache name.
+   * @return the slot for the name.
+   */
+  public int slot(String name) {
+    Integer slot = slots.get(name);
+    if (slot == null) {
+      Integer created = next.getAndIncrement();
+      slot = slots.putIfAbsent(name, created);
+      if (slot == null) {
+        slot = created;
+      }
+    }
+    return slot;
+  }
+}
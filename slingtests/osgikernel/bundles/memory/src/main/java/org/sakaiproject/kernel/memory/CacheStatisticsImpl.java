@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+
+/**
+ * The counters for one cache, updated by the cache implementations.
+ */
+public class CacheStatisticsImpl implements CacheStatistics {
+
+  private final String name;
+  private final String scope;
+  private final StripedCounter hits = new StripedCounter();
+  private final StripedCounter misses = new StripedCounter();
+  private final StripedCounter puts = new StripedCounter();
+  private final StripedCounter removes = new StripedCounter();
+  private final StripedCounter evictions = new StripedCounter();
+  private final StripedCounter size = new StripedCounter();
+  private final LatencyHistogram getLatency = new LatencyHistogram();
+  private final LatencyHistogram putLatency = new LatencyHistogram();
+
+  /**
+   * @param name
+   *          the name of the cache.
+   * @param scope
+   *          the scope of the cache.
+   */
+  public CacheStatisticsImpl(String name, String scope) {
+    this.name = name;
+    this.scope = scope;
+  }
+
+  /**
+   * Record a get.
+   *
+   * @param hit
+   *          true if a value was found.
+   * @param nanos
+   *          the time the get took.
+   */
+  public void get(boolean hit, long nanos) {
+    if (hit) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    getLatency.record(nanos);
+  }
+
+  /**
+   * Record a put.
+   *
+   * @param nanos
+   *          the time the put took.
+   */
+  public void put(long nanos) {
+    puts.increment();
+    putLatency.record(nanos);
+  }
+
+  /**
+   * Record a remove made through the cache.
+   */
+  public void remove() {
+    removes.increment();
+  }
+
+  /**
+   * Record an entry evicted or expired by the cache.
+   */
+  public void evicted() {
+    evictions.increment();
+  }
+
+  /**
+   * @param delta
+   *          the change in the number of entries.
+   */
+  public void resize(long delta) {
+    size.add(delta);
+  }
+
+  /**
+   * The cache has been emptied.
+   */
+  public void cleared() {
+    size.reset();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getName()
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getScope()
+   */
+  public String getScope() {
+    return scope;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getHits()
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getMisses()
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getHitRatio()
+   */
+  public double getHitRatio() {
+    long h = getHits();
+    long total = h + getMisses();
+    return total == 0 ? 0.0 : (double) h / (double) total;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getPuts()
+   */
+  public long getPuts() {
+    return puts.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getRemoves()
+   */
+  public long getRemoves() {
+    return removes.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getEvictions()
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getSize()
+   */
+  public long getSize() {
+    return size.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getGetLatencyHistogram()
+   */
+  public long[] getGetLatencyHistogram() {
+    return getLatency.getCounts();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getPutLatencyHistogram()
+   */
+  public long[] getPutLatencyHistogram() {
+    return putLatency.getCounts();
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.BulkLoader;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.Loader;
+import org.sakaiproject.kernel.memory.cluster.ClusterTransport;
+import org.sakaiproject.kernel.memory.cluster.InvalidationMessage;
+import org.sakaiproject.kernel.memory.cluster.InvalidationMessage.Operation;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A cache that holds its entries in a local cache, and sends an invalidation to the other
+ * nodes of the cluster whenever an entry is changed or removed. Values are never sent over
+ * the wire, other nodes reload them when they next need them.
+ */
+public class ClusterInvalidatedCacheImpl<V> implements Cache<V> {
+
+  private final String cacheName;
+  private final Cache<V> local;
+  private volatile ClusterTransport transport;
+
+  /**
+   * @param cacheName
+   *          the name of the cache, must be the same on every node.
+   * @param local
+   *          the local cache that holds the entries.
+   * @param transport
+   *          the transport for invalidation messages.
+   */
+  public ClusterInvalidatedCacheImpl(String cacheName, Cache<V> local,
+      ClusterTransport transport) {
+    this.cacheName = cacheName;
+    this.local = local;
+    this.transport = transport;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    send(Operation.CLEAR, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  /**
+   * {@inheritDoc} Loaded values come from the same source on every node, so loading does
+   * not invalidate the other nodes.
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.Loader)
+   */
+  public V get(String key, Loader<V> loader) {
+    return local.get(key, loader);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#getAll(java.util.Collection,
+   *      org.sakaiproject.kernel.api.memory.BulkLoader)
+   */
+  public Map<String, V> getAll(Collection<String> keys, BulkLoader<V> loader) {
+    return local.getAll(keys, loader);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    send(Operation.REMOVE, key);
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.remove(key);
+    send(Operation.REMOVE, key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    send(Operation.REMOVE_CHILDREN, key);
+  }
+
+  /**
+   * Apply an invalidation received from another node, to the local cache only.
+   *
+   * @param message
+   *          the invalidation.
+   */
+  protected void invalidate(InvalidationMessage message) {
+    switch (message.getOperation()) {
+    case REMOVE:
+      local.remove(message.getKey());
+      break;
+    case REMOVE_CHILDREN:
+      local.removeChildren(message.getKey());
+      break;
+    case CLEAR:
+      local.clear();
+      break;
+    }
+  }
+
+  /**
+   * @param transport
+   *          the transport to send future invalidations over.
+   */
+  protected void setTransport(ClusterTransport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * @param operation
+   * @param key
+   */
+  private void send(Operation operation, String key) {
+    transport.send(new InvalidationMessage(cacheName, operation, key).encode());
+  }
+
+}
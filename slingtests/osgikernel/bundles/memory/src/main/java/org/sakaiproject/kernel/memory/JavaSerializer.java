@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializes Strings as UTF-8 and everything else with Java serialization. Classes are
+ * resolved with the class loader of the first non system value serialized, then the
+ * thread context class loader, so that classes private to the bundle using the cache can
+ * be read back.
+ * <p>
+ * Serialized values may come from other nodes, so only an allow list of classes is read:
+ * Strings, boxed primitives, a few collections, arrays of those, every class that this
+ * serializer has written, and the classes defined by the class loader of the values.
+ * Anything else is refused before it is loaded.
+ * </p>
+ */
+public class JavaSerializer implements Serializer {
+
+  private static final byte STRING = 0;
+  private static final byte OBJECT = 1;
+  private static final String UTF8 = "UTF-8";
+  /**
+   * The system classes that may always be read.
+   */
+  private static final Set<String> SYSTEM_CLASSES = Collections
+      .unmodifiableSet(new HashSet<String>(Arrays.asList(Object.class.getName(),
+          String.class.getName(), Boolean.class.getName(), Byte.class.getName(),
+          Character.class.getName(), Short.class.getName(), Integer.class.getName(),
+          Long.class.getName(), Float.class.getName(), Double.class.getName(),
+          Number.class.getName(),
+          Enum.class.getName(), java.util.Date.class.getName(),
+          java.util.ArrayList.class.getName(), java.util.LinkedList.class.getName(),
+          java.util.HashMap.class.getName(), java.util.LinkedHashMap.class.getName(),
+          java.util.TreeMap.class.getName(), java.util.HashSet.class.getName(),
+          java.util.LinkedHashSet.class.getName(), java.util.TreeSet.class.getName())));
+
+  private volatile ClassLoader valueClassLoader;
+  /**
+   * The names of the classes this serializer has written.
+   */
+  private final ConcurrentHashMap<String, Boolean> writtenClasses = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * Remember the class loader of a value, for reading values of that class back.
+   *
+   * @param value
+   */
+  public void addValueClass(Object value) {
+    if (valueClassLoader == null && value != null) {
+      valueClassLoader = value.getClass().getClassLoader();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.Serializer#serialize(java.lang.Object)
+   */
+  public byte[] serialize(Object value) throws IOException {
+    if (value instanceof String) {
+      byte[] utf8 = ((String) value).getBytes(UTF8);
+      byte[] data = new byte[utf8.length + 1];
+      data[0] = STRING;
+      System.arraycopy(utf8, 0, data, 1, utf8.length);
+      return data;
+    }
+    if (!(value instanceof Serializable)) {
+      throw new NotSerializableException(value.getClass().getName());
+    }
+    addValueClass(value);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+    baos.write(OBJECT);
+    ObjectOutputStream out = new ObjectOutputStream(baos) {
+      @Override
+      protected void annotateClass(Class<?> cl) throws IOException {
+        writtenClasses.put(cl.getName(), Boolean.TRUE);
+      }
+    };
+    out.writeObject(value);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.Serializer#deserialize(byte[])
+   */
+  public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+    if (data.length == 0) {
+      throw new IOException("No data");
+    }
+    if (data[0] == STRING) {
+      return new String(data, 1, data.length - 1, UTF8);
+    }
+    ObjectInputStream in = new ClassLoaderObjectInputStream(new ByteArrayInputStream(data,
+        1, data.length - 1));
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @param name
+   *          the name of a class in a serialized stream.
+   * @return true if the class is known before it is loaded to be safe to read.
+   */
+  private boolean isAllowed(String name) {
+    int dims = 0;
+    while (dims < name.length() && name.charAt(dims) == '[') {
+      dims++;
+    }
+    if (dims > 0) {
+      String component = name.substring(dims);
+      if (component.length() == 1) {
+        // an array of primitives.
+        return true;
+      }
+      if (component.startsWith("L") && component.endsWith(";")) {
+        return isAllowed(component.substring(1, component.length() - 1));
+      }
+      return false;
+    }
+    return SYSTEM_CLASSES.contains(name) || writtenClasses.containsKey(name);
+  }
+
+  /**
+   * Resolves classes with the class loader of the values first, then the thread context
+   * class loader, and then the default. Only classes that are allowed, or that are
+   * defined by the class loader of the values, are resolved.
+   */
+  private class ClassLoaderObjectInputStream extends ObjectInputStream {
+
+    ClassLoaderObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
+     */
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      String name = desc.getName();
+      if (!isAllowed(name)) {
+        ClassLoader cl = valueClassLoader;
+        if (cl != null) {
+          try {
+            Class<?> c = Class.forName(name, false, cl);
+            if (c.getClassLoader() == cl) {
+              return c;
+            }
+          } catch (ClassNotFoundException e) {
+            // refused below.
+          }
+        }
+        throw new InvalidClassException(name, "Not allowed in a cached value");
+      }
+      ClassLoader[] loaders = new ClassLoader[] { valueClassLoader,
+          Thread.currentThread().getContextClassLoader() };
+      for (ClassLoader cl : loaders) {
+        if (cl != null) {
+          try {
+            return Class.forName(desc.getName(), false, cl);
+          } catch (ClassNotFoundException e) {
+            // try the next one.
+          }
+        }
+      }
+      return super.resolveClass(desc);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in power of 2 nanosecond buckets, striped by thread in the
+ * same way as {@link StripedCounter}. Each stripe is a row of buckets, so threads on
+ * different stripes update different cache lines.
+ */
+public class LatencyHistogram {
+
+  private static final int STRIPES = 8;
+  private static final int MASK = STRIPES - 1;
+  private static final int BUCKETS = CacheStatistics.LATENCY_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+
+  /**
+   * @param nanos
+   *          the latency to record.
+   */
+  public void record(long nanos) {
+    int bucket = 0;
+    if (nanos > 1) {
+      bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+    }
+    int stripe = (int) Thread.currentThread().getId() & MASK;
+    buckets.incrementAndGet(stripe * BUCKETS + bucket);
+  }
+
+  /**
+   * @return the count in each bucket, summed over the stripes.
+   */
+  public long[] getCounts() {
+    long[] counts = new long[BUCKETS];
+    for (int s = 0; s < STRIPES; s++) {
+      for (int b = 0; b < BUCKETS; b++) {
+        counts[b] += buckets.get(s * BUCKETS + b);
+      }
+    }
+    return counts;
+  }
+}
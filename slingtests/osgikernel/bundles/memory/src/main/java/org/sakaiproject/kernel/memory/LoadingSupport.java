@@ -0,0 +1,323 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.BulkLoader;
+import org.sakaiproject.kernel.api.memory.CacheLoaderException;
+import org.sakaiproject.kernel.api.memory.Loader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Single flight loading for a cache. Each key being loaded has one future in the in
+ * flight map, the thread that puts it there does the load and every other thread that
+ * misses on the key waits for it. The cache implementation supplies a quiet read and a
+ * write of its store.
+ * <p>
+ * Removals from the cache invalidate the loads in flight for the keys removed, before
+ * removing them from the store. A load that has been invalidated does not store its
+ * value, which may be older than the removal, and the next miss loads again.
+ * </p>
+ */
+public abstract class LoadingSupport<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadingSupport.class);
+
+  /**
+   * A future that is completed by whoever does the load, rather than by running a task.
+   */
+  private static final class LoadFuture<V> extends FutureTask<V> {
+
+    /**
+     * Set while holding the future, so a load does not store once this is set.
+     */
+    private boolean invalidated;
+
+    private static final Callable<Object> NOTHING = new Callable<Object>() {
+      public Object call() {
+        return null;
+      }
+    };
+
+    @SuppressWarnings("unchecked")
+    LoadFuture() {
+      super((Callable<V>) NOTHING);
+    }
+
+    void complete(V value) {
+      set(value);
+    }
+
+    void fail(Throwable t) {
+      setException(t);
+    }
+  }
+
+  private final ConcurrentHashMap<String, LoadFuture<V>> inFlight = new ConcurrentHashMap<String, LoadFuture<V>>();
+
+  /**
+   * @param key
+   * @return the value in the store, without updating statistics.
+   */
+  protected abstract V peek(String key);
+
+  /**
+   * @param key
+   * @param value
+   *          a loaded value to put in the store.
+   */
+  protected abstract void store(String key, V value);
+
+  /**
+   * Store a loaded value, unless the load has been invalidated.
+   *
+   * @param key
+   * @param value
+   * @param future
+   *          the load.
+   */
+  private void store(String key, V value, LoadFuture<V> future) {
+    synchronized (future) {
+      if (!future.invalidated) {
+        store(key, value);
+      }
+    }
+  }
+
+  /**
+   * Stop a load in flight for a key from storing its value. Call before removing the key
+   * from the store.
+   *
+   * @param key
+   */
+  public void invalidate(String key) {
+    LoadFuture<V> future = inFlight.remove(key);
+    if (future != null) {
+      synchronized (future) {
+        future.invalidated = true;
+      }
+    }
+  }
+
+  /**
+   * Invalidate the loads in flight for a key and its children, by the rules of
+   * {@link org.sakaiproject.kernel.api.memory.Cache#removeChildren(String)}.
+   *
+   * @param key
+   */
+  public void invalidateChildren(String key) {
+    String prefix = key.endsWith("/") ? key : key + "/";
+    for (String k : inFlight.keySet()) {
+      if (k.startsWith(prefix) || (k.equals(key) && !key.endsWith("/"))) {
+        invalidate(k);
+      }
+    }
+  }
+
+  /**
+   * Invalidate every load in flight.
+   */
+  public void invalidateAll() {
+    for (String k : inFlight.keySet()) {
+      invalidate(k);
+    }
+  }
+
+  /**
+   * Load a key that has missed, or wait for the thread that is already loading it.
+   *
+   * @param key
+   * @param loader
+   * @return the loaded value.
+   */
+  public V load(String key, Loader<V> loader) {
+    LoadFuture<V> future = new LoadFuture<V>();
+    LoadFuture<V> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      return waitFor(key, existing);
+    }
+    try {
+      // another thread may have finished loading between our miss and now.
+      V value = peek(key);
+      if (value == null) {
+        value = loader.load(key);
+        if (value != null) {
+          store(key, value, future);
+        }
+      }
+      future.complete(value);
+      return value;
+    } catch (Throwable t) {
+      future.fail(t);
+      throw rethrow(key, t);
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * Load the keys that have missed, with one call to the loader for the keys no other
+   * thread is loading.
+   *
+   * @param keys
+   *          the keys that were not in the store.
+   * @param loader
+   * @return the values found or loaded.
+   */
+  public Map<String, V> loadAll(Collection<String> keys, BulkLoader<V> loader) {
+    Map<String, V> result = new HashMap<String, V>();
+    Map<String, LoadFuture<V>> mine = new HashMap<String, LoadFuture<V>>();
+    Map<String, LoadFuture<V>> theirs = new HashMap<String, LoadFuture<V>>();
+    for (String key : keys) {
+      if (mine.containsKey(key) || theirs.containsKey(key)) {
+        continue;
+      }
+      LoadFuture<V> future = new LoadFuture<V>();
+      LoadFuture<V> existing = inFlight.putIfAbsent(key, future);
+      if (existing == null) {
+        mine.put(key, future);
+      } else {
+        theirs.put(key, existing);
+      }
+    }
+    if (mine.size() > 0) {
+      try {
+        List<String> toLoad = new ArrayList<String>(mine.size());
+        for (String key : mine.keySet()) {
+          V value = peek(key);
+          if (value == null) {
+            toLoad.add(key);
+          } else {
+            result.put(key, value);
+          }
+        }
+        if (toLoad.size() > 0) {
+          Map<String, V> loaded = loader.loadAll(toLoad);
+          if (loaded != null) {
+            for (String key : toLoad) {
+              V value = loaded.get(key);
+              if (value != null) {
+                store(key, value, mine.get(key));
+                result.put(key, value);
+              }
+            }
+          }
+        }
+        for (Map.Entry<String, LoadFuture<V>> e : mine.entrySet()) {
+          e.getValue().complete(result.get(e.getKey()));
+        }
+      } catch (Throwable t) {
+        for (LoadFuture<V> future : mine.values()) {
+          future.fail(t);
+        }
+        throw rethrow(String.valueOf(mine.keySet()), t);
+      } finally {
+        for (Map.Entry<String, LoadFuture<V>> e : mine.entrySet()) {
+          inFlight.remove(e.getKey(), e.getValue());
+        }
+      }
+    }
+    for (Map.Entry<String, LoadFuture<V>> e : theirs.entrySet()) {
+      V value = waitFor(e.getKey(), e.getValue());
+      if (value != null) {
+        result.put(e.getKey(), value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reload a key in the background, unless it is already being loaded. The current value
+   * stays in the store until the new one replaces it. If the executor is busy the refresh
+   * is skipped, the entry will be loaded on a miss when it expires.
+   *
+   * @param key
+   * @param loader
+   * @param executor
+   */
+  public void refresh(final String key, final Loader<V> loader, Executor executor) {
+    final LoadFuture<V> future = new LoadFuture<V>();
+    if (inFlight.putIfAbsent(key, future) != null) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            V value = loader.load(key);
+            if (value != null) {
+              store(key, value, future);
+            }
+            future.complete(value);
+          } catch (Throwable t) {
+            LOGGER.warn("Refresh of " + key + " failed " + t.getMessage());
+            future.fail(t);
+          } finally {
+            inFlight.remove(key, future);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      inFlight.remove(key, future);
+      future.complete(null);
+    }
+  }
+
+  /**
+   * @param key
+   * @param future
+   * @return the result of another thread's load.
+   */
+  private V waitFor(String key, LoadFuture<V> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CacheLoaderException("Interrupted waiting for " + key + " to load", e);
+    } catch (ExecutionException e) {
+      throw rethrow(key, e.getCause());
+    }
+  }
+
+  /**
+   * @param key
+   * @param t
+   * @return the exception to throw for a loader failure.
+   */
+  private RuntimeException rethrow(String key, Throwable t) {
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new CacheLoaderException("Failed to load " + key, t);
+  }
+}
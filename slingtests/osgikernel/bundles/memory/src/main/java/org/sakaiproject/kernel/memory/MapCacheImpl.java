@@ -17,11 +17,17 @@
  */
 package org.sakaiproject.kernel.memory;
 
+import org.sakaiproject.kernel.api.memory.BulkLoader;
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoaderException;
+import org.sakaiproject.kernel.api.memory.Loader;
 import org.sakaiproject.kernel.api.memory.ThreadBound;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -34,6 +40,49 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   private static final long serialVersionUID = -5400056532743570231L;
 
+  /**
+   * Built on the first call to removeChildren, most request and thread caches never need
+   * one.
+   */
+  private transient PathIndex index;
+
+  /**
+   * Shared by every instance of the cache with the same name and scope.
+   */
+  private transient CacheStatisticsImpl statistics;
+
+  /**
+   *
+   */
+  public MapCacheImpl() {
+    this(new CacheStatisticsImpl("map", "THREAD"));
+  }
+
+  /**
+   * @param statistics
+   *          the statistics to update.
+   */
+  public MapCacheImpl(CacheStatisticsImpl statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#put(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public V put(String key, V value) {
+    long start = System.nanoTime();
+    if ( index != null ) {
+      index.add(key);
+    }
+    int before = super.size();
+    V previous = super.put(key, value);
+    statistics.resize(super.size() - before);
+    statistics.put(System.nanoTime() - start);
+    return previous;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
@@ -47,7 +96,70 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
    */
   public V get(String key) {
-    return super.get(key);
+    long start = System.nanoTime();
+    V value = super.get(key);
+    statistics.get(value != null, System.nanoTime() - start);
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   * Map caches are bound to a single thread, so there is never another thread loading the
+   * same key to wait for.
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String, org.sakaiproject.kernel.api.memory.Loader)
+   */
+  public V get(String key, Loader<V> loader) {
+    V value = get(key);
+    if ( value == null ) {
+      try {
+        value = loader.load(key);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new CacheLoaderException("Failed to load " + key, e);
+      }
+      if ( value != null ) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.memory.Cache#getAll(java.util.Collection, org.sakaiproject.kernel.api.memory.BulkLoader)
+   */
+  public Map<String, V> getAll(Collection<String> keys, BulkLoader<V> loader) {
+    Map<String, V> result = new HashMap<String, V>();
+    List<String> missing = new ArrayList<String>();
+    for ( String key : keys ) {
+      V value = get(key);
+      if ( value == null ) {
+        missing.add(key);
+      } else {
+        result.put(key, value);
+      }
+    }
+    if ( missing.size() > 0 && loader != null ) {
+      Map<String, V> loaded;
+      try {
+        loaded = loader.loadAll(missing);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new CacheLoaderException("Failed to load " + missing, e);
+      }
+      if ( loaded != null ) {
+        for ( String key : missing ) {
+          V value = loaded.get(key);
+          if ( value != null ) {
+            put(key, value);
+            result.put(key, value);
+          }
+        }
+      }
+    }
+    return result;
   }
 
   /**
@@ -55,7 +167,17 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
+    if ( index != null ) {
+      index.remove(key);
+    }
+    int before = super.size();
     V o = super.remove(key);
+    int removed = before - super.size();
+    statistics.resize(-removed);
+    // only keys that were held are counted, as for the other caches.
+    if (removed > 0) {
+      statistics.remove();
+    }
     if ( o instanceof ThreadBound ) {
       ((ThreadBound) o).unbind();
     }
@@ -69,12 +191,14 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
   @Override
   public void clear() {
     for ( String k : super.keySet() ) {
-      Object o = get(k);
+      Object o = super.get(k);
       if( o instanceof ThreadBound ) {
         ((ThreadBound) o).unbind();
       }
     }
+    statistics.resize(-super.size());
     super.clear();
+    index = null;
   }
 
   /**
@@ -82,15 +206,21 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
+    if ( index == null ) {
+      index = new PathIndex();
+      for ( String k : super.keySet() ) {
+        index.add(k);
+      }
+    }
+    int before = super.size();
     super.remove(key);
-    if ( !key.endsWith("/") ) {
-      key = key + "/";
+    for ( String k : index.removeChildren(key) ) {
+      super.remove(k);
     }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
-      }
+    int removed = before - super.size();
+    statistics.resize(-removed);
+    for (int i = 0; i < removed; i++) {
+      statistics.remove();
     }
   }
 
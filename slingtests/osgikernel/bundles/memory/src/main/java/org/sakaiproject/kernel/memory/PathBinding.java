@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.CacheScope;
+
+/**
+ * A cache bound to a subtree of the content repository.
+ */
+public class PathBinding {
+
+  private final String name;
+  private final CacheScope scope;
+  private final String path;
+  private final boolean whole;
+
+  /**
+   * @param name
+   * @param scope
+   * @param path
+   *          the root of the subtree, without a trailing /.
+   */
+  public PathBinding(String name, CacheScope scope, String path) {
+    this(name, scope, path, false);
+  }
+
+  /**
+   * @param name
+   * @param scope
+   * @param path
+   *          the root of the subtree, without a trailing /.
+   * @param whole
+   *          true if the entries are derived from the subtree as a whole and keyed under
+   *          its root, so that any change in it removes them all.
+   */
+  public PathBinding(String name, CacheScope scope, String path, boolean whole) {
+    this.name = name;
+    this.scope = scope;
+    this.path = path;
+    this.whole = whole;
+  }
+
+  /**
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the scope
+   */
+  public CacheScope getScope() {
+    return scope;
+  }
+
+  /**
+   * @param changed
+   *          the path of a node that changed.
+   * @return the key under which entries should be removed from the cache, the changed
+   *         path if it is in the subtree, the root of the subtree if the subtree is under
+   *         the changed path or is bound as a whole, or null if they do not overlap.
+   */
+  public String invalidationKey(String changed) {
+    if (isUnder(changed, path)) {
+      return whole ? path : changed;
+    } else if (isUnder(path, changed)) {
+      return path;
+    }
+    return null;
+  }
+
+  /**
+   * @param child
+   * @param parent
+   * @return true if child is parent or a descendant of it.
+   */
+  private static boolean isUnder(String child, String parent) {
+    if ("/".equals(parent)) {
+      return child.startsWith("/");
+    }
+    return child.equals(parent)
+        || (child.startsWith(parent) && child.charAt(parent.length()) == '/');
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof PathBinding)) {
+      return false;
+    }
+    PathBinding other = (PathBinding) obj;
+    return name.equals(other.name) && scope == other.scope && path.equals(other.path)
+        && whole == other.whole;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return ((name.hashCode() * 31 + scope.hashCode()) * 31 + path.hashCode()) * 2
+        + (whole ? 1 : 0);
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of cache keys by path segment, so that all the keys under a path can be found
+ * in time proportional to the number of keys under it rather than the size of the cache.
+ * Keys are split on '/', empty segments are kept so that "/a/b" and "/a/b/" are different
+ * keys, as they are in the cache.
+ * <p>
+ * The children of a key follow the rules of {@link org.sakaiproject.kernel.api.memory.Cache#removeChildren(String)},
+ * the children of "/a/b" are "/a/b" itself and every key starting with "/a/b/", the
+ * children of "/a/b/" are "/a/b/" and every key starting with "/a/b/", but not "/a/b".
+ * </p>
+ */
+public class PathIndex {
+
+  /**
+   * A node in the trie, one per path segment.
+   */
+  private static final class Node {
+    private final Node parent;
+    private final String segment;
+    private Map<String, Node> children;
+    private String key;
+
+    Node(Node parent, String segment) {
+      this.parent = parent;
+      this.segment = segment;
+    }
+  }
+
+  private Node root = new Node(null, null);
+  private int size;
+
+  /**
+   * Add a key to the index.
+   *
+   * @param key
+   * @return true if the key was not already in the index.
+   */
+  public synchronized boolean add(String key) {
+    Node n = root;
+    int start = 0;
+    for (;;) {
+      int end = key.indexOf('/', start);
+      String segment = end < 0 ? key.substring(start) : key.substring(start, end);
+      if (n.children == null) {
+        n.children = new HashMap<String, Node>(4);
+      }
+      Node child = n.children.get(segment);
+      if (child == null) {
+        child = new Node(n, segment);
+        n.children.put(segment, child);
+      }
+      n = child;
+      if (end < 0) {
+        break;
+      }
+      start = end + 1;
+    }
+    if (n.key == null) {
+      n.key = key;
+      size++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Remove a key from the index.
+   *
+   * @param key
+   * @return true if the key was in the index.
+   */
+  public synchronized boolean remove(String key) {
+    Node n = find(key);
+    if (n != null && n.key != null) {
+      n.key = null;
+      size--;
+      prune(n);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Remove a key and all its children from the index.
+   *
+   * @param key
+   * @return the keys that were removed.
+   */
+  public synchronized List<String> removeChildren(String key) {
+    List<String> removed = new ArrayList<String>();
+    boolean includeSelf = true;
+    String path = key;
+    if (key.endsWith("/")) {
+      // "/a/b/" is below "/a/b", but "/a/b" is not a child of "/a/b/"
+      path = key.substring(0, key.length() - 1);
+      includeSelf = false;
+    }
+    Node n = find(path);
+    if (n == null) {
+      return removed;
+    }
+    if (n.children != null) {
+      for (Node child : n.children.values()) {
+        collect(child, removed);
+      }
+      n.children = null;
+    }
+    if (includeSelf && n.key != null) {
+      removed.add(n.key);
+      n.key = null;
+    }
+    size -= removed.size();
+    prune(n);
+    return removed;
+  }
+
+  /**
+   * Empty the index.
+   */
+  public synchronized void clear() {
+    root = new Node(null, null);
+    size = 0;
+  }
+
+  /**
+   * @return the number of keys in the index.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @param key
+   * @return the node for the key, or null if there is no such path in the index.
+   */
+  private Node find(String key) {
+    Node n = root;
+    int start = 0;
+    for (;;) {
+      if (n.children == null) {
+        return null;
+      }
+      int end = key.indexOf('/', start);
+      String segment = end < 0 ? key.substring(start) : key.substring(start, end);
+      n = n.children.get(segment);
+      if (n == null || end < 0) {
+        return n;
+      }
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Add every key at and below a node to the list, without recursion so that deep paths
+   * cannot overflow the stack.
+   *
+   * @param n
+   * @param keys
+   */
+  private void collect(Node n, List<String> keys) {
+    List<Node> stack = new ArrayList<Node>();
+    stack.add(n);
+    while (stack.size() > 0) {
+      Node current = stack.remove(stack.size() - 1);
+      if (current.key != null) {
+        keys.add(current.key);
+      }
+      if (current.children != null) {
+        stack.addAll(current.children.values());
+      }
+    }
+  }
+
+  /**
+   * Remove nodes that no longer hold a key or have children, working up to the root.
+   *
+   * @param n
+   */
+  private void prune(Node n) {
+    while (n.parent != null && n.key == null
+        && (n.children == null || n.children.size() == 0)) {
+      n.parent.children.remove(n.segment);
+      n = n.parent;
+    }
+  }
+}
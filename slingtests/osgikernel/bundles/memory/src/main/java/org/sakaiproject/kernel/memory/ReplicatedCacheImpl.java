@@ -0,0 +1,581 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.BulkLoader;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.Loader;
+import org.sakaiproject.kernel.memory.cluster.ReplicationMessage;
+import org.sakaiproject.kernel.memory.cluster.ReplicationMessage.Delta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache whose entries are copied to every node in the cluster. Writes are applied
+ * locally straight away and queued, the cache manager drains the queue once per
+ * replication window and sends the changes as a batch, so a key that is written many
+ * times inside one window only goes over the wire once.
+ * <p>
+ * Every entry carries a version from a Lamport clock, with the node id to break ties.
+ * When two nodes write the same key the higher version wins on every node, regardless of
+ * the order the changes arrive in. Removals are kept as tombstones for a while so that a
+ * late write with an older version cannot bring an entry back.
+ * </p>
+ * <p>
+ * Replication is best effort. A lost frame is not sent again and a node that joins starts
+ * empty, so nodes can disagree. To bound that, like the instance caches, each node keeps
+ * at most a maximum number of entries, evicting the oldest written, and entries expire a
+ * time to live after they were written or arrived.
+ * </p>
+ * <p>
+ * Values must be {@link Serializable}. Values that are not, that fail to serialize, or
+ * that are too large to fit in a replication frame are refused, and the key removed, so
+ * that every node misses rather than some keeping an older value.
+ * Values from other nodes are kept in serialized form until they are first read, and are
+ * deserialized by a {@link JavaSerializer} that knows the class loader of the values put
+ * on this node, so that classes private to the calling bundle can be replicated.
+ * </p>
+ */
+public class ReplicatedCacheImpl<V> implements Cache<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicatedCacheImpl.class);
+
+  /**
+   * A versioned entry, immutable. A null value and null serialized form is a tombstone.
+   */
+  private static final class Versioned {
+    private final Object value;
+    private final byte[] serialized;
+    private final long version;
+    private final long nodeId;
+    private final long timestamp;
+
+    Versioned(Object value, byte[] serialized, long version, long nodeId) {
+      this(value, serialized, version, nodeId, System.currentTimeMillis());
+    }
+
+    Versioned(Object value, byte[] serialized, long version, long nodeId, long timestamp) {
+      this.value = value;
+      this.serialized = serialized;
+      this.version = version;
+      this.nodeId = nodeId;
+      this.timestamp = timestamp;
+    }
+
+    boolean isTombstone() {
+      return value == null && serialized == null;
+    }
+
+    boolean isNewerThan(Versioned other) {
+      return other == null || version > other.version
+          || (version == other.version && nodeId > other.nodeId);
+    }
+  }
+
+  /**
+   * The most entries kept on a node, as for the default instance cache.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+  /**
+   * How long entries are kept in ms, as for the default instance cache.
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = 600000L;
+  /**
+   * The largest replication frame.
+   */
+  public static final int DEFAULT_MAX_FRAME_SIZE = 60000;
+
+  private final String cacheName;
+  private final long nodeId;
+  private final long tombstoneTtl;
+  private volatile int maxEntries;
+  private volatile long timeToLive;
+  private final int maxFrameSize;
+  private final AtomicLong clock = new AtomicLong();
+  private final ConcurrentHashMap<String, Versioned> entries = new ConcurrentHashMap<String, Versioned>();
+  private final ConcurrentHashMap<String, Versioned> pending = new ConcurrentHashMap<String, Versioned>();
+  private final PathIndex index = new PathIndex();
+  private final CacheStatisticsImpl statistics;
+  private final JavaSerializer serializer = new JavaSerializer();
+  private final LoadingSupport<V> loading = new LoadingSupport<V>() {
+    @Override
+    protected V peek(String key) {
+      return read(key);
+    }
+
+    @Override
+    protected void store(String key, V value) {
+      put(key, value);
+    }
+  };
+
+  /**
+   * @param cacheName
+   *          the name of the cache, must be the same on every node.
+   * @param nodeId
+   *          the id of this node in the cluster.
+   * @param tombstoneTtl
+   *          how long in ms to remember removed keys.
+   */
+  public ReplicatedCacheImpl(String cacheName, long nodeId, long tombstoneTtl) {
+    this(cacheName, nodeId, tombstoneTtl, new CacheStatisticsImpl(cacheName,
+        "CLUSTERREPLICATED"));
+  }
+
+  /**
+   * @param cacheName
+   *          the name of the cache, must be the same on every node.
+   * @param nodeId
+   *          the id of this node in the cluster.
+   * @param tombstoneTtl
+   *          how long in ms to remember removed keys.
+   * @param statistics
+   *          the statistics to update.
+   */
+  public ReplicatedCacheImpl(String cacheName, long nodeId, long tombstoneTtl,
+      CacheStatisticsImpl statistics) {
+    this(cacheName, nodeId, tombstoneTtl, statistics, DEFAULT_MAX_ENTRIES,
+        DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_FRAME_SIZE);
+  }
+
+  /**
+   * @param cacheName
+   *          the name of the cache, must be the same on every node.
+   * @param nodeId
+   *          the id of this node in the cluster.
+   * @param tombstoneTtl
+   *          how long in ms to remember removed keys.
+   * @param statistics
+   *          the statistics to update.
+   * @param maxEntries
+   *          the most entries to keep on this node.
+   * @param timeToLive
+   *          how long in ms to keep entries.
+   * @param maxFrameSize
+   *          the largest replication frame, larger values are refused.
+   */
+  public ReplicatedCacheImpl(String cacheName, long nodeId, long tombstoneTtl,
+      CacheStatisticsImpl statistics, int maxEntries, long timeToLive, int maxFrameSize) {
+    this.statistics = statistics;
+    this.cacheName = cacheName;
+    this.nodeId = nodeId;
+    this.tombstoneTtl = tombstoneTtl;
+    this.maxEntries = maxEntries;
+    this.timeToLive = timeToLive;
+    this.maxFrameSize = maxFrameSize;
+  }
+
+  /**
+   * Change the limits of the cache, taking effect on the next read and purge.
+   *
+   * @param maxEntries
+   *          the most entries to keep on this node.
+   * @param timeToLive
+   *          how long in ms to keep entries.
+   */
+  public void setLimits(int maxEntries, long timeToLive) {
+    this.maxEntries = maxEntries;
+    this.timeToLive = timeToLive;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#clear()
+   */
+  public void clear() {
+    for (Map.Entry<String, Versioned> e : entries.entrySet()) {
+      if (!e.getValue().isTombstone()) {
+        remove(e.getKey());
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    Versioned v = entries.get(key);
+    return isLive(v);
+  }
+
+  /**
+   * @param v
+   * @return true if the entry has a value that has not expired.
+   */
+  private boolean isLive(Versioned v) {
+    return v != null && !v.isTombstone()
+        && v.timestamp >= System.currentTimeMillis() - timeToLive;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    long start = System.nanoTime();
+    V value = read(key);
+    statistics.get(value != null, System.nanoTime() - start);
+    return value;
+  }
+
+  /**
+   * {@inheritDoc} A loaded value is replicated like any other put.
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.Loader)
+   */
+  public V get(String key, Loader<V> loader) {
+    V value = get(key);
+    if (value == null) {
+      value = loading.load(key, loader);
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#getAll(java.util.Collection,
+   *      org.sakaiproject.kernel.api.memory.BulkLoader)
+   */
+  public Map<String, V> getAll(Collection<String> keys, BulkLoader<V> loader) {
+    Map<String, V> result = new HashMap<String, V>();
+    List<String> missing = new ArrayList<String>();
+    for (String key : keys) {
+      V value = get(key);
+      if (value == null) {
+        missing.add(key);
+      } else {
+        result.put(key, value);
+      }
+    }
+    if (missing.size() > 0 && loader != null) {
+      result.putAll(loading.loadAll(missing, loader));
+    }
+    return result;
+  }
+
+  /**
+   * @param key
+   * @return the value for the key, deserializing it if it came from another node.
+   */
+  @SuppressWarnings("unchecked")
+  private V read(String key) {
+    Versioned v = entries.get(key);
+    if (!isLive(v)) {
+      return null;
+    }
+    if (v.value == null) {
+      v = deserialize(key, v);
+    }
+    return (V) v.value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    if (payload == null) {
+      V previous = read(key);
+      remove(key);
+      return previous;
+    }
+    serializer.addValueClass(payload);
+    long start = System.nanoTime();
+    V previous = read(key);
+    if (!(payload instanceof Serializable)) {
+      LOGGER.warn("Value for {} in replicated cache {} is not Serializable, refused ", key,
+          cacheName);
+      remove(key);
+      return previous;
+    }
+    // a value that cannot be replicated is refused everywhere, the tombstone replaces any
+    // delta still pending for the key so the other nodes drop their copy.
+    byte[] serialized = serialize(key, payload);
+    if (serialized == null) {
+      remove(key);
+      return previous;
+    }
+    if (!ReplicationMessage.fits(cacheName, key, serialized.length, maxFrameSize)) {
+      LOGGER.warn("Value for {} in replicated cache {} is {} bytes, too large to "
+          + "replicate, refused ", new Object[] { key, cacheName, serialized.length });
+      remove(key);
+      return previous;
+    }
+    pending.put(key, write(key, payload, serialized));
+    statistics.put(System.nanoTime() - start);
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    loading.invalidate(key);
+    pending.put(key, write(key, null, null));
+    statistics.remove();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    loading.invalidateChildren(key);
+    remove(key);
+    List<String> children = index.removeChildren(key);
+    statistics.resize(-children.size());
+    for (String k : children) {
+      remove(k);
+    }
+  }
+
+  /**
+   * @return the statistics for this cache.
+   */
+  public CacheStatisticsImpl getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @return the cacheName
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * Take the changes made since the last drain, purge old tombstones and expired entries,
+   * and evict entries over the maximum.
+   *
+   * @return the changes, ready to be sent to the other nodes.
+   */
+  protected List<Delta> drain() {
+    purge();
+    if (pending.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Delta> deltas = new ArrayList<Delta>(pending.size());
+    for (Iterator<Map.Entry<String, Versioned>> i = pending.entrySet().iterator(); i
+        .hasNext();) {
+      Map.Entry<String, Versioned> e = i.next();
+      Versioned v = e.getValue();
+      // only remove the change we are sending, not one made since we read it.
+      pending.remove(e.getKey(), v);
+      deltas.add(new Delta(e.getKey(), v.version, v.nodeId, v.serialized));
+    }
+    return deltas;
+  }
+
+  /**
+   * Apply changes received from another node. A change is only applied if it is newer
+   * than the entry this node already has.
+   *
+   * @param message
+   *          the changes.
+   */
+  protected void apply(ReplicationMessage message) {
+    for (Delta d : message.getDeltas()) {
+      long c = clock.get();
+      while (d.getVersion() > c && !clock.compareAndSet(c, d.getVersion())) {
+        c = clock.get();
+      }
+      Versioned incoming = new Versioned(null, d.getValue(), d.getVersion(), d.getNodeId());
+      String key = d.getKey();
+      // a local load in flight may be older than the remote change.
+      loading.invalidate(key);
+      for (;;) {
+        Versioned current = entries.get(key);
+        if (current == null) {
+          if (entries.putIfAbsent(key, incoming) == null) {
+            updateIndex(key, incoming);
+            break;
+          }
+        } else if (!incoming.isNewerThan(current)) {
+          break;
+        } else if (entries.replace(key, current, incoming)) {
+          // a newer remote write supersedes a local change that has not been sent yet.
+          pending.remove(key, current);
+          updateIndex(key, incoming);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Make a local write, with a version newer than any this node has seen for the key.
+   *
+   * @param key
+   * @param value
+   *          the value, null to remove.
+   * @param serialized
+   *          the value serialized, null if it is not replicated.
+   * @return the entry that was written.
+   */
+  private Versioned write(String key, Object value, byte[] serialized) {
+    for (;;) {
+      Versioned v = new Versioned(value, value == null ? null : serialized, clock
+          .incrementAndGet(), nodeId);
+      Versioned current = entries.get(key);
+      if (current == null) {
+        if (entries.putIfAbsent(key, v) == null) {
+          updateIndex(key, v);
+          return v;
+        }
+      } else if (v.isNewerThan(current) && entries.replace(key, current, v)) {
+        updateIndex(key, v);
+        return v;
+      }
+    }
+  }
+
+  /**
+   * @param key
+   * @param v
+   *          the entry now in the map for the key.
+   */
+  private void updateIndex(String key, Versioned v) {
+    if (v.isTombstone()) {
+      if (index.remove(key)) {
+        statistics.resize(-1);
+      }
+    } else if (index.add(key)) {
+      statistics.resize(1);
+    }
+  }
+
+  /**
+   * Remove tombstones older than the tombstone ttl and entries older than the time to
+   * live, then the oldest entries while there are more than the maximum. Entries are only
+   * dropped from this node, other nodes expire and evict their own.
+   */
+  private void purge() {
+    long now = System.currentTimeMillis();
+    long expiredTombstone = now - tombstoneTtl;
+    long expired = now - timeToLive;
+    int max = maxEntries;
+    int live = 0;
+    for (Map.Entry<String, Versioned> e : entries.entrySet()) {
+      Versioned v = e.getValue();
+      if (v.isTombstone()) {
+        if (v.timestamp < expiredTombstone) {
+          entries.remove(e.getKey(), v);
+        }
+      } else if (v.timestamp < expired) {
+        drop(e.getKey(), v);
+      } else {
+        live++;
+      }
+    }
+    if (live > max) {
+      long[] timestamps = new long[live];
+      int n = 0;
+      for (Versioned v : entries.values()) {
+        if (!v.isTombstone() && n < live) {
+          timestamps[n++] = v.timestamp;
+        }
+      }
+      Arrays.sort(timestamps, 0, n);
+      long cutoff = timestamps[Math.max(0, n - max)];
+      for (Map.Entry<String, Versioned> e : entries.entrySet()) {
+        Versioned v = e.getValue();
+        if (!v.isTombstone() && v.timestamp < cutoff) {
+          drop(e.getKey(), v);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop an entry from this node only.
+   *
+   * @param key
+   * @param v
+   *          the entry, only dropped if it is still the one in the map.
+   */
+  private void drop(String key, Versioned v) {
+    if (entries.remove(key, v) && index.remove(key)) {
+      statistics.resize(-1);
+    }
+  }
+
+  /**
+   * Deserialize a remote value, and swap it into the map so this only happens once.
+   *
+   * @param key
+   * @param v
+   * @return the entry with the value deserialized, or a tombstone if it could not be read.
+   */
+  private Versioned deserialize(String key, Versioned v) {
+    Object value = null;
+    try {
+      value = serializer.deserialize(v.serialized);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read replicated value for " + key + " in " + cacheName + " "
+          + e.getMessage());
+    } catch (ClassNotFoundException e) {
+      LOGGER.warn("Unable to read replicated value for " + key + " in " + cacheName + " "
+          + e.getMessage());
+    }
+    Versioned read = new Versioned(value, value == null ? null : v.serialized, v.version,
+        v.nodeId, v.timestamp);
+    if (value != null) {
+      entries.replace(key, v, read);
+    }
+    return read;
+  }
+
+  /**
+   * @param key
+   * @param value
+   * @return the serialized value, or null if it could not be serialized.
+   */
+  private byte[] serialize(String key, Object value) {
+    try {
+      return serializer.serialize(value);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to serialize value for " + key + " in replicated cache "
+          + cacheName + ", refused " + e.getMessage());
+      return null;
+    }
+  }
+
+}
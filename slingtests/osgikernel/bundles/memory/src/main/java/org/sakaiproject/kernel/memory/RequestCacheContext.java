@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+/**
+ * The request caches of one thread, indexed by {@link CacheSlots} slot. The context and
+ * its caches live as long as the thread, and are emptied at the end of each request
+ * rather than thrown away, so a request that uses caches it has used before allocates
+ * nothing to find them. Only caches that stayed small are kept, HashMap.clear() keeps the
+ * table however large it grew.
+ */
+public class RequestCacheContext {
+
+  /**
+   * A cache that held more entries than this in a request is dropped at the end of the
+   * request rather than emptied, so that one large request does not leave a large table
+   * behind in the thread for good.
+   */
+  public static final int MAX_RETAINED_ENTRIES = 1024;
+
+  private MapCacheImpl<?>[] caches = new MapCacheImpl<?>[16];
+
+  /**
+   * @param slot
+   * @return the cache in the slot, or null if this thread has not used it.
+   */
+  public MapCacheImpl<?> get(int slot) {
+    if (slot < caches.length) {
+      return caches[slot];
+    }
+    return null;
+  }
+
+  /**
+   * @param slot
+   * @param cache
+   */
+  public void set(int slot, MapCacheImpl<?> cache) {
+    if (slot >= caches.length) {
+      MapCacheImpl<?>[] grown = new MapCacheImpl<?>[Math.max(slot + 1, caches.length * 2)];
+      System.arraycopy(caches, 0, grown, 0, caches.length);
+      caches = grown;
+    }
+    caches[slot] = cache;
+  }
+
+  /**
+   * Empty every cache, ready for the next request. The caches keep their tables, except
+   * those that held more than {@link #MAX_RETAINED_ENTRIES}, which are dropped and
+   * created again when next used.
+   */
+  public void reset() {
+    for (int i = 0; i < caches.length; i++) {
+      MapCacheImpl<?> cache = caches[i];
+      if (cache != null && !cache.isEmpty()) {
+        boolean oversized = cache.size() > MAX_RETAINED_ENTRIES;
+        cache.clear();
+        if (oversized) {
+          caches[i] = null;
+        }
+      }
+    }
+  }
+}
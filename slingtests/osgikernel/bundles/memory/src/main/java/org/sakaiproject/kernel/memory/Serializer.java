@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.io.IOException;
+
+/**
+ * Turns cache values into bytes and back, for storage outside the heap or for sending to
+ * other nodes.
+ */
+public interface Serializer {
+
+  /**
+   * @param value
+   *          the value, not null.
+   * @return the serialized form.
+   * @throws IOException
+   *           if the value cannot be serialized by this serializer.
+   */
+  byte[] serialize(Object value) throws IOException;
+
+  /**
+   * @param data
+   *          bytes from {@link #serialize(Object)}
+   * @return the value.
+   * @throws IOException
+   *           if the data cannot be read.
+   * @throws ClassNotFoundException
+   *           if the class of the value cannot be found.
+   */
+  Object deserialize(byte[] data) throws IOException, ClassNotFoundException;
+}
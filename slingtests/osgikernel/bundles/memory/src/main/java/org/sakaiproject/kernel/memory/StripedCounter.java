@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is cheap to update from many threads at once. Each thread updates one of
+ * a number of cells, chosen by thread id, and the cells are spread out so that they do
+ * not share a cache line. Reading the counter sums the cells, so reads are more expensive
+ * than writes and are not a consistent snapshot.
+ */
+public class StripedCounter {
+
+  /**
+   * Must be a power of 2.
+   */
+  private static final int STRIPES = 16;
+  private static final int MASK = STRIPES - 1;
+  /**
+   * 8 longs is a 64 byte cache line.
+   */
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  /**
+   * Add one to the counter.
+   */
+  public void increment() {
+    cells.incrementAndGet(cell());
+  }
+
+  /**
+   * @param delta
+   *          the amount to add, may be negative.
+   */
+  public void add(long delta) {
+    cells.addAndGet(cell(), delta);
+  }
+
+  /**
+   * @return the value of the counter.
+   */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  /**
+   * Set the counter to zero, updates made while this runs may be lost.
+   */
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+
+  /**
+   * @return the index of the cell for the current thread.
+   */
+  private int cell() {
+    return ((int) Thread.currentThread().getId() & MASK) * PADDING;
+  }
+}
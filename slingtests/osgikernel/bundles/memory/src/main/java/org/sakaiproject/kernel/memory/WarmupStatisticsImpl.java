@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.WarmupStatistics;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the warm up of the caches. The window counts are live sums over the statistics
+ * of every cache until the window closes, when they are frozen.
+ */
+public class WarmupStatisticsImpl implements WarmupStatistics {
+
+  private final Collection<CacheStatisticsImpl> statistics;
+  private final long started;
+  private final long window;
+  private final AtomicLong loaded = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private volatile long loadStarted;
+  private volatile long loadTime;
+  private volatile long baseHits;
+  private volatile long baseMisses;
+  private volatile long windowHits = -1;
+  private volatile long windowMisses = -1;
+
+  /**
+   * @param statistics
+   *          a live view of the statistics of every cache.
+   * @param window
+   *          the window after start to count hits over, in ms.
+   */
+  public WarmupStatisticsImpl(Collection<CacheStatisticsImpl> statistics, long window) {
+    this.statistics = statistics;
+    this.window = window;
+    this.started = System.currentTimeMillis();
+    this.loadStarted = started;
+    this.loadTime = 0;
+    baseHits = sum(true);
+    baseMisses = sum(false);
+  }
+
+  /**
+   * The snapshot has started to load.
+   */
+  public void loadStarted() {
+    loadStarted = System.currentTimeMillis();
+    loadTime = -1;
+  }
+
+  /**
+   * An entry was reloaded.
+   */
+  public void loaded() {
+    loaded.incrementAndGet();
+  }
+
+  /**
+   * An entry was skipped.
+   */
+  public void skipped() {
+    skipped.incrementAndGet();
+  }
+
+  /**
+   * The snapshot has been loaded, or there was none.
+   */
+  public void loadFinished() {
+    loadTime = System.currentTimeMillis() - loadStarted;
+  }
+
+  /**
+   * Freeze the window counts, if the window has passed.
+   *
+   * @return true if the window is closed.
+   */
+  public boolean closeWindow() {
+    if (windowHits < 0 && System.currentTimeMillis() - started >= window) {
+      windowMisses = sum(false) - baseMisses;
+      windowHits = sum(true) - baseHits;
+    }
+    return windowHits >= 0;
+  }
+
+  /**
+   * @param hits
+   * @return the total hits or misses of every cache.
+   */
+  private long sum(boolean hits) {
+    long total = 0;
+    for (CacheStatisticsImpl s : statistics) {
+      total += hits ? s.getHits() : s.getMisses();
+    }
+    return total;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.WarmupStatistics#isSnapshotLoaded()
+   */
+  public boolean isSnapshotLoaded() {
+    return loadTime >= 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.WarmupStatistics#getSnapshotLoadTime()
+   */
+  public long getSnapshotLoadTime() {
+    long t = loadTime;
+    return t >= 0 ? t : System.currentTimeMillis() - loadStarted;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.WarmupStatistics#getEntriesLoaded()
+   */
+  public long getEntriesLoaded() {
+    return loaded.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.WarmupStatistics#getEntriesSkipped()
+   */
+  public long getEntriesSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.WarmupStatistics#getWindow()
+   */
+  public long getWindow() {
+    return window;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.WarmupStatistics#getWindowHits()
+   */
+  public long getWindowHits() {
+    return closeWindow() ? windowHits : sum(true) - baseHits;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.WarmupStatistics#getWindowMisses()
+   */
+  public long getWindowMisses() {
+    return closeWindow() ? windowMisses : sum(false) - baseMisses;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.WarmupStatistics#getWindowHitRatio()
+   */
+  public double getWindowHitRatio() {
+    long hits = getWindowHits();
+    long total = hits + getWindowMisses();
+    return total == 0 ? 0.0 : (double) hits / (double) total;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.cluster;
+
+/**
+ * A transport that carries small opaque frames between the cache managers of the nodes
+ * in a cluster. Delivery is best effort, a frame sent by a node is never delivered back
+ * to the node that sent it.
+ */
+public interface ClusterTransport {
+
+  /**
+   * Start the transport, delivering frames from other nodes to the listener.
+   *
+   * @param listener
+   *          the listener that will receive frames.
+   */
+  void start(ClusterMessageListener listener);
+
+  /**
+   * Send a frame to all other nodes in the cluster.
+   *
+   * @param frame
+   *          the frame to send.
+   */
+  void send(byte[] frame);
+
+  /**
+   * Stop the transport, no more frames will be delivered or sent.
+   */
+  void stop();
+
+  /**
+   * @return the id of this node in the cluster.
+   */
+  long getNodeId();
+
+}
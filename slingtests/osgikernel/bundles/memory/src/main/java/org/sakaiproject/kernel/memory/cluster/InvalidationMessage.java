@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An invalidation of one key, a subtree of keys or a whole cache on the other nodes of the
+ * cluster. The encoded form is a frame type byte, an operation byte, the cache name and
+ * the key, typically a few tens of bytes.
+ */
+public class InvalidationMessage {
+
+  /**
+   * The frame type for invalidation messages.
+   */
+  public static final byte FRAME_TYPE = 1;
+
+  /**
+   * The operation being propagated.
+   */
+  public static enum Operation {
+    /**
+     * A single key has been changed or removed.
+     */
+    REMOVE,
+    /**
+     * A key and all its child keys have been changed or removed.
+     */
+    REMOVE_CHILDREN,
+    /**
+     * The whole cache has been cleared.
+     */
+    CLEAR;
+  }
+
+  private final String cacheName;
+  private final Operation operation;
+  private final String key;
+
+  /**
+   * @param cacheName
+   *          the name of the cache.
+   * @param operation
+   *          the operation.
+   * @param key
+   *          the key, null for {@link Operation#CLEAR}.
+   */
+  public InvalidationMessage(String cacheName, Operation operation, String key) {
+    this.cacheName = cacheName;
+    this.operation = operation;
+    this.key = key;
+  }
+
+  /**
+   * @return the cacheName
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the operation
+   */
+  public Operation getOperation() {
+    return operation;
+  }
+
+  /**
+   * @return the key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the message encoded as a frame.
+   */
+  public byte[] encode() {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(32 + cacheName.length()
+          + (key == null ? 0 : key.length()));
+      DataOutputStream out = new DataOutputStream(baos);
+      out.writeByte(FRAME_TYPE);
+      out.writeByte(operation.ordinal());
+      out.writeUTF(cacheName);
+      out.writeBoolean(key != null);
+      if (key != null) {
+        out.writeUTF(key);
+      }
+      out.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      // cant happen with a byte array.
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param frame
+   *          a frame of type {@link #FRAME_TYPE}
+   * @return the decoded message
+   * @throws IOException
+   *           if the frame is not an invalidation message.
+   */
+  public static InvalidationMessage decode(byte[] frame) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+    if (in.readByte() != FRAME_TYPE) {
+      throw new IOException("Not an invalidation frame");
+    }
+    int op = in.readByte();
+    Operation[] operations = Operation.values();
+    if (op < 0 || op >= operations.length) {
+      throw new IOException("Unknown invalidation operation " + op);
+    }
+    String cacheName = in.readUTF();
+    String key = null;
+    if (in.readBoolean()) {
+      key = in.readUTF();
+    }
+    return new InvalidationMessage(cacheName, operations[op], key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return operation + " " + cacheName + " " + key;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.cluster;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in JVM transport, all transports created with the same group name form a cluster.
+ * Frames are delivered synchronously on the sending thread, which makes this transport
+ * suitable for running several cache managers in one JVM for testing.
+ */
+public class LoopbackClusterTransport implements ClusterTransport {
+
+  private static final Map<String, List<LoopbackClusterTransport>> GROUPS = new HashMap<String, List<LoopbackClusterTransport>>();
+  private static final Random RANDOM = new Random();
+
+  private final String group;
+  private final long nodeId;
+  private volatile ClusterMessageListener listener;
+
+  /**
+   * Create a transport that is the only member of its own cluster.
+   */
+  public LoopbackClusterTransport() {
+    this(null);
+  }
+
+  /**
+   * @param group
+   *          the name of the group to join, null to create a private group.
+   */
+  public LoopbackClusterTransport(String group) {
+    synchronized (RANDOM) {
+      this.nodeId = RANDOM.nextLong();
+    }
+    if (group == null) {
+      this.group = "private-" + nodeId;
+    } else {
+      this.group = group;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.cluster.ClusterTransport#start(org.sakaiproject.kernel.memory.cluster.ClusterMessageListener)
+   */
+  public void start(ClusterMessageListener listener) {
+    this.listener = listener;
+    synchronized (GROUPS) {
+      List<LoopbackClusterTransport> members = GROUPS.get(group);
+      if (members == null) {
+        members = new CopyOnWriteArrayList<LoopbackClusterTransport>();
+        GROUPS.put(group, members);
+      }
+      members.add(this);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.cluster.ClusterTransport#send(byte[])
+   */
+  public void send(byte[] frame) {
+    List<LoopbackClusterTransport> members;
+    synchronized (GROUPS) {
+      members = GROUPS.get(group);
+    }
+    if (members == null) {
+      return;
+    }
+    for (LoopbackClusterTransport member : members) {
+      ClusterMessageListener l = member.listener;
+      if (member != this && l != null) {
+        byte[] copy = new byte[frame.length];
+        System.arraycopy(frame, 0, copy, 0, frame.length);
+        l.onMessage(nodeId, copy);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.cluster.ClusterTransport#stop()
+   */
+  public void stop() {
+    synchronized (GROUPS) {
+      List<LoopbackClusterTransport> members = GROUPS.get(group);
+      if (members != null) {
+        members.remove(this);
+        if (members.isEmpty()) {
+          GROUPS.remove(group);
+        }
+      }
+    }
+    listener = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.cluster.ClusterTransport#getNodeId()
+   */
+  public long getNodeId() {
+    return nodeId;
+  }
+
+}
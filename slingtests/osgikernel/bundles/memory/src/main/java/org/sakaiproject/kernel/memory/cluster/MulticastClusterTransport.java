@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A transport that sends frames as UDP multicast datagrams. Every node in the cluster
+ * joins the same group address and port. Frames that arrive from this node are
+ * discarded. There is no retransmission, a lost frame is a lost invalidation, so caches
+ * using this transport should still have a TTL.
+ * <p>
+ * Anyone on the network can send to the group, so each datagram carries an HMAC of its
+ * contents keyed with a secret shared by the nodes of the cluster, and datagrams without
+ * a valid HMAC are dropped before they are looked at.
+ * </p>
+ */
+public class MulticastClusterTransport implements ClusterTransport, Runnable {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(MulticastClusterTransport.class);
+  /**
+   * Marks a datagram as one of ours.
+   */
+  private static final int MAGIC = 0x5AC4;
+  /**
+   * The largest datagram we will send or receive.
+   */
+  private static final int MAX_DATAGRAM = 65000;
+  private static final String HMAC = "HmacSHA256";
+  /**
+   * The bytes of the HMAC at the end of each datagram.
+   */
+  private static final int HMAC_LENGTH = 32;
+  /**
+   * The magic short, the node id and the frame length.
+   */
+  private static final int HEADER_LENGTH = 14;
+
+  private final InetAddress group;
+  private final int port;
+  private final int timeToLive;
+  private final long nodeId;
+  private final SecretKeySpec key;
+  private volatile MulticastSocket socket;
+  private Thread receiver;
+  private volatile boolean running;
+  private volatile ClusterMessageListener listener;
+
+  /**
+   * @param groupAddress
+   *          the multicast group address, eg 230.0.0.1
+   * @param port
+   *          the port for the group.
+   * @param timeToLive
+   *          the multicast ttl, 1 keeps traffic on the local subnet.
+   * @param secret
+   *          the secret shared by the nodes of the cluster.
+   * @throws IOException
+   *           if the group address cannot be resolved.
+   */
+  public MulticastClusterTransport(String groupAddress, int port, int timeToLive,
+      byte[] secret) throws IOException {
+    if (secret == null || secret.length == 0) {
+      throw new IllegalArgumentException("A cluster secret is required");
+    }
+    this.key = new SecretKeySpec(secret, HMAC);
+    this.group = InetAddress.getByName(groupAddress);
+    this.port = port;
+    this.timeToLive = timeToLive;
+    this.nodeId = new SecureRandom().nextLong();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.cluster.ClusterTransport#start(org.sakaiproject.kernel.memory.cluster.ClusterMessageListener)
+   */
+  public synchronized void start(ClusterMessageListener listener) {
+    this.listener = listener;
+    try {
+      socket = new MulticastSocket(port);
+      socket.setTimeToLive(timeToLive);
+      socket.joinGroup(group);
+    } catch (IOException e) {
+      LOGGER.error("Failed to join cluster group " + group + ":" + port
+          + ", cluster messages will not be sent or received ", e);
+      socket = null;
+      return;
+    }
+    running = true;
+    receiver = new Thread(this, "Cache Cluster Receiver " + group + ":" + port);
+    receiver.setDaemon(true);
+    receiver.start();
+    LOGGER.info("Joined cache cluster group {}:{} ", group, port);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.cluster.ClusterTransport#send(byte[])
+   */
+  public void send(byte[] frame) {
+    MulticastSocket s = socket;
+    if (s == null || !running) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(frame.length
+          + HEADER_LENGTH + HMAC_LENGTH);
+      DataOutputStream out = new DataOutputStream(baos);
+      out.writeShort(MAGIC);
+      out.writeLong(nodeId);
+      out.writeInt(frame.length);
+      out.write(frame);
+      out.flush();
+      byte[] signed = baos.toByteArray();
+      out.write(hmac(newMac(), signed, 0, signed.length));
+      out.flush();
+      byte[] datagram = baos.toByteArray();
+      if (datagram.length > MAX_DATAGRAM) {
+        LOGGER.warn("Cluster frame of {} bytes is too large to send, dropped ",
+            datagram.length);
+        return;
+      }
+      s.send(new DatagramPacket(datagram, datagram.length, group, port));
+    } catch (IOException e) {
+      LOGGER.warn("Failed to send cluster frame " + e.getMessage());
+    }
+  }
+
+  /**
+   * Receive loop.
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    byte[] buffer = new byte[MAX_DATAGRAM];
+    Mac mac;
+    try {
+      mac = newMac();
+    } catch (IOException e) {
+      LOGGER.error("Unable to check cluster frames, none will be received ", e);
+      return;
+    }
+    while (running) {
+      MulticastSocket s = socket;
+      if (s == null) {
+        break;
+      }
+      try {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        s.receive(packet);
+        int signedLength = packet.getLength() - HMAC_LENGTH;
+        if (signedLength < HEADER_LENGTH
+            || !MessageDigest.isEqual(hmac(mac, packet.getData(), packet.getOffset(),
+                signedLength), copy(packet.getData(), packet.getOffset() + signedLength,
+                HMAC_LENGTH))) {
+          LOGGER.debug("Cluster datagram from {} is not signed with the cluster secret, "
+              + "dropped ", packet.getAddress());
+          continue;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet
+            .getData(), packet.getOffset(), packet.getLength()));
+        if (in.readShort() != (short) MAGIC) {
+          continue;
+        }
+        long senderId = in.readLong();
+        if (senderId == nodeId) {
+          continue;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > signedLength - HEADER_LENGTH) {
+          LOGGER.warn("Cluster frame from {} has a bad length {}, dropped ", senderId,
+              length);
+          continue;
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        ClusterMessageListener l = listener;
+        if (l != null) {
+          l.onMessage(senderId, frame);
+        }
+      } catch (IOException e) {
+        if (running) {
+          LOGGER.warn("Failed to receive cluster frame " + e.getMessage());
+        }
+      } catch (RuntimeException e) {
+        LOGGER.error("Failed to process cluster frame ", e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.cluster.ClusterTransport#stop()
+   */
+  public synchronized void stop() {
+    running = false;
+    listener = null;
+    if (socket != null) {
+      try {
+        socket.leaveGroup(group);
+      } catch (IOException e) {
+        LOGGER.debug("Failed to leave group " + e.getMessage());
+      }
+      socket.close();
+      socket = null;
+    }
+    receiver = null;
+  }
+
+  /**
+   * @return a new HMAC keyed with the cluster secret, a Mac is not thread safe.
+   * @throws IOException
+   */
+  private Mac newMac() throws IOException {
+    try {
+      Mac mac = Mac.getInstance(HMAC);
+      mac.init(key);
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to create " + HMAC + " " + e.getMessage());
+    }
+  }
+
+  private static byte[] hmac(Mac mac, byte[] data, int offset, int length) {
+    mac.reset();
+    mac.update(data, offset, length);
+    return mac.doFinal();
+  }
+
+  private static byte[] copy(byte[] data, int offset, int length) {
+    byte[] b = new byte[length];
+    System.arraycopy(data, offset, b, 0, length);
+    return b;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.cluster.ClusterTransport#getNodeId()
+   */
+  public long getNodeId() {
+    return nodeId;
+  }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of changes to one replicated cache. Each change carries the version of the
+ * entry so that receivers can resolve conflicting writes, a change without a value is a
+ * removal.
+ */
+public class ReplicationMessage {
+
+  /**
+   * The frame type for replication messages.
+   */
+  public static final byte FRAME_TYPE = 2;
+  /**
+   * The fewest bytes a delta takes in a frame, an empty key, the version, the node id and
+   * the value length.
+   */
+  private static final int MIN_DELTA_SIZE = 22;
+
+  /**
+   * One versioned change.
+   */
+  public static class Delta {
+    private final String key;
+    private final long version;
+    private final long nodeId;
+    private final byte[] value;
+
+    /**
+     * @param key
+     *          the key that changed.
+     * @param version
+     *          the version of the change.
+     * @param nodeId
+     *          the node that made the change, used to order changes with the same
+     *          version.
+     * @param value
+     *          the serialized value, null for a removal.
+     */
+    public Delta(String key, long version, long nodeId, byte[] value) {
+      this.key = key;
+      this.version = version;
+      this.nodeId = nodeId;
+      this.value = value;
+    }
+
+    /**
+     * @return the key
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return the version
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    /**
+     * @return the nodeId
+     */
+    public long getNodeId() {
+      return nodeId;
+    }
+
+    /**
+     * @return the serialized value, or null if the key was removed.
+     */
+    public byte[] getValue() {
+      return value;
+    }
+
+    /**
+     * @return the number of bytes this delta will take in a frame, approximately.
+     */
+    int size() {
+      return key.length() * 3 + 23 + (value == null ? 0 : value.length);
+    }
+  }
+
+  private final String cacheName;
+  private final List<Delta> deltas;
+
+  /**
+   * @param cacheName
+   * @param deltas
+   */
+  public ReplicationMessage(String cacheName, List<Delta> deltas) {
+    this.cacheName = cacheName;
+    this.deltas = deltas;
+  }
+
+  /**
+   * @return the cacheName
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the deltas
+   */
+  public List<Delta> getDeltas() {
+    return deltas;
+  }
+
+  /**
+   * @param cacheName
+   *          the name of the cache.
+   * @param key
+   *          the key of a change.
+   * @param valueLength
+   *          the length of the serialized value.
+   * @param maxFrameSize
+   *          the maximum frame size.
+   * @return true if the change fits in a frame of its own.
+   */
+  public static boolean fits(String cacheName, String key, int valueLength,
+      int maxFrameSize) {
+    int size = cacheName.length() * 3 + 7 + new Delta(key, 0, 0, null).size();
+    return size + valueLength <= maxFrameSize;
+  }
+
+  /**
+   * Encode a batch of deltas into as many frames as are needed to keep each frame under
+   * the maximum size. A single delta larger than the maximum is sent in a frame of its
+   * own, which the transport may drop, so callers should check each change
+   * {@link #fits(String, String, int, int)} first.
+   *
+   * @param cacheName
+   *          the name of the cache.
+   * @param deltas
+   *          the deltas to send.
+   * @param maxFrameSize
+   *          the target maximum frame size.
+   * @return the frames.
+   */
+  public static List<byte[]> encode(String cacheName, List<Delta> deltas, int maxFrameSize) {
+    List<byte[]> frames = new ArrayList<byte[]>();
+    int start = 0;
+    while (start < deltas.size()) {
+      int size = cacheName.length() * 3 + 7;
+      int end = start;
+      while (end < deltas.size()
+          && (end == start || size + deltas.get(end).size() <= maxFrameSize)) {
+        size += deltas.get(end).size();
+        end++;
+      }
+      frames.add(encodeFrame(cacheName, deltas.subList(start, end)));
+      start = end;
+    }
+    return frames;
+  }
+
+  /**
+   * @param cacheName
+   * @param deltas
+   * @return
+   */
+  private static byte[] encodeFrame(String cacheName, List<Delta> deltas) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+      DataOutputStream out = new DataOutputStream(baos);
+      out.writeByte(FRAME_TYPE);
+      out.writeUTF(cacheName);
+      out.writeInt(deltas.size());
+      for (Delta d : deltas) {
+        out.writeUTF(d.key);
+        out.writeLong(d.version);
+        out.writeLong(d.nodeId);
+        if (d.value == null) {
+          out.writeInt(-1);
+        } else {
+          out.writeInt(d.value.length);
+          out.write(d.value);
+        }
+      }
+      out.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      // cant happen with a byte array.
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param frame
+   *          a frame of type {@link #FRAME_TYPE}
+   * @return the decoded message.
+   * @throws IOException
+   *           if the frame is not a replication message, or the counts in it do not fit
+   *           in the frame.
+   */
+  public static ReplicationMessage decode(byte[] frame) throws IOException {
+    ByteArrayInputStream bytes = new ByteArrayInputStream(frame);
+    DataInputStream in = new DataInputStream(bytes);
+    if (in.readByte() != FRAME_TYPE) {
+      throw new IOException("Not a replication frame");
+    }
+    String cacheName = in.readUTF();
+    int n = in.readInt();
+    // counts come from the network, check them before allocating anything.
+    if (n < 0 || n > bytes.available() / MIN_DELTA_SIZE) {
+      throw new IOException("Bad delta count " + n);
+    }
+    List<Delta> deltas = new ArrayList<Delta>(n);
+    for (int i = 0; i < n; i++) {
+      String key = in.readUTF();
+      long version = in.readLong();
+      long nodeId = in.readLong();
+      int len = in.readInt();
+      byte[] value = null;
+      if (len > bytes.available()) {
+        throw new IOException("Bad value length " + len);
+      }
+      if (len >= 0) {
+        value = new byte[len];
+        in.readFully(value);
+      }
+      deltas.add(new Delta(key, version, nodeId, value));
+    }
+    return new ReplicationMessage(cacheName, deltas);
+  }
+}
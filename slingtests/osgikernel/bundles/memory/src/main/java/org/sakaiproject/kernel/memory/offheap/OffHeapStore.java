@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.offheap;
+
+import org.sakaiproject.kernel.memory.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A store of serialized values held in slabs outside the heap. Values that no longer fit
+ * in the heap cache are demoted here and promoted back on their next read, so that large,
+ * long lived caches do not fill the old generation. When the byte budget is used up the
+ * least recently used entry of the same size class is dropped to make room.
+ */
+public class OffHeapStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapStore.class);
+
+  /**
+   * Told about entries that leave the store other than by being taken or removed.
+   */
+  public interface EvictionListener {
+    /**
+     * @param key
+     *          the key of the entry that was dropped.
+     */
+    void evicted(String key);
+  }
+
+  /**
+   * A value taken out of the store.
+   */
+  public static final class Entry {
+    private final Object value;
+    private final long expires;
+
+    Entry(Object value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+
+    /**
+     * @return the value
+     */
+    public Object getValue() {
+      return value;
+    }
+
+    /**
+     * @return when the value expires, in ms since the epoch, 0 if it never expires.
+     */
+    public long getExpires() {
+      return expires;
+    }
+  }
+
+  /**
+   * Where one value lives.
+   */
+  private static final class Slot {
+    private final int sizeClass;
+    private final int slot;
+    private final long expires;
+
+    Slot(int sizeClass, int slot, long expires) {
+      this.sizeClass = sizeClass;
+      this.slot = slot;
+      this.expires = expires;
+    }
+  }
+
+  private final SlabAllocator allocator;
+  private final Serializer serializer;
+  private final EvictionListener evictionListener;
+  private final Map<String, Slot> entries = new HashMap<String, Slot>();
+  /**
+   * The entries of each size class, oldest first. Entries are only read by being taken
+   * out, so the order they were demoted in is the order they were last used in.
+   */
+  private final List<LinkedHashMap<String, Slot>> lru = new ArrayList<LinkedHashMap<String, Slot>>(
+      SlabAllocator.CLASSES);
+  private long usedBytes;
+
+  /**
+   * @param budget
+   *          the most bytes of slabs to allocate.
+   * @param file
+   *          a file to map the slabs from, null to use direct buffers.
+   * @param serializer
+   *          converts values to and from bytes.
+   * @param evictionListener
+   *          told about entries dropped to make room or found to have expired.
+   * @throws IOException
+   *           if the file cannot be mapped.
+   */
+  public OffHeapStore(long budget, File file, Serializer serializer,
+      EvictionListener evictionListener) throws IOException {
+    this.allocator = new SlabAllocator(budget, file);
+    this.serializer = serializer;
+    this.evictionListener = evictionListener;
+    for (int i = 0; i < SlabAllocator.CLASSES; i++) {
+      lru.add(new LinkedHashMap<String, Slot>());
+    }
+  }
+
+  /**
+   * Store a value, replacing any value already held for the key.
+   *
+   * @param key
+   * @param value
+   * @param expires
+   *          when the value expires, in ms since the epoch, 0 if it never expires.
+   * @return true if the value was stored, false if it could not be serialized, is too
+   *         large or there was no room for it.
+   */
+  public boolean put(String key, Object value, long expires) {
+    byte[] data;
+    try {
+      data = serializer.serialize(value);
+    } catch (IOException e) {
+      LOGGER.debug("Not storing {} off heap: {}", key, e.getMessage());
+      return false;
+    }
+    List<String> evicted = new ArrayList<String>();
+    boolean stored = false;
+    synchronized (this) {
+      release(key);
+      int sizeClass = allocator.sizeClass(data.length);
+      if (sizeClass >= 0) {
+        int slot = allocate(sizeClass, evicted);
+        if (slot >= 0) {
+          allocator.write(sizeClass, slot, data);
+          Slot s = new Slot(sizeClass, slot, expires);
+          entries.put(key, s);
+          lru.get(sizeClass).put(key, s);
+          usedBytes += allocator.slotSize(sizeClass);
+          stored = true;
+        }
+      }
+    }
+    notifyEvicted(evicted);
+    return stored;
+  }
+
+  /**
+   * Remove a value from the store and return it, so that it can be moved back into the
+   * heap.
+   *
+   * @param key
+   * @return the value, or null if there is none or it has expired.
+   */
+  public Entry take(String key) {
+    byte[] data;
+    long expires;
+    synchronized (this) {
+      Slot s = entries.get(key);
+      if (s == null) {
+        return null;
+      }
+      expires = s.expires;
+      data = (expires > 0 && expires < System.currentTimeMillis()) ? null : allocator
+          .read(s.sizeClass, s.slot);
+      release(key);
+    }
+    if (data != null) {
+      try {
+        return new Entry(serializer.deserialize(data), expires);
+      } catch (IOException e) {
+        LOGGER.warn("Failed to read {} from off heap store: {}", key, e.getMessage());
+      } catch (ClassNotFoundException e) {
+        LOGGER.warn("Failed to read {} from off heap store: {}", key, e.getMessage());
+      }
+    }
+    evictionListener.evicted(key);
+    return null;
+  }
+
+  /**
+   * @param key
+   * @return true if there was a value for the key.
+   */
+  public synchronized boolean remove(String key) {
+    return release(key);
+  }
+
+  /**
+   * @param key
+   * @return true if the store holds a value for the key, expired or not.
+   */
+  public synchronized boolean containsKey(String key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * Drop all the values, keeping the slabs for reuse.
+   */
+  public synchronized void clear() {
+    for (String key : new ArrayList<String>(entries.keySet())) {
+      release(key);
+    }
+  }
+
+  /**
+   * Drop all the values and release the slabs.
+   */
+  public synchronized void dispose() {
+    entries.clear();
+    for (LinkedHashMap<String, Slot> l : lru) {
+      l.clear();
+    }
+    usedBytes = 0;
+    allocator.dispose();
+  }
+
+  /**
+   * @param budget
+   *          the most bytes of slabs to allocate from now on.
+   */
+  public synchronized void setBudget(long budget) {
+    allocator.setBudget(budget);
+  }
+
+  /**
+   * @return the number of values held.
+   */
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * @return the bytes of slots in use.
+   */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * @return the bytes of slabs allocated.
+   */
+  public synchronized long getAllocatedBytes() {
+    return allocator.getAllocatedBytes();
+  }
+
+  /**
+   * Find a slot in a size class, dropping the least recently used entry of the class if
+   * there is no room for another slab.
+   *
+   * @param sizeClass
+   * @param evicted
+   *          collects the keys of dropped entries.
+   * @return the slot or -1 if none could be found.
+   */
+  private int allocate(int sizeClass, List<String> evicted) {
+    try {
+      int slot = allocator.allocate(sizeClass);
+      if (slot < 0) {
+        Iterator<String> eldest = lru.get(sizeClass).keySet().iterator();
+        if (eldest.hasNext()) {
+          String key = eldest.next();
+          release(key);
+          evicted.add(key);
+          slot = allocator.allocate(sizeClass);
+        }
+      }
+      return slot;
+    } catch (IOException e) {
+      LOGGER.warn("Failed to allocate off heap slab: {}", e.getMessage());
+      return -1;
+    }
+  }
+
+  /**
+   * @param key
+   * @return true if the key had a slot.
+   */
+  private boolean release(String key) {
+    Slot s = entries.remove(key);
+    if (s == null) {
+      return false;
+    }
+    lru.get(s.sizeClass).remove(key);
+    allocator.free(s.sizeClass, s.slot);
+    usedBytes -= allocator.slotSize(s.sizeClass);
+    return true;
+  }
+
+  /**
+   * @param evicted
+   */
+  private void notifyEvicted(List<String> evicted) {
+    for (String key : evicted) {
+      evictionListener.evicted(key);
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.offheap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates fixed size slots from 1MB slabs of memory outside the heap. Slots come in
+ * power of 2 size classes from 64 bytes to 1MB, each slab belongs to one size class and is
+ * cut into slots of that size. Slabs are allocated as they are needed until the byte
+ * budget is used up, after which a size class can only reuse the slots freed in it. The
+ * slabs are either direct buffers or regions of a memory mapped file.
+ * <p>
+ * Not thread safe, the store that owns the allocator synchronizes access.
+ * </p>
+ */
+public class SlabAllocator {
+
+  /**
+   * The size of a slab, also the largest slot.
+   */
+  public static final int SLAB_SIZE = 1 << 20;
+  private static final int MIN_SHIFT = 6;
+  private static final int MAX_SHIFT = 20;
+  /**
+   * The number of size classes.
+   */
+  public static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+  /**
+   * Each slot starts with the length of the data in it.
+   */
+  private static final int HEADER = 4;
+
+  /**
+   * The slabs and free slots of one size class.
+   */
+  private static final class SizeClass {
+    private final int slotSize;
+    private final int slotsPerSlab;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private int[] free = new int[16];
+    private int freeCount;
+
+    SizeClass(int slotSize) {
+      this.slotSize = slotSize;
+      this.slotsPerSlab = SLAB_SIZE / slotSize;
+    }
+
+    void push(int slot) {
+      if (freeCount == free.length) {
+        int[] grown = new int[free.length * 2];
+        System.arraycopy(free, 0, grown, 0, free.length);
+        free = grown;
+      }
+      free[freeCount++] = slot;
+    }
+  }
+
+  private final SizeClass[] classes = new SizeClass[CLASSES];
+  private long budget;
+  private final File file;
+  private RandomAccessFile randomAccessFile;
+  private FileChannel channel;
+  private long allocatedBytes;
+  private int mappedSlabs;
+
+  /**
+   * @param budget
+   *          the most bytes to allocate, in whole slabs.
+   * @param file
+   *          the file to map slabs from, or null to use direct buffers.
+   * @throws IOException
+   *           if the file cannot be opened.
+   */
+  public SlabAllocator(long budget, File file) throws IOException {
+    this.budget = budget;
+    this.file = file;
+    for (int i = 0; i < CLASSES; i++) {
+      classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+    }
+    if (file != null) {
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      channel = randomAccessFile.getChannel();
+    }
+  }
+
+  /**
+   * @param length
+   *          the length of the data to store.
+   * @return the size class that will hold it, or -1 if it is larger than a slab.
+   */
+  public int sizeClass(int length) {
+    int needed = length + HEADER;
+    for (int i = 0; i < CLASSES; i++) {
+      if (classes[i].slotSize >= needed) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param sizeClass
+   * @return a free slot in the size class, or -1 if there are none and the budget does
+   *         not allow another slab.
+   * @throws IOException
+   *           if a mapped slab cannot be created.
+   */
+  public int allocate(int sizeClass) throws IOException {
+    SizeClass c = classes[sizeClass];
+    if (c.freeCount == 0) {
+      if (allocatedBytes + SLAB_SIZE > budget) {
+        return -1;
+      }
+      ByteBuffer slab = newSlab();
+      allocatedBytes += SLAB_SIZE;
+      int base = c.slabs.size() * c.slotsPerSlab;
+      c.slabs.add(slab);
+      // push in reverse so that slots are handed out in address order.
+      for (int i = c.slotsPerSlab - 1; i >= 0; i--) {
+        c.push(base + i);
+      }
+    }
+    return c.free[--c.freeCount];
+  }
+
+  /**
+   * Return a slot to its size class.
+   *
+   * @param sizeClass
+   * @param slot
+   */
+  public void free(int sizeClass, int slot) {
+    classes[sizeClass].push(slot);
+  }
+
+  /**
+   * @param sizeClass
+   * @param slot
+   * @param data
+   *          must fit the size class.
+   */
+  public void write(int sizeClass, int slot, byte[] data) {
+    ByteBuffer b = slotBuffer(sizeClass, slot);
+    b.putInt(data.length);
+    b.put(data);
+  }
+
+  /**
+   * @param sizeClass
+   * @param slot
+   * @return a copy of the data in the slot.
+   */
+  public byte[] read(int sizeClass, int slot) {
+    ByteBuffer b = slotBuffer(sizeClass, slot);
+    byte[] data = new byte[b.getInt()];
+    b.get(data);
+    return data;
+  }
+
+  /**
+   * Change the budget. A lower budget stops more slabs being allocated, but does not
+   * release slabs that are already allocated.
+   *
+   * @param budget
+   */
+  public void setBudget(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * @param sizeClass
+   * @return the size of the slots in the class.
+   */
+  public int slotSize(int sizeClass) {
+    return classes[sizeClass].slotSize;
+  }
+
+  /**
+   * @return the bytes allocated to slabs.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Drop all the slabs, and the mapped file if there is one.
+   */
+  public void dispose() {
+    for (int i = 0; i < CLASSES; i++) {
+      classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+    }
+    allocatedBytes = 0;
+    if (channel != null) {
+      try {
+        channel.close();
+        randomAccessFile.close();
+      } catch (IOException e) {
+        // nothing we can do.
+      }
+      channel = null;
+      file.delete();
+    }
+  }
+
+  /**
+   * @return a new slab.
+   * @throws IOException
+   */
+  private ByteBuffer newSlab() throws IOException {
+    if (channel == null) {
+      return ByteBuffer.allocateDirect(SLAB_SIZE);
+    }
+    ByteBuffer slab = channel.map(FileChannel.MapMode.READ_WRITE, (long) mappedSlabs
+        * SLAB_SIZE, SLAB_SIZE);
+    mappedSlabs++;
+    return slab;
+  }
+
+  /**
+   * @param sizeClass
+   * @param slot
+   * @return a buffer positioned at the start of the slot.
+   */
+  private ByteBuffer slotBuffer(int sizeClass, int slot) {
+    SizeClass c = classes[sizeClass];
+    ByteBuffer b = c.slabs.get(slot / c.slotsPerSlab).duplicate();
+    b.position((slot % c.slotsPerSlab) * c.slotSize);
+    return b;
+  }
+}
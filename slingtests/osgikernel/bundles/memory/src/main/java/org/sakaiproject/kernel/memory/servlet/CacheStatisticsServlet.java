@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.servlet;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+import org.sakaiproject.kernel.api.memory.WarmupStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the statistics of every cache, and of the warm up after start, as JSON, at
+ * /system/caches.json. Latency histograms are arrays where element i counts operations
+ * that took between 2^i and 2^(i+1) ns. Only the admin user may read them.
+ *
+ * @scr.component metatype="no" immediate="true"
+ * @scr.service interface="javax.servlet.Servlet"
+ * @scr.property name="service.description" value="Reports cache statistics as JSON"
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="sling.servlet.paths" value="/system/caches"
+ * @scr.property name="sling.servlet.methods" value="GET"
+ * @scr.reference name="CacheManagerService"
+ *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
+ */
+public class CacheStatisticsServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -4387693567342410823L;
+  private static final String ADMIN_USER = "admin";
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheStatisticsServlet.class);
+
+  private CacheManagerService cacheManagerService;
+
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!ADMIN_USER.equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Only the admin user may read cache statistics");
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONWriter write = new JSONWriter(response.getWriter());
+      write.object();
+      write.key("caches");
+      write.array();
+      for (CacheStatistics statistics : cacheManagerService.getStatistics()) {
+        write.object();
+        write.key("name").value(statistics.getName());
+        write.key("scope").value(statistics.getScope());
+        write.key("hits").value(statistics.getHits());
+        write.key("misses").value(statistics.getMisses());
+        write.key("hitRatio").value(statistics.getHitRatio());
+        write.key("puts").value(statistics.getPuts());
+        write.key("removes").value(statistics.getRemoves());
+        write.key("evictions").value(statistics.getEvictions());
+        write.key("size").value(statistics.getSize());
+        write.key("getLatency");
+        writeHistogram(write, statistics.getGetLatencyHistogram());
+        write.key("putLatency");
+        writeHistogram(write, statistics.getPutLatencyHistogram());
+        write.endObject();
+      }
+      write.endArray();
+      WarmupStatistics warmup = cacheManagerService.getWarmupStatistics();
+      write.key("warmup");
+      write.object();
+      write.key("snapshotLoaded").value(warmup.isSnapshotLoaded());
+      write.key("snapshotLoadTime").value(warmup.getSnapshotLoadTime());
+      write.key("entriesLoaded").value(warmup.getEntriesLoaded());
+      write.key("entriesSkipped").value(warmup.getEntriesSkipped());
+      write.key("window").value(warmup.getWindow());
+      write.key("windowHits").value(warmup.getWindowHits());
+      write.key("windowMisses").value(warmup.getWindowMisses());
+      write.key("windowHitRatio").value(warmup.getWindowHitRatio());
+      write.endObject();
+      write.endObject();
+    } catch (JSONException e) {
+      LOGGER.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
+  /**
+   * Write a histogram, leaving off the empty buckets at the slow end.
+   *
+   * @param write
+   * @param histogram
+   * @throws JSONException
+   */
+  private void writeHistogram(JSONWriter write, long[] histogram) throws JSONException {
+    int last = histogram.length - 1;
+    while (last >= 0 && histogram[last] == 0) {
+      last--;
+    }
+    write.array();
+    for (int i = 0; i <= last; i++) {
+      write.value(histogram[i]);
+    }
+    write.endArray();
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.snapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a snapshot written by {@link SnapshotWriter}.
+ */
+public class SnapshotReader {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotReader.class);
+  private static final String UTF8 = "UTF-8";
+
+  /**
+   * Receives the records of a snapshot.
+   */
+  public interface Handler {
+    /**
+     * @param key
+     * @param value
+     *          the serialized value.
+     * @param expires
+     *          when the entry expires, in ms since the epoch, 0 for never.
+     */
+    void record(String key, byte[] value, long expires);
+  }
+
+  /**
+   * @param directory
+   * @return the segment files in the directory, in the order they were written.
+   */
+  static File[] segments(File directory) {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SnapshotWriter.SUFFIX);
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+    Arrays.sort(files);
+    return files;
+  }
+
+  /**
+   * Read every record of the snapshot in a directory. Segments that were not sealed, or
+   * are damaged, are skipped.
+   *
+   * @param directory
+   * @param handler
+   * @return the number of records read.
+   */
+  public static long read(File directory, Handler handler) {
+    long records = 0;
+    for (File f : segments(directory)) {
+      try {
+        records += readSegment(f, handler);
+      } catch (IOException e) {
+        LOGGER.warn("Skipping snapshot segment " + f + ": " + e.getMessage());
+      } catch (BufferUnderflowException e) {
+        LOGGER.warn("Skipping the rest of damaged snapshot segment " + f);
+      } catch (NegativeArraySizeException e) {
+        LOGGER.warn("Skipping the rest of damaged snapshot segment " + f);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Delete a snapshot.
+   *
+   * @param directory
+   */
+  public static void delete(File directory) {
+    for (File f : segments(directory)) {
+      f.delete();
+    }
+    directory.delete();
+  }
+
+  /**
+   * @param f
+   * @param handler
+   * @return the number of records read.
+   * @throws IOException
+   */
+  private static long readSegment(File f, Handler handler) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(f, "r");
+    try {
+      if (file.length() < SnapshotWriter.HEADER) {
+        throw new IOException("Too short");
+      }
+      MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          file.length());
+      if (buffer.getInt() != SnapshotWriter.MAGIC) {
+        throw new IOException("Not a snapshot segment");
+      }
+      int end = buffer.getInt();
+      if (end < SnapshotWriter.HEADER || end > buffer.limit()) {
+        throw new IOException("Not sealed");
+      }
+      buffer.limit(end);
+      long records = 0;
+      while (buffer.hasRemaining()) {
+        byte[] k = new byte[buffer.getInt()];
+        buffer.get(k);
+        long expires = buffer.getLong();
+        byte[] value = new byte[buffer.getInt()];
+        buffer.get(value);
+        handler.record(new String(k, UTF8), value, expires);
+        records++;
+      }
+      return records;
+    } finally {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the entries of a cache to a snapshot, a directory of memory mapped segment
+ * files that records are appended to. Each segment starts with a magic number and the
+ * offset of the end of its records, which is only written when the segment is sealed, so
+ * a reader skips segments left part written by a crash.
+ * <p>
+ * A record is the length and UTF-8 bytes of the key, the expiry time in ms since the
+ * epoch (0 for never) and the length and bytes of the serialized value.
+ * </p>
+ */
+public class SnapshotWriter {
+
+  static final int MAGIC = 0x53414b43;
+  static final int HEADER = 8;
+  static final String SUFFIX = ".snap";
+  private static final String UTF8 = "UTF-8";
+
+  private final File directory;
+  private final int segmentSize;
+  private int segments;
+  private RandomAccessFile file;
+  private MappedByteBuffer buffer;
+  private long records;
+
+  /**
+   * @param directory
+   *          the snapshot directory, any snapshot already in it is deleted.
+   * @param segmentSize
+   *          the size of each segment, larger records get a segment of their own.
+   * @throws IOException
+   *           if the directory cannot be created.
+   */
+  public SnapshotWriter(File directory, int segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create snapshot directory " + directory);
+    }
+    for (File f : SnapshotReader.segments(directory)) {
+      f.delete();
+    }
+  }
+
+  /**
+   * Append a record.
+   *
+   * @param key
+   * @param value
+   *          the serialized value.
+   * @param expires
+   *          when the entry expires, in ms since the epoch, 0 for never.
+   * @throws IOException
+   */
+  public void write(String key, byte[] value, long expires) throws IOException {
+    byte[] k = key.getBytes(UTF8);
+    int size = 4 + k.length + 8 + 4 + value.length;
+    if (buffer == null || buffer.remaining() < size) {
+      seal();
+      open(Math.max(segmentSize, HEADER + size));
+    }
+    buffer.putInt(k.length);
+    buffer.put(k);
+    buffer.putLong(expires);
+    buffer.putInt(value.length);
+    buffer.put(value);
+    records++;
+  }
+
+  /**
+   * Seal the last segment.
+   *
+   * @return the number of records written.
+   * @throws IOException
+   */
+  public long close() throws IOException {
+    seal();
+    return records;
+  }
+
+  /**
+   * @param size
+   * @throws IOException
+   */
+  private void open(int size) throws IOException {
+    File f = new File(directory, "segment-" + String.format("%05d", segments++) + SUFFIX);
+    file = new RandomAccessFile(f, "rw");
+    buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.putInt(MAGIC);
+    buffer.putInt(0);
+  }
+
+  /**
+   * Record the end of the current segment and trim the file to it.
+   *
+   * @throws IOException
+   */
+  private void seal() throws IOException {
+    if (buffer == null) {
+      return;
+    }
+    int end = buffer.position();
+    buffer.putInt(4, end);
+    buffer.force();
+    buffer = null;
+    try {
+      file.setLength(end);
+    } catch (IOException e) {
+      // some platforms will not truncate a mapped file, the reader stops at the end.
+    }
+    file.close();
+    file = null;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import org.sakaiproject.kernel.memory.PathIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the old removeChildren, a scan of every key with startsWith, with the path
+ * index. Not a unit test, run it by hand with
+ * <code>java -cp target/classes:target/test-classes org.sakaiproject.kernel.osgi.memory.PathIndexBenchmark</code>
+ * with enough heap for a million keys, eg -Xmx1g.
+ */
+public class PathIndexBenchmark {
+
+  private static final int[] SIZES = new int[] { 10000, 100000, 1000000 };
+  private static final int WARMUP = 5;
+  private static final int ITERATIONS = 20;
+  /**
+   * Keys are /site/{n}/page/{m}, with this many pages per site, so a site subtree is
+   * this size.
+   */
+  private static final int SUBTREE = 100;
+
+  public static void main(String[] args) {
+    System.out.println("keys\tsubtree\tscan us/op\tindex us/op");
+    for (int size : SIZES) {
+      List<String> keys = new ArrayList<String>(size);
+      for (int i = 0; i < size; i++) {
+        keys.add("/site/" + (i / SUBTREE) + "/page/" + (i % SUBTREE));
+      }
+      PathIndex index = new PathIndex();
+      for (String k : keys) {
+        index.add(k);
+      }
+      int sites = size / SUBTREE;
+      long scan = 0;
+      long indexed = 0;
+      for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+        String site = "/site/" + (i * 7919 % sites);
+        long start = System.nanoTime();
+        int scanned = scan(keys, site);
+        long mid = System.nanoTime();
+        List<String> removed = index.removeChildren(site);
+        long end = System.nanoTime();
+        if (scanned != removed.size()) {
+          throw new IllegalStateException("Scan found " + scanned + " index found "
+              + removed.size());
+        }
+        // put the subtree back for the next iteration.
+        for (String k : removed) {
+          index.add(k);
+        }
+        if (i >= WARMUP) {
+          scan += mid - start;
+          indexed += end - mid;
+        }
+      }
+      System.out.println(size + "\t" + SUBTREE + "\t" + (scan / ITERATIONS / 1000) + "\t\t"
+          + (indexed / ITERATIONS / 1000));
+    }
+  }
+
+  /**
+   * The old algorithm, including the copy of the key list that ehcache getKeys makes.
+   */
+  private static int scan(List<String> keys, String key) {
+    String prefix = key + "/";
+    int n = 0;
+    for (String k : new ArrayList<String>(keys)) {
+      if (k.equals(key) || k.startsWith(prefix)) {
+        n++;
+      }
+    }
+    return n;
+  }
+}
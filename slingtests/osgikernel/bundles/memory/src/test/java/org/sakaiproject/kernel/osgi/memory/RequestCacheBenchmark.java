@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.CacheStatisticsImpl;
+import org.sakaiproject.kernel.memory.MapCacheImpl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the bytes allocated per request by request cache plumbing, comparing the old
+ * scheme, a new map of caches and a new cache per name for every request, with the
+ * pooled request context. Each simulated request looks up the request caches used by
+ * the session manager, the lock manager and the JCR service, stores a value in one and
+ * unbinds. Not a unit test, run it by hand with
+ * <code>java -cp target/classes:target/test-classes org.sakaiproject.kernel.osgi.memory.RequestCacheBenchmark</code>
+ * on a JVM that reports per thread allocation, eg HotSpot.
+ */
+public class RequestCacheBenchmark {
+
+  private static final String[] NAMES = new String[] { "sessionRequestCache",
+      "requestLocks", "jcrRequestCache" };
+  private static final int WARMUP = 100000;
+  private static final int REQUESTS = 1000000;
+  private static final Object VALUE = new Object();
+
+  public static void main(String[] args) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Method allocated;
+    try {
+      allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+          "getThreadAllocatedBytes", long.class);
+    } catch (ClassNotFoundException e) {
+      System.out.println("This JVM does not report allocated bytes per thread");
+      return;
+    } catch (NoSuchMethodException e) {
+      System.out.println("This JVM does not report allocated bytes per thread");
+      return;
+    }
+    long thread = Thread.currentThread().getId();
+
+    oldScheme(WARMUP);
+    long start = (Long) allocated.invoke(threads, thread);
+    oldScheme(REQUESTS);
+    long before = (Long) allocated.invoke(threads, thread) - start;
+
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    try {
+      pooled(cacheManagerService, WARMUP);
+      start = (Long) allocated.invoke(threads, thread);
+      pooled(cacheManagerService, REQUESTS);
+      long after = (Long) allocated.invoke(threads, thread) - start;
+      System.out.println("scheme\tbytes/request");
+      System.out.println("map\t" + (before / REQUESTS));
+      System.out.println("pooled\t" + (after / REQUESTS));
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
+
+  /**
+   * What getRequestCache and unbindRequest used to do, sharing statistics between the
+   * caches of a name as the manager does.
+   */
+  private static void oldScheme(int requests) {
+    ThreadLocal<Map<String, Cache<?>>> holder = new ThreadLocal<Map<String, Cache<?>>>();
+    Map<String, CacheStatisticsImpl> statistics = new HashMap<String, CacheStatisticsImpl>();
+    for (String name : NAMES) {
+      statistics.put(name, new CacheStatisticsImpl(name, "REQUEST"));
+    }
+    for (int i = 0; i < requests; i++) {
+      Map<String, Cache<?>> requestCacheMap = holder.get();
+      if (requestCacheMap == null) {
+        requestCacheMap = new HashMap<String, Cache<?>>();
+        holder.set(requestCacheMap);
+      }
+      for (String name : NAMES) {
+        @SuppressWarnings("unchecked")
+        Cache<Object> cache = (Cache<Object>) requestCacheMap.get(name);
+        if (cache == null) {
+          cache = new MapCacheImpl<Object>(statistics.get(name));
+          requestCacheMap.put(name, cache);
+        }
+        if (name == NAMES[0]) {
+          cache.put("session", VALUE);
+        }
+      }
+      for (Cache<?> cache : requestCacheMap.values()) {
+        cache.clear();
+      }
+      holder.remove();
+    }
+  }
+
+  private static void pooled(CacheManagerServiceImpl cacheManagerService, int requests) {
+    for (int i = 0; i < requests; i++) {
+      for (String name : NAMES) {
+        Cache<Object> cache = cacheManagerService.getCache(name, CacheScope.REQUEST);
+        if (name == NAMES[0]) {
+          cache.put("session", VALUE);
+        }
+      }
+      cacheManagerService.unbind(CacheScope.REQUEST);
+    }
+  }
+}
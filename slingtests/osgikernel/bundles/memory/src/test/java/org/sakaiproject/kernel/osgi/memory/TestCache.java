@@ -21,7 +21,9 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
@@ -30,6 +32,7 @@ import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.sakaiproject.kernel.api.memory.ThreadBound;
 import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.RequestCacheContext;
 
 import java.io.IOException;
 
@@ -107,4 +110,41 @@ public class TestCache {
     verify(testItem);
   }
 
+  @Test
+  public void testRequestUnbinding() {
+    ThreadBound testItem = createMock(ThreadBound.class);
+    testItem.unbind();
+    replay(testItem);
+    Cache<ThreadBound> requestCache = cacheManagerService.getCache("testRequestCache",
+        CacheScope.REQUEST);
+    requestCache.put("testItem", testItem);
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    verify(testItem);
+    Cache<ThreadBound> nextRequestCache = cacheManagerService.getCache(
+        "testRequestCache", CacheScope.REQUEST);
+    assertNull("Expected the request cache to be empty", nextRequestCache
+        .get("testItem"));
+    cacheManagerService.unbind(CacheScope.REQUEST);
+  }
+
+  @Test
+  public void testLargeRequestCacheIsDropped() {
+    Cache<String> small = cacheManagerService.getCache("smallRequestCache",
+        CacheScope.REQUEST);
+    Cache<String> large = cacheManagerService.getCache("largeRequestCache",
+        CacheScope.REQUEST);
+    small.put("a", "a");
+    for (int i = 0; i <= RequestCacheContext.MAX_RETAINED_ENTRIES; i++) {
+      large.put("k" + i, "v");
+    }
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    assertSame(small, cacheManagerService.getCache("smallRequestCache",
+        CacheScope.REQUEST));
+    Cache<String> next = cacheManagerService.getCache("largeRequestCache",
+        CacheScope.REQUEST);
+    assertNotSame(large, next);
+    assertNull(next.get("k0"));
+    cacheManagerService.unbind(CacheScope.REQUEST);
+  }
+
 }
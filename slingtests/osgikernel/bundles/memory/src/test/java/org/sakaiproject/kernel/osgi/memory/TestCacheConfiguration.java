@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.cm.ConfigurationException;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheConfigurationFactory;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.CacheSettings;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ */
+public class TestCacheConfiguration {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private CacheConfigurationFactory factory;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+    factory = new CacheConfigurationFactory(cacheManagerService);
+  }
+
+  @After
+  public void tearDown() {
+    cacheManagerService.stop();
+  }
+
+  private Hashtable<String, Object> properties(String name, int maxEntries, String policy) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(CacheSettings.NAME, name);
+    properties.put(CacheSettings.MAX_ENTRIES, maxEntries);
+    properties.put(CacheSettings.TIME_TO_LIVE, 0L);
+    properties.put(CacheSettings.TIME_TO_IDLE, 0L);
+    properties.put(CacheSettings.EVICTION_POLICY, policy);
+    return properties;
+  }
+
+  @Test
+  public void testSettingsApplyToNewAndExistingCaches() throws ConfigurationException {
+    factory.updated("pid1", properties("sized", 2, "LRU"));
+    Cache<String> cache = cacheManagerService.getCache("sized", CacheScope.INSTANCE);
+    cache.put("a", "a");
+    cache.put("b", "b");
+    cache.put("c", "c");
+    assertNull(cache.get("a"));
+    assertEquals("c", cache.get("c"));
+
+    // raise the limit while the cache is in use, the entries are kept.
+    factory.updated("pid1", properties("sized", 4, "LRU"));
+    assertEquals("b", cache.get("b"));
+    cache.put("d", "d");
+    cache.put("e", "e");
+    assertEquals("b", cache.get("b"));
+    assertEquals("c", cache.get("c"));
+
+    // lower it again, all but one entry go.
+    factory.updated("pid1", properties("sized", 1, "FIFO"));
+    assertEquals(1, count(cache, "b", "c", "d", "e"));
+
+    factory.deleted("pid1");
+    cache.put("f", "f");
+    assertEquals(1, count(cache, "b", "c", "d", "e"));
+    assertEquals("f", cache.get("f"));
+  }
+
+  private int count(Cache<String> cache, String... keys) {
+    int n = 0;
+    for (String key : keys) {
+      if (cache.containsKey(key)) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  @Test
+  public void testSettingsApplyToReplicatedCaches() throws Exception {
+    Cache<String> cache = cacheManagerService.getCache("shared",
+        CacheScope.CLUSTERREPLICATED);
+    factory.updated("pid6", properties("shared", 2, "LRU"));
+    for (int i = 0; i < 4; i++) {
+      cache.put("k" + i, "v");
+      Thread.sleep(2);
+    }
+    // the oldest are evicted when changes are next sent.
+    long start = System.currentTimeMillis();
+    while (cache.containsKey("k0") || cache.containsKey("k1")) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    assertTrue(cache.containsKey("k2"));
+    assertTrue(cache.containsKey("k3"));
+  }
+
+  @Test
+  public void testRemoveChildrenAfterReconfigure() throws ConfigurationException {
+    Cache<String> cache = cacheManagerService.getCache("paths",
+        CacheScope.CLUSTERINVALIDATED);
+    cache.put("/a/b", "ab");
+    cache.put("/a/b/c", "abc");
+    factory.updated("pid2", properties("paths", 100, "LFU"));
+    cache.removeChildren("/a/b");
+    assertNull(cache.get("/a/b"));
+    assertNull(cache.get("/a/b/c"));
+  }
+
+  @Test
+  public void testReconfigureWhileInUse() throws Exception {
+    final Cache<String> cache = cacheManagerService.getCache("busy", CacheScope.INSTANCE);
+    final Exception[] failure = new Exception[1];
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; !done.get(); i++) {
+            cache.put("k" + (i % 10), "v");
+            cache.get("k" + ((i + 5) % 10));
+          }
+        } catch (Exception e) {
+          failure[0] = e;
+        }
+      }
+    };
+    t.start();
+    for (int i = 0; i < 50; i++) {
+      factory.updated("pid4", properties("busy", 100 + i, i % 2 == 0 ? "LRU" : "LFU"));
+    }
+    done.set(true);
+    t.join();
+    assertNull(failure[0]);
+    cache.put("a", "a");
+    assertEquals("a", cache.get("a"));
+  }
+
+  @Test
+  public void testRemoveWhileReconfiguring() throws Exception {
+    final Cache<String> cache = cacheManagerService.getCache("removed", CacheScope.INSTANCE);
+    final int n = 2000;
+    for (int i = 0; i < n; i++) {
+      cache.put("k" + i, "v");
+    }
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n; i++) {
+          cache.remove("k" + i);
+        }
+      }
+    };
+    t.start();
+    for (int i = 0; t.isAlive(); i++) {
+      factory.updated("pid5", properties("removed", 10000 + i, "LRU"));
+    }
+    t.join();
+    // no removal made while the entries were moved comes back.
+    for (int i = 0; i < n; i++) {
+      assertFalse("k" + i, cache.containsKey("k" + i));
+    }
+  }
+
+  @Test
+  public void testPolicies() throws ConfigurationException {
+    assertEquals(MemoryStoreEvictionPolicy.LFU, CacheSettings.fromProperties(
+        properties("x", 1, "W-TinyLFU")).getEvictionPolicy());
+    try {
+      CacheSettings.fromProperties(properties("x", 1, "random"));
+      fail("Expected an unknown policy to be rejected");
+    } catch (ConfigurationException e) {
+      assertEquals(CacheSettings.EVICTION_POLICY, e.getProperty());
+    }
+    Hashtable<String, Object> noName = properties("x", 1, "LRU");
+    noName.remove(CacheSettings.NAME);
+    try {
+      factory.updated("pid3", noName);
+      fail("Expected a configuration without a name to be rejected");
+    } catch (ConfigurationException e) {
+      assertEquals(CacheSettings.NAME, e.getProperty());
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.WarmupStatistics;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.snapshot.SnapshotReader;
+import org.sakaiproject.kernel.memory.snapshot.SnapshotWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+public class TestCacheSnapshot {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("snapshot", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    delete(directory);
+  }
+
+  private void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File c : children) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+
+  @Test
+  public void testWarmRestart() throws IOException {
+    CacheManagerServiceImpl before = new CacheManagerServiceImpl();
+    before.setSnapshot(directory, new String[] { "warm", "profile:cache" });
+    Cache<String> warm = before.getCache("warm", CacheScope.INSTANCE);
+    warm.put("/a", "a");
+    warm.put("/a/b", "ab");
+    Cache<String> profile = before.getCache("profile:cache", CacheScope.INSTANCE);
+    profile.put("p", "profile");
+    Cache<String> cold = before.getCache("cold", CacheScope.INSTANCE);
+    cold.put("c", "cold");
+    before.stop();
+
+    CacheManagerServiceImpl after = new CacheManagerServiceImpl();
+    try {
+      after.setSnapshot(directory, new String[] { "*" });
+      after.loadSnapshot();
+      warm = after.getCache("warm", CacheScope.INSTANCE);
+      assertEquals("a", warm.get("/a"));
+      assertEquals("ab", warm.get("/a/b"));
+      warm.removeChildren("/a");
+      assertNull(warm.get("/a/b"));
+      assertEquals("profile", after.<String> getCache("profile:cache", CacheScope.INSTANCE)
+          .get("p"));
+      assertNull(after.getCache("cold", CacheScope.INSTANCE).get("c"));
+
+      WarmupStatistics warmup = after.getWarmupStatistics();
+      assertTrue(warmup.isSnapshotLoaded());
+      assertEquals(3, warmup.getEntriesLoaded());
+      assertEquals(0, warmup.getEntriesSkipped());
+      assertEquals(3, warmup.getWindowHits());
+      assertEquals(2, warmup.getWindowMisses());
+
+      // the snapshot is only loaded once.
+      after.loadSnapshot();
+      assertEquals(3, warmup.getEntriesLoaded());
+    } finally {
+      after.stop();
+    }
+  }
+
+  @Test
+  public void testPathBoundCachesNotReloaded() throws IOException {
+    CacheManagerServiceImpl before = new CacheManagerServiceImpl();
+    before.setSnapshot(directory, new String[] { "*" });
+    before.getCache("bound", CacheScope.INSTANCE).put("/a", "a");
+    before.bindSubtree("bound", CacheScope.INSTANCE, "/a");
+    before.getCache("unbound", CacheScope.INSTANCE).put("/a", "a");
+    before.stop();
+
+    CacheManagerServiceImpl after = new CacheManagerServiceImpl();
+    try {
+      after.setSnapshot(directory, new String[] { "*" });
+      after.loadSnapshot();
+      // the repository may have changed while the node was down.
+      assertNull(after.getCache("bound", CacheScope.INSTANCE).get("/a"));
+      assertEquals("a", after.getCache("unbound", CacheScope.INSTANCE).get("/a"));
+    } finally {
+      after.stop();
+    }
+  }
+
+  @Test
+  public void testSegmentsAndExpiry() throws IOException {
+    File cacheDirectory = new File(directory, "segments");
+    SnapshotWriter writer = new SnapshotWriter(cacheDirectory, 64);
+    byte[] big = new byte[200];
+    writer.write("small", new byte[] { 1 }, 0);
+    writer.write("big", big, 0);
+    writer.write("expired", new byte[] { 2 }, 1);
+    assertEquals(3, writer.close());
+    assertEquals(3, cacheDirectory.listFiles().length);
+
+    final List<String> keys = new ArrayList<String>();
+    long read = SnapshotReader.read(cacheDirectory, new SnapshotReader.Handler() {
+      public void record(String key, byte[] value, long expires) {
+        keys.add(key + ":" + value.length + ":" + expires);
+      }
+    });
+    assertEquals(3, read);
+    assertEquals("small:1:0", keys.get(0));
+    assertEquals("big:200:0", keys.get(1));
+    assertEquals("expired:1:1", keys.get(2));
+
+    SnapshotReader.delete(cacheDirectory);
+    assertFalse(cacheDirectory.exists());
+  }
+}
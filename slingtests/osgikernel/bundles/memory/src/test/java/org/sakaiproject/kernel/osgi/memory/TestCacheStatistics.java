@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.io.IOException;
+
+/**
+ *
+ */
+public class TestCacheStatistics {
+
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  @After
+  public void tearDown() {
+    cacheManagerService.stop();
+  }
+
+  private CacheStatistics find(String name, CacheScope scope) {
+    for (CacheStatistics statistics : cacheManagerService.getStatistics()) {
+      if (name.equals(statistics.getName()) && scope.name().equals(statistics.getScope())) {
+        return statistics;
+      }
+    }
+    return null;
+  }
+
+  private long total(long[] histogram) {
+    long total = 0;
+    for (long l : histogram) {
+      total += l;
+    }
+    return total;
+  }
+
+  @Test
+  public void testCounters() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("stats", scope);
+      cache.put("/a", "a");
+      cache.put("/a/b", "b");
+      cache.put("/a", "a2");
+      cache.get("/a");
+      cache.get("/c");
+      cache.remove("/a/b");
+      CacheStatistics statistics = find("stats", scope);
+      assertNotNull("No statistics for " + scope, statistics);
+      assertEquals(scope.name(), 1, statistics.getHits());
+      assertEquals(scope.name(), 1, statistics.getMisses());
+      assertEquals(scope.name(), 0.5, statistics.getHitRatio(), 0.001);
+      assertEquals(scope.name(), 3, statistics.getPuts());
+      assertEquals(scope.name(), 1, statistics.getRemoves());
+      assertEquals(scope.name(), 1, statistics.getSize());
+      assertEquals(scope.name(), 2, total(statistics.getGetLatencyHistogram()));
+      assertEquals(scope.name(), 3, total(statistics.getPutLatencyHistogram()));
+      cache.clear();
+      assertEquals(scope.name(), 0, statistics.getSize());
+    }
+  }
+
+  @Test
+  public void testRemoveMissingKey() {
+    // the heap caches and the map caches count the same.
+    for (CacheScope scope : new CacheScope[] { CacheScope.INSTANCE, CacheScope.THREAD }) {
+      Cache<String> cache = cacheManagerService.getCache("missing", scope);
+      cache.put("/a", "a");
+      cache.remove("/b");
+      cache.remove("/a");
+      cache.remove("/a");
+      CacheStatistics statistics = find("missing", scope);
+      assertEquals(scope.name(), 0, statistics.getSize());
+      assertEquals(scope.name(), 1, statistics.getRemoves());
+      cache.put("/c", "c");
+      cache.put("/c/d", "cd");
+      cache.put("/c/e", "ce");
+      cache.removeChildren("/c");
+      cache.removeChildren("/c");
+      assertEquals(scope.name(), 0, statistics.getSize());
+      assertEquals(scope.name(), 4, statistics.getRemoves());
+    }
+  }
+
+  @Test
+  public void testRequestCachesShareStatistics() throws InterruptedException {
+    Cache<String> cache = cacheManagerService.getCache("shared", CacheScope.REQUEST);
+    cache.put("a", "a");
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        Cache<String> other = cacheManagerService.getCache("shared", CacheScope.REQUEST);
+        other.put("a", "a");
+        other.put("b", "b");
+      }
+    };
+    t.start();
+    t.join();
+    CacheStatistics statistics = find("shared", CacheScope.REQUEST);
+    assertEquals(3, statistics.getPuts());
+    assertEquals(3, statistics.getSize());
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    assertEquals(2, statistics.getSize());
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.cluster.InvalidationMessage;
+import org.sakaiproject.kernel.memory.cluster.LoopbackClusterTransport;
+import org.sakaiproject.kernel.memory.cluster.InvalidationMessage.Operation;
+
+import java.io.IOException;
+
+/**
+ * Runs two cache managers in one JVM, joined by a loopback transport.
+ */
+public class TestClusterInvalidatedCache {
+
+  private CacheManagerServiceImpl nodeA;
+  private CacheManagerServiceImpl nodeB;
+
+  @Before
+  public void setUp() throws IOException {
+    nodeA = new CacheManagerServiceImpl(new LoopbackClusterTransport("TestCluster"));
+    nodeB = new CacheManagerServiceImpl(new LoopbackClusterTransport("TestCluster"));
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.stop();
+    nodeB.stop();
+  }
+
+  @Test
+  public void testPutInvalidatesOtherNodes() {
+    Cache<String> cacheA = nodeA.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cacheB = nodeB.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    cacheA.put("fish", "cat");
+    cacheB.put("fish", "dog");
+    assertNull("Expected remote put to invalidate the key", cacheA.get("fish"));
+    assertEquals("dog", cacheB.get("fish"));
+    cacheA.put("fish", "cat");
+    assertNull("Expected remote put to invalidate the key", cacheB.get("fish"));
+    assertEquals("cat", cacheA.get("fish"));
+  }
+
+  @Test
+  public void testRemoveChildrenAndClear() {
+    Cache<String> cacheA = nodeA.getCache("invalidated2", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cacheB = nodeB.getCache("invalidated2", CacheScope.CLUSTERINVALIDATED);
+    cacheA.put("/a/b", "ab");
+    cacheA.put("/a/b/c", "abc");
+    cacheA.put("/a/bc", "abc2");
+    cacheB.removeChildren("/a/b");
+    assertNull(cacheA.get("/a/b"));
+    assertNull(cacheA.get("/a/b/c"));
+    assertEquals("abc2", cacheA.get("/a/bc"));
+    cacheB.clear();
+    assertNull(cacheA.get("/a/bc"));
+  }
+
+  @Test
+  public void testMessageEncoding() throws IOException {
+    InvalidationMessage m = InvalidationMessage.decode(new InvalidationMessage("c",
+        Operation.REMOVE_CHILDREN, "/a/b").encode());
+    assertEquals("c", m.getCacheName());
+    assertEquals(Operation.REMOVE_CHILDREN, m.getOperation());
+    assertEquals("/a/b", m.getKey());
+    m = InvalidationMessage.decode(new InvalidationMessage("c", Operation.CLEAR, null)
+        .encode());
+    assertEquals(Operation.CLEAR, m.getOperation());
+    assertNull(m.getKey());
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.BulkLoader;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoaderException;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.Loader;
+import org.sakaiproject.kernel.memory.CacheImpl;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.MapCacheImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class TestLoadingCache {
+
+  private static final int THREADS = 16;
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  @After
+  public void tearDown() {
+    cacheManagerService.stop();
+  }
+
+  /**
+   * Loads "value:key", blocking until released so that all the threads miss together.
+   */
+  private static class SlowLoader implements Loader<String> {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    public String load(String key) throws Exception {
+      calls.incrementAndGet();
+      release.await(5, TimeUnit.SECONDS);
+      return "value:" + key;
+    }
+  }
+
+  @Test
+  public void testConcurrentMissesLoadOnce() throws InterruptedException {
+    for (CacheScope scope : new CacheScope[] { CacheScope.INSTANCE,
+        CacheScope.CLUSTERINVALIDATED, CacheScope.CLUSTERREPLICATED }) {
+      final Cache<String> cache = cacheManagerService.getCache("loading", scope);
+      final SlowLoader loader = new SlowLoader();
+      final List<String> results = new ArrayList<String>();
+      final CountDownLatch started = new CountDownLatch(THREADS);
+      Thread[] threads = new Thread[THREADS];
+      for (int i = 0; i < THREADS; i++) {
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            started.countDown();
+            String value = cache.get("key", loader);
+            synchronized (results) {
+              results.add(value);
+            }
+          }
+        };
+        threads[i].start();
+      }
+      started.await();
+      Thread.sleep(50);
+      loader.release.countDown();
+      for (Thread t : threads) {
+        t.join();
+      }
+      assertEquals(scope.name(), 1, loader.calls.get());
+      assertEquals(THREADS, results.size());
+      for (String value : results) {
+        assertEquals("value:key", value);
+      }
+      assertEquals("value:key", cache.get("key"));
+    }
+  }
+
+  @Test
+  public void testRemoveDuringLoad() throws InterruptedException {
+    for (CacheScope scope : new CacheScope[] { CacheScope.INSTANCE,
+        CacheScope.CLUSTERINVALIDATED, CacheScope.CLUSTERREPLICATED }) {
+      final Cache<String> cache = cacheManagerService.getCache("invalidated", scope);
+      final SlowLoader loader = new SlowLoader();
+      Thread[] threads = new Thread[2];
+      for (int i = 0; i < threads.length; i++) {
+        final String key = i == 0 ? "/a/key" : "/a/b/key";
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            cache.get(key, loader);
+          }
+        };
+        threads[i].start();
+      }
+      while (loader.calls.get() < threads.length) {
+        Thread.sleep(1);
+      }
+      // the values being loaded may be older than the removals.
+      cache.remove("/a/key");
+      cache.removeChildren("/a/b");
+      loader.release.countDown();
+      for (Thread t : threads) {
+        t.join();
+      }
+      assertFalse(scope.name(), cache.containsKey("/a/key"));
+      assertFalse(scope.name(), cache.containsKey("/a/b/key"));
+      // the next miss loads again.
+      assertEquals("value:/a/key", cache.get("/a/key", loader));
+      assertTrue(cache.containsKey("/a/key"));
+    }
+  }
+
+  @Test
+  public void testLoaderFailures() {
+    Cache<String> cache = cacheManagerService.getCache("loadingfail", CacheScope.INSTANCE);
+    try {
+      cache.get("key", new Loader<String>() {
+        public String load(String key) throws Exception {
+          throw new IOException("no");
+        }
+      });
+      fail("Expected a CacheLoaderException");
+    } catch (CacheLoaderException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    try {
+      cache.get("key", new Loader<String>() {
+        public String load(String key) throws Exception {
+          throw new IllegalArgumentException("no");
+        }
+      });
+      fail("Expected the runtime exception from the loader");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertNull(cache.get("key", new Loader<String>() {
+      public String load(String key) throws Exception {
+        return null;
+      }
+    }));
+    assertFalse(cache.containsKey("key"));
+  }
+
+  @Test
+  public void testGetAll() {
+    List<Cache<String>> caches = new ArrayList<Cache<String>>();
+    caches.add(cacheManagerService.<String> getCache("bulk", CacheScope.INSTANCE));
+    caches.add(cacheManagerService.<String> getCache("bulk", CacheScope.CLUSTERREPLICATED));
+    caches.add(new MapCacheImpl<String>());
+    for (Cache<String> cache : caches) {
+      cache.put("a", "cached:a");
+      final List<Collection<String>> calls = new ArrayList<Collection<String>>();
+      Map<String, String> values = cache.getAll(Arrays.asList("a", "b", "c"),
+          new BulkLoader<String>() {
+            public Map<String, String> loadAll(Collection<String> keys) throws Exception {
+              calls.add(new ArrayList<String>(keys));
+              Map<String, String> loaded = new HashMap<String, String>();
+              for (String key : keys) {
+                if (!"c".equals(key)) {
+                  loaded.put(key, "loaded:" + key);
+                }
+              }
+              return loaded;
+            }
+          });
+      assertEquals(1, calls.size());
+      assertEquals(2, calls.get(0).size());
+      assertEquals(2, values.size());
+      assertEquals("cached:a", values.get("a"));
+      assertEquals("loaded:b", values.get("b"));
+      assertEquals("loaded:b", cache.get("b"));
+      assertFalse(cache.containsKey("c"));
+      // without a loader only what is cached is returned.
+      values = cache.getAll(Arrays.asList("a", "c", "d"), null);
+      assertEquals(1, values.size());
+      assertEquals("cached:a", values.get("a"));
+    }
+  }
+
+  @Test
+  public void testMapCacheLoader() {
+    MapCacheImpl<String> cache = new MapCacheImpl<String>();
+    final AtomicInteger calls = new AtomicInteger();
+    Loader<String> loader = new Loader<String>() {
+      public String load(String key) throws Exception {
+        calls.incrementAndGet();
+        return "value:" + key;
+      }
+    };
+    assertEquals("value:x", cache.get("x", loader));
+    assertEquals("value:x", cache.get("x", loader));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testRefreshAhead() throws Exception {
+    InputStream in = getClass().getClassLoader().getResourceAsStream(
+        "org/sakaiproject/kernel/memory/ehcacheConfig.xml");
+    CacheManager cacheManager = new CacheManager(in);
+    in.close();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      cacheManager.addCache(new net.sf.ehcache.Cache("refresh", 100, false, false, 2, 2));
+      CacheImpl<String> cache = new CacheImpl<String>(cacheManager, "refresh");
+      cache.setRefreshAhead(0.25, executor);
+      final AtomicInteger calls = new AtomicInteger();
+      Loader<String> loader = new Loader<String>() {
+        public String load(String key) throws Exception {
+          return "v" + calls.incrementAndGet();
+        }
+      };
+      assertEquals("v1", cache.get("key", loader));
+      assertEquals("v1", cache.get("key", loader));
+      Thread.sleep(700);
+      // past the refresh point, the old value is returned while the refresh runs.
+      assertEquals("v1", cache.get("key", loader));
+      long start = System.currentTimeMillis();
+      while (!"v2".equals(cache.get("key"))) {
+        assertTrue("Refresh did not happen", System.currentTimeMillis() - start < 1000);
+        Thread.sleep(10);
+      }
+      assertEquals(2, calls.get());
+    } finally {
+      executor.shutdown();
+      cacheManager.shutdown();
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.memory.CacheImpl;
+import org.sakaiproject.kernel.memory.JavaSerializer;
+import org.sakaiproject.kernel.memory.offheap.OffHeapStore;
+import org.sakaiproject.kernel.memory.offheap.SlabAllocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+public class TestOffHeapStore {
+
+  private CacheManager cacheManager;
+  private List<String> evicted = new ArrayList<String>();
+  private OffHeapStore.EvictionListener listener = new OffHeapStore.EvictionListener() {
+    public void evicted(String key) {
+      evicted.add(key);
+    }
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    InputStream in = getClass().getClassLoader().getResourceAsStream(
+        "org/sakaiproject/kernel/memory/ehcacheConfig.xml");
+    cacheManager = new CacheManager(in);
+    in.close();
+  }
+
+  @After
+  public void tearDown() {
+    cacheManager.shutdown();
+  }
+
+  @Test
+  public void testDemoteAndPromote() throws IOException {
+    cacheManager.addCache(new net.sf.ehcache.Cache("offheap", 2, false, true, 0, 0));
+    CacheImpl<String> cache = new CacheImpl<String>(cacheManager, "offheap");
+    OffHeapStore store = cache.setOffHeap(4 * SlabAllocator.SLAB_SIZE, null,
+        new JavaSerializer());
+    try {
+      cache.put("/a", "a");
+      cache.put("/a/b", "ab");
+      cache.put("/a/b/c", "abc");
+      cache.put("/d", "d");
+      assertEquals(2, store.getSize());
+      assertEquals(4, cache.getStatistics().getSize());
+      assertTrue(cache.containsKey("/a"));
+      assertEquals("a", cache.get("/a"));
+      // promoting /a demoted the least recently used entry in the heap.
+      assertEquals(2, store.getSize());
+      assertEquals("ab", cache.get("/a/b"));
+      cache.removeChildren("/a");
+      assertNull(cache.get("/a"));
+      assertNull(cache.get("/a/b"));
+      assertNull(cache.get("/a/b/c"));
+      assertEquals("d", cache.get("/d"));
+      assertEquals(1, cache.getStatistics().getSize());
+      cache.clear();
+      assertEquals(0, store.getSize());
+    } finally {
+      store.dispose();
+    }
+  }
+
+  @Test
+  public void testUnserializableValuesAreDropped() throws IOException {
+    cacheManager.addCache(new net.sf.ehcache.Cache("offheap2", 1, false, true, 0, 0));
+    CacheImpl<Object> cache = new CacheImpl<Object>(cacheManager, "offheap2");
+    OffHeapStore store = cache.setOffHeap(SlabAllocator.SLAB_SIZE, null,
+        new JavaSerializer());
+    try {
+      cache.put("a", new Object());
+      cache.put("b", "b");
+      assertEquals(0, store.getSize());
+      assertFalse(cache.containsKey("a"));
+      assertEquals(1, cache.getStatistics().getSize());
+      assertEquals(1, cache.getStatistics().getEvictions());
+    } finally {
+      store.dispose();
+    }
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedWithinBudget() throws IOException {
+    OffHeapStore store = new OffHeapStore(SlabAllocator.SLAB_SIZE, null,
+        new JavaSerializer(), listener);
+    try {
+      // 8 slots of 128k fit in one slab.
+      byte[] value = new byte[100000];
+      for (int i = 0; i < 8; i++) {
+        assertTrue(store.put("k" + i, value, 0));
+      }
+      assertEquals(SlabAllocator.SLAB_SIZE, store.getAllocatedBytes());
+      assertTrue(evicted.isEmpty());
+      assertTrue(store.put("k8", value, 0));
+      assertEquals(1, evicted.size());
+      assertEquals("k0", evicted.get(0));
+      assertFalse(store.containsKey("k0"));
+      // another size class has no slab and no budget for one.
+      assertFalse(store.put("small", "small", 0));
+      assertEquals(100000, ((byte[]) store.take("k1").getValue()).length);
+      assertEquals(7, store.getSize());
+    } finally {
+      store.dispose();
+    }
+  }
+
+  @Test
+  public void testMappedSlabsAndExpiry() throws IOException {
+    File file = File.createTempFile("testoffheap", ".slab");
+    OffHeapStore store = new OffHeapStore(2 * SlabAllocator.SLAB_SIZE, file,
+        new JavaSerializer(), listener);
+    try {
+      assertTrue(store.put("a", "value a", 0));
+      assertTrue(store.put("b", "value b", System.currentTimeMillis() - 1));
+      assertEquals("value a", store.take("a").getValue());
+      assertNull(store.take("a"));
+      assertNull(store.take("b"));
+      assertEquals(1, evicted.size());
+      assertEquals("b", evicted.get(0));
+      assertEquals(0, store.getUsedBytes());
+    } finally {
+      store.dispose();
+    }
+    assertFalse(file.exists());
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.memory.MapCacheImpl;
+import org.sakaiproject.kernel.memory.PathIndex;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks the path index removes the same keys as a startsWith scan would.
+ */
+public class TestPathIndex {
+
+  private static final String[] KEYS = new String[] { "/a", "/a/b", "/a/b/", "/a/b/c",
+      "/a/b/c/d", "/a/bc", "/a/bc/d", "/ab", "a/b", "", "/", "//x" };
+
+  /**
+   * The scan that removeChildren used to do.
+   */
+  private Set<String> scan(String key) {
+    Set<String> removed = new HashSet<String>();
+    String prefix = key.endsWith("/") ? key : key + "/";
+    for (String k : KEYS) {
+      if (k.equals(key) || k.startsWith(prefix)) {
+        removed.add(k);
+      }
+    }
+    return removed;
+  }
+
+  @Test
+  public void testRemoveChildrenMatchesScan() {
+    for (String key : new String[] { "/a/b", "/a/b/", "/a", "/", "", "/a/b/c/d", "/z",
+        "a", "/a/bc" }) {
+      PathIndex index = new PathIndex();
+      for (String k : KEYS) {
+        index.add(k);
+      }
+      List<String> removed = index.removeChildren(key);
+      Set<String> expected = scan(key);
+      assertEquals("removeChildren(" + key + ")", expected, new HashSet<String>(removed));
+      assertEquals(KEYS.length - expected.size(), index.size());
+    }
+  }
+
+  @Test
+  public void testAddRemove() {
+    PathIndex index = new PathIndex();
+    index.add("/a/b/c");
+    index.add("/a/b/c");
+    assertEquals(1, index.size());
+    index.remove("/a/b");
+    assertEquals(1, index.size());
+    index.remove("/a/b/c");
+    assertEquals(0, index.size());
+    assertTrue(index.removeChildren("/a").isEmpty());
+  }
+
+  @Test
+  public void testMapCacheRemoveChildren() {
+    Cache<String> cache = new MapCacheImpl<String>();
+    for (String k : KEYS) {
+      cache.put(k, k);
+    }
+    cache.removeChildren("/a/b");
+    for (String k : KEYS) {
+      assertEquals(k, !scan("/a/b").contains(k), cache.containsKey(k));
+    }
+    // keys added after the index is built are indexed too.
+    cache.put("/a/b/e", "e");
+    cache.removeChildren("/a");
+    assertFalse(cache.containsKey("/a/b/e"));
+    assertTrue(cache.containsKey("/ab"));
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *
+ */
+public class TestPathInvalidation {
+
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  @After
+  public void tearDown() {
+    cacheManagerService.stop();
+  }
+
+  @Test
+  public void testChangesInsideTheSubtree() {
+    cacheManagerService.bindToPath("profiles", CacheScope.INSTANCE, "/_user/");
+    Cache<String> cache = cacheManagerService.getCache("profiles", CacheScope.INSTANCE);
+    cache.put("/_user/a/alice", "alice");
+    cache.put("/_user/a/alice/public", "alice public");
+    cache.put("/_user/b/bob", "bob");
+    cacheManagerService.invalidatePaths(Arrays.asList("/_user/a/alice", "/sites/x"));
+    assertNull(cache.get("/_user/a/alice"));
+    assertNull(cache.get("/_user/a/alice/public"));
+    assertEquals("bob", cache.get("/_user/b/bob"));
+
+    // removing an ancestor of the subtree removes everything in it.
+    cacheManagerService.invalidatePaths(Arrays.asList("/"));
+    assertNull(cache.get("/_user/b/bob"));
+  }
+
+  @Test
+  public void testUnbound() {
+    cacheManagerService.bindToPath("sites", CacheScope.CLUSTERREPLICATED, "/sites");
+    cacheManagerService.unbindFromPath("sites", CacheScope.CLUSTERREPLICATED, "/sites");
+    Cache<String> cache = cacheManagerService.getCache("sites", CacheScope.CLUSTERREPLICATED);
+    cache.put("/sites/x", "x");
+    cache.put("/sitesx", "y");
+    cacheManagerService.invalidatePaths(Arrays.asList("/sites/x"));
+    assertEquals("x", cache.get("/sites/x"));
+    cacheManagerService.bindToPath("sites", CacheScope.CLUSTERREPLICATED, "/sites");
+    cacheManagerService.invalidatePaths(Arrays.asList("/sites"));
+    assertNull(cache.get("/sites/x"));
+    assertEquals("y", cache.get("/sitesx"));
+  }
+
+  @Test
+  public void testWholeSubtree() {
+    cacheManagerService.bindSubtree("queries", CacheScope.INSTANCE, "/sites");
+    Cache<String> cache = cacheManagerService.getCache("queries", CacheScope.INSTANCE);
+    cache.put("/sites/q1", "1");
+    cache.put("/sites/q2", "2");
+    cache.put("/_user/q3", "3");
+    // any change in the subtree removes every entry keyed under its root.
+    cacheManagerService.invalidatePaths(Arrays.asList("/sites/x/y/z", "/_user"));
+    assertNull(cache.get("/sites/q1"));
+    assertNull(cache.get("/sites/q2"));
+    assertEquals("3", cache.get("/_user/q3"));
+
+    cache.put("/sites/q1", "1");
+    cacheManagerService.bindToPath("queries", CacheScope.INSTANCE, "/sites");
+    cacheManagerService.unbindFromPath("queries", CacheScope.INSTANCE, "/sites");
+    cacheManagerService.invalidatePaths(Arrays.asList("/sites/x"));
+    assertEquals("1", cache.get("/sites/q1"));
+  }
+
+  @Test
+  public void testRequestCachesCannotBeBound() {
+    try {
+      cacheManagerService.bindToPath("request", CacheScope.REQUEST, "/");
+      fail("Expected request caches to be refused");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.CacheStatisticsImpl;
+import org.sakaiproject.kernel.memory.JavaSerializer;
+import org.sakaiproject.kernel.memory.ReplicatedCacheImpl;
+import org.sakaiproject.kernel.memory.cluster.LoopbackClusterTransport;
+import org.sakaiproject.kernel.memory.cluster.ReplicationMessage;
+import org.sakaiproject.kernel.memory.cluster.ReplicationMessage.Delta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Runs several cache managers in one JVM, joined by a loopback transport, and checks that
+ * replicated caches converge. Also reports replication lag and throughput.
+ */
+public class TestReplicatedCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TestReplicatedCache.class);
+  private static final int NODES = 3;
+  private static final long WINDOW = 20;
+  private static final long TIMEOUT = 5000;
+  private CacheManagerServiceImpl[] nodes;
+
+  @Before
+  public void setUp() throws IOException {
+    nodes = new CacheManagerServiceImpl[NODES];
+    for (int i = 0; i < NODES; i++) {
+      nodes[i] = new CacheManagerServiceImpl(new LoopbackClusterTransport(
+          "TestReplicatedCache"), WINDOW);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    for (CacheManagerServiceImpl node : nodes) {
+      node.stop();
+    }
+  }
+
+  private List<Cache<String>> getCaches(String name) {
+    List<Cache<String>> caches = new ArrayList<Cache<String>>();
+    for (CacheManagerServiceImpl node : nodes) {
+      Cache<String> c = node.getCache(name, CacheScope.CLUSTERREPLICATED);
+      caches.add(c);
+    }
+    return caches;
+  }
+
+  /**
+   * Wait until every cache has the expected value for the key.
+   *
+   * @return the time taken in ms.
+   */
+  private long waitFor(List<Cache<String>> caches, String key, String expected)
+      throws InterruptedException {
+    long start = System.currentTimeMillis();
+    for (Cache<String> c : caches) {
+      while (!equal(expected, c.get(key))) {
+        if (System.currentTimeMillis() - start > TIMEOUT) {
+          assertEquals("Replication of " + key + " timed out", expected, c.get(key));
+        }
+        Thread.sleep(1);
+      }
+    }
+    return System.currentTimeMillis() - start;
+  }
+
+  private boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  @Test
+  public void testPutReplicates() throws InterruptedException {
+    List<Cache<String>> caches = getCaches("replicated");
+    caches.get(0).put("fish", "cat");
+    long lag = waitFor(caches, "fish", "cat");
+    LOGGER.info("Replication lag {} ms with a window of {} ms ", lag, WINDOW);
+    caches.get(1).remove("fish");
+    waitFor(caches, "fish", null);
+    assertFalse(caches.get(2).containsKey("fish"));
+  }
+
+  @Test
+  public void testRemoveChildrenAndClear() throws InterruptedException {
+    List<Cache<String>> caches = getCaches("replicated2");
+    caches.get(0).put("/a/b", "ab");
+    caches.get(0).put("/a/b/c", "abc");
+    caches.get(0).put("/a/bc", "abc2");
+    waitFor(caches, "/a/bc", "abc2");
+    caches.get(1).removeChildren("/a/b");
+    waitFor(caches, "/a/b/c", null);
+    waitFor(caches, "/a/b", null);
+    caches.get(2).clear();
+    waitFor(caches, "/a/bc", null);
+  }
+
+  @Test
+  public void testConflictingWritesConverge() throws InterruptedException {
+    List<Cache<String>> caches = getCaches("replicated3");
+    // both writes happen inside one window, so neither node has seen the other's.
+    caches.get(0).put("key", "fromA");
+    caches.get(1).put("key", "fromB");
+    long start = System.currentTimeMillis();
+    while (!(equal(caches.get(0).get("key"), caches.get(1).get("key")) && equal(caches
+        .get(1).get("key"), caches.get(2).get("key")))) {
+      assertTrue("Nodes did not converge", System.currentTimeMillis() - start < TIMEOUT);
+      Thread.sleep(1);
+    }
+    String winner = caches.get(0).get("key");
+    assertTrue("fromA".equals(winner) || "fromB".equals(winner));
+    // a later write always wins, whichever node won the conflict.
+    caches.get(2).put("key", "fromC");
+    waitFor(caches, "key", "fromC");
+  }
+
+  @Test
+  public void testSerializableValues() throws InterruptedException {
+    Cache<HashMap<String, String>> a = nodes[0].getCache("replicated4",
+        CacheScope.CLUSTERREPLICATED);
+    Cache<HashMap<String, String>> b = nodes[1].getCache("replicated4",
+        CacheScope.CLUSTERREPLICATED);
+    HashMap<String, String> map = new HashMap<String, String>();
+    map.put("x", "y");
+    a.put("map", map);
+    long start = System.currentTimeMillis();
+    while (b.get("map") == null) {
+      assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+      Thread.sleep(1);
+    }
+    assertEquals("y", b.get("map").get("x"));
+  }
+
+  @Test
+  public void testSerializerAllowList() throws Exception {
+    JavaSerializer writer = new JavaSerializer();
+    JavaSerializer reader = new JavaSerializer();
+    HashMap<String, Integer[]> map = new HashMap<String, Integer[]>();
+    map.put("x", new Integer[] { 1, 2 });
+    assertEquals(2, ((Integer[]) ((HashMap<?, ?>) reader.deserialize(writer.serialize(map)))
+        .get("x")).length);
+    // a class the reader has not written, and that is not a value class, is refused.
+    byte[] vector = writer.serialize(new Vector<String>());
+    try {
+      reader.deserialize(vector);
+      fail("Expected the class to be refused");
+    } catch (InvalidClassException e) {
+      // expected
+    }
+    // once written by the reader it can be read.
+    reader.serialize(new Vector<String>());
+    assertTrue(reader.deserialize(vector) instanceof Vector<?>);
+  }
+
+  @Test
+  public void testOversizedValueRefused() throws InterruptedException {
+    List<Cache<String>> caches = getCaches("replicated7");
+    caches.get(0).put("key", "small");
+    waitFor(caches, "key", "small");
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 100000) {
+      large.append("0123456789");
+    }
+    // too large for a frame, refused everywhere rather than kept on one node.
+    assertEquals("small", caches.get(0).put("key", large.toString()));
+    waitFor(caches, "key", null);
+  }
+
+  @Test
+  public void testUnserializableValueRefused() throws InterruptedException {
+    Cache<Object> a = nodes[0].getCache("replicated9", CacheScope.CLUSTERREPLICATED);
+    Cache<Object> b = nodes[1].getCache("replicated9", CacheScope.CLUSTERREPLICATED);
+    a.put("key", "small");
+    long start = System.currentTimeMillis();
+    while (!"small".equals(b.get("key"))) {
+      assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+      Thread.sleep(1);
+    }
+    // not kept here and dropped everywhere else, rather than the nodes disagreeing.
+    assertEquals("small", a.put("key", new Object()));
+    assertNull(a.get("key"));
+    while (b.get("key") != null) {
+      assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void testEntriesExpire() throws InterruptedException {
+    ReplicatedCacheImpl<String> cache = new ReplicatedCacheImpl<String>("replicated8", 1,
+        1000, new CacheStatisticsImpl("replicated8", "CLUSTERREPLICATED"), 10, 50, 60000);
+    cache.put("key", "value");
+    assertTrue(cache.containsKey("key"));
+    Thread.sleep(100);
+    assertFalse(cache.containsKey("key"));
+    assertNull(cache.get("key"));
+  }
+
+  @Test
+  public void testThroughput() throws InterruptedException {
+    List<Cache<String>> caches = getCaches("replicated5");
+    // stay within the bound, beyond it the oldest keys are evicted.
+    int n = ReplicatedCacheImpl.DEFAULT_MAX_ENTRIES;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < n; i++) {
+      caches.get(i % NODES).put("key" + i, "value" + i);
+    }
+    long written = System.currentTimeMillis();
+    for (int i = 0; i < n; i += 1000) {
+      waitFor(caches, "key" + i, "value" + i);
+    }
+    waitFor(caches, "key" + (n - 1), "value" + (n - 1));
+    long converged = System.currentTimeMillis();
+    LOGGER.info("Wrote {} keys over {} nodes in {} ms, converged after {} ms ",
+        new Object[] { n, NODES, written - start, converged - start });
+  }
+
+  @Test
+  public void testMessageEncoding() throws IOException {
+    List<Delta> deltas = new ArrayList<Delta>();
+    deltas.add(new Delta("a", 10, 1, new byte[] { 1, 2, 3 }));
+    deltas.add(new Delta("b", 11, 2, null));
+    List<byte[]> frames = ReplicationMessage.encode("c", deltas, 60000);
+    assertEquals(1, frames.size());
+    ReplicationMessage m = ReplicationMessage.decode(frames.get(0));
+    assertEquals("c", m.getCacheName());
+    assertEquals(2, m.getDeltas().size());
+    assertEquals("a", m.getDeltas().get(0).getKey());
+    assertEquals(10, m.getDeltas().get(0).getVersion());
+    assertEquals(3, m.getDeltas().get(0).getValue().length);
+    assertNull(m.getDeltas().get(1).getValue());
+    // a small frame size splits the batch.
+    assertEquals(2, ReplicationMessage.encode("c", deltas, 30).size());
+
+    // counts that do not fit in the frame are refused before anything is allocated.
+    byte[] frame = frames.get(0);
+    byte[] forged = frame.clone();
+    // the delta count follows the type and the cache name "c".
+    forged[4] = 0x7f;
+    try {
+      ReplicationMessage.decode(forged);
+      fail("Expected a bad delta count");
+    } catch (IOException e) {
+      // expected
+    }
+    forged = frame.clone();
+    // the value length of the first delta follows its key "a", version and node id.
+    forged[8 + 3 + 16] = 0x7f;
+    try {
+      ReplicationMessage.decode(forged);
+      fail("Expected a bad value length");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
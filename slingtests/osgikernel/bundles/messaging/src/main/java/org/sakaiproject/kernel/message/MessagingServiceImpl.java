@@ -21,6 +21,7 @@ import static org.sakaiproject.kernel.api.message.MessageConstants.SAKAI_MESSAGE
 
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.sakaiproject.kernel.api.locking.LockManager;
+import org.sakaiproject.kernel.api.locking.LockMode;
 import org.sakaiproject.kernel.api.locking.LockTimeoutException;
 import org.sakaiproject.kernel.api.message.MessagingException;
 import org.sakaiproject.kernel.api.message.MessagingService;
@@ -78,14 +79,16 @@ public class MessagingServiceImpl implements MessagingService {
     }
 
     String user = session.getUserID();
-    String messagePathBase = MessageUtils.getMessagePathBase(user);
+    String messagePath = MessageUtils.getMessagePath(user, messageId);
     try {
-      lockManager.waitForLock(messagePathBase);
+      // the message path is new every time, so the exclusive lock goes on the mailbox,
+      // stopping two messages creating the same hashed folders in it at once.
+      lockManager.waitForPathLock(MessageUtils.getMessagePathBase(user),
+          LockMode.EXCLUSIVE);
     } catch (LockTimeoutException e1) {
       throw new MessagingException("Unable to lock user mailbox");
     }
     try {
-      String messagePath = MessageUtils.getMessagePath(user, messageId);
       try {
         msg = JcrUtils.deepGetOrCreateNode(session, messagePath);
         
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.presence;
+
+/**
+ * Registered as a service, a <code>PresenceListener</code> is told when users on this
+ * node change their status or location, and when they go offline, either by clearing
+ * their presence or by not pinging within the presence timeout.
+ */
+public interface PresenceListener {
+
+  /**
+   * The user came online, or changed their status or location. Pings that change
+   * nothing are not notified. Called on the thread that made the change, so
+   * implementations should return quickly.
+   * 
+   * @param uuid
+   *          the user id.
+   * @param status
+   *          the status of the user.
+   * @param location
+   *          the location of the user, "none" if there is none.
+   */
+  void changed(String uuid, String status, String location);
+
+  /**
+   * The user is no longer present. Called on the thread that cleared or expired the
+   * user, so implementations should return quickly.
+   * 
+   * @param uuid
+   *          the user id.
+   * @param location
+   *          the location the user was last seen at, "none" if there was none.
+   */
+  void offline(String uuid, String location);
+
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.kernel.api.presence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -82,6 +83,24 @@ public interface PresenceService {
    */
   String getLocation(String uuid);
 
+  /**
+   * Get the status of a number of users at once, with one bulk lookup.
+   *
+   * @param uuids
+   *          the user ids.
+   * @return a map of every user id to its status, as {@link #getStatus(String)}.
+   */
+  Map<String, String> getStatuses(Collection<String> uuids);
+
+  /**
+   * Get the location of a number of users at once, with one bulk lookup.
+   *
+   * @param uuids
+   *          the user ids.
+   * @return a map of every user id to its location, as {@link #getLocation(String)}.
+   */
+  Map<String, String> getLocations(Collection<String> uuids);
+
   /**
    * @param connections
    *          a list of connections.
@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.sakaiproject.kernel.api.presence.PresenceStatus;
+
+/**
+ * The presence of the contacts of each user, kept up to date from connection changes and
+ * presence changes instead of being found again for every request. A view is built for a
+ * user when they first list their contacts, and dropped when they go offline, so only the
+ * users listing their contacts are held. Views are rebuilt after a maximum age, which
+ * bounds how long changes made on other nodes take to show.
+ * <p>
+ * A view is built in two steps. {@link #build(String, Collection)} indexes the contacts
+ * before their presence is looked up, so changes made during the lookup reach the view.
+ * {@link #fill(Contacts, Map, Map)} then adds the presence found, without replacing any
+ * newer presence that arrived in between.
+ */
+public class ContactPresenceView {
+
+  /**
+   * The presence of the contacts of one user.
+   */
+  public static final class Contacts {
+    private final String uuid;
+    private final long built = System.currentTimeMillis();
+    private final ConcurrentMap<String, PresenceRecord> presence = new ConcurrentHashMap<String, PresenceRecord>();
+    /**
+     * The contacts in the view, present before their presence is known.
+     */
+    private final Set<String> members = new CopyOnWriteArraySet<String>();
+    private volatile boolean complete;
+
+    private Contacts(String uuid) {
+      this.uuid = uuid;
+    }
+
+    /**
+     * @return the user whose contacts these are.
+     */
+    public String getUuid() {
+      return uuid;
+    }
+
+    /**
+     * @return the contacts of the user to their presence. The timestamps of the records
+     *         are not kept.
+     */
+    public Map<String, PresenceRecord> getPresence() {
+      return Collections.unmodifiableMap(presence);
+    }
+  }
+
+  private static final PresenceRecord OFFLINE = new PresenceRecord("none",
+      PresenceStatus.offline.name(), 0);
+
+  private final long maxAge;
+  private final ConcurrentMap<String, Contacts> views = new ConcurrentHashMap<String, Contacts>();
+  /**
+   * Contact to the views that contain them, changed while holding this.
+   */
+  private final ConcurrentMap<String, Set<Contacts>> viewedBy = new ConcurrentHashMap<String, Set<Contacts>>();
+  /**
+   * When views were last looked at for age, guarded by this.
+   */
+  private long pruned = System.currentTimeMillis();
+
+  /**
+   * @param maxAge
+   *          the time in ms after which a view is built again.
+   */
+  public ContactPresenceView(long maxAge) {
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * @param uuid
+   * @return the contacts of the user, or null if they must be built.
+   */
+  public Contacts get(String uuid) {
+    Contacts contacts = views.get(uuid);
+    if (contacts != null
+        && (!contacts.complete || System.currentTimeMillis() - contacts.built > maxAge)) {
+      return null;
+    }
+    return contacts;
+  }
+
+  /**
+   * @param uuid
+   * @return true if a view of the contacts of the user is held or being built.
+   */
+  public boolean isViewed(String uuid) {
+    return views.containsKey(uuid);
+  }
+
+  /**
+   * Start to build the view of the contacts of a user, replacing any there was. The view
+   * is kept up to date from now on, but is not returned by {@link #get(String)} until it
+   * has been filled.
+   * 
+   * @param uuid
+   *          the user.
+   * @param contactIds
+   *          the contacts of the user.
+   * @return the view, to be filled.
+   */
+  public synchronized Contacts build(String uuid, Collection<String> contactIds) {
+    long now = System.currentTimeMillis();
+    if (now - pruned > maxAge) {
+      // drop the views of users that stopped listing their contacts without going
+      // offline.
+      pruned = now;
+      for (Contacts contacts : views.values()) {
+        if (now - contacts.built > maxAge && views.remove(contacts.getUuid(), contacts)) {
+          unindex(contacts);
+        }
+      }
+    }
+    Contacts contacts = new Contacts(uuid);
+    contacts.members.addAll(contactIds);
+    unindex(views.put(uuid, contacts));
+    for (String contact : contacts.members) {
+      index(contact, contacts);
+    }
+    return contacts;
+  }
+
+  /**
+   * Add the presence looked up for the contacts of a view. Contacts whose presence changed
+   * since the view was built keep the newer presence.
+   * 
+   * @param contacts
+   *          the view returned by {@link #build(String, Collection)}.
+   * @param statuses
+   *          the status of each contact of the user.
+   * @param locations
+   *          the location of each contact of the user.
+   */
+  public void fill(Contacts contacts, Map<String, String> statuses,
+      Map<String, String> locations) {
+    for (Map.Entry<String, String> e : statuses.entrySet()) {
+      update(contacts, e.getKey(), new PresenceRecord(locations.get(e.getKey()), e
+          .getValue(), 0), false);
+    }
+    contacts.complete = true;
+  }
+
+  /**
+   * A connection was accepted.
+   * 
+   * @param uuid
+   *          the user.
+   * @param contact
+   *          the new contact.
+   * @param status
+   *          the status of the contact.
+   * @param location
+   *          the location of the contact.
+   */
+  public synchronized void connected(String uuid, String contact, String status,
+      String location) {
+    Contacts contacts = views.get(uuid);
+    if (contacts != null) {
+      contacts.members.add(contact);
+      contacts.presence.put(contact, new PresenceRecord(location, status, 0));
+      index(contact, contacts);
+    }
+  }
+
+  /**
+   * A connection is no longer accepted.
+   * 
+   * @param uuid
+   *          the user.
+   * @param contact
+   *          the contact that is no longer.
+   */
+  public synchronized void disconnected(String uuid, String contact) {
+    Contacts contacts = views.get(uuid);
+    if (contacts != null && contacts.members.remove(contact)) {
+      contacts.presence.remove(contact);
+      Set<Contacts> viewers = viewedBy.get(contact);
+      if (viewers != null) {
+        viewers.remove(contacts);
+        if (viewers.isEmpty()) {
+          viewedBy.remove(contact);
+        }
+      }
+    }
+  }
+
+  /**
+   * The presence of a user changed, update the views that contain them.
+   * 
+   * @param uuid
+   * @param status
+   * @param location
+   */
+  public void changed(String uuid, String status, String location) {
+    Set<Contacts> viewers = viewedBy.get(uuid);
+    if (viewers != null) {
+      PresenceRecord presence = new PresenceRecord(location, status, 0);
+      for (Contacts contacts : viewers) {
+        update(contacts, uuid, presence, true);
+      }
+    }
+  }
+
+  /**
+   * A user went offline, update the views that contain them and drop their own view.
+   * 
+   * @param uuid
+   */
+  public void offline(String uuid) {
+    Set<Contacts> viewers = viewedBy.get(uuid);
+    if (viewers != null) {
+      for (Contacts contacts : viewers) {
+        update(contacts, uuid, OFFLINE, true);
+      }
+    }
+    if (views.containsKey(uuid)) {
+      synchronized (this) {
+        unindex(views.remove(uuid));
+      }
+    }
+  }
+
+  /**
+   * @return the number of views held.
+   */
+  public int size() {
+    return views.size();
+  }
+
+  /**
+   * @return the number of contacts in the views held.
+   */
+  int viewedSize() {
+    return viewedBy.size();
+  }
+
+  /**
+   * Set the presence of a contact in a view, unless they are no longer a member of it.
+   * 
+   * @param replace
+   *          false to keep any presence already set.
+   */
+  private void update(Contacts contacts, String contact, PresenceRecord presence,
+      boolean replace) {
+    if (contacts.members.contains(contact)) {
+      if (replace) {
+        contacts.presence.put(contact, presence);
+      } else {
+        contacts.presence.putIfAbsent(contact, presence);
+      }
+      // disconnected may have run since the check, do not leave the contact behind.
+      if (!contacts.members.contains(contact)) {
+        contacts.presence.remove(contact, presence);
+      }
+    }
+  }
+
+  private void index(String contact, Contacts contacts) {
+    Set<Contacts> viewers = viewedBy.get(contact);
+    if (viewers == null) {
+      viewers = new CopyOnWriteArraySet<Contacts>();
+      viewedBy.put(contact, viewers);
+    }
+    viewers.add(contacts);
+  }
+
+  private void unindex(Contacts contacts) {
+    if (contacts != null) {
+      for (String contact : contacts.members) {
+        Set<Contacts> viewers = viewedBy.get(contact);
+        if (viewers != null) {
+          viewers.remove(contacts);
+          if (viewers.isEmpty()) {
+            viewedBy.remove(contact);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The presence of one user, as kept in the presence cache: where the user was last seen,
+ * the status they set, and when they were last seen. Records are immutable, an update
+ * makes a new record, or returns the same one if nothing changed so the cache is not
+ * written. Locations and statuses are interned, as thousands of users share a few of
+ * each.
+ */
+public final class PresenceRecord implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -2838717946617345218L;
+  /**
+   * The number of distinct locations and statuses interned, past this they are not, so
+   * free text statuses cannot fill the table.
+   */
+  private static final int MAX_INTERNED = 10000;
+  private static final ConcurrentMap<String, String> INTERNED = new ConcurrentHashMap<String, String>();
+
+  private final String location;
+  private final String status;
+  private final int timestamp;
+
+  /**
+   * @param location
+   * @param status
+   * @param timestamp
+   *          the time last seen, in the units of the presence service.
+   */
+  public PresenceRecord(String location, String status, int timestamp) {
+    this.location = intern(location);
+    this.status = intern(status);
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @param value
+   * @return the shared copy of the value.
+   */
+  static String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    String interned = INTERNED.get(value);
+    if (interned == null) {
+      if (INTERNED.size() >= MAX_INTERNED) {
+        return value;
+      }
+      interned = INTERNED.putIfAbsent(value, value);
+      if (interned == null) {
+        interned = value;
+      }
+    }
+    return interned;
+  }
+
+  /**
+   * @return the location the user was last seen at.
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  /**
+   * @return the status the user set.
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the time the user was last seen.
+   */
+  public int getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @param location
+   *          the new location, or null to keep this one.
+   * @param status
+   *          the new status, or null to keep this one.
+   * @param timestamp
+   * @return a record with the changes, or this record if there are none.
+   */
+  public PresenceRecord update(String location, String status, int timestamp) {
+    String newLocation = location == null ? this.location : location;
+    String newStatus = status == null ? this.status : status;
+    if (timestamp == this.timestamp && newLocation.equals(this.location)
+        && newStatus.equals(this.status)) {
+      return this;
+    }
+    return new PresenceRecord(newLocation, newStatus, timestamp);
+  }
+
+  /**
+   * Share the location and status of records read from other nodes.
+   *
+   * @return an interned copy of this record.
+   */
+  private Object readResolve() {
+    return new PresenceRecord(location, status, timestamp);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return location + ":" + status + "@" + timestamp;
+  }
+}
@@ -17,15 +17,24 @@
  */
 package org.sakaiproject.kernel.presence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.presence.PresenceListener;
 import org.sakaiproject.kernel.api.presence.PresenceService;
 import org.sakaiproject.kernel.api.presence.PresenceStatus;
 import org.slf4j.Logger;
@@ -44,6 +53,10 @@ import com.google.common.collect.Maps;
  * @scr.service interface="org.sakaiproject.kernel.api.presence.PresenceService"
  * @scr.reference name="cacheManagerService"
  *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
+ * @scr.reference name="presenceListener"
+ *                interface="org.sakaiproject.kernel.api.presence.PresenceListener"
+ *                cardinality="0..n" policy="dynamic" bind="bindPresenceListener"
+ *                unbind="unbindPresenceListener"
  **/
 public class PresenceServiceImpl implements PresenceService {
 
@@ -52,17 +65,88 @@ public class PresenceServiceImpl implements PresenceService {
   private static final String LOCATION_CACHE = "presence.location";
   private static final String USER_STATUS_CACHE = "presence.status";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
-  private static final int TIMESTAMP_ELEMENT = 1;
-  private static final int LOCATION_ELEMENT = 2;
-  private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
+  private static final long TIMESTAMP_RESOLUTION = 20000L; // 20s
+  static final int PRESENCE_TTL_TICKS = (int) (PRESENCE_TTL / TIMESTAMP_RESOLUTION);
+  private static final long COALESCE_WINDOW = 10000L; // 10s
 
-  private Cache<String> userStatusCache;
+  private Cache<PresenceRecord> userStatusCache;
   private Cache<Map<String, String>> locationCache;
 
   private CacheManagerService cacheManagerService;
 
+  /**
+   * The users pinging this node, by when they were last seen, so that those who stop
+   * pinging can be expired without scanning the caches.
+   */
+  private final PresenceTimingWheel timingWheel = new PresenceTimingWheel(
+      PRESENCE_TTL_TICKS, getTimeStamp());
+  private final PresenceTimingWheel.Expiry expiry = new PresenceTimingWheel.Expiry() {
+    public void expire(String uuid, int tick) {
+      expireUser(uuid, tick);
+    }
+  };
+  private final List<PresenceListener> listeners = new CopyOnWriteArrayList<PresenceListener>();
+  private ScheduledExecutorService expirer;
+  /**
+   * The last write of the presence of each user on the wheel by this node.
+   */
+  private final ConcurrentMap<String, Write> lastWritten = new ConcurrentHashMap<String, Write>();
+  private long coalesceWindow = COALESCE_WINDOW;
+  /**
+   * Guards the write of a user's presence against its removal on expiry, so that an
+   * expiry does not remove a ping written after it read the presence, striped by user.
+   */
+  private final Object[] userLocks = new Object[64];
+  {
+    for (int i = 0; i < userLocks.length; i++) {
+      userLocks[i] = new Object();
+    }
+  }
+
+  /**
+   * Start expiring users once every tick.
+   *
+   * @param componentContext
+   */
+  protected synchronized void activate(ComponentContext componentContext) {
+    if (expirer == null) {
+      expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Presence Expiry");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      expirer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            expire(getTimeStamp());
+          } catch (RuntimeException e) {
+            LOGGER.warn("Failed to expire presence " + e.getMessage(), e);
+          }
+        }
+      }, TIMESTAMP_RESOLUTION, TIMESTAMP_RESOLUTION, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @param componentContext
+   */
+  protected synchronized void deactivate(ComponentContext componentContext) {
+    if (expirer != null) {
+      expirer.shutdown();
+      expirer = null;
+    }
+  }
+
+  protected void bindPresenceListener(PresenceListener presenceListener) {
+    listeners.add(presenceListener);
+  }
+
+  protected void unbindPresenceListener(PresenceListener presenceListener) {
+    listeners.remove(presenceListener);
+  }
+
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
     // the caches must be replicating in the cluster.
@@ -87,7 +171,7 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    updateLocationCache(uuid, getCachedStatus(uuid), getTimeStamp(), null, status);
   }
 
   /**
@@ -95,8 +179,10 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.kernel.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
+    timingWheel.cancel(uuid);
+    lastWritten.remove(uuid);
     // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
+    PresenceRecord currentStatus = getCurrentStatus(uuid);
     if (currentStatus != null) {
       if (userStatusCache != null) {
         // clear the user from the status cache
@@ -105,18 +191,101 @@ public class PresenceServiceImpl implements PresenceService {
         }
       }
       // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
+      removeFromLocation(uuid, currentStatus.getLocation());
+      fireOffline(uuid, currentStatus.getLocation());
+    }
+  }
+
+  /**
+   * Expire the users on this node that have not been seen within the presence TTL.
+   *
+   * @param now
+   *          the current timestamp.
+   * @return the number of users expired.
+   */
+  int expire(int now) {
+    int expired = timingWheel.advance(now, expiry);
+    if (expired > 0) {
+      LOGGER.debug("Expired {} users, {} present", expired, timingWheel.size());
+    }
+    return expired;
+  }
+
+  /**
+   * Remove a user that was last seen on this node at the tick, unless they have been
+   * seen since elsewhere in the cluster.
+   *
+   * @param uuid
+   * @param tick
+   */
+  private void expireUser(String uuid, int tick) {
+    PresenceRecord currentStatus;
+    synchronized (userLock(uuid)) {
+      currentStatus = getCachedStatus(uuid);
+      if (currentStatus == null || currentStatus.getTimestamp() > tick) {
+        return;
       }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
+      lastWritten.remove(uuid);
+      userStatusCache.remove(uuid);
+    }
+    removeFromLocation(uuid, currentStatus.getLocation());
+    fireOffline(uuid, currentStatus.getLocation());
+  }
+
+  /**
+   * @param uuid
+   * @return the lock that guards writes of the presence of the user.
+   */
+  private Object userLock(String uuid) {
+    return userLocks[(uuid.hashCode() & 0x7fffffff) % userLocks.length];
+  }
+
+  /**
+   * @param uuid
+   * @param presence
+   */
+  private void fireChanged(String uuid, PresenceRecord presence) {
+    for (PresenceListener listener : listeners) {
+      try {
+        listener.changed(uuid, presence.getStatus(), presence.getLocation());
+      } catch (RuntimeException e) {
+        LOGGER.warn("Presence listener failed " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * @param uuid
+   * @param location
+   */
+  private void fireOffline(String uuid, String location) {
+    for (PresenceListener listener : listeners) {
+      try {
+        listener.offline(uuid, location);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Presence listener failed " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Remove the user from the location, dropping the location once no one is there.
+   *
+   * @param uuid
+   * @param location
+   */
+  private void removeFromLocation(String uuid, String location) {
+    if (location == null || "none".equals(location) || locationCache == null) {
+      return;
+    }
+    Map<String, String> locationInstanceCache = locationCache.get(location);
+    if (locationInstanceCache != null && locationInstanceCache.containsKey(uuid)) {
+      synchronized (locationCache) {
+        locationInstanceCache.remove(uuid);
+        if (locationInstanceCache.isEmpty()) {
+          locationCache.remove(location);
+        } else {
+          locationCache.put(location, locationInstanceCache);
         }
       }
     }
@@ -129,13 +298,9 @@ public class PresenceServiceImpl implements PresenceService {
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
     String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
+    PresenceRecord currentStatus = getCurrentStatus(uuid);
     if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
+      result = currentStatus.getStatus();
     }
     return result;
   }
@@ -146,31 +311,80 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getLocation(String uuid) {
     String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
+    PresenceRecord currentStatus = getCurrentStatus(uuid);
     if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
+      location = currentStatus.getLocation();
     }
     return location;
   }
 
-  private String[] getCurrentStatus(String uuid) {
-    String[] result = null;
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.presence.PresenceService#getStatuses(java.util.Collection)
+   */
+  public Map<String, String> getStatuses(Collection<String> uuids) {
+    Map<String, PresenceRecord> cached = getCachedStatuses(uuids);
+    int timeout = getTimeStamp() - PRESENCE_TTL_TICKS;
+    Map<String, String> statuses = Maps.newHashMap();
+    for (String uuid : uuids) {
+      PresenceRecord currentStatus = cached.get(uuid);
+      statuses.put(uuid, currentStatus == null || currentStatus.getTimestamp() <= timeout
+          ? PresenceStatus.offline.name() : currentStatus.getStatus());
+    }
+    return statuses;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.presence.PresenceService#getLocations(java.util.Collection)
+   */
+  public Map<String, String> getLocations(Collection<String> uuids) {
+    Map<String, PresenceRecord> cached = getCachedStatuses(uuids);
+    int timeout = getTimeStamp() - PRESENCE_TTL_TICKS;
+    Map<String, String> locations = Maps.newHashMap();
+    for (String uuid : uuids) {
+      PresenceRecord currentStatus = cached.get(uuid);
+      locations.put(uuid, currentStatus == null || currentStatus.getTimestamp() <= timeout
+          ? "none" : currentStatus.getLocation());
+    }
+    return locations;
+  }
+
+  /**
+   * @param uuids
+   * @return the cached presence of the users from one bulk get, including users that
+   *         have timed out.
+   */
+  private Map<String, PresenceRecord> getCachedStatuses(Collection<String> uuids) {
+    if (userStatusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return ImmutableMap.of();
+    }
+    return userStatusCache.getAll(uuids, null);
+  }
+
+  /**
+   * @param uuid
+   * @return the cached presence of the user, including a user that has timed out.
+   */
+  private PresenceRecord getCachedStatus(String uuid) {
+    return userStatusCache == null ? null : userStatusCache.get(uuid);
+  }
+
+  /**
+   * @param uuid
+   * @return the presence of the user, or null if not seen within the presence TTL.
+   */
+  private PresenceRecord getCurrentStatus(String uuid) {
+    PresenceRecord result = null;
     if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
+      PresenceRecord currentStatus = userStatusCache.get(uuid);
+      // timed out ?
+      if (currentStatus != null
+          && currentStatus.getTimestamp() > getTimeStamp() - PRESENCE_TTL_TICKS) {
+        result = currentStatus;
       }
     } else {
       LOGGER.warn("User status cache is null, check the cacheManager");
@@ -185,11 +399,7 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.util.List)
    */
   public Map<String, String> online(List<String> connections) {
-    Map<String, String> online = Maps.newHashMap();
-    for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
-    }
-    return online;
+    return getStatuses(connections);
   }
 
   /**
@@ -202,11 +412,13 @@ public class PresenceServiceImpl implements PresenceService {
       Map<String, String> locationInstanceCache = locationCache.get(location);
       if (locationInstanceCache != null) {
         Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
+        int timeout = getTimeStamp() - PRESENCE_TTL_TICKS;
+        for (Entry<String, PresenceRecord> e : getCachedStatuses(
+            locationInstanceCache.keySet()).entrySet()) {
+          PresenceRecord currentStatus = e.getValue();
+          if (currentStatus.getTimestamp() > timeout
+              && location.equals(currentStatus.getLocation())) {
+            onlineMap.put(e.getKey(), currentStatus.getStatus());
           }
         }
         return onlineMap;
@@ -224,15 +436,26 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void ping(String uuid, String location) {
-    long now = getTimeStamp();
+    int now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
       location = "none";
     }
     if (StringUtils.isEmpty(uuid)) {
       uuid = "none";
     }
-    if (updateLocationCache(uuid, now, location, null)) {
+    PresenceRecord currentStatus = getCachedStatus(uuid);
+    if (currentStatus != null && currentStatus.getTimestamp() == now
+        && !location.equals(currentStatus.getLocation()) && isCoalescing(uuid, location)) {
+      // pings from several windows in turn, the location is taken from the first ping
+      // after the coalescing window, or when the timestamp advances.
+      return;
+    }
+    if (updateLocationCache(uuid, currentStatus, now, location, null)) {
       // need to update
+      if (currentStatus != null && !location.equals(currentStatus.getLocation())) {
+        // moved, so no longer at the old location.
+        removeFromLocation(uuid, currentStatus.getLocation());
+      }
       if (!"none".equals(location) && locationCache != null) {
         Map<String, String> locationInstanceCache = locationCache.get(location);
         if (locationInstanceCache == null) {
@@ -247,19 +470,45 @@ public class PresenceServiceImpl implements PresenceService {
 
         String userKey = getLocationKey(uuid, location);
         if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
+          synchronized (locationCache) {
+            locationInstanceCache.put(uuid, userKey);
+            // put the map back so that the change is replicated, and so that it is there
+            // again if it was emptied and removed since it was got.
+            locationCache.put(location, locationInstanceCache);
+          }
         }
       }
     }
   }
 
   /**
-   * @return
+   * @param uuid
+   * @param location
+   *          the location the user is pinging from.
+   * @return true if this node moved the user away from the location within the
+   *         coalescing window, so the user is flipping between locations.
+   */
+  private boolean isCoalescing(String uuid, String location) {
+    Write write = lastWritten.get(uuid);
+    return write != null && location.equals(write.previousLocation)
+        && System.currentTimeMillis() - write.time < coalesceWindow;
+  }
+
+  /**
+   * @param coalesceWindow
+   *          the time in ms after moving a user during which pings from the location
+   *          they moved from are not written, 0 to write every change.
+   */
+  public void setCoalesceWindow(long coalesceWindow) {
+    this.coalesceWindow = coalesceWindow;
+  }
+
+  /**
+   * @return the time now, slow changing so that most pings change nothing, 20s
+   *         resolution.
    */
-  private long getTimeStamp() {
-    long now = System.currentTimeMillis();
-    // make now slow changing, 20s resolution
-    return now / 20000;
+  private int getTimeStamp() {
+    return (int) (System.currentTimeMillis() / TIMESTAMP_RESOLUTION);
   }
 
   /**
@@ -267,6 +516,8 @@ public class PresenceServiceImpl implements PresenceService {
    * 
    * @param uuid
    *          the user id
+   * @param currentStatus
+   *          the cached presence of the user, null if none
    * @param now
    *          the timestamp
    * @param location
@@ -275,41 +526,30 @@ public class PresenceServiceImpl implements PresenceService {
    *          the status, null if not provided in this update
    * @return true if an update was performed.
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
+  private boolean updateLocationCache(String uuid, PresenceRecord currentStatus,
+      int now, String location, String status) {
     boolean update = false;
     if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
-      }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
-        }
+      PresenceRecord newStatus;
+      if (currentStatus == null) {
+        newStatus = new PresenceRecord(location == null ? "none" : location,
+            status == null ? PresenceStatus.online.name() : status, now);
+      } else {
+        newStatus = currentStatus.update(location, status, now);
       }
-
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
+      if (newStatus != currentStatus) {
+        synchronized (userLock(uuid)) {
           userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
+          timingWheel.schedule(uuid, now);
+          lastWritten.put(uuid, new Write(currentStatus == null ? null : currentStatus
+              .getLocation()));
+        }
+        update = true;
+        if (currentStatus == null
+            || currentStatus.getTimestamp() <= now - PRESENCE_TTL_TICKS
+            || !newStatus.getStatus().equals(currentStatus.getStatus())
+            || !newStatus.getLocation().equals(currentStatus.getLocation())) {
+          fireChanged(uuid, newStatus);
         }
       }
     } else {
@@ -327,4 +567,16 @@ public class PresenceServiceImpl implements PresenceService {
     return uuid + ":" + location;
   }
 
+  /**
+   * A write of the presence of a user.
+   */
+  private static final class Write {
+    private final long time = System.currentTimeMillis();
+    private final String previousLocation;
+
+    private Write(String previousLocation) {
+      this.previousLocation = previousLocation;
+    }
+  }
+
 }
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A hashed timing wheel of users by the tick they were last seen. There is one slot per
+ * tick of the timeout, so each slot only holds the users last seen in one tick and
+ * advancing a tick expires a whole slot without looking at anyone else. Rescheduling a
+ * user moves them between slots, so each user is held once and the wheel only ever
+ * holds the users seen within the timeout.
+ */
+final class PresenceTimingWheel {
+
+  /**
+   * Told about each user that expires.
+   */
+  interface Expiry {
+    /**
+     * @param uuid
+     * @param tick
+     *          the tick the user was last seen on by the wheel.
+     */
+    void expire(String uuid, int tick);
+  }
+
+  private final int timeoutTicks;
+  private final List<ConcurrentMap<String, Integer>> slots;
+  private final ConcurrentMap<String, Integer> scheduled = new ConcurrentHashMap<String, Integer>();
+  /**
+   * The last tick expired, guarded by this.
+   */
+  private int expired;
+
+  /**
+   * @param timeoutTicks
+   *          users not seen for this many ticks expire.
+   * @param now
+   *          the current tick.
+   */
+  PresenceTimingWheel(int timeoutTicks, int now) {
+    this.timeoutTicks = timeoutTicks;
+    slots = new ArrayList<ConcurrentMap<String, Integer>>(timeoutTicks + 1);
+    for (int i = 0; i <= timeoutTicks; i++) {
+      slots.add(new ConcurrentHashMap<String, Integer>());
+    }
+    expired = now - timeoutTicks;
+  }
+
+  /**
+   * Schedule the user to expire the timeout after the tick, moving them from any slot
+   * they were in.
+   * 
+   * @param uuid
+   * @param tick
+   */
+  void schedule(String uuid, int tick) {
+    Integer previous = scheduled.put(uuid, tick);
+    if (previous != null && previous.intValue() != tick) {
+      slot(previous).remove(uuid, previous);
+    }
+    slot(tick).put(uuid, tick);
+  }
+
+  /**
+   * @param uuid
+   *          the user to take off the wheel.
+   */
+  void cancel(String uuid) {
+    Integer previous = scheduled.remove(uuid);
+    if (previous != null) {
+      slot(previous).remove(uuid, previous);
+    }
+  }
+
+  /**
+   * Expire the users last seen the timeout or more before now. Each tick since the last
+   * advance is one slot, so a tick costs the number of users expiring in it.
+   * 
+   * @param now
+   *          the current tick.
+   * @param expiry
+   *          told about each user expired.
+   * @return the number of users expired.
+   */
+  synchronized int advance(int now, Expiry expiry) {
+    int last = now - timeoutTicks;
+    // past a full turn every slot has been looked at.
+    int first = Math.max(expired + 1, last - timeoutTicks);
+    int n = 0;
+    for (int tick = first; tick <= last; tick++) {
+      ConcurrentMap<String, Integer> slot = slot(tick);
+      for (String uuid : slot.keySet()) {
+        Integer seen = slot.get(uuid);
+        // a later tick in the same slot is not due yet, a user scheduled again since is
+        // only removed from this slot.
+        if (seen != null && seen.intValue() <= last && slot.remove(uuid, seen)
+            && scheduled.remove(uuid, seen)) {
+          expiry.expire(uuid, seen);
+          n++;
+        }
+      }
+    }
+    expired = Math.max(expired, last);
+    return n;
+  }
+
+  /**
+   * @return the number of users on the wheel.
+   */
+  int size() {
+    return scheduled.size();
+  }
+
+  private ConcurrentMap<String, Integer> slot(int tick) {
+    int i = tick % slots.size();
+    return slots.get(i < 0 ? i + slots.size() : i);
+  }
+}
@@ -68,17 +68,35 @@ public class PresenceUtils {
       output.object();
     }
     // insert the basic status stuff
+    makePresenceJSON(output, userId, presenceService.getStatus(userId), presenceService
+        .getLocation(userId));
+    if (!partialObject) {
+      output.endObject();
+    }
+  }
+
+  /**
+   * Output the keys and values of the presence of a single user already looked up, but do
+   * not open or close the object. For listing many users from one bulk lookup.
+   *
+   * @param output
+   *          the JSON writer to output into
+   * @param userId
+   *          the user to output presence data for
+   * @param status
+   *          the status of the user
+   * @param location
+   *          the location of the user
+   * @throws JSONException
+   */
+  public static void makePresenceJSON(ExtendedJSONWriter output, String userId,
+      String status, String location) throws JSONException {
     output.key("user");
     output.value(userId);
     output.key(PresenceService.PRESENCE_STATUS_PROP);
-    String status = presenceService.getStatus(userId);
     output.value(status);
     output.key(PresenceService.PRESENCE_LOCATION_PROP);
-    String location = presenceService.getLocation(userId);
     output.value(location);
-    if (!partialObject) {
-      output.endObject();
-    }
   }
 
 }
@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.google.common.collect.Lists;
+
+/**
+ * An in memory fan-out index of the users watching the presence of other users, so that
+ * a change to one user wakes only the watchers of that user. Each watcher remembers what
+ * it was last sent, so that only the differences need to be sent again. A user may have
+ * a watcher for each subscription, one per browser window, so that windows do not take
+ * each other's changes, up to {@link #MAX_SUBSCRIPTIONS} after which the oldest goes.
+ */
+public class PresenceWatchers {
+
+  /**
+   * One user watching the presence of their contacts.
+   */
+  public static final class Watcher {
+    private final String uuid;
+    private final Set<String> watched;
+    /**
+     * The watched users changed since the last wait, guarded by this.
+     */
+    private final Set<String> changed = new HashSet<String>();
+    /**
+     * The presence last sent, guarded by this.
+     */
+    private final Map<String, String> statuses = new HashMap<String, String>();
+    private final Map<String, String> locations = new HashMap<String, String>();
+
+    Watcher(String uuid, Collection<String> watched) {
+      this.uuid = uuid;
+      this.watched = Collections.unmodifiableSet(new HashSet<String>(watched));
+    }
+
+    /**
+     * @return the user that is watching.
+     */
+    public String getUuid() {
+      return uuid;
+    }
+
+    /**
+     * @return the users being watched.
+     */
+    public Set<String> getWatched() {
+      return watched;
+    }
+
+    /**
+     * @param uuid
+     *          a watched user that changed.
+     */
+    synchronized void mark(String uuid) {
+      changed.add(uuid);
+      notifyAll();
+    }
+
+    /**
+     * Wait for watched users to change.
+     * 
+     * @param timeout
+     *          the time to wait in ms.
+     * @return the users that changed since the last wait, empty if none did before the
+     *         timeout.
+     * @throws InterruptedException
+     */
+    public synchronized Set<String> await(long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (changed.isEmpty()) {
+        long wait = end - System.currentTimeMillis();
+        if (wait <= 0) {
+          return Collections.emptySet();
+        }
+        wait(wait);
+      }
+      Set<String> result = new HashSet<String>(changed);
+      changed.clear();
+      return result;
+    }
+
+    /**
+     * Find the users whose presence is not what was last sent, and remember it as sent.
+     * 
+     * @param statuses
+     *          the current statuses of some of the watched users.
+     * @param locations
+     *          the current locations of the same users.
+     * @return the users that are different.
+     */
+    public synchronized List<String> delta(Map<String, String> statuses,
+        Map<String, String> locations) {
+      List<String> delta = Lists.newArrayList();
+      for (Map.Entry<String, String> e : statuses.entrySet()) {
+        String user = e.getKey();
+        String location = locations.get(user);
+        if (!e.getValue().equals(this.statuses.get(user))
+            || (location != null && !location.equals(this.locations.get(user)))) {
+          this.statuses.put(user, e.getValue());
+          this.locations.put(user, location);
+          delta.add(user);
+        }
+      }
+      return delta;
+    }
+  }
+
+  /**
+   * The most subscriptions kept for one user.
+   */
+  public static final int MAX_SUBSCRIPTIONS = 8;
+
+  /**
+   * Watchers by user and subscription.
+   */
+  private final ConcurrentMap<String, Watcher> watchers = new ConcurrentHashMap<String, Watcher>();
+  /**
+   * The subscriptions of each user, oldest first, guarded by this.
+   */
+  private final Map<String, List<String>> subscriptions = new HashMap<String, List<String>>();
+  /**
+   * Watched user to the watchers of that user, changed while holding this.
+   */
+  private final ConcurrentMap<String, Set<Watcher>> watchedBy = new ConcurrentHashMap<String, Set<Watcher>>();
+
+  /**
+   * @param uuid
+   * @return the watcher for the default subscription of the user, null if there is none.
+   */
+  public Watcher get(String uuid) {
+    return get(uuid, null);
+  }
+
+  /**
+   * @param uuid
+   * @param subscription
+   *          identifies the subscription, null for the default subscription.
+   * @return the watcher for the subscription of the user, null if there is none.
+   */
+  public Watcher get(String uuid, String subscription) {
+    return watchers.get(key(uuid, subscription));
+  }
+
+  /**
+   * Start watching in the default subscription of the user.
+   * 
+   * @param uuid
+   * @param watched
+   * @return the new watcher.
+   */
+  public Watcher watch(String uuid, Collection<String> watched) {
+    return watch(uuid, null, watched);
+  }
+
+  /**
+   * Start watching, replacing whatever the subscription was watching before.
+   * 
+   * @param uuid
+   *          the user watching.
+   * @param subscription
+   *          identifies the subscription, null for the default subscription.
+   * @param watched
+   *          the users to watch.
+   * @return the new watcher, that has sent nothing yet.
+   */
+  public synchronized Watcher watch(String uuid, String subscription,
+      Collection<String> watched) {
+    String key = key(uuid, subscription);
+    Watcher watcher = new Watcher(uuid, watched);
+    unindex(watchers.put(key, watcher));
+    List<String> keys = subscriptions.get(uuid);
+    if (keys == null) {
+      keys = Lists.newArrayList();
+      subscriptions.put(uuid, keys);
+    }
+    keys.remove(key);
+    keys.add(key);
+    while (keys.size() > MAX_SUBSCRIPTIONS) {
+      unindex(watchers.remove(keys.remove(0)));
+    }
+    for (String user : watcher.getWatched()) {
+      Set<Watcher> users = watchedBy.get(user);
+      if (users == null) {
+        users = new CopyOnWriteArraySet<Watcher>();
+        watchedBy.put(user, users);
+      }
+      users.add(watcher);
+    }
+    return watcher;
+  }
+
+  /**
+   * Stop the user watching, in every subscription.
+   * 
+   * @param uuid
+   */
+  public synchronized void remove(String uuid) {
+    List<String> keys = subscriptions.remove(uuid);
+    if (keys != null) {
+      for (String key : keys) {
+        unindex(watchers.remove(key));
+      }
+    }
+  }
+
+  /**
+   * Wake the watchers of the user.
+   * 
+   * @param uuid
+   *          the user that changed.
+   */
+  public void changed(String uuid) {
+    Set<Watcher> users = watchedBy.get(uuid);
+    if (users != null) {
+      for (Watcher watcher : users) {
+        watcher.mark(uuid);
+      }
+    }
+  }
+
+  /**
+   * @return the number of subscriptions watching.
+   */
+  public int size() {
+    return watchers.size();
+  }
+
+  /**
+   * @return the number of users being watched.
+   */
+  int watchedSize() {
+    return watchedBy.size();
+  }
+
+  /**
+   * @param uuid
+   * @param subscription
+   * @return the key of the watcher of the subscription.
+   */
+  private String key(String uuid, String subscription) {
+    return subscription == null ? uuid : uuid + "\n" + subscription;
+  }
+
+  private void unindex(Watcher watcher) {
+    if (watcher != null) {
+      for (String user : watcher.getWatched()) {
+        Set<Watcher> users = watchedBy.get(user);
+        if (users != null) {
+          users.remove(watcher);
+          if (users.isEmpty()) {
+            watchedBy.remove(user);
+          }
+        }
+      }
+    }
+  }
+}
@@ -21,6 +21,8 @@ package org.sakaiproject.kernel.presence.servlets;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -32,10 +34,16 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.kernel.api.connections.ConnectionConstants;
 import org.sakaiproject.kernel.api.connections.ConnectionManager;
 import org.sakaiproject.kernel.api.connections.ConnectionState;
 import org.sakaiproject.kernel.api.personal.PersonalUtils;
+import org.sakaiproject.kernel.api.presence.PresenceListener;
 import org.sakaiproject.kernel.api.presence.PresenceService;
+import org.sakaiproject.kernel.presence.ContactPresenceView;
+import org.sakaiproject.kernel.presence.PresenceRecord;
 import org.sakaiproject.kernel.presence.PresenceUtils;
 import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
@@ -43,27 +51,41 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This servlet deals with GET and JSON only and outputs the contacts listing presence
- * related to the current user, only includes accepted contacts
+ * related to the current user, only includes accepted contacts. The contacts and their
+ * presence are kept in a view that is updated as connections and presence change, so
+ * only the first listing for a user queries for the contacts and looks up their presence.
+ * The profile of each contact is still read on every listing.
  * 
  * @scr.component metatype="no" immediate="true"
  * @scr.service interface="javax.servlet.Servlet"
+ * @scr.service interface="org.osgi.service.event.EventHandler"
+ * @scr.service interface="org.sakaiproject.kernel.api.presence.PresenceListener"
  * @scr.property name="sling.servlet.resourceTypes" value="sakai/presence"
  * @scr.property name="sling.servlet.methods" value="GET"
  * @scr.property name="sling.servlet.selectors" value="contacts"
  * @scr.property name="sling.servlet.extensions" value="json"
+ * @scr.property name="event.topics" value="org/sakaiproject/kernel/connections/changed"
  * 
  * @scr.reference name="ConnectionManager"
  *                interface="org.sakaiproject.kernel.api.connections.ConnectionManager"
  * @scr.reference name="PresenceService"
  *                interface="org.sakaiproject.kernel.api.presence.PresenceService"
  */
-public class PresenceContactsServlet extends SlingAllMethodsServlet {
+public class PresenceContactsServlet extends SlingAllMethodsServlet implements
+    EventHandler, PresenceListener {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(PresenceContactsServlet.class);
 
   private static final long serialVersionUID = 11111111L;
 
+  /**
+   * Views are built again after this long, to pick up changes made on other nodes.
+   */
+  private static final long VIEW_MAX_AGE = 5L * 60L * 1000L; // 5 minutes
+
+  private final ContactPresenceView view = new ContactPresenceView(VIEW_MAX_AGE);
+
   protected PresenceService presenceService;
 
   protected void bindPresenceService(PresenceService presenceService) {
@@ -92,8 +114,9 @@ public class PresenceContactsServlet extends SlingAllMethodsServlet {
     if (user == null) {
       response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
           "User must be logged in to check their status");
+      return;
     }
-    LOGGER.info("GET to PresenceContactsServlet (" + user + ")");
+    LOGGER.debug("GET to PresenceContactsServlet ({})", user);
 
     try {
       Writer writer = response.getWriter();
@@ -103,14 +126,24 @@ public class PresenceContactsServlet extends SlingAllMethodsServlet {
       PresenceUtils.makePresenceJSON(output, user, presenceService, true);
       // add in the list of contacts info
       Session session = request.getResource().adaptTo(Node.class).getSession();
-      List<String> userIds = connectionManager.getConnectedUsers(user,
-          ConnectionState.ACCEPTED);
+      ContactPresenceView.Contacts contacts = view.get(user);
+      if (contacts == null) {
+        List<String> userIds = connectionManager.getConnectedUsers(user,
+            ConnectionState.ACCEPTED);
+        // the view is kept up to date before the lookup, so changes made during it are
+        // not lost. One bulk lookup for all the contacts.
+        contacts = view.build(user, userIds);
+        view.fill(contacts, presenceService.getStatuses(userIds), presenceService
+            .getLocations(userIds));
+      }
       output.key("contacts");
       output.array();
-      for (String userId : userIds) {
+      for (Entry<String, PresenceRecord> e : contacts.getPresence().entrySet()) {
+        String userId = e.getKey();
         output.object();
         // put in the basics
-        PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
+        PresenceUtils.makePresenceJSON(output, userId, e.getValue().getStatus(), e
+            .getValue().getLocation());
         // add in the profile
         output.key("profile");
         Node profileNode = (Node) session.getItem(PersonalUtils.getProfilePath(userId));
@@ -131,4 +164,55 @@ public class PresenceContactsServlet extends SlingAllMethodsServlet {
     return;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String thisUser = (String) event.getProperty(ConnectionConstants.EVENT_THIS_USER);
+    String otherUser = (String) event.getProperty(ConnectionConstants.EVENT_OTHER_USER);
+    updateView(thisUser, otherUser, (String) event
+        .getProperty(ConnectionConstants.EVENT_THIS_STATE));
+    updateView(otherUser, thisUser, (String) event
+        .getProperty(ConnectionConstants.EVENT_OTHER_STATE));
+  }
+
+  /**
+   * @param user
+   * @param contact
+   * @param state
+   *          the new state of the connection of the user to the contact.
+   */
+  private void updateView(String user, String contact, String state) {
+    if (ConnectionState.ACCEPTED.name().equals(state)) {
+      if (view.isViewed(user)) {
+        view.connected(user, contact, presenceService.getStatus(contact), presenceService
+            .getLocation(contact));
+      }
+    } else {
+      view.disconnected(user, contact);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.presence.PresenceListener#changed(java.lang.String,
+   *      java.lang.String, java.lang.String)
+   */
+  public void changed(String uuid, String status, String location) {
+    view.changed(uuid, status, location);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.presence.PresenceListener#offline(java.lang.String,
+   *      java.lang.String)
+   */
+  public void offline(String uuid, String location) {
+    view.offline(uuid);
+  }
+
 }
@@ -73,7 +73,7 @@ public class PresenceControlServlet extends SlingAllMethodsServlet {
       response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
           "User must be logged in to ping their status and set location");
     }
-    LOGGER.info("POST to PresenceControlServlet (" + user + ")");
+    LOGGER.debug("POST to PresenceControlServlet ({})", user);
 
     String location = null; // null location will clear the location
     RequestParameter locationParam = request
@@ -103,7 +103,7 @@ public class PresenceControlServlet extends SlingAllMethodsServlet {
       response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
           "User must be logged in to set their status");
     }
-    LOGGER.info("PUT to PresenceControlServlet (" + user + ")");
+    LOGGER.debug("PUT to PresenceControlServlet ({})", user);
 
     String status = null; // null status will clear the status
     RequestParameter statusParam = request
@@ -143,7 +143,7 @@ public class PresenceControlServlet extends SlingAllMethodsServlet {
       response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
           "User must be logged in to control their status");
     }
-    LOGGER.info("DELETE to PresenceControlServlet (" + user + ")");
+    LOGGER.debug("DELETE to PresenceControlServlet ({})", user);
 
     try {
       presenceService.clear(user);
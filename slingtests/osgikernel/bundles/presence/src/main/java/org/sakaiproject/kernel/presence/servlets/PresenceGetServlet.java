@@ -70,7 +70,7 @@ public class PresenceGetServlet extends SlingAllMethodsServlet {
       response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
           "User must be logged in to check their status");
     }
-    LOGGER.info("GET to PresenceServlet (" + user + ")");
+    LOGGER.debug("GET to PresenceServlet ({})", user);
 
     try {
       Writer writer = response.getWriter();
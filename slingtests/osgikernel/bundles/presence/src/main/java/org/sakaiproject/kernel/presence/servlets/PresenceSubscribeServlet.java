@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence.servlets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.kernel.api.connections.ConnectionManager;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+import org.sakaiproject.kernel.api.presence.PresenceListener;
+import org.sakaiproject.kernel.api.presence.PresenceService;
+import org.sakaiproject.kernel.presence.PresenceUtils;
+import org.sakaiproject.kernel.presence.PresenceWatchers;
+import org.sakaiproject.kernel.presence.PresenceWatchers.Watcher;
+import org.sakaiproject.kernel.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This servlet deals with GET and JSON only and long polls for changes to the presence of
+ * the contacts of the current user. The first request lists the presence of every
+ * accepted contact, later requests wait until a contact changes, or the timeout passes,
+ * and list only the contacts that are different from what was last sent. Profiles are not
+ * included, they come from the contacts listing.
+ * 
+ * <code>
+ * curl http://localhost:8080/_user/presence.subscribe.json?timeout=25000
+ * </code>
+ * 
+ * The timeout is in ms. Add refresh=true to list every contact again, after the contacts
+ * of the user have changed. Each browser window should send its own subscription=id, so
+ * that windows do not take each other's changes, without one the session is used. When
+ * too many requests are waiting the answer is 503 with a Retry-After header, and the
+ * client should wait that long before asking again.
+ * 
+ * @scr.component metatype="no" immediate="true"
+ * @scr.service interface="javax.servlet.Servlet"
+ * @scr.service interface="org.sakaiproject.kernel.api.presence.PresenceListener"
+ * @scr.property name="sling.servlet.resourceTypes" value="sakai/presence"
+ * @scr.property name="sling.servlet.methods" value="GET"
+ * @scr.property name="sling.servlet.selectors" value="subscribe"
+ * @scr.property name="sling.servlet.extensions" value="json"
+ * 
+ * @scr.reference name="ConnectionManager"
+ *                interface="org.sakaiproject.kernel.api.connections.ConnectionManager"
+ * @scr.reference name="PresenceService"
+ *                interface="org.sakaiproject.kernel.api.presence.PresenceService"
+ */
+public class PresenceSubscribeServlet extends SlingAllMethodsServlet implements
+    PresenceListener {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(PresenceSubscribeServlet.class);
+
+  private static final long serialVersionUID = 11111111L;
+
+  private static final String TIMEOUT_PARAM = "timeout";
+  private static final String REFRESH_PARAM = "refresh";
+  private static final String SUBSCRIPTION_PARAM = "subscription";
+  private static final long DEFAULT_TIMEOUT = 25000L;
+  private static final long MAX_TIMEOUT = 60000L;
+  /**
+   * Each waiting request holds a request thread, past this many requests are turned
+   * away and the clients back off.
+   */
+  private static final int MAX_WAITING = 100;
+  /**
+   * The time in s turned away clients are asked to wait before trying again.
+   */
+  private static final int RETRY_AFTER = 10;
+
+  private final PresenceWatchers watchers = new PresenceWatchers();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  protected PresenceService presenceService;
+
+  protected void bindPresenceService(PresenceService presenceService) {
+    this.presenceService = presenceService;
+  }
+
+  protected void unbindPresenceService(PresenceService presenceService) {
+    this.presenceService = null;
+  }
+
+  protected ConnectionManager connectionManager;
+
+  protected void bindConnectionManager(ConnectionManager connectionManager) {
+    this.connectionManager = connectionManager;
+  }
+
+  protected void unbindConnectionManager(ConnectionManager connectionManager) {
+    this.connectionManager = null;
+  }
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    // get current user
+    String user = request.getRemoteUser();
+    if (user == null) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+          "User must be logged in to subscribe to presence");
+      return;
+    }
+    LOGGER.debug("GET to PresenceSubscribeServlet ({})", user);
+
+    String subscription = getSubscription(request);
+    Watcher watcher = watchers.get(user, subscription);
+    boolean refresh = watcher == null
+        || "true".equals(request.getParameter(REFRESH_PARAM));
+    Collection<String> users;
+    if (refresh) {
+      List<String> userIds = connectionManager.getConnectedUsers(user,
+          ConnectionState.ACCEPTED);
+      watcher = watchers.watch(user, subscription, userIds);
+      users = watcher.getWatched();
+    } else {
+      if (waiting.incrementAndGet() > MAX_WAITING) {
+        waiting.decrementAndGet();
+        // nothing has been taken from the watcher, the next request gets the changes.
+        response.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Too many presence subscriptions waiting, try again later");
+        return;
+      }
+      Set<String> changed = null;
+      try {
+        changed = watcher.await(getTimeout(request));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        waiting.decrementAndGet();
+      }
+      // changes made on other nodes are not notified here, so after a timeout look at
+      // every contact.
+      users = changed == null || changed.isEmpty() ? watcher.getWatched() : changed;
+    }
+    // one bulk lookup for the contacts that may have changed
+    Map<String, String> statuses = presenceService.getStatuses(users);
+    Map<String, String> locations = presenceService.getLocations(users);
+    List<String> delta = watcher.delta(statuses, locations);
+
+    try {
+      ExtendedJSONWriter output = new ExtendedJSONWriter(response.getWriter());
+      output.object();
+      output.key(REFRESH_PARAM);
+      output.value(refresh);
+      output.key("contacts");
+      output.array();
+      for (String userId : delta) {
+        output.object();
+        PresenceUtils.makePresenceJSON(output, userId, statuses.get(userId), locations
+            .get(userId));
+        output.endObject();
+      }
+      output.endArray();
+      output.endObject();
+    } catch (JSONException e) {
+      LOGGER.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
+  /**
+   * @param request
+   * @return the subscription the request is for, the one given by the client, or the
+   *         session, or null for the default subscription of the user.
+   */
+  private String getSubscription(SlingHttpServletRequest request) {
+    String subscription = request.getParameter(SUBSCRIPTION_PARAM);
+    if (subscription == null || subscription.length() == 0) {
+      subscription = request.getRequestedSessionId();
+    }
+    return subscription;
+  }
+
+  /**
+   * @param request
+   * @return the time to wait in ms.
+   */
+  private long getTimeout(SlingHttpServletRequest request) {
+    String timeout = request.getParameter(TIMEOUT_PARAM);
+    if (timeout != null) {
+      try {
+        return Math.max(0L, Math.min(MAX_TIMEOUT, Long.parseLong(timeout)));
+      } catch (NumberFormatException e) {
+        LOGGER.debug("Invalid timeout " + timeout);
+      }
+    }
+    return DEFAULT_TIMEOUT;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.presence.PresenceListener#changed(java.lang.String,
+   *      java.lang.String, java.lang.String)
+   */
+  public void changed(String uuid, String status, String location) {
+    watchers.changed(uuid);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.presence.PresenceListener#offline(java.lang.String,
+   *      java.lang.String)
+   */
+  public void offline(String uuid, String location) {
+    watchers.changed(uuid);
+    // gone, so no longer watching either.
+    watchers.remove(uuid);
+  }
+
+}
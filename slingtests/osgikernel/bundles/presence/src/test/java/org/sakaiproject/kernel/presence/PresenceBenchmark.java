@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures ping and lookup throughput of the presence service with 100k simulated users
+ * spread over a few hundred locations, with users that stay, move, or have windows open
+ * on two locations, and the heap the presence cache takes. Then
+ * compares looking up contact lists of 10, 100 and 1000 users one at a time with the bulk
+ * lookup. Not a unit test, run it by hand with
+ * <code>java -cp target/classes:target/test-classes org.sakaiproject.kernel.presence.PresenceBenchmark</code>
+ */
+public class PresenceBenchmark {
+
+  private static final int USERS = 100000;
+  private static final int LOCATIONS = 500;
+  private static final int ROUNDS = 5;
+  private static final int[] CONTACTS = new int[] { 10, 100, 1000 };
+
+  private static volatile int sink;
+
+  public static void main(String[] args) throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    try {
+      PresenceServiceImpl presenceService = new PresenceServiceImpl();
+      presenceService.bindCacheManagerService(cacheManagerService);
+      String[] users = new String[USERS];
+      String[] locations = new String[LOCATIONS];
+      for (int i = 0; i < USERS; i++) {
+        users[i] = "user" + i;
+      }
+      for (int i = 0; i < LOCATIONS; i++) {
+        locations[i] = "/sites/site" + i;
+      }
+      long before = usedHeap();
+      System.out.println("operation\tops/s (lists/s for contacts)");
+      for (int round = 0; round < ROUNDS; round++) {
+        // every user moves, so every ping is written.
+        long start = System.nanoTime();
+        for (int i = 0; i < USERS; i++) {
+          presenceService.ping(users[i], locations[(i + round) % LOCATIONS]);
+        }
+        report("ping (moved)", USERS, start);
+      }
+      System.out.println("heap per user\t" + (usedHeap() - before) / USERS + " bytes");
+      for (int round = 0; round < ROUNDS; round++) {
+        // nobody moves, as for most pings.
+        long start = System.nanoTime();
+        for (int i = 0; i < USERS; i++) {
+          presenceService.ping(users[i], locations[(i + ROUNDS - 1) % LOCATIONS]);
+        }
+        report("ping (same)", USERS, start);
+      }
+      for (int round = 0; round < ROUNDS; round++) {
+        // every user has two windows open on different locations, the flipping between
+        // them is coalesced.
+        long start = System.nanoTime();
+        for (int i = 0; i < USERS; i++) {
+          presenceService.ping(users[i], locations[(i + ROUNDS - 1 - round % 2)
+              % LOCATIONS]);
+        }
+        report("ping (two windows)", USERS, start);
+      }
+      for (int round = 0; round < ROUNDS; round++) {
+        long start = System.nanoTime();
+        int n = 0;
+        for (int i = 0; i < USERS; i++) {
+          n += presenceService.getStatus(users[i]).length();
+          n += presenceService.getLocation(users[i]).length();
+        }
+        sink = n;
+        report("getStatus+getLocation", USERS, start);
+      }
+      for (int size : CONTACTS) {
+        List<String> contacts = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+          contacts.add(users[i * (USERS / size)]);
+        }
+        int lists = USERS / size;
+        for (int round = 0; round < ROUNDS; round++) {
+          long start = System.nanoTime();
+          int n = 0;
+          for (int i = 0; i < lists; i++) {
+            for (String contact : contacts) {
+              n += presenceService.getStatus(contact).length();
+            }
+          }
+          sink = n;
+          report("getStatus x " + size + " contacts", lists, start);
+          start = System.nanoTime();
+          n = 0;
+          for (int i = 0; i < lists; i++) {
+            n += presenceService.getStatuses(contacts).size();
+          }
+          sink = n;
+          report("getStatuses(" + size + " contacts)", lists, start);
+        }
+      }
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
+
+  private static void report(String operation, int ops, long start) {
+    long elapsed = System.nanoTime() - start;
+    System.out.println(operation + "\t" + (ops * 1000000000L / Math.max(1, elapsed)));
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -21,6 +21,7 @@ import static org.junit.Assert.*;
 import static org.easymock.EasyMock.*;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import org.junit.After;
 import org.junit.Before;
@@ -28,10 +29,13 @@ import org.junit.Test;
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.presence.PresenceListener;
 import org.sakaiproject.kernel.memory.MapCacheImpl;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * 
@@ -42,6 +46,7 @@ public class PresenceServiceImplTest {
   private PresenceServiceImpl presenceService;
   private Cache<Object> presenceLocationCache;
   private Cache<Object> presenceStatusCache;
+  private int statusWrites;
 
   /**
    * @throws java.lang.Exception
@@ -50,7 +55,15 @@ public class PresenceServiceImplTest {
   public void setUp() throws Exception {
 
     presenceLocationCache = new MapCacheImpl<Object>();
-    presenceStatusCache = new MapCacheImpl<Object>();
+    presenceStatusCache = new MapCacheImpl<Object>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public Object put(String key, Object value) {
+        statusWrites++;
+        return super.put(key, value);
+      }
+    };
 
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
@@ -137,4 +150,306 @@ public class PresenceServiceImplTest {
     }
   }
 
+  @Test
+  public void testStatusAndLocation() {
+    assertEquals("offline", presenceService.getStatus("user1"));
+    assertEquals("none", presenceService.getLocation("user1"));
+    presenceService.ping("user1", "/sites/physics");
+    assertEquals("online", presenceService.getStatus("user1"));
+    assertEquals("/sites/physics", presenceService.getLocation("user1"));
+    presenceService.setStatus("user1", "busy: marking");
+    assertEquals("busy: marking", presenceService.getStatus("user1"));
+    assertEquals("/sites/physics", presenceService.getLocation("user1"));
+    presenceService.clear("user1");
+    assertEquals("offline", presenceService.getStatus("user1"));
+    assertTrue(presenceService.online("/sites/physics").isEmpty());
+  }
+
+  @Test
+  public void testPingWritesOnlyChanges() {
+    presenceService.setCoalesceWindow(0);
+    presenceService.ping("user1", "locationA");
+    Object record = presenceStatusCache.get("user1");
+    presenceService.ping("user1", "locationA");
+    // within the same timestamp nothing changed, so the cache was not written.
+    assertSame(record, presenceStatusCache.get("user1"));
+    presenceService.ping("user1", "locationB");
+    assertNotSame(record, presenceStatusCache.get("user1"));
+  }
+
+  @Test
+  public void testCoalescing() {
+    // two windows open on different locations, pinging in turn.
+    for (int i = 0; i < 10; i++) {
+      presenceService.ping("user1", "locationA");
+      presenceService.ping("user1", "locationB");
+    }
+    // the first ping and the first move are written, not the flipping back.
+    assertEquals(2, statusWrites);
+    assertEquals("locationB", presenceService.getLocation("user1"));
+    // moving on is not held back, nor are status changes.
+    presenceService.ping("user1", "locationC");
+    presenceService.setStatus("user1", "busy");
+    assertEquals(4, statusWrites);
+    assertEquals("busy", presenceService.getStatus("user1"));
+    // past the window the next ping moves the user back.
+    presenceService.setCoalesceWindow(0);
+    presenceService.ping("user1", "locationB");
+    assertEquals(5, statusWrites);
+    assertEquals("locationB", presenceService.getLocation("user1"));
+    assertTrue(presenceService.online("locationB").containsKey("user1"));
+    assertFalse(presenceService.online("locationC").containsKey("user1"));
+  }
+
+  @Test
+  public void testRecords() {
+    PresenceRecord record = new PresenceRecord(new String("locationA"), new String(
+        "online"), 10);
+    PresenceRecord other = new PresenceRecord(new String("locationA"), new String(
+        "online"), 10);
+    // interned, so thousands of users share one copy.
+    assertSame(record.getLocation(), other.getLocation());
+    assertSame(record.getStatus(), other.getStatus());
+    assertSame(record, record.update(null, null, 10));
+    assertSame(record, record.update("locationA", "online", 10));
+    PresenceRecord updated = record.update(null, "away", 11);
+    assertEquals("locationA", updated.getLocation());
+    assertEquals("away", updated.getStatus());
+    assertEquals(11, updated.getTimestamp());
+    assertEquals("online", record.getStatus());
+  }
+
+  @Test
+  public void testBulkLookup() {
+    presenceService.ping("user1", "locationA");
+    presenceService.ping("user2", "locationB");
+    presenceService.setStatus("user2", "away");
+    List<String> users = Lists.newArrayList("user1", "user2", "user3");
+    Map<String, String> statuses = presenceService.getStatuses(users);
+    assertEquals(3, statuses.size());
+    assertEquals("online", statuses.get("user1"));
+    assertEquals("away", statuses.get("user2"));
+    assertEquals("offline", statuses.get("user3"));
+    Map<String, String> locations = presenceService.getLocations(users);
+    assertEquals("locationA", locations.get("user1"));
+    assertEquals("locationB", locations.get("user2"));
+    assertEquals("none", locations.get("user3"));
+    // nothing is cached for the unknown user.
+    assertFalse(presenceStatusCache.containsKey("user3"));
+  }
+
+  @Test
+  public void testExpiry() {
+    final List<String> offline = Lists.newArrayList();
+    presenceService.bindPresenceListener(new PresenceListener() {
+      public void changed(String uuid, String status, String location) {
+      }
+
+      public void offline(String uuid, String location) {
+        offline.add(uuid + "@" + location);
+      }
+    });
+    int before = now();
+    presenceService.ping("user1", "locationA");
+    presenceService.ping("user2", "locationA");
+    presenceService.ping("user3", "locationB");
+    presenceService.setStatus("user4", "away");
+    int after = now();
+    assertEquals(0, presenceService.expire(before + PresenceServiceImpl.PRESENCE_TTL_TICKS
+        - 1));
+    assertEquals(2, presenceService.online("locationA").size());
+
+    // moving takes the user out of the old location.
+    presenceService.ping("user2", "locationB");
+    assertFalse(((Map<?, ?>) presenceLocationCache.get("locationA")).containsKey("user2"));
+    presenceService.clear("user3");
+    assertEquals(Arrays.asList("user3@locationB"), offline);
+
+    assertEquals(3, presenceService.expire(after + PresenceServiceImpl.PRESENCE_TTL_TICKS));
+    assertEquals(4, offline.size());
+    assertTrue(offline.containsAll(Arrays.asList("user1@locationA", "user2@locationB",
+        "user4@none")));
+    // nothing is left behind for the users that went away.
+    assertFalse(presenceStatusCache.containsKey("user1"));
+    assertFalse(presenceStatusCache.containsKey("user4"));
+    assertFalse(presenceLocationCache.containsKey("locationA"));
+    assertFalse(presenceLocationCache.containsKey("locationB"));
+    assertEquals(0, presenceService.expire(after + 2 * PresenceServiceImpl.PRESENCE_TTL_TICKS));
+  }
+
+  @Test
+  public void testTimingWheel() {
+    final List<String> expired = Lists.newArrayList();
+    PresenceTimingWheel.Expiry expiry = new PresenceTimingWheel.Expiry() {
+      public void expire(String uuid, int tick) {
+        expired.add(uuid + "@" + tick);
+      }
+    };
+    PresenceTimingWheel wheel = new PresenceTimingWheel(3, 100);
+    wheel.schedule("a", 100);
+    wheel.schedule("b", 100);
+    wheel.schedule("c", 101);
+    // seen again, so moved to a later slot.
+    wheel.schedule("b", 102);
+    assertEquals(3, wheel.size());
+    assertEquals(0, wheel.advance(102, expiry));
+    assertEquals(1, wheel.advance(103, expiry));
+    assertEquals(Arrays.asList("a@100"), expired);
+    wheel.cancel("c");
+    assertEquals(0, wheel.advance(104, expiry));
+    // scheduled in the slot that is expired next turn, but not due yet.
+    wheel.schedule("d", 106);
+    assertEquals(1, wheel.advance(105, expiry));
+    assertEquals("b@102", expired.get(1));
+    // far behind, every slot is looked at once.
+    wheel.schedule("e", 107);
+    assertEquals(2, wheel.advance(200, expiry));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testWatchers() throws InterruptedException {
+    final PresenceWatchers watchers = new PresenceWatchers();
+    final List<String> changes = Lists.newArrayList();
+    presenceService.bindPresenceListener(new PresenceListener() {
+      public void changed(String uuid, String status, String location) {
+        changes.add(uuid);
+        watchers.changed(uuid);
+      }
+
+      public void offline(String uuid, String location) {
+        watchers.changed(uuid);
+        watchers.remove(uuid);
+      }
+    });
+    presenceService.ping("user1", "locationA");
+    List<String> contacts = Lists.newArrayList("user1", "user2");
+    final PresenceWatchers.Watcher watcher = watchers.watch("me", contacts);
+    assertEquals(2, watcher.delta(presenceService.getStatuses(contacts), presenceService
+        .getLocations(contacts)).size());
+    // nothing changed, nothing to send.
+    assertEquals(0, watcher.delta(presenceService.getStatuses(contacts), presenceService
+        .getLocations(contacts)).size());
+    assertTrue(watcher.await(10).isEmpty());
+
+    // pings that change nothing wake no one.
+    presenceService.ping("user1", "locationA");
+    presenceService.ping("other", "locationA");
+    assertEquals(Arrays.asList("user1", "other"), changes);
+    assertTrue(watcher.await(10).isEmpty());
+
+    final List<Set<String>> woken = Lists.newArrayList();
+    Thread waiting = new Thread() {
+      @Override
+      public void run() {
+        try {
+          woken.add(watcher.await(5000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    waiting.start();
+    Thread.sleep(50);
+    presenceService.setStatus("user2", "busy");
+    waiting.join();
+    Set<String> changed = woken.get(0);
+    assertEquals(1, changed.size());
+    List<String> delta = watcher.delta(presenceService.getStatuses(changed), presenceService
+        .getLocations(changed));
+    assertEquals(Arrays.asList("user2"), delta);
+
+    presenceService.clear("user1");
+    assertEquals(1, watcher.await(10).size());
+    assertEquals(2, watchers.watchedSize());
+    presenceService.ping("me", "locationA");
+    presenceService.clear("me");
+    assertNull(watchers.get("me"));
+    assertEquals(0, watchers.watchedSize());
+  }
+
+  @Test
+  public void testWatcherPerSubscription() throws InterruptedException {
+    PresenceWatchers watchers = new PresenceWatchers();
+    List<String> contacts = Lists.newArrayList("user1");
+    PresenceWatchers.Watcher window1 = watchers.watch("me", "window1", contacts);
+    PresenceWatchers.Watcher window2 = watchers.watch("me", "window2", contacts);
+    watchers.changed("user1");
+    // each window sees the change, neither takes it from the other.
+    assertEquals(1, window1.await(10).size());
+    assertEquals(1, window2.await(10).size());
+    assertEquals(window1, watchers.get("me", "window1"));
+
+    for (int i = 0; i < PresenceWatchers.MAX_SUBSCRIPTIONS; i++) {
+      watchers.watch("me", "other" + i, contacts);
+    }
+    assertEquals(PresenceWatchers.MAX_SUBSCRIPTIONS, watchers.size());
+    assertNull(watchers.get("me", "window1"));
+    watchers.remove("me");
+    assertEquals(0, watchers.size());
+    assertEquals(0, watchers.watchedSize());
+  }
+
+  @Test
+  public void testContactPresenceView() {
+    final ContactPresenceView view = new ContactPresenceView(60000L);
+    presenceService.bindPresenceListener(new PresenceListener() {
+      public void changed(String uuid, String status, String location) {
+        view.changed(uuid, status, location);
+      }
+
+      public void offline(String uuid, String location) {
+        view.offline(uuid);
+      }
+    });
+    presenceService.ping("user1", "locationA");
+    assertNull(view.get("me"));
+    List<String> contacts = Lists.newArrayList("user1", "user2");
+    ContactPresenceView.Contacts me = view.build("me", contacts);
+    Map<String, String> statuses = presenceService.getStatuses(contacts);
+    Map<String, String> locations = presenceService.getLocations(contacts);
+    assertNull(view.get("me"));
+    // a change between the lookup and the fill is kept.
+    presenceService.ping("user2", "locationC");
+    view.fill(me, statuses, locations);
+    assertSame(me, view.get("me"));
+    assertEquals("online", me.getPresence().get("user1").getStatus());
+    assertEquals("online", me.getPresence().get("user2").getStatus());
+    assertEquals("locationC", me.getPresence().get("user2").getLocation());
+    presenceService.clear("user2");
+    assertEquals("offline", me.getPresence().get("user2").getStatus());
+
+    // kept up to date without building again.
+    presenceService.ping("user2", "locationB");
+    presenceService.setStatus("user1", "away");
+    presenceService.ping("other", "locationB");
+    assertEquals("locationB", me.getPresence().get("user2").getLocation());
+    assertEquals("away", me.getPresence().get("user1").getStatus());
+    assertEquals(2, me.getPresence().size());
+    presenceService.clear("user1");
+    assertEquals("offline", me.getPresence().get("user1").getStatus());
+    assertEquals("none", me.getPresence().get("user1").getLocation());
+
+    // connections accepted and removed.
+    view.connected("me", "user3", "online", "locationC");
+    view.disconnected("me", "user2");
+    assertEquals(Sets.newHashSet("user1", "user3"), me.getPresence().keySet());
+    presenceService.ping("user2", "locationA");
+    assertFalse(me.getPresence().containsKey("user2"));
+    assertEquals(2, view.viewedSize());
+
+    // dropped when the user goes offline.
+    presenceService.ping("me", "locationA");
+    presenceService.clear("me");
+    assertNull(view.get("me"));
+    assertEquals(0, view.size());
+    assertEquals(0, view.viewedSize());
+  }
+
+  /**
+   * @return the current presence timestamp.
+   */
+  private int now() {
+    return (int) (System.currentTimeMillis() / 20000L);
+  }
 }
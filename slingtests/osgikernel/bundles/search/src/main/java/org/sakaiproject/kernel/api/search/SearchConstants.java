@@ -58,6 +58,11 @@ public interface SearchConstants {
   
   public static final String REG_PROVIDER_NAMES = "sakai.search.provider";
   public static final String SAKAI_PROPERTY_PROVIDER = "sakai:propertyprovider";
+  /**
+   * The number of seconds the results of a search may be cached for, results are not
+   * cached if there is none.
+   */
+  public static final String SAKAI_CACHE_TTL = "sakai:cache-ttl";
 
   /**
   *
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+/**
+ * A query template compiled once into the literal text between the variables and the
+ * variables themselves, so that expanding it for a request only appends. Templates are of
+ * the form <code>select * from y where x = '{q|default}'</code>, where <code>{q}</code> is
+ * replaced by the request parameter q, <code>{_q}</code> by the user property _q, and the
+ * default is used if there is neither. A backslash outside a variable makes the next
+ * character literal.
+ */
+public final class QueryTemplate implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -4627180390233734871L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryTemplate.class);
+
+  /**
+   * A variable in the template.
+   */
+  private static final class Variable implements Serializable {
+    private static final long serialVersionUID = 3279411262101526398L;
+    private final String name;
+    private final String defaultValue;
+    private final boolean userProperty;
+
+    private Variable(String name, String defaultValue) {
+      this.name = name;
+      this.defaultValue = defaultValue;
+      this.userProperty = name.startsWith("_");
+    }
+  }
+
+  private final String source;
+  /**
+   * The text before each variable, and the text after the last, one more than variables.
+   */
+  private final String[] literals;
+  private final Variable[] variables;
+  private final boolean userProperties;
+  private final int length;
+
+  /**
+   * Compile a template.
+   * 
+   * @param source
+   *          the template.
+   */
+  public QueryTemplate(String source) {
+    this.source = source;
+    List<String> literals = new ArrayList<String>();
+    List<Variable> variables = new ArrayList<Variable>();
+    StringBuilder sb = new StringBuilder();
+    boolean escape = false;
+    int vstart = -1;
+    int n = source.length();
+    for (int i = 0; i < n; i++) {
+      char c = source.charAt(i);
+      if (escape) {
+        sb.append(c);
+        escape = false;
+      } else if (vstart >= 0) {
+        if (c == '}') {
+          String v = source.substring(vstart + 1, i);
+          String defaultValue = null;
+          // Take care of default values
+          int bar = v.indexOf('|');
+          if (bar >= 0) {
+            int end = v.indexOf('|', bar + 1);
+            defaultValue = v.substring(bar + 1, end < 0 ? v.length() : end);
+            v = v.substring(0, bar);
+          }
+          literals.add(sb.toString());
+          sb.setLength(0);
+          variables.add(new Variable(v, defaultValue));
+          vstart = -1;
+        }
+      } else {
+        switch (c) {
+        case '{':
+          vstart = i;
+          break;
+        case '\\':
+          escape = true;
+          break;
+        default:
+          sb.append(c);
+        }
+      }
+    }
+    literals.add(sb.toString());
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.variables = variables.toArray(new Variable[variables.size()]);
+    boolean user = false;
+    int length = 0;
+    for (Variable variable : this.variables) {
+      user = user || variable.userProperty;
+    }
+    for (String literal : this.literals) {
+      length += literal.length();
+    }
+    this.userProperties = user;
+    this.length = length;
+  }
+
+  /**
+   * @return the template this was compiled from.
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @return true if the template refers to user properties, false if there is no need to
+   *         load them.
+   */
+  public boolean hasUserProperties() {
+    return userProperties;
+  }
+
+  /**
+   * Expand the template.
+   * 
+   * @param request
+   *          the request holding the parameters.
+   * @param properties
+   *          the user properties, may be null if there are none.
+   * @param queryLanguage
+   *          the language of the query, to escape the values for.
+   * @return the query.
+   */
+  public String expand(SlingHttpServletRequest request, Map<String, String> properties,
+      String queryLanguage) {
+    StringBuilder sb = new StringBuilder(length + 16 * variables.length);
+    for (int i = 0; i < variables.length; i++) {
+      sb.append(literals[i]);
+      Variable variable = variables[i];
+      String value = null;
+      if (variable.userProperty) {
+        if (properties != null) {
+          value = properties.get(variable.name);
+        }
+      } else {
+        RequestParameter rp = request.getRequestParameter(variable.name);
+        if (rp != null) {
+          value = rp.getString();
+        }
+      }
+      if (value == null) {
+        value = variable.defaultValue;
+      }
+      if (value != null) {
+        escape(sb, value, queryLanguage);
+      }
+    }
+    sb.append(literals[variables.length]);
+    return sb.toString();
+  }
+
+  /**
+   * Append a value escaped for the query language in one pass.
+   * 
+   * @param sb
+   * @param value
+   * @param queryLanguage
+   */
+  static void escape(StringBuilder sb, String value, String queryLanguage) {
+    if (!Query.XPATH.equals(queryLanguage) && !Query.SQL.equals(queryLanguage)) {
+      // the value cannot be made safe, so it is left out.
+      LOGGER.error("Unknown query language: " + queryLanguage);
+      return;
+    }
+    // See JSR-170 spec v1.0, Sec. 6.6.4.9 and 6.6.5.2
+    int n = value.length();
+    for (int i = 0; i < n; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\\':
+        sb.append('\\');
+        if (i + 1 < n) {
+          char next = value.charAt(i + 1);
+          if (next == '-' || next == '"') {
+            break;
+          }
+        }
+        sb.append('\\');
+        break;
+      case '\'':
+        sb.append("\\''");
+        break;
+      default:
+        sb.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,509 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.util.ISO9075;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Caches the results of searches as the ordered paths of the result nodes, keyed by the
+ * query, its language and the principals of the caller, so that a repeated search is
+ * answered without running the query again. The entries for a query are keyed under the
+ * part of the repository the query searches, which is bound to the cache as a whole, so
+ * any change there removes them. Results are read back through the session of the
+ * caller, so nodes the caller can no longer read are left out.
+ * <p>
+ * The principals of a user are looked up once and kept for {@link #PRINCIPALS_TTL}, so a
+ * change of group membership may take that long to change the keys of the user. This
+ * only decides which cached results a user shares, what they can read is still checked
+ * by their session.
+ */
+public class SearchResultCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResultCache.class);
+
+  /**
+   * The name of the cache of results.
+   */
+  static final String RESULT_CACHE = "search.results";
+
+  /**
+   * The name of the cache of the principals of users.
+   */
+  static final String PRINCIPAL_CACHE = "search.principals";
+
+  /**
+   * The time in ms the principals of a user are kept for.
+   */
+  static final long PRINCIPALS_TTL = 60000L;
+
+  /**
+   * Searches with more results than this are not cached.
+   */
+  static final int MAX_RESULTS = 1000;
+
+  /**
+   * At most this many subtrees are bound to the cache, queries in any other subtree are
+   * scoped to the whole repository.
+   */
+  static final int MAX_SCOPES = 1000;
+
+  private static final String JCR_ROOT = "/jcr:root";
+
+  private static final String JCR_PATH = "jcr:path";
+
+  /**
+   * The result of a search.
+   */
+  static final class Results implements Serializable {
+    private static final long serialVersionUID = -2870541062370372861L;
+    private final long expires;
+    private final String[] paths;
+
+    Results(long expires, String[] paths) {
+      this.expires = expires;
+      this.paths = paths;
+    }
+  }
+
+  /**
+   * The principals of a user.
+   */
+  static final class Principals implements Serializable {
+    private static final long serialVersionUID = 4925432611744137185L;
+    private final long expires;
+    private final String[] names;
+
+    Principals(long expires, String[] names) {
+      this.expires = expires;
+      this.names = names;
+    }
+  }
+
+  private final CacheManagerService cacheManagerService;
+  /**
+   * The subtrees bound to the cache.
+   */
+  private final ConcurrentMap<String, Boolean> bound = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * @param cacheManagerService
+   *          the cache manager to keep the results in.
+   */
+  public SearchResultCache(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  /**
+   * @param session
+   *          the session of the caller.
+   * @param scope
+   *          the part of the repository searched, from {@link #getScope(String, String)}.
+   * @param query
+   *          the expanded query.
+   * @param queryLanguage
+   *          the language of the query.
+   * @return the key of the results of the query for the caller.
+   * @throws RepositoryException
+   */
+  public String getKey(Session session, String scope, String query, String queryLanguage)
+      throws RepositoryException {
+    StringBuilder sb = new StringBuilder(queryLanguage).append('\n').append(query);
+    for (String principal : getPrincipals(session)) {
+      sb.append('\n').append(principal);
+    }
+    String digest;
+    try {
+      digest = StringUtils.sha1Hash(sb.toString());
+    } catch (Exception e) {
+      throw new RepositoryException("Unable to create hash.", e);
+    }
+    return "/".equals(scope) ? "/" + digest : scope + "/" + digest;
+  }
+
+  /**
+   * @param session
+   *          the session of the caller, to read the result nodes with.
+   * @param key
+   *          the key from {@link #getKey(Session, String, String, String)}.
+   * @return the cached results, or null if there are none.
+   */
+  public NodeIterator get(Session session, String key) {
+    Cache<Results> cache = cacheManagerService.getCache(RESULT_CACHE, CacheScope.INSTANCE);
+    Results results = cache.get(key);
+    if (results == null) {
+      return null;
+    }
+    if (results.expires < System.currentTimeMillis()) {
+      cache.remove(key);
+      return null;
+    }
+    return new CachedNodeIterator(session, results.paths);
+  }
+
+  /**
+   * Cache the results of a query, if there are not too many. The paths are taken from
+   * the rows of the result, so the nodes are not read for them.
+   * 
+   * @param key
+   *          the key from {@link #getKey(Session, String, String, String)}.
+   * @param scope
+   *          the part of the repository searched.
+   * @param result
+   *          the result of the query.
+   * @param ttl
+   *          the number of seconds the results may be cached for.
+   * @return the nodes of the result.
+   * @throws RepositoryException
+   */
+  public NodeIterator put(String key, String scope, QueryResult result, long ttl)
+      throws RepositoryException {
+    NodeIterator nodes = result.getNodes();
+    long size = nodes.getSize();
+    if (size < 0 || size > MAX_RESULTS) {
+      return nodes;
+    }
+    // bind first so that changes from now on remove the entry.
+    if (bound.putIfAbsent(scope, Boolean.TRUE) == null) {
+      cacheManagerService.bindSubtree(RESULT_CACHE, CacheScope.INSTANCE, scope);
+    }
+    String[] paths = new String[(int) size];
+    int n = 0;
+    RowIterator rows = result.getRows();
+    while (n < paths.length && rows.hasNext()) {
+      Value path = rows.nextRow().getValue(JCR_PATH);
+      if (path == null) {
+        // not selected by the query, leave the result uncached.
+        return nodes;
+      }
+      paths[n++] = path.getString();
+    }
+    if (n < paths.length) {
+      String[] read = new String[n];
+      System.arraycopy(paths, 0, read, 0, n);
+      paths = read;
+    }
+    Cache<Results> cache = cacheManagerService.getCache(RESULT_CACHE, CacheScope.INSTANCE);
+    cache.put(key, new Results(System.currentTimeMillis() + ttl * 1000L, paths));
+    return nodes;
+  }
+
+  /**
+   * Stop removing results on changes.
+   */
+  public void unbind() {
+    for (String scope : bound.keySet()) {
+      cacheManagerService.unbindFromPath(RESULT_CACHE, CacheScope.INSTANCE, scope);
+    }
+    bound.clear();
+  }
+
+  /**
+   * Find the part of the repository a query searches, as {@link #findScope(String, String)}
+   * does, or the whole repository once {@link #MAX_SCOPES} other subtrees are bound.
+   * 
+   * @param query
+   *          the expanded query.
+   * @param queryLanguage
+   *          the language of the query.
+   * @return the root of the subtree searched.
+   */
+  public String getScope(String query, String queryLanguage) {
+    String scope = findScope(query, queryLanguage);
+    if (!bound.containsKey(scope) && bound.size() >= MAX_SCOPES) {
+      return "/";
+    }
+    return scope;
+  }
+
+  /**
+   * Find the part of the repository a query searches, the path named by the steps of an
+   * XPath query before the first step with a wildcard, predicate, function or descendant
+   * axis, without the last step which selects the results. Any other query may search
+   * anywhere, including a query starting with //, which matches its steps at any depth,
+   * so templates searching a subtree start with /jcr:root.
+   * 
+   * @param query
+   *          the expanded query.
+   * @param queryLanguage
+   *          the language of the query.
+   * @return the root of the subtree searched.
+   */
+  static String findScope(String query, String queryLanguage) {
+    if (!Query.XPATH.equals(queryLanguage) || isUnion(query)) {
+      return "/";
+    }
+    if (!query.startsWith(JCR_ROOT + "/")) {
+      return "/";
+    }
+    String path = query.substring(JCR_ROOT.length() + 1);
+    if (path.startsWith("/")) {
+      // a descendant axis from the root.
+      return "/";
+    }
+    String[] steps = StringUtils.split(path, '/');
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < steps.length - 1; i++) {
+      String step = steps[i];
+      if (step.length() == 0 || !isName(step)) {
+        break;
+      }
+      sb.append('/').append(ISO9075.decode(step));
+    }
+    return sb.length() == 0 ? "/" : sb.toString();
+  }
+
+  /**
+   * @param query
+   * @return true if the query is a union of paths, rather than having a union within a
+   *         step.
+   */
+  private static boolean isUnion(String query) {
+    int depth = 0;
+    char quote = 0;
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+        continue;
+      }
+      switch (c) {
+      case '\'':
+      case '"':
+        quote = c;
+        break;
+      case '(':
+      case '[':
+        depth++;
+        break;
+      case ')':
+      case ']':
+        depth--;
+        break;
+      case '|':
+        if (depth == 0) {
+          return true;
+        }
+        break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param step
+   * @return true if the step is just a node name.
+   */
+  private static boolean isName(String step) {
+    for (int i = 0; i < step.length(); i++) {
+      switch (step.charAt(i)) {
+      case '*':
+      case '[':
+      case '(':
+      case '@':
+      case '.':
+      case ' ':
+      case '\'':
+      case '"':
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param session
+   * @return the sorted names of the user of the session and the groups they are in, as
+   *         they were at most {@link #PRINCIPALS_TTL} ago.
+   * @throws RepositoryException
+   */
+  String[] getPrincipals(Session session) throws RepositoryException {
+    String userId = session.getUserID();
+    if (userId == null) {
+      return new String[0];
+    }
+    Cache<Principals> cache = cacheManagerService.getCache(PRINCIPAL_CACHE,
+        CacheScope.INSTANCE);
+    Principals principals = cache.get(userId);
+    long now = System.currentTimeMillis();
+    if (principals == null || principals.expires < now) {
+      Set<String> names = readPrincipals(session);
+      principals = new Principals(now + PRINCIPALS_TTL, names.toArray(new String[names
+          .size()]));
+      cache.put(userId, principals);
+    }
+    return principals.names;
+  }
+
+  /**
+   * @param session
+   * @return the sorted names of the user of the session and the groups they are in.
+   * @throws RepositoryException
+   */
+  @SuppressWarnings("unchecked")
+  static Set<String> readPrincipals(Session session) throws RepositoryException {
+    Set<String> principals = new TreeSet<String>();
+    String userId = session.getUserID();
+    if (userId == null) {
+      return principals;
+    }
+    principals.add(userId);
+    if (session instanceof JackrabbitSession) {
+      UserManager userManager = ((JackrabbitSession) session).getUserManager();
+      Authorizable authorizable = userManager.getAuthorizable(userId);
+      if (authorizable != null) {
+        for (Iterator<Group> groups = authorizable.memberOf(); groups.hasNext();) {
+          principals.add(groups.next().getPrincipal().getName());
+        }
+      }
+    }
+    return principals;
+  }
+
+  /**
+   * Reads cached results through a session, skipping nodes that are gone or can no longer
+   * be read. Skipping does not read the nodes skipped.
+   */
+  static final class CachedNodeIterator implements NodeIterator {
+    private final Session session;
+    private final String[] paths;
+    private int position;
+    private Node next;
+
+    CachedNodeIterator(Session session, String[] paths) {
+      this.session = session;
+      this.paths = paths;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.jcr.NodeIterator#nextNode()
+     */
+    public Node nextNode() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Node node = next;
+      next = null;
+      return node;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.jcr.RangeIterator#getPosition()
+     */
+    public long getPosition() {
+      return next == null ? position : position - 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.jcr.RangeIterator#getSize()
+     */
+    public long getSize() {
+      return paths.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.jcr.RangeIterator#skip(long)
+     */
+    public void skip(long skipNum) {
+      long target = getPosition() + skipNum;
+      if (skipNum < 0 || target > paths.length) {
+        throw new NoSuchElementException();
+      }
+      next = null;
+      position = (int) target;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.Iterator#hasNext()
+     */
+    public boolean hasNext() {
+      while (next == null && position < paths.length) {
+        String path = paths[position++];
+        try {
+          Item item = session.getItem(path);
+          if (item instanceof Node) {
+            next = (Node) item;
+          }
+        } catch (PathNotFoundException e) {
+          // gone, or not readable by this session.
+        } catch (RepositoryException e) {
+          LOGGER.warn("Failed to read cached search result {} {}", path, e.getMessage());
+        }
+      }
+      return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.Iterator#next()
+     */
+    public Object next() {
+      return nextNode();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.Iterator#remove()
+     */
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -23,6 +23,7 @@ import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_ITEMS_PE
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_PROVIDER_NAMES;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_CACHE_TTL;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
@@ -43,6 +44,9 @@ import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.search.SearchPropertyProvider;
 import org.sakaiproject.kernel.api.search.SearchResultProcessor;
@@ -60,6 +64,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -88,6 +93,9 @@ import javax.servlet.http.HttpServletResponse;
  *                bind="bindSearchPropertyProvider"
  *                unbind="unbindSearchPropertyProvider" cardinality="0..n"
  *                policy="dynamic"
+ * @scr.reference name="CacheManagerService"
+ *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
+ *                bind="bindCacheManagerService" unbind="unbindCacheManagerService"
  */
 public class SearchServlet extends SlingAllMethodsServlet {
 
@@ -97,6 +105,11 @@ public class SearchServlet extends SlingAllMethodsServlet {
   private static final long serialVersionUID = 4130126304725079596L;
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SearchServlet.class);
+  /**
+   * Compiled query templates by the path of the search node, invalidated when the node
+   * changes.
+   */
+  private static final String TEMPLATE_CACHE = "search.templates";
   private SearchResultProcessor defaultSearchProcessor = new SearchResultProcessor() {
     public void writeNode(JSONWriter write, Node resultNode)
         throws JSONException, RepositoryException {
@@ -113,6 +126,9 @@ public class SearchServlet extends SlingAllMethodsServlet {
   private List<ServiceReference> delayedReferences = new ArrayList<ServiceReference>();
   private List<ServiceReference> delayedPropertyReferences = new ArrayList<ServiceReference>();
 
+  private CacheManagerService cacheManagerService;
+  private SearchResultCache resultCache;
+
   protected void output(JSONWriter write, NodeIterator resultNodes, long start,
       long end) throws RepositoryException, JSONException {
   }
@@ -138,14 +154,38 @@ public class SearchServlet extends SlingAllMethodsServlet {
         int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
         int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
 
-        String queryString = processQueryTemplate(request, queryTemplate,
-            queryLanguage, propertyProviderName);
+        QueryTemplate template = getQueryTemplate(node, queryTemplate);
+        Map<String, String> propertiesMap = null;
+        if (template.hasUserProperties()) {
+          propertiesMap = loadUserProperties(request, propertyProviderName);
+        }
+        String queryString = template.expand(request, propertiesMap, queryLanguage);
 
-        LOGGER.info("Posting Query {} ", queryString);
-        QueryManager queryManager = node.getSession().getWorkspace()
-            .getQueryManager();
-        Query query = queryManager.createQuery(queryString, queryLanguage);
-        QueryResult result = query.execute();
+        long cacheTtl = 0;
+        if (node.hasProperty(SAKAI_CACHE_TTL)) {
+          cacheTtl = node.getProperty(SAKAI_CACHE_TTL).getLong();
+        }
+        Session session = node.getSession();
+        SearchResultCache cache = resultCache;
+        String cacheScope = null;
+        String cacheKey = null;
+        NodeIterator resultNodes = null;
+        if (cacheTtl > 0 && cache != null) {
+          cacheScope = cache.getScope(queryString, queryLanguage);
+          cacheKey = cache.getKey(session, cacheScope, queryString, queryLanguage);
+          resultNodes = cache.get(session, cacheKey);
+        }
+        if (resultNodes == null) {
+          LOGGER.debug("Posting Query {} ", queryString);
+          QueryManager queryManager = session.getWorkspace().getQueryManager();
+          Query query = queryManager.createQuery(queryString, queryLanguage);
+          QueryResult result = query.execute();
+          if (cacheKey != null) {
+            resultNodes = cache.put(cacheKey, cacheScope, result, cacheTtl);
+          } else {
+            resultNodes = result.getNodes();
+          }
+        }
 
         JSONWriter write = new JSONWriter(response.getWriter());
         write.object();
@@ -153,7 +193,6 @@ public class SearchServlet extends SlingAllMethodsServlet {
         write.value(queryString);
         write.key(PARAMS_ITEMS_PER_PAGE);
         write.value(nitems);
-        NodeIterator resultNodes = result.getNodes();
         write.key(TOTAL);
         long total = resultNodes.getSize();
         write.value(total);
@@ -220,61 +259,37 @@ public class SearchServlet extends SlingAllMethodsServlet {
    */
   protected String processQueryTemplate(SlingHttpServletRequest request,
       String queryTemplate, String queryLanguage, String propertyProviderName) {
-    Map<String, String> propertiesMap = loadUserProperties(request,
-        propertyProviderName);
-
-    StringBuilder sb = new StringBuilder();
-    boolean escape = false;
-    int vstart = -1;
-    char[] ca = queryTemplate.toCharArray();
-    String defaultValue = null;
-    for (int i = 0; i < ca.length; i++) {
-      char c = ca[i];
-      if (escape) {
-        sb.append(c);
-        escape = false;
-      } else if (vstart >= 0) {
-        if (c == '}') {
-          String v = new String(ca, vstart + 1, i - vstart - 1);
-          defaultValue = null;
-          // Take care of default values
-          if (v.contains("|")) {
-            String[] val = v.split("\\|");
-            v = val[0];
-            defaultValue = val[1];
-          }
-          if (v.startsWith("_")) {
-            String value = propertiesMap.get(v);
-            if (value != null) {
-              sb.append(escapeString(value, queryLanguage));
-            } else if (value == null && defaultValue != null) {
-              sb.append(escapeString(defaultValue, queryLanguage));
-            }
-          } else {
+    QueryTemplate template = new QueryTemplate(queryTemplate);
+    Map<String, String> propertiesMap = null;
+    if (template.hasUserProperties()) {
+      propertiesMap = loadUserProperties(request, propertyProviderName);
+    }
+    return template.expand(request, propertiesMap, queryLanguage);
+  }
 
-            RequestParameter rp = request.getRequestParameter(v);
-            if (rp != null) {
-              sb.append(escapeString(rp.getString(), queryLanguage));
-            } else if (rp == null && defaultValue != null) {
-              sb.append(escapeString(defaultValue, queryLanguage));
-            }
-          }
-          vstart = -1;
-        }
-      } else {
-        switch (c) {
-        case '{':
-          vstart = i;
-          break;
-        case '\\':
-          escape = true;
-          break;
-        default:
-          sb.append(c);
-        }
-      }
+  /**
+   * @param node
+   *          the search node.
+   * @param queryTemplate
+   *          the query template of the node.
+   * @return the template compiled, from the cache if it was compiled before.
+   * @throws RepositoryException
+   */
+  private QueryTemplate getQueryTemplate(Node node, String queryTemplate)
+      throws RepositoryException {
+    CacheManagerService cms = cacheManagerService;
+    if (cms == null) {
+      return new QueryTemplate(queryTemplate);
     }
-    return sb.toString();
+    Cache<QueryTemplate> templates = cms.getCache(TEMPLATE_CACHE, CacheScope.INSTANCE);
+    String path = node.getPath();
+    QueryTemplate template = templates.get(path);
+    // invalidation follows the change shortly after, so check it is the same template.
+    if (template == null || !template.getSource().equals(queryTemplate)) {
+      template = new QueryTemplate(queryTemplate);
+      templates.put(path, template);
+    }
+    return template;
   }
 
   /**
@@ -292,36 +307,22 @@ public class SearchServlet extends SlingAllMethodsServlet {
     propertiesMap.put("_userPrivatePath", ISO9075.encodePath(userPrivatePath));
     propertiesMap.put("_userId", userId);
     if (propertyProviderName != null) {
-      LOGGER.info("Trying Provider Name {} ", propertyProviderName);
+      LOGGER.debug("Trying Provider Name {} ", propertyProviderName);
       SearchPropertyProvider provider = propertyProvider
           .get(propertyProviderName);
       if (provider != null) {
-        LOGGER.info("Trying Provider {} ", provider);
+        LOGGER.debug("Trying Provider {} ", provider);
         provider.loadUserProperties(request, propertiesMap);
       } else {
         LOGGER.warn("No properties provider found for {} ",
             propertyProviderName);
       }
     } else {
-      LOGGER.info("No Provider ");
+      LOGGER.debug("No Provider ");
     }
     return propertiesMap;
   }
 
-  private String escapeString(String value, String queryLanguage) {
-    String escaped = null;
-    if (value != null) {
-      if (queryLanguage.equals(Query.XPATH) || queryLanguage.equals(Query.SQL)) {
-        // See JSR-170 spec v1.0, Sec. 6.6.4.9 and 6.6.5.2
-        escaped = value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'",
-            "\\\\'").replaceAll("'", "''");
-      } else {
-        LOGGER.error("Unknown query language: " + queryLanguage);
-      }
-    }
-    return escaped;
-  }
-
   protected void bindSearchResultProcessor(ServiceReference serviceReference) {
     synchronized (delayedReferences) {
       if (osgiComponentContext == null) {
@@ -439,7 +440,20 @@ public class SearchServlet extends SlingAllMethodsServlet {
     }
   }
 
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+
   protected void activate(ComponentContext componentContext) {
+    if (cacheManagerService != null) {
+      // search nodes may be anywhere.
+      cacheManagerService.bindToPath(TEMPLATE_CACHE, CacheScope.INSTANCE, "/");
+      resultCache = new SearchResultCache(cacheManagerService);
+    }
 
     synchronized (delayedReferences) {
       osgiComponentContext = componentContext;
@@ -457,4 +471,14 @@ public class SearchServlet extends SlingAllMethodsServlet {
     }
   }
 
+  protected void deactivate(ComponentContext componentContext) {
+    if (cacheManagerService != null) {
+      cacheManagerService.unbindFromPath(TEMPLATE_CACHE, CacheScope.INSTANCE, "/");
+    }
+    if (resultCache != null) {
+      resultCache.unbind();
+      resultCache = null;
+    }
+  }
+
 }
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+/**
+ * Compares expanding query templates with 0, 5 and 20 variables by parsing the template
+ * and escaping with regular expressions on every request, as search used to, with
+ * expanding a template compiled once. Not a unit test, run it by hand with
+ * <code>java -cp target/classes:target/test-classes org.sakaiproject.kernel.search.QueryTemplateBenchmark</code>
+ */
+public class QueryTemplateBenchmark {
+
+  private static final int[] VARIABLES = new int[] { 0, 5, 20 };
+  private static final int EXPANSIONS = 200000;
+  private static final int ROUNDS = 5;
+
+  private static volatile int sink;
+
+  public static void main(String[] args) {
+    Map<String, String> parameters = new HashMap<String, String>();
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("_userId", "bob");
+    SlingHttpServletRequest request = request(parameters);
+    System.out.println("template\texpansions/s");
+    for (int variables : VARIABLES) {
+      StringBuilder sb = new StringBuilder("//*[@sling:resourceType='sakai/page'");
+      for (int i = 0; i < variables; i++) {
+        if (i % 5 == 4) {
+          sb.append(" and @sakai:owner='{_userId}'");
+        } else {
+          sb.append(" and jcr:contains(@p").append(i).append(", '{q").append(i).append(
+              "|*}')");
+          parameters.put("q" + i, "it's a \\\"search\\\" for value " + i);
+        }
+      }
+      String source = sb.append("]").toString();
+      QueryTemplate template = new QueryTemplate(source);
+      if (!template.expand(request, properties, Query.XPATH).equals(
+          legacyExpand(request, source, properties, Query.XPATH))) {
+        throw new IllegalStateException("Compiled template differs for " + source);
+      }
+      for (int round = 0; round < ROUNDS; round++) {
+        long start = System.nanoTime();
+        int n = 0;
+        for (int i = 0; i < EXPANSIONS; i++) {
+          n += legacyExpand(request, source, properties, Query.XPATH).length();
+        }
+        sink = n;
+        report("parsed, " + variables + " variables", EXPANSIONS, start);
+        start = System.nanoTime();
+        n = 0;
+        for (int i = 0; i < EXPANSIONS; i++) {
+          n += template.expand(request, properties, Query.XPATH).length();
+        }
+        sink = n;
+        report("compiled, " + variables + " variables", EXPANSIONS, start);
+      }
+    }
+  }
+
+  /**
+   * A request that only has parameters.
+   */
+  private static SlingHttpServletRequest request(final Map<String, String> parameters) {
+    return (SlingHttpServletRequest) Proxy.newProxyInstance(
+        QueryTemplateBenchmark.class.getClassLoader(),
+        new Class<?>[] { SlingHttpServletRequest.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("getRequestParameter".equals(method.getName())) {
+              final String value = parameters.get(args[0]);
+              if (value == null) {
+                return null;
+              }
+              return Proxy.newProxyInstance(QueryTemplateBenchmark.class.getClassLoader(),
+                  new Class<?>[] { RequestParameter.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                      if ("getString".equals(method.getName())) {
+                        return value;
+                      }
+                      throw new UnsupportedOperationException(method.getName());
+                    }
+                  });
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * The expansion search did before templates were compiled, as the baseline.
+   */
+  private static String legacyExpand(SlingHttpServletRequest request,
+      String queryTemplate, Map<String, String> propertiesMap, String queryLanguage) {
+    StringBuilder sb = new StringBuilder();
+    boolean escape = false;
+    int vstart = -1;
+    char[] ca = queryTemplate.toCharArray();
+    String defaultValue = null;
+    for (int i = 0; i < ca.length; i++) {
+      char c = ca[i];
+      if (escape) {
+        sb.append(c);
+        escape = false;
+      } else if (vstart >= 0) {
+        if (c == '}') {
+          String v = new String(ca, vstart + 1, i - vstart - 1);
+          defaultValue = null;
+          if (v.contains("|")) {
+            String[] val = v.split("\\|");
+            v = val[0];
+            defaultValue = val[1];
+          }
+          if (v.startsWith("_")) {
+            String value = propertiesMap.get(v);
+            if (value != null) {
+              sb.append(legacyEscape(value, queryLanguage));
+            } else if (defaultValue != null) {
+              sb.append(legacyEscape(defaultValue, queryLanguage));
+            }
+          } else {
+            RequestParameter rp = request.getRequestParameter(v);
+            if (rp != null) {
+              sb.append(legacyEscape(rp.getString(), queryLanguage));
+            } else if (defaultValue != null) {
+              sb.append(legacyEscape(defaultValue, queryLanguage));
+            }
+          }
+          vstart = -1;
+        }
+      } else {
+        switch (c) {
+        case '{':
+          vstart = i;
+          break;
+        case '\\':
+          escape = true;
+          break;
+        default:
+          sb.append(c);
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String legacyEscape(String value, String queryLanguage) {
+    return value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'", "\\\\'")
+        .replaceAll("'", "''");
+  }
+
+  private static void report(String operation, int ops, long start) {
+    long elapsed = System.nanoTime() - start;
+    System.out.println(operation + "\t" + (ops * 1000000000L / Math.max(1, elapsed)));
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.MapCacheImpl;
+
+import java.security.Principal;
+import java.util.Arrays;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * 
+ */
+public class SearchResultCacheTest {
+
+  private CacheManagerService cacheManagerService;
+  private Cache<SearchResultCache.Results> cache;
+  private SearchResultCache resultCache;
+
+  @Before
+  public void setUp() {
+    cache = new MapCacheImpl<SearchResultCache.Results>();
+    cacheManagerService = createMock(CacheManagerService.class);
+    expect(
+        cacheManagerService.<SearchResultCache.Results> getCache(
+            SearchResultCache.RESULT_CACHE, CacheScope.INSTANCE)).andReturn(cache)
+        .anyTimes();
+    expect(
+        cacheManagerService.<SearchResultCache.Principals> getCache(
+            SearchResultCache.PRINCIPAL_CACHE, CacheScope.INSTANCE)).andReturn(
+        new MapCacheImpl<SearchResultCache.Principals>()).anyTimes();
+    resultCache = new SearchResultCache(cacheManagerService);
+  }
+
+  @Test
+  public void testScope() {
+    assertEquals("/sites/a", SearchResultCache.findScope("/jcr:root/sites/a//*[@x='y']",
+        Query.XPATH));
+    assertEquals("/sites/a", SearchResultCache.findScope(
+        "/jcr:root/sites/a/element(*, sakai:page)", Query.XPATH));
+    assertEquals("/sites/a", SearchResultCache.findScope("/jcr:root/sites/a/b",
+        Query.XPATH));
+    assertEquals("/123", SearchResultCache.findScope("/jcr:root/_x0031_23//*",
+        Query.XPATH));
+    assertEquals("/", SearchResultCache.findScope("//*[@x='/sites/a/b']", Query.XPATH));
+    assertEquals("/", SearchResultCache.findScope("/jcr:root/a[@x='/b/c']/d",
+        Query.XPATH));
+    assertEquals("/", SearchResultCache.findScope("/jcr:root/a//* | /jcr:root/b//*",
+        Query.XPATH));
+    assertEquals("/", SearchResultCache.findScope(
+        "select * from nt:base where jcr:path like '/sites/%'", Query.SQL));
+    // templates starting with /jcr:root and an absolute path.
+    assertEquals("/_user/contacts/bob", SearchResultCache.findScope(
+        "/jcr:root/_user/contacts/bob//*[@sling:resourceType=\"sakai/contact\"]",
+        Query.XPATH));
+    assertEquals("/_user/message/bob", SearchResultCache.findScope(
+        "/jcr:root/_user/message/bob//element(*)MetaData[@sakai:type='chat'] order by @jcr:created",
+        Query.XPATH));
+    assertEquals("/_user/contacts/bob", SearchResultCache.findScope(
+        "/jcr:root/_user/contacts/bob//*[@x='|']/(@firstName|@lastName)", Query.XPATH));
+    // a leading // matches the steps at any depth.
+    assertEquals("/", SearchResultCache.findScope(
+        "//_user/contacts/bob//*[@sling:resourceType=\"sakai/contact\"]", Query.XPATH));
+    assertEquals("/", SearchResultCache.findScope("/jcr:root//a/b//*", Query.XPATH));
+    assertEquals("/", SearchResultCache.findScope("///a/b//*", Query.XPATH));
+  }
+
+  @Test
+  public void testScopesBounded() throws RepositoryException {
+    NodeIterator none = createMock(NodeIterator.class);
+    expect(none.getSize()).andReturn(0L).anyTimes();
+    RowIterator noRows = createMock(RowIterator.class);
+    expect(noRows.hasNext()).andReturn(false).anyTimes();
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andReturn(none).anyTimes();
+    expect(result.getRows()).andReturn(noRows).anyTimes();
+    for (int i = 0; i < SearchResultCache.MAX_SCOPES; i++) {
+      cacheManagerService.bindSubtree(SearchResultCache.RESULT_CACHE, CacheScope.INSTANCE,
+          "/s/" + i);
+    }
+    replay(none, noRows, result, cacheManagerService);
+    for (int i = 0; i < SearchResultCache.MAX_SCOPES; i++) {
+      String query = "/jcr:root/s/" + i + "//*";
+      String scope = resultCache.getScope(query, Query.XPATH);
+      assertEquals("/s/" + i, scope);
+      resultCache.put(scope + "/key", scope, result, 60);
+    }
+    // bound subtrees are still used, new ones are not bound.
+    assertEquals("/s/1", resultCache.getScope("/jcr:root/s/1//*", Query.XPATH));
+    assertEquals("/", resultCache.getScope("/jcr:root/t/1//*", Query.XPATH));
+    verify(none, noRows, result, cacheManagerService);
+  }
+
+  @Test
+  public void testKey() throws RepositoryException {
+    Session bob = createMock(Session.class);
+    expect(bob.getUserID()).andReturn("bob").anyTimes();
+    Session alice = createMock(Session.class);
+    expect(alice.getUserID()).andReturn("alice").anyTimes();
+    replay(bob, alice, cacheManagerService);
+    String key = resultCache.getKey(bob, "/sites/a", "/jcr:root/sites/a//*", Query.XPATH);
+    assertTrue(key.startsWith("/sites/a/"));
+    assertEquals(key, resultCache.getKey(bob, "/sites/a", "/jcr:root/sites/a//*",
+        Query.XPATH));
+    assertFalse(key.equals(resultCache.getKey(alice, "/sites/a", "/jcr:root/sites/a//*",
+        Query.XPATH)));
+    assertFalse(key.equals(resultCache.getKey(bob, "/sites/a", "/jcr:root/sites/a//x",
+        Query.XPATH)));
+    assertTrue(resultCache.getKey(bob, "/", "//*", Query.XPATH).matches("/[0-9a-f]+"));
+  }
+
+  @Test
+  public void testPrincipalsKept() throws RepositoryException {
+    Group group = createMock(Group.class);
+    Principal principal = createMock(Principal.class);
+    expect(group.getPrincipal()).andReturn(principal);
+    expect(principal.getName()).andReturn("staff");
+    Authorizable authorizable = createMock(Authorizable.class);
+    expect(authorizable.memberOf()).andReturn(Arrays.asList(group).iterator());
+    UserManager userManager = createMock(UserManager.class);
+    // looked up once, not for every search.
+    expect(userManager.getAuthorizable("bob")).andReturn(authorizable);
+    JackrabbitSession bob = createMock(JackrabbitSession.class);
+    expect(bob.getUserID()).andReturn("bob").anyTimes();
+    expect(bob.getUserManager()).andReturn(userManager);
+    replay(group, principal, authorizable, userManager, bob, cacheManagerService);
+    String key = resultCache.getKey(bob, "/sites/a", "/jcr:root/sites/a//*", Query.XPATH);
+    assertEquals(key, resultCache.getKey(bob, "/sites/a", "/jcr:root/sites/a//*",
+        Query.XPATH));
+    assertTrue(Arrays.equals(new String[] { "bob", "staff" }, resultCache
+        .getPrincipals(bob)));
+    verify(group, principal, authorizable, userManager, bob, cacheManagerService);
+  }
+
+  @Test
+  public void testCachedResults() throws RepositoryException {
+    // the nodes are not read to find their paths.
+    Node one = createMock(Node.class);
+    Node two = createMock(Node.class);
+    Node three = createMock(Node.class);
+    NodeIterator nodes = createMock(NodeIterator.class);
+    expect(nodes.getSize()).andReturn(3L);
+    RowIterator rows = createMock(RowIterator.class);
+    expect(rows.hasNext()).andReturn(true).times(3);
+    for (String path : new String[] { "/sites/a/1", "/sites/a/2", "/sites/a/3" }) {
+      Value value = createMock(Value.class);
+      expect(value.getString()).andReturn(path);
+      Row row = createMock(Row.class);
+      expect(row.getValue("jcr:path")).andReturn(value);
+      expect(rows.nextRow()).andReturn(row);
+      replay(value, row);
+    }
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andReturn(nodes);
+    expect(result.getRows()).andReturn(rows);
+    Session session = createMock(Session.class);
+    // two can no longer be read.
+    expect(session.getItem("/sites/a/1")).andReturn(one).anyTimes();
+    expect(session.getItem("/sites/a/2")).andThrow(new PathNotFoundException()).anyTimes();
+    expect(session.getItem("/sites/a/3")).andReturn(three).anyTimes();
+    cacheManagerService.bindSubtree(SearchResultCache.RESULT_CACHE, CacheScope.INSTANCE,
+        "/sites/a");
+    replay(one, two, three, nodes, rows, result, session, cacheManagerService);
+
+    assertNull(resultCache.get(session, "/sites/a/key"));
+    // the search that missed goes on with the nodes of its own result.
+    assertSame(nodes, resultCache.put("/sites/a/key", "/sites/a", result, 60));
+
+    NodeIterator results = resultCache.get(session, "/sites/a/key");
+    assertNotNull(results);
+    assertEquals(3, results.getSize());
+    assertSame(one, results.nextNode());
+    assertSame(three, results.nextNode());
+    assertFalse(results.hasNext());
+
+    results = resultCache.get(session, "/sites/a/key");
+    assertNotNull(results);
+    assertEquals(3, results.getSize());
+    // skipping does not read the nodes skipped.
+    results.skip(2);
+    assertEquals(2, results.getPosition());
+    assertSame(three, results.nextNode());
+    assertFalse(results.hasNext());
+    verify(one, two, three, nodes, rows, result, session, cacheManagerService);
+  }
+
+  @Test
+  public void testNotCached() throws RepositoryException {
+    NodeIterator many = createMock(NodeIterator.class);
+    expect(many.getSize()).andReturn((long) SearchResultCache.MAX_RESULTS + 1);
+    QueryResult manyResult = createMock(QueryResult.class);
+    expect(manyResult.getNodes()).andReturn(many);
+    NodeIterator unknown = createMock(NodeIterator.class);
+    expect(unknown.getSize()).andReturn(-1L);
+    QueryResult unknownResult = createMock(QueryResult.class);
+    expect(unknownResult.getNodes()).andReturn(unknown);
+    replay(many, manyResult, unknown, unknownResult, cacheManagerService);
+    assertSame(many, resultCache.put("/key", "/", manyResult, 60));
+    assertSame(unknown, resultCache.put("/key", "/", unknownResult, 60));
+    assertFalse(cache.containsKey("/key"));
+    verify(many, manyResult, unknown, unknownResult, cacheManagerService);
+  }
+}
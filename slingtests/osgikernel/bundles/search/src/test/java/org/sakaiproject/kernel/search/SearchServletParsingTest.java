@@ -22,6 +22,8 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
@@ -29,6 +31,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.jcr.query.Query;
 
 /**
@@ -54,7 +59,11 @@ public class SearchServletParsingTest {
     expect(request.getRequestParameter("a")).andReturn(rp_a).anyTimes();
     expect(rp_a.getString()).andReturn("again").anyTimes();
 
-    mocks = new Object[] {request, rp, rp_a};
+    RequestParameter rp_e = createMock(RequestParameter.class);
+    expect(request.getRequestParameter("e")).andReturn(rp_e).anyTimes();
+    expect(rp_e.getString()).andReturn("it's a\\b \\-c").anyTimes();
+
+    mocks = new Object[] {request, rp, rp_a, rp_e};
     replay(mocks);
 
   }
@@ -91,4 +100,38 @@ public class SearchServletParsingTest {
     result = searchServlet.processQueryTemplate(request, "{null|foo}", Query.SQL, null);
     assertEquals("foo", result);
   }
+
+  @Test
+  public void testQueryParsingUserProperties() {
+    String result = searchServlet.processQueryTemplate(request, "{_userId} {q}",
+        Query.SQL, null);
+    assertEquals("bob testing", result);
+    result = searchServlet.processQueryTemplate(request, "{_missing|foo}", Query.SQL,
+        null);
+    assertEquals("foo", result);
+  }
+
+  @Test
+  public void testQueryParsingEscapes() {
+    String result = searchServlet.processQueryTemplate(request, "x = '{e}' \\{q\\}",
+        Query.SQL, null);
+    assertEquals("x = 'it\\''s a\\\\b \\-c' {q}", result);
+    result = searchServlet.processQueryTemplate(request, "{e}", "unknown", null);
+    assertEquals("", result);
+  }
+
+  @Test
+  public void testCompiledTemplate() {
+    QueryTemplate template = new QueryTemplate("a {q} b {_userId|x} c {null|foo|bar}");
+    assertTrue(template.hasUserProperties());
+    assertFalse(new QueryTemplate("a {q} b").hasUserProperties());
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("_userId", "bob");
+    // the compiled template expands the same each time.
+    for (int i = 0; i < 3; i++) {
+      assertEquals("a testing b bob c foo", template.expand(request, properties,
+          Query.SQL));
+    }
+    assertEquals("a testing b x c foo", template.expand(request, null, Query.XPATH));
+  }
 }
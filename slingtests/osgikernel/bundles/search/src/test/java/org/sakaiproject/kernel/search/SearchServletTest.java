@@ -3,6 +3,7 @@ package org.sakaiproject.kernel.search;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_PAGE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_CACHE_TTL;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
@@ -81,7 +82,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(resource.adaptTo(Node.class)).andReturn(queryNode);
 
     request = createMock(SlingHttpServletRequest.class);
-    expect(request.getRemoteUser()).andReturn("bob");
+    expect(request.getRemoteUser()).andReturn("bob").anyTimes();
     expect(request.getResource()).andReturn(resource);
     expect(request.getRequestParameter(PARAMS_PAGE)).andReturn(null);
     addStringRequestParameter(request, "items", "25");
@@ -197,6 +198,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     searchServlet = new SearchServlet();
     expect(queryNode.hasProperty(SAKAI_RESULTPROCESSOR)).andReturn(false)
         .anyTimes();
+    expect(queryNode.hasProperty(SAKAI_CACHE_TTL)).andReturn(false).anyTimes();
 
     replay();
 